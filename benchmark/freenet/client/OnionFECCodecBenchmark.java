@@ -0,0 +1,86 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.CHKBlock;
+
+/**
+ * Encoding and decoding a full splitfile segment: 128 data blocks and 128 check blocks of 32KiB.
+ * Decoding is the worst case, with half the data blocks missing, as after a fetch which got
+ * mostly check blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnionFECCodecBenchmark {
+
+	private static final int DATA_BLOCKS = 128;
+	private static final int CHECK_BLOCKS = 128;
+	private static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+
+	OnionFECCodec codec;
+	byte[][] original;
+	byte[][] dataBlocks;
+	byte[][] checkBlocks;
+	byte[][] encodedCheckBlocks;
+	boolean[] dataPresent;
+	boolean[] checkPresent;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		codec = new OnionFECCodec();
+		Random random = new Random(1234);
+		original = new byte[DATA_BLOCKS][BLOCK_SIZE];
+		for(byte[] block : original)
+			random.nextBytes(block);
+		encodedCheckBlocks = new byte[CHECK_BLOCKS][BLOCK_SIZE];
+		codec.encode(original, encodedCheckBlocks, new boolean[CHECK_BLOCKS], BLOCK_SIZE);
+		dataBlocks = new byte[DATA_BLOCKS][BLOCK_SIZE];
+		checkBlocks = new byte[CHECK_BLOCKS][BLOCK_SIZE];
+		dataPresent = new boolean[DATA_BLOCKS];
+		checkPresent = new boolean[CHECK_BLOCKS];
+	}
+
+	@Benchmark
+	public byte[][] encode() {
+		codec.encode(original, checkBlocks, new boolean[CHECK_BLOCKS], BLOCK_SIZE);
+		return checkBlocks;
+	}
+
+	@Benchmark
+	public byte[][] decode() {
+		// Every other data block, and enough check blocks to make up the rest.
+		for(int i = 0; i < DATA_BLOCKS; i++) {
+			dataPresent[i] = (i & 1) == 0;
+			if(dataPresent[i])
+				System.arraycopy(original[i], 0, dataBlocks[i], 0, BLOCK_SIZE);
+		}
+		for(int i = 0; i < CHECK_BLOCKS; i++) {
+			checkPresent[i] = i < DATA_BLOCKS / 2;
+			if(checkPresent[i])
+				System.arraycopy(encodedCheckBlocks[i], 0, checkBlocks[i], 0, BLOCK_SIZE);
+		}
+		codec.decode(dataBlocks, checkBlocks, dataPresent, checkPresent, BLOCK_SIZE);
+		return dataBlocks;
+	}
+
+}
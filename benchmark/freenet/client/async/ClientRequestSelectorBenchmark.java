@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+/**
+ * The keys-being-fetched set every block request goes through: the request starters check it
+ * before choosing a block, add the key when they start the request and remove it when it
+ * finishes. A busy node has around a thousand requests in flight, started from several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ClientRequestSelectorBenchmark {
+
+	/** Keys in flight from each thread. */
+	private static final int IN_FLIGHT = 256;
+	/** Keys each thread cycles through. */
+	private static final int KEYS = IN_FLIGHT * 4;
+
+	ClientRequestSelector selector;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		// Nothing waits on the keys, so the scheduler is never used.
+		selector = new ClientRequestSelector(false, false, false, null);
+	}
+
+	@State(Scope.Thread)
+	public static class Starter {
+		final Key[] keys = new Key[KEYS];
+		int next;
+
+		@Setup(Level.Trial)
+		public void setUp(ClientRequestSelectorBenchmark bench) {
+			Random random = new Random();
+			for(int i = 0; i < KEYS; i++) {
+				byte[] routingKey = new byte[32];
+				random.nextBytes(routingKey);
+				keys[i] = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+			}
+			for(int i = 0; i < IN_FLIGHT; i++)
+				bench.selector.addToFetching(keys[i]);
+			next = IN_FLIGHT;
+		}
+	}
+
+	/** Start a request for a key and finish the oldest one. */
+	@Benchmark
+	public boolean startAndFinish(Starter s) {
+		Key key = s.keys[s.next];
+		boolean started = !selector.hasKey(key, null) && selector.addToFetching(key);
+		selector.removeFetchingKey(s.keys[(s.next + KEYS - IN_FLIGHT) % KEYS]);
+		s.next = (s.next + 1) % KEYS;
+		return started;
+	}
+
+	/** Check a key which is being fetched, as a request which is waiting for it does. */
+	@Benchmark
+	public boolean check(Starter s) {
+		s.next = (s.next + 1) % KEYS;
+		return selector.hasKey(s.keys[s.next], null);
+	}
+
+}
@@ -0,0 +1,110 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.support.io.FileUtil;
+
+/**
+ * Filtering a freesite index page for FProxy: a ~50KiB XHTML page with inline CSS, a menu, tables
+ * of links and activelinks to other freesites, and a form. The page is in
+ * freesite-index.html next to this class.
+ *
+ * Also filters generated pages which are mostly long runs of text, where reading in blocks and
+ * copying whole runs of text matter most, and mostly small tags with links, where the time goes
+ * on sanitising URIs and attributes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTMLFilterBenchmark {
+
+	private static final String BASE_URI =
+		"/USK@abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNO,PQRSTUVWXYZabcdefghijklmnopqrstuvwx,AQACAAE/index/123/";
+
+	byte[] page;
+	URI base;
+	ByteArrayOutputStream output;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		InputStream is = HTMLFilterBenchmark.class.getResourceAsStream("freesite-index.html");
+		if(is == null) throw new IOException("freesite-index.html not found");
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			FileUtil.copy(is, bos, -1);
+			page = bos.toByteArray();
+		} finally {
+			is.close();
+		}
+		base = new URI(BASE_URI);
+		output = new ByteArrayOutputStream(page.length * 2);
+	}
+
+	@State(Scope.Thread)
+	public static class GeneratedPage {
+		@Param({"text", "tags"})
+		String kind;
+
+		byte[] page;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			StringBuilder sb = new StringBuilder("<html><head><title>Benchmark</title></head><body>\n");
+			for(int i=0;i<2000;i++) {
+				if(kind.equals("text")) {
+					sb.append("<p>");
+					for(int j=0;j<8;j++)
+						sb.append("The quick brown fox jumps over the lazy dog, again and again. ");
+					sb.append("</p>\n");
+				} else {
+					sb.append("<div class=\"item\"><a href=\"/KSK@page").append(i).append(".html\" title=\"Page\">Page ")
+						.append(i).append("</a> <img src=\"image.png\" alt=\"\" /><br /></div>\n");
+				}
+			}
+			sb.append("</body></html>");
+			page = sb.toString().getBytes("UTF-8");
+		}
+	}
+
+	@Benchmark
+	public int filter() throws IOException {
+		return filter(page);
+	}
+
+	@Benchmark
+	public int filterGenerated(GeneratedPage generated) throws IOException {
+		return filter(generated.page);
+	}
+
+	private int filter(byte[] data) throws IOException {
+		output.reset();
+		new HTMLFilter().readFilter(new ByteArrayInputStream(data), output, "UTF-8", null,
+				new GenericReadFilterCallback(base, null, null, null));
+		return output.size();
+	}
+
+}
@@ -0,0 +1,79 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the packet path asks of node.random for each packet, from many threads at once: timer
+ * entropy on receipt, then padding bytes, an IV and a UID for what we send back. Compares the
+ * node's Yarrow used directly with PerThreadRandomSource in front of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RandomSourceBenchmark {
+
+	@Param({"yarrow", "perThread"})
+	String source;
+
+	RandomSource random;
+	final EntropySource timingSource = new EntropySource();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Yarrow yarrow = new Yarrow(new File("/dev/urandom"), "SHA1", "Rijndael", false, false);
+		random = source.equals("yarrow") ? yarrow : new PerThreadRandomSource(yarrow);
+	}
+
+	@State(Scope.Thread)
+	public static class Buffers {
+		final byte[] padding = new byte[100];
+		final byte[] iv = new byte[16];
+	}
+
+	private long packet(Buffers buffers) {
+		random.acceptTimerEntropy(timingSource, 0.25);
+		random.nextBytes(buffers.padding);
+		random.nextBytes(buffers.iv);
+		return random.nextLong();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long packet1Thread(Buffers buffers) {
+		return packet(buffers);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long packet4Threads(Buffers buffers) {
+		return packet(buffers);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public long packet16Threads(Buffers buffers) {
+		return packet(buffers);
+	}
+
+}
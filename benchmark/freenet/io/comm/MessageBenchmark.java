@@ -0,0 +1,84 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+/**
+ * Encoding and decoding the messages a node sends most: a CHK request with its real time flag,
+ * and the replies to it, plus the location swaps every peer sends. Each invocation handles the
+ * whole mix once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	private static final int MIX = 5;
+
+	Message[] messages;
+	byte[][] encoded;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(1234);
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		byte[] headers = new byte[36];
+		random.nextBytes(headers);
+		double[] locations = new double[20];
+		for(int i = 0; i < locations.length; i++)
+			locations[i] = random.nextDouble();
+		long uid = random.nextLong();
+		Message request = DMT.createFNPCHKDataRequest(uid, (short) 18,
+				new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256));
+		request.addSubMessage(DMT.createFNPRealTimeFlag(false));
+		messages = new Message[] {
+			request,
+			DMT.createFNPAccepted(uid),
+			DMT.createFNPCHKDataFound(uid, headers),
+			DMT.createFNPRejectedOverload(uid, false, true, false),
+			DMT.createFNPLocChangeNotificationNew(random.nextDouble(), locations)
+		};
+		encoded = new byte[MIX][];
+		for(int i = 0; i < MIX; i++)
+			encoded[i] = messages[i].encodeToPacket();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MIX)
+	public void encode(Blackhole bh) {
+		for(Message m : messages)
+			bh.consume(m.encodeToPacket());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MIX)
+	public void decode(Blackhole bh) {
+		for(byte[] buf : encoded)
+			bh.consume(Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0));
+	}
+
+}
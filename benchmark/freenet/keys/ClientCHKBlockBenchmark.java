@@ -0,0 +1,78 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+
+/**
+ * The work done on every CHK block: encoding a full 32KiB block for an insert, verifying a block
+ * we have been sent (hash of data and headers), and decrypting a block we have fetched. Old
+ * keys use AES-PCFB, new ones AES-CTR.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientCHKBlockBenchmark {
+
+	@Param({"2", "3"})
+	byte cryptoAlgorithm;
+
+	byte[] data;
+	ClientCHKBlock encoded;
+	ArrayBucketFactory bf;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		if(cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256 && cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
+			throw new IllegalArgumentException();
+		data = new byte[CHKBlock.DATA_LENGTH];
+		new Random(1234).nextBytes(data);
+		encoded = encode();
+		bf = new ArrayBucketFactory();
+	}
+
+	@Benchmark
+	public ClientCHKBlock encode() throws CHKEncodeException, IOException {
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		// Splitfile blocks are already compressed.
+		return ClientCHKBlock.encode(bucket, false, true, (short)-1, bucket.size(),
+				Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, cryptoAlgorithm);
+	}
+
+	@Benchmark
+	public CHKBlock verify() throws CHKVerifyException {
+		CHKBlock block = encoded.getBlock();
+		return new CHKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), true, cryptoAlgorithm);
+	}
+
+	@Benchmark
+	public Bucket decode() throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock block = new ClientCHKBlock(encoded.getBlock(), encoded.getClientKey());
+		return block.decode(bf, CHKBlock.DATA_LENGTH, true);
+	}
+
+}
@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.DSA;
+import freenet.crypt.DSAGroup;
+import freenet.crypt.DSAPrivateKey;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSASignature;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.Global;
+import freenet.crypt.SHA256;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.compress.Compressor;
+
+/**
+ * SSK verification under a USK polling workload: a few USKs with many editions each, where most
+ * verifications are of the latest few editions of the popular USKs, which we see again and again
+ * from the store and from peers, and the rest are older editions. Compares verifying every time
+ * as SSKBlock used to (clipped form, then the whole hash) with SSKVerifier.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SSKVerifierBenchmark {
+
+	private static final int USKS = 8;
+	private static final int EDITIONS = 64;
+	/** Fraction of verifications which are of the latest editions. */
+	private static final double LATEST_FRACTION = 0.8;
+	private static final int LATEST = 4;
+
+	@Param({"uncached", "verifier"})
+	String mode;
+
+	SSKVerifier verifier;
+	/** [usk][edition] */
+	DSAPublicKey[] pubKeys;
+	byte[][] pubKeyHashes;
+	byte[][][] hashes;
+	byte[][][] sigR;
+	byte[][][] sigS;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		verifier = new SSKVerifier();
+		DummyRandomSource random = new DummyRandomSource(1234);
+		DSAGroup g = Global.DSAgroupBigA;
+		pubKeys = new DSAPublicKey[USKS];
+		pubKeyHashes = new byte[USKS][];
+		hashes = new byte[USKS][EDITIONS][];
+		sigR = new byte[USKS][EDITIONS][];
+		sigS = new byte[USKS][EDITIONS][];
+		for(int u = 0; u < USKS; u++) {
+			byte[] ckey = new byte[32];
+			random.nextBytes(ckey);
+			DSAPrivateKey privKey = new DSAPrivateKey(g, random);
+			pubKeys[u] = new DSAPublicKey(g, privKey);
+			pubKeyHashes[u] = SHA256.digest(pubKeys[u].asBytes());
+			for(int e = 0; e < EDITIONS; e++) {
+				InsertableClientSSK ik = new InsertableClientSSK("site-" + e, pubKeyHashes[u], pubKeys[u], privKey, ckey, Key.ALGO_AES_PCFB_256_SHA256);
+				SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(("edition " + e).getBytes("UTF-8"));
+				SSKBlock block = (SSKBlock) ik.encode(bucket, false, false, (short)-1, bucket.size(), random, Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false).getBlock();
+				byte[] headers = block.getRawHeaders();
+				int sigOffset = block.headersOffset + SSKBlock.ENCRYPTED_HEADERS_LENGTH;
+				MessageDigest md = SHA256.getMessageDigest();
+				md.update(block.getRawData());
+				byte[] dataHash = md.digest();
+				md.update(headers, 0, sigOffset);
+				md.update(dataHash);
+				hashes[u][e] = md.digest();
+				SHA256.returnMessageDigest(md);
+				sigR[u][e] = new byte[SSKBlock.SIG_R_LENGTH];
+				sigS[u][e] = new byte[SSKBlock.SIG_S_LENGTH];
+				System.arraycopy(headers, sigOffset, sigR[u][e], 0, SSKBlock.SIG_R_LENGTH);
+				System.arraycopy(headers, sigOffset + SSKBlock.SIG_R_LENGTH, sigS[u][e], 0, SSKBlock.SIG_S_LENGTH);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Poller {
+		final Random random = new Random();
+	}
+
+	@Benchmark
+	public boolean poll(Poller poller) {
+		Random random = poller.random;
+		// The first USKs are the popular ones.
+		int u = Math.min(USKS - 1, (int) (-Math.log(1.0 - random.nextDouble()) * 2));
+		int e;
+		if(random.nextDouble() < LATEST_FRACTION)
+			e = EDITIONS - 1 - random.nextInt(LATEST);
+		else
+			e = random.nextInt(EDITIONS);
+		if(mode.equals("verifier"))
+			return verifier.verify(pubKeys[u], pubKeyHashes[u], hashes[u][e], sigR[u][e], sigS[u][e]);
+		DSASignature sig = new DSASignature(new BigInteger(1, sigR[u][e]), new BigInteger(1, sigS[u][e]));
+		BigInteger m = new BigInteger(1, hashes[u][e]);
+		return DSA.verify(pubKeys[u], sig, m, false) || DSA.verify(pubKeys[u], sig, m, true);
+	}
+
+}
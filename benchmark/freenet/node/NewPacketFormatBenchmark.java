@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and parsing NewPacketFormat data packets, without the crypto (see
+ * {@link PacketCipherBenchmark}): a full packet carries a run of acks, a few short messages and
+ * a fragment of a block transfer. The acks are either cumulative ranges or the old one byte
+ * offsets, depending on the peer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NewPacketFormatBenchmark {
+
+	private static final int MAX_PACKET_SIZE = 1280;
+
+	@Param({"false", "true"})
+	boolean cumulativeAcks;
+
+	BasePeerNode peer;
+	Random paddingGen;
+	byte[][] shortMessages;
+	byte[] blockData;
+	byte[] packet;
+	int sequenceNumber;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		peer = (BasePeerNode) Proxy.newProxyInstance(BasePeerNode.class.getClassLoader(),
+				new Class<?>[] { BasePeerNode.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("isUseCumulativeAcksSet"))
+					return cumulativeAcks;
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		paddingGen = new Random(1234);
+		// Sizes of the usual request and reply messages.
+		int[] sizes = { 47, 13, 49, 16 };
+		shortMessages = new byte[sizes.length][];
+		for(int i = 0; i < sizes.length; i++) {
+			shortMessages[i] = new byte[sizes[i]];
+			paddingGen.nextBytes(shortMessages[i]);
+		}
+		// Fill the rest of the packet with part of a block transfer.
+		blockData = new byte[MAX_PACKET_SIZE - start(0).getLength() - 10];
+		paddingGen.nextBytes(blockData);
+		packet = build();
+	}
+
+	private NPFPacket start(int seq) {
+		NPFPacket p = new NPFPacket();
+		p.setAcknowledgeType(cumulativeAcks);
+		p.setSequenceNumber(seq);
+		// Mostly in order, with a few gaps where packets were lost.
+		int ack = seq;
+		for(int i = 0; i < 32; i++) {
+			ack += (i % 8 == 7) ? 3 : 1;
+			p.addAck(ack, MAX_PACKET_SIZE);
+		}
+		int messageID = seq & 0xFFF;
+		for(byte[] msg : shortMessages)
+			p.addMessageFragment(new MessageFragment(true, false, true, messageID++, msg.length,
+					msg.length, 0, msg, null));
+		return p;
+	}
+
+	@Benchmark
+	public byte[] build() {
+		int seq = sequenceNumber++ & 0xFFFFFF;
+		NPFPacket p = start(seq);
+		p.addMessageFragment(new MessageFragment(false, true, false, (seq & 0xFFF) + shortMessages.length,
+				blockData.length, 32768, blockData.length, blockData, null));
+		byte[] buf = new byte[MAX_PACKET_SIZE];
+		p.toBytes(buf, 0, paddingGen);
+		return buf;
+	}
+
+	@Benchmark
+	public NPFPacket parse() {
+		return NPFPacket.create(packet, peer);
+	}
+
+}
@@ -0,0 +1,95 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Packets per second on one core for the crypto NewPacketFormat does on each data packet:
+ * encrypt and MAC on the way out, MAC check and decrypt on the way in. negType 10 is Rijndael
+ * PCFB with 256-bit blocks, negType 11 is AES-CTR through the JCA.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCipherBenchmark {
+
+	@Param({"10", "11"})
+	int negType;
+
+	@Param({"100", "1350"})
+	int packetSize;
+
+	PacketCipher sender;
+	PacketCipher receiver;
+	byte[] packet;
+	byte[] received;
+
+	@Setup(Level.Trial)
+	public void setUp() throws UnsupportedCipherException {
+		Random random = new Random(1234);
+		byte[] outgoingKey = new byte[32];
+		byte[] incomingKey = new byte[32];
+		byte[] ivKey = new byte[32];
+		byte[] ivNonce = new byte[32];
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(outgoingKey);
+		random.nextBytes(incomingKey);
+		random.nextBytes(ivKey);
+		random.nextBytes(ivNonce);
+		random.nextBytes(hmacKey);
+		sender = new PacketCipher(negType, cipher(outgoingKey), outgoingKey, cipher(incomingKey),
+				incomingKey, cipher(ivKey), ivNonce, hmacKey);
+		receiver = new PacketCipher(negType, cipher(incomingKey), incomingKey, cipher(outgoingKey),
+				outgoingKey, cipher(ivKey), ivNonce, hmacKey);
+		packet = new byte[packetSize];
+		random.nextBytes(packet);
+		packet[0] = packet[1] = packet[2] = packet[3] = 0;
+		received = packet.clone();
+		sender.encipherOutgoing(received, 0, received.length);
+	}
+
+	private static BlockCipher cipher(byte[] key) throws UnsupportedCipherException {
+		BlockCipher c = new Rijndael(256, 256);
+		c.initialize(key);
+		return c;
+	}
+
+	@Benchmark
+	public byte[] encrypt() {
+		byte[] data = packet.clone();
+		sender.encipherOutgoing(data, 0, data.length);
+		return sender.macOutgoing(data, 0, data.length);
+	}
+
+	@Benchmark
+	public byte[] decrypt() {
+		byte[] data = received.clone();
+		byte[] mac = receiver.macIncoming(data, 0, data.length);
+		receiver.decipherIncoming(0, data, 0, data.length);
+		return mac;
+	}
+
+}
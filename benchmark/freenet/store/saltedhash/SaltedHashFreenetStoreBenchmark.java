@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+import freenet.support.io.FileUtil;
+
+/**
+ * CHK store lookups and writes against a pre-populated on-disk store, from several threads as
+ * requests from different peers would. Hits read the slot and verify the block; misses are
+ * mostly answered by the slot filter when it is enabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SaltedHashFreenetStoreBenchmark {
+
+	/** Slots in the store. Each is a little over 32KiB on disk. */
+	private static final int STORE_SIZE = 4096;
+	/** Blocks we put in it before measuring: 3/4 full, as a store usually is. */
+	private static final int BLOCKS = STORE_SIZE * 3 / 4;
+	/** Keys we never insert, for misses. */
+	private static final int MISSING = 1024;
+
+	@Param({"false", "true"})
+	boolean useSlotFilter;
+
+	File dir;
+	PooledExecutor executor;
+	SaltedHashFreenetStore<CHKBlock> saltStore;
+	CHKStore store;
+	CHKBlock[] blocks;
+	NodeCHK[] missing;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dir = File.createTempFile("saltedhash-bench", "");
+		dir.delete();
+		dir.mkdir();
+		executor = new PooledExecutor();
+		executor.start();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		Random random = new Random(1234);
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(dir, "bench", store, random, STORE_SIZE, useSlotFilter,
+				SemiOrderedShutdownHook.get(), true, true, new TrivialTicker(executor), null);
+		saltStore.start(null, true);
+		blocks = new CHKBlock[BLOCKS];
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		for(int i = 0; i < BLOCKS; i++) {
+			blocks[i] = encode(random, data);
+			store.put(blocks[i], false);
+		}
+		missing = new NodeCHK[MISSING];
+		for(int i = 0; i < MISSING; i++)
+			missing[i] = encode(random, data).getKey();
+	}
+
+	private static CHKBlock encode(Random random, byte[] data) throws Exception {
+		random.nextBytes(data);
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, true, (short)-1, bucket.size(),
+				Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, Key.ALGO_AES_CTR_256_SHA256).getBlock();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		saltStore.close();
+		FileUtil.removeAll(dir);
+	}
+
+	@State(Scope.Thread)
+	public static class Requester {
+		final Random random = new Random();
+	}
+
+	@Benchmark
+	public CHKBlock fetchHit(Requester r) throws IOException {
+		return store.fetch(blocks[r.random.nextInt(BLOCKS)].getKey(), false, false, null);
+	}
+
+	@Benchmark
+	public CHKBlock fetchMiss(Requester r) throws IOException {
+		return store.fetch(missing[r.random.nextInt(MISSING)], false, false, null);
+	}
+
+	@Benchmark
+	public void put(Requester r) throws IOException {
+		// Stored again, as when we fetch a block we already have from a peer.
+		store.put(blocks[r.random.nextInt(BLOCKS)], false);
+	}
+
+}
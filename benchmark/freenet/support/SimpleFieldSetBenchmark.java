@@ -0,0 +1,218 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.Readers;
+
+/**
+ * Parsing and writing SimpleFieldSet's: typical FCP messages, as read by 
+ * FCPConnectionInputHandler, and a full node reference, as read from a peer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleFieldSetBenchmark {
+
+	static final String CLIENT_PUT = 
+		"Identifier=upload-1442925364783\n" +
+		"URI=CHK@\n" +
+		"Metadata.ContentType=text/html\n" +
+		"Verbosity=1023\n" +
+		"MaxRetries=-1\n" +
+		"PriorityClass=2\n" +
+		"GetCHKOnly=false\n" +
+		"Global=true\n" +
+		"DontCompress=false\n" +
+		"ClientToken=my-upload\n" +
+		"Persistence=forever\n" +
+		"TargetFilename=index.html\n" +
+		"EarlyEncode=false\n" +
+		"UploadFrom=disk\n" +
+		"Filename=/home/user/site/index.html\n" +
+		"RealTimeFlag=false\n" +
+		"End\n";
+
+	static final String SIMPLE_PROGRESS = 
+		"Identifier=download-1442925364783\n" +
+		"Global=true\n" +
+		"Total=1283\n" +
+		"Required=856\n" +
+		"Failed=3\n" +
+		"FatallyFailed=0\n" +
+		"Succeeded=412\n" +
+		"LastProgress=1442925364783\n" +
+		"MinSuccessFetchBlocks=856\n" +
+		"FinalizedTotal=true\n" +
+		"EndMessage\n";
+
+	static final String COMPLEX_DIR;
+
+	static final String NODEREF = 
+		"identity=ZYTq2p8mXZkhrDOdnEHqM6PXNbM7JvBwA~aRs1KU0wo\n" +
+		"lastGoodVersion=Fred,0.7,1.0,1465\n" +
+		"myName=Freenet node with no name #-2826391271683618405\n" +
+		"opennet=false\n" +
+		"sig=7fc11d1d15d8cd3ba0d46f1a7ff0cf80b1e8ef8d1e44b85d22dc8f5b3e7e8ee7,1a4c0a2a54f3ccba78b3f3bd4c5e2bd9ba0b8a21dba8b1a58a4f0d2e29f6b00e\n" +
+		"sigP256=MEYCIQCTWu5FKmuAuFFC6OcEEh6g1W98wVWDLYHhuRl2oMTumQIhAOH5dXqHvwTh3YXlQcPHYkuOjDVSxX1MGG~P7eI~Rk2a\n" +
+		"version=Fred,0.7,1.0,1470\n" +
+		"auth.negTypes=9;10\n" +
+		"ark.number=1094\n" +
+		"ark.pubURI=SSK@fAcQJqF3WbFJWR0pOETNGkTkXTxDhHdfa6bfQkI2eNM,1eVcZ2HRJ3cs-T0AgfRGCLYRpMsUKZYXYTCtS2zsIIw,AQACAAE/ark\n" +
+		"dsaGroup.g=UaRatnDEhMlPdWYCuqBXnOQDEh8r4JvfqqXOTA4VBh3F8Y5k5A1Jc0s64Gc2Bz6x0ib4Kaa0yd5OYyPoaebyMO8pEvUxBn1sFB4Jj4VIFKq7WsH9VxVkkTc0kSdn4hSvNHfD6xcOmGOSeRzYiOo29cUGwuiEtBUuoITDhTTuEWk\n" +
+		"dsaGroup.p=AIYIrE9VNhM38qPjirGGT-PJjWZBHY0q-JxSYyDFQfZQeOhrx4SUpdc~SppnWD~UHymT7WyX28eV3YjwkVyc~--H5Tc83hPjx8qQc7kQbrMb~CXi0cEOH3bH5G2dTQtDLgCr3xHvGR4vqB~VhHFO~8rnyxuYNaRsNCxRK5gjdpWjWL6K4f4JTn~vlv35Cy4PGYWSyqzCgZx3sYZF~H0CNqnPQC0VXnxtuwNB8JRw31cY4TMWF-rdp5r-9P2hXLQY4ehrKpDNUFTIwNOiE7r~sBr0Y07vONdrl4pWoYsBGJCfLqT0pNlNc~iMKGRHZHIqHCYr1zzoaBYj47X9vKmJXRn0pb6wAtPzAP0xI9TQ5GYvzCF2VfSEQO6Lr69E5SD8-EnP06WcZLwgX2tdQcbVcz5Z~~uE0e-p12o11h1njo4EtzxF1WDnn6XpUyd3qTHcGaLxsBVLfPAm8gZoVNkc2wTafRnO4D0gC7Ny3eH~Dn3bgW\n" +
+		"dsaGroup.q=ALFDNoq81R8n6L0RSqpTsTi3iZwo5QN5TBh6jLQ09s8Y\n" +
+		"dsaPubKey.y=VjjemyBsdkBMtbN1jt-3o0OJBMPAWEb71iXcNlZo3hxcXtiOmQNAtcs54D0nRRXzupCxgLhCCF9BK~bKUJ1JWB8VuBLjSLfyEsFa6JqDiPpfQcMiJ6A~6aF1LmeiEu6ovdL8aa-kzJaZFtBjrPiq7cbxMjadUKRXk85kXZsEXXZs5CT7ZS8u-SLqXj5BJhXsfXgvCLJaNmi-DfpTTVZ35SzdVnzK~Y5u0rBrVkh-d5zpyPyQlmZ1dvvtD~7LXTOyOxZQNYbHpjmmgm-pySDmGd6jrLpUqAB0~WDrtm4-wiV5f7E5x0ddpj9P5XWWFzFTaKT8RPpE5cEytx-z5j3g\n" +
+		"ecdsa.P256.pub=MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEtBpCVvyHsl~qtqFrvnRQfp4IqCfn~IyiZm0QqIMo4aJCuJhQq4wTE6Phnn7EzYIRuFqvhWPOvtnGcvYE9B7QJw\n" +
+		"location=0.8374192837\n" +
+		"physical.udp=198.51.100.23:27312;[2001:db8::17]:27312\n" +
+		"volatile.averagePingTime=219.13\n" +
+		"volatile.bandwidthClass=3\n" +
+		"volatile.metadata.timeCreated=1442925364783\n" +
+		"End\n";
+
+	static {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Identifier=site-upload\nURI=SSK@private/site-1/\nDefaultName=index.html\nPersistence=forever\nGlobal=true\n");
+		for(int i=0;i<50;i++) {
+			sb.append("Files.").append(i).append(".Name=dir/file").append(i).append(".html\n");
+			sb.append("Files.").append(i).append(".UploadFrom=disk\n");
+			sb.append("Files.").append(i).append(".Filename=/home/user/site/dir/file").append(i).append(".html\n");
+			sb.append("Files.").append(i).append(".Metadata.ContentType=text/html\n");
+		}
+		sb.append("End\n");
+		COMPLEX_DIR = sb.toString();
+	}
+
+	static final String[] NODEREF_KEYS = new String[] {
+		"identity", "lastGoodVersion", "opennet", "sig", "sigP256", "version", "auth.negTypes", 
+		"ark.number", "ark.pubURI", "dsaGroup.g", "dsaGroup.p", "dsaGroup.q", "dsaPubKey.y", 
+		"ecdsa.P256.pub", "location", "physical.udp", "volatile.metadata.timeCreated", "nonexistent.key"
+	};
+
+	private byte[] clientPut;
+	private byte[] simpleProgress;
+	private byte[] complexDir;
+	private byte[] noderef;
+	private SimpleFieldSet noderefFS;
+	private SimpleFieldSet indexedNoderefFS;
+	private SimpleFieldSet complexDirFS;
+
+	@Setup
+	public void setup() throws IOException {
+		clientPut = CLIENT_PUT.getBytes("UTF-8");
+		simpleProgress = SIMPLE_PROGRESS.getBytes("UTF-8");
+		complexDir = COMPLEX_DIR.getBytes("UTF-8");
+		noderef = NODEREF.getBytes("UTF-8");
+		noderefFS = new SimpleFieldSet(noderef, 0, noderef.length, false, true, false);
+		indexedNoderefFS = new SimpleFieldSet(noderef, 0, noderef.length, false, true, false);
+		indexedNoderefFS.buildKeyIndex();
+		complexDirFS = new SimpleFieldSet(complexDir, 0, complexDir.length, false, true, false);
+	}
+
+	/** As FCPConnectionInputHandler reads a message. */
+	private static SimpleFieldSet readFCP(byte[] message) throws IOException {
+		LineReadingInputStream lis = new LineReadingInputStream(
+				new BufferedInputStream(new ByteArrayInputStream(message), 4096));
+		return new SimpleFieldSet(lis, 4096, 128, true, true, true);
+	}
+
+	/** The old line at a time path, via a LineReader that doesn't support mark(). */
+	private static SimpleFieldSet readFCPByLine(byte[] message) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(message), "UTF-8"));
+		return new SimpleFieldSet(Readers.fromBufferedReader(br), 4096, 128, true, true, true);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parseClientPut() throws IOException {
+		return readFCP(clientPut);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parseClientPutByLine() throws IOException {
+		return readFCPByLine(clientPut);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parseSimpleProgress() throws IOException {
+		return readFCP(simpleProgress);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parseSimpleProgressByLine() throws IOException {
+		return readFCPByLine(simpleProgress);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parseComplexDir() throws IOException {
+		return readFCP(complexDir);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parseComplexDirByLine() throws IOException {
+		return readFCPByLine(complexDir);
+	}
+
+	/** As PeerNode parses a noderef received from a peer. */
+	@Benchmark
+	public SimpleFieldSet parseNoderef() throws IOException {
+		return new SimpleFieldSet(noderef, 0, noderef.length, false, true, false);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parseNoderefBufferedReader() throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(noderef), "UTF-8"));
+		return new SimpleFieldSet(br, false, true);
+	}
+
+	@Benchmark
+	public void lookupNoderef(Blackhole bh) {
+		for(String key : NODEREF_KEYS)
+			bh.consume(noderefFS.get(key));
+	}
+
+	@Benchmark
+	public void lookupNoderefIndexed(Blackhole bh) {
+		for(String key : NODEREF_KEYS)
+			bh.consume(indexedNoderefFS.get(key));
+	}
+
+	@Benchmark
+	public byte[] writeComplexDir() {
+		return complexDirFS.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] writeComplexDirViaString() throws IOException {
+		return complexDirFS.toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public byte[] writeNoderef() {
+		return noderefFS.toByteArray();
+	}
+
+}
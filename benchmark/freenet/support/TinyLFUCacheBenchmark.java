@@ -0,0 +1,194 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The in-memory datastore tiers: TinyLFUCache against the synchronized LRUMap they used to use.
+ *
+ * The contention benchmarks hammer one cache from 8 threads with a Zipf-distributed mix of
+ * lookups and inserts. The hit rate benchmarks replay a Zipf workload with a long one-off scan
+ * (a big splitfile fetch) mixed in, and report the hits and misses of each policy as secondary
+ * results; the score there is only the cost per access.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TinyLFUCacheBenchmark {
+
+	static final int CAPACITY = 10000;
+	static final int KEY_SPACE = 100000;
+	static final int TRACE_LENGTH = 1 << 20;
+
+	/** Routing keys drawn from a Zipf distribution, so some blocks are much more popular. */
+	static byte[][] zipfTrace(long seed, double exponent, int scanEvery) {
+		Random random = new Random(seed);
+		double[] cumulative = new double[KEY_SPACE];
+		double total = 0;
+		for(int i = 0; i < KEY_SPACE; i++) {
+			total += 1.0 / Math.pow(i + 1, exponent);
+			cumulative[i] = total;
+		}
+		byte[][] keys = new byte[KEY_SPACE][];
+		for(int i = 0; i < KEY_SPACE; i++) {
+			keys[i] = new byte[32];
+			random.nextBytes(keys[i]);
+		}
+		byte[][] trace = new byte[TRACE_LENGTH][];
+		for(int i = 0; i < TRACE_LENGTH; i++) {
+			if(scanEvery > 0 && i % scanEvery == 0) {
+				// A key nobody will ever ask for again.
+				byte[] key = new byte[32];
+				random.nextBytes(key);
+				trace[i] = key;
+				continue;
+			}
+			double x = random.nextDouble() * total;
+			int lo = 0, hi = KEY_SPACE - 1;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(cumulative[mid] < x) lo = mid + 1;
+				else hi = mid;
+			}
+			trace[i] = keys[lo];
+		}
+		return trace;
+	}
+
+	@State(Scope.Benchmark)
+	public static class SharedCaches {
+		TinyLFUCache<Object> tinyLFU;
+		LRUMap<ByteArrayWrapper, Object> lru;
+		byte[][] trace;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			tinyLFU = new TinyLFUCache<Object>(CAPACITY, 8, true, null, new Random());
+			lru = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+			trace = zipfTrace(1, 0.8, 0);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int position = new Random().nextInt(TRACE_LENGTH);
+
+		byte[] next(byte[][] trace) {
+			position = (position + 1) & (TRACE_LENGTH - 1);
+			return trace[position];
+		}
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object contendedTinyLFU(SharedCaches caches, Cursor cursor) {
+		byte[] key = cursor.next(caches.trace);
+		Object value = caches.tinyLFU.get(key);
+		if(value == null)
+			caches.tinyLFU.offer(key, key);
+		return value;
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object contendedLRUMap(SharedCaches caches, Cursor cursor) {
+		ByteArrayWrapper key = new ByteArrayWrapper(cursor.next(caches.trace));
+		LRUMap<ByteArrayWrapper, Object> lru = caches.lru;
+		// What RAMFreenetStore used to do, all under one lock.
+		synchronized(lru) {
+			Object value = lru.get(key);
+			if(value == null) {
+				lru.push(key, key);
+				while(lru.size() > CAPACITY)
+					lru.popKey();
+			} else {
+				lru.push(key, value);
+			}
+			return value;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class HitRate {
+		@Param({"0", "4"})
+		int scanEvery;
+
+		TinyLFUCache<Object> tinyLFU;
+		TinyLFUCache<Object> lru;
+		byte[][] trace;
+		int position;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			trace = zipfTrace(2, 0.8, scanEvery);
+		}
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			tinyLFU = new TinyLFUCache<Object>(CAPACITY, 1, true, null, new Random());
+			lru = new TinyLFUCache<Object>(CAPACITY, 1, false, null, new Random());
+			position = 0;
+		}
+
+		byte[] next() {
+			position = (position + 1) & (TRACE_LENGTH - 1);
+			return trace[position];
+		}
+	}
+
+	/** Lookups which found the key, and lookups which didn't, over each iteration. */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Lookups {
+		public long hits;
+		public long misses;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			hits = 0;
+			misses = 0;
+		}
+	}
+
+	@Benchmark
+	public Object hitRateTinyLFU(HitRate state, Lookups lookups) {
+		return access(state.tinyLFU, state.next(), lookups);
+	}
+
+	@Benchmark
+	public Object hitRateLRU(HitRate state, Lookups lookups) {
+		return access(state.lru, state.next(), lookups);
+	}
+
+	private static Object access(TinyLFUCache<Object> cache, byte[] key, Lookups lookups) {
+		Object value = cache.get(key);
+		if(value == null) {
+			lookups.misses++;
+			cache.offer(key, key);
+		} else {
+			lookups.hits++;
+		}
+		return value;
+	}
+
+}
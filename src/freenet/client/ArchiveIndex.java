@@ -0,0 +1,399 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.Closer;
+import freenet.support.io.CountedInputStream;
+import freenet.support.io.FileRandomAccessBuffer;
+import freenet.support.io.MultiReaderBucket;
+import freenet.support.io.RAFBucket;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * An archive which has been unpacked once into a single buffer, with the offset and length of
+ * every file in it. Files are read from the buffer on demand, so a container only has to be
+ * fetched and unpacked again if the whole container drops out of the cache, rather than
+ * whenever one of its files does.
+ *
+ * The buffer is either a temporary bucket, or a file in the on-disk archive cache, which starts
+ * with the index and is kept after we close it.
+ *
+ * LOCKING: Thread-safe. Buckets returned by getReaderBucket() stay readable until they are
+ * freed, even if the index is closed.
+ */
+final class ArchiveIndex {
+
+	private static final int MAGIC = 0xa7c41de5;
+	private static final int VERSION = 1;
+
+	final FreenetURI key;
+	private final LockableRandomAccessBuffer data;
+	/** Offset of the first file in data. */
+	private final long base;
+	private final Map<String, Element> elements;
+	/** Only frees (or closes) data when we and all the readers have finished with it. */
+	private final MultiReaderBucket readers;
+	private final Bucket ourReader;
+	/** True if data is in the on-disk cache. */
+	final boolean onDisk;
+	private int hits;
+	private volatile boolean closed;
+
+	private static class Element {
+		final long offset;
+		final long length;
+		/** Why the file could not be unpacked, or null. */
+		final String error;
+		final boolean tooBig;
+
+		Element(long offset, long length, String error, boolean tooBig) {
+			this.offset = offset;
+			this.length = length;
+			this.error = error;
+			this.tooBig = tooBig;
+		}
+	}
+
+	private ArchiveIndex(FreenetURI key, final LockableRandomAccessBuffer data, long base, Map<String, Element> elements, final boolean onDisk) throws IOException {
+		this.key = key;
+		this.data = data;
+		this.base = base;
+		this.elements = elements;
+		this.onDisk = onDisk;
+		readers = new MultiReaderBucket(new RAFBucket(data) {
+			@Override
+			public void free() {
+				if(onDisk)
+					data.close();
+				else
+					data.free();
+			}
+		});
+		ourReader = readers.getReaderBucket();
+	}
+
+	/**
+	 * Get a file from the archive.
+	 * @return A read-only Bucket, which the caller must free, or null if the file is not in the
+	 * archive, or it was too big to cache, or the index has been closed.
+	 * @throws ArchiveFailureException If the file could not be unpacked.
+	 */
+	Bucket getReaderBucket(String name) throws ArchiveFailureException {
+		Element e = elements.get(name);
+		if(e == null) return null;
+		if(e.error != null) {
+			if(e.tooBig) return null;
+			throw new ArchiveFailureException(e.error);
+		}
+		if(closed) return null;
+		Bucket reader = readers.getReaderBucket();
+		if(reader == null) return null;
+		return new ElementBucket(reader, base + e.offset, e.length);
+	}
+
+	boolean contains(String name) {
+		return elements.containsKey(name);
+	}
+
+	/** @return The number of files in the archive, including errors. */
+	int size() {
+		return elements.size();
+	}
+
+	/** @return The number of bytes of unpacked data. */
+	long dataSize() {
+		return data.size() - base;
+	}
+
+	/** Count a successful lookup.
+	 * @return The number of lookups so far. */
+	synchronized int hit() {
+		return ++hits;
+	}
+
+	/** Stop using the index. The data is freed, or closed if it is on disk, when all the
+	 * buckets returned by getReaderBucket() have been freed. */
+	void close() {
+		closed = true;
+		ourReader.free();
+	}
+
+	/**
+	 * Write the index followed by the data to a file, for the on-disk archive cache.
+	 */
+	void writeTo(File file) throws IOException {
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeUTF(key.toString(false, false));
+			dos.writeInt(elements.size());
+			for(Map.Entry<String, Element> entry : elements.entrySet()) {
+				Element e = entry.getValue();
+				dos.writeUTF(entry.getKey());
+				dos.writeLong(e.offset);
+				dos.writeLong(e.length);
+				dos.writeBoolean(e.tooBig);
+				dos.writeBoolean(e.error != null);
+				if(e.error != null)
+					dos.writeUTF(e.error);
+			}
+			long length = dataSize();
+			dos.writeLong(length);
+			byte[] buf = new byte[32768];
+			for(long offset = 0; offset < length;) {
+				int read = (int) Math.min(buf.length, length - offset);
+				data.pread(base + offset, buf, 0, read);
+				dos.write(buf, 0, read);
+				offset += read;
+			}
+			dos.close();
+			dos = null;
+		} finally {
+			Closer.close(dos);
+		}
+	}
+
+	/**
+	 * Open an archive written by writeTo(). The data is read from the file as needed.
+	 * @param key The key the archive should have been fetched from.
+	 * @throws IOException If the file is not a valid archive index for the key.
+	 */
+	static ArchiveIndex readFrom(File file, FreenetURI key) throws IOException {
+		CountedInputStream cis = null;
+		long base;
+		Map<String, Element> elements = new TreeMap<String, Element>();
+		try {
+			cis = new CountedInputStream(new BufferedInputStream(new FileInputStream(file)));
+			DataInputStream dis = new DataInputStream(cis);
+			if(dis.readInt() != MAGIC) throw new IOException("Bad magic");
+			if(dis.readInt() != VERSION) throw new IOException("Bad version");
+			if(!key.toString(false, false).equals(dis.readUTF()))
+				throw new IOException("Wrong key");
+			int count = dis.readInt();
+			for(int i=0;i<count;i++) {
+				String name = dis.readUTF();
+				long offset = dis.readLong();
+				long length = dis.readLong();
+				boolean tooBig = dis.readBoolean();
+				String error = dis.readBoolean() ? dis.readUTF() : null;
+				elements.put(name, new Element(offset, length, error, tooBig));
+			}
+			long length = dis.readLong();
+			base = cis.count();
+			if(base + length != file.length())
+				throw new EOFException("Truncated archive index");
+			for(Element e : elements.values()) {
+				if(e.error == null && (e.offset < 0 || e.length < 0 || e.offset + e.length > length))
+					throw new IOException("Bad offset in archive index");
+			}
+		} finally {
+			Closer.close(cis);
+		}
+		return new ArchiveIndex(key, new FileRandomAccessBuffer(file, true), base, elements, true);
+	}
+
+	/**
+	 * Builds an ArchiveIndex by appending each file to a single temporary bucket.
+	 * Not thread-safe.
+	 */
+	static class Builder {
+
+		private final RandomAccessBucket bucket;
+		private final OutputStream os;
+		private final Map<String, Element> elements = new TreeMap<String, Element>();
+		private final byte[] buf = new byte[32768];
+		private long written;
+
+		Builder(BucketFactory bf, long sizeEstimate) throws IOException {
+			bucket = bf.makeBucket(sizeEstimate);
+			os = bucket.getOutputStream();
+		}
+
+		boolean contains(String name) {
+			return elements.containsKey(name);
+		}
+
+		/**
+		 * Copy a file from the archive.
+		 * @return False if it was longer than maxLength, in which case it is recorded as too big.
+		 */
+		boolean add(String name, InputStream is, long maxLength) throws IOException {
+			long start = written;
+			int read;
+			while((read = is.read(buf)) > 0) {
+				if(written + read - start > maxLength) {
+					// We can't take back what we have written, but it's at most maxLength.
+					addError(name, "File too big: greater than current archived file size limit "+maxLength, true);
+					return false;
+				}
+				os.write(buf, 0, read);
+				written += read;
+			}
+			elements.put(name, new Element(start, written - start, null, false));
+			return true;
+		}
+
+		/** Copy a file, e.g. generated metadata. Does not free the bucket. */
+		void add(String name, Bucket data) throws IOException {
+			InputStream is = data.getInputStream();
+			try {
+				add(name, is, Long.MAX_VALUE);
+			} finally {
+				is.close();
+			}
+		}
+
+		/** Record a file which could not be unpacked. */
+		void addError(String name, String error, boolean tooBig) {
+			elements.put(name, new Element(0, 0, error, tooBig));
+		}
+
+		long size() {
+			return written;
+		}
+
+		ArchiveIndex build(FreenetURI key) throws IOException {
+			os.close();
+			return new ArchiveIndex(key, bucket.toRandomAccessBuffer(), 0, elements, false);
+		}
+
+		/** Free the data if build() is not going to be called. */
+		void abort() {
+			Closer.close(os);
+			bucket.free();
+		}
+
+	}
+
+	/** A read-only slice of the data. Keeps it from being freed until this is freed. */
+	private class ElementBucket implements Bucket {
+
+		private final Bucket reader;
+		private final long offset;
+		private final long length;
+
+		ElementBucket(Bucket reader, long offset, long length) {
+			this.reader = reader;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new BufferedInputStream(getInputStreamUnbuffered());
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			return new InputStream() {
+
+				private long read;
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					if(read(b, 0, 1) <= 0) return -1;
+					return b[0] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] buf, int off, int len) throws IOException {
+					if(read >= length) return -1;
+					len = (int) Math.min(len, length - read);
+					if(len == 0) return 0;
+					data.pread(offset + read, buf, off, len);
+					read += len;
+					return len;
+				}
+
+				@Override
+				public long skip(long n) {
+					n = Math.max(0, Math.min(n, length - read));
+					read += n;
+					return n;
+				}
+
+				@Override
+				public int available() {
+					return (int) Math.min(Integer.MAX_VALUE, length - read);
+				}
+
+			};
+		}
+
+		@Override
+		public String getName() {
+			return "ArchiveIndex:"+key;
+		}
+
+		@Override
+		public long size() {
+			return length;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only.
+		}
+
+		@Override
+		public void free() {
+			reader.free();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) throws ResumeFailedException {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		@Override
+		public void storeTo(DataOutputStream dos) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
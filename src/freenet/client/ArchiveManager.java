@@ -5,12 +5,14 @@ package freenet.client;
 
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
@@ -25,8 +27,10 @@ import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
 import freenet.client.async.ClientContext;
+import freenet.crypt.SHA256;
 import freenet.keys.FreenetURI;
 import freenet.support.ExceptionWrapper;
+import freenet.support.HexUtil;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.MutableBoolean;
@@ -38,6 +42,7 @@ import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
 
 /**
  * Cache of recently decoded archives:
@@ -46,6 +51,12 @@ import freenet.support.io.Closer;
  * - Keep up to Y bytes (after padding and overheads) of decoded data on disk
  * (the OS is quite capable of determining what to keep in actual RAM)
  *
+ * By default each archive is unpacked once into a single temporary buffer with an index
+ * of where each file is (ArchiveIndex), and files are read from it on demand. The cache
+ * then keeps or drops whole archives, so browsing a big container doesn't re-fetch it
+ * whenever one of its files drops out. Optionally the most used archives are also kept
+ * in an on-disk cache which survives restarts.
+ *
  * Always take the lock on ArchiveStoreContext before the lock on ArchiveManager, NOT the other way around.
  */
 public class ArchiveManager {
@@ -128,6 +139,25 @@ public class ArchiveManager {
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
+	// Indexed archives
+	/** If true, unpack each archive into an ArchiveIndex rather than a bucket per file. */
+	private volatile boolean indexArchives = true;
+	/** Indexed archives by key. Bounded by maxCachedData and maxArchiveHandlers. */
+	private final LRUMap<FreenetURI, ArchiveIndex> indexes;
+	/** Temporary data used by indexes, in bytes. */
+	private long indexedData;
+	/** The on-disk cache of the most used archives, or null. */
+	private File diskCacheDir;
+	/** Maximum size of the on-disk cache in bytes. */
+	private long maxDiskCacheSize;
+	/** Current size of the on-disk cache in bytes. */
+	private long diskCacheSize;
+	/** Sizes of the files in the on-disk cache by filename, least recently used first. */
+	private final LRUMap<String, Long> diskCacheFiles;
+	/** An archive is copied to the on-disk cache once this many files have been read from it. */
+	static final int DISK_CACHE_MIN_HITS = 3;
+	private static final String DISK_CACHE_SUFFIX = ".archive";
+
 	/**
 	 * Create an ArchiveManager.
 	 * @param maxHandlers The maximum number of cached ArchiveHandler's i.e. the
@@ -149,6 +179,8 @@ public class ArchiveManager {
 		this.maxCachedElements = maxCachedElements;
 		this.maxCachedData = maxCachedData;
 		storedData = new LRUMap<ArchiveKey, ArchiveStoreItem>();
+		indexes = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
+		diskCacheFiles = LRUMap.createSafeMap();
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
@@ -216,14 +248,220 @@ public class ArchiveManager {
 		ArchiveStoreItem asi = null;
 		synchronized (this) {
 			asi = storedData.get(k);
-			if(asi == null) return null;
 			// Promote to top of LRU
-			storedData.push(k, asi);
+			if(asi != null)
+				storedData.push(k, asi);
 		}
+		if(asi == null) return getIndexed(key, filename);
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
 
+	/** Get a file from an indexed archive, in memory or on disk. */
+	private Bucket getIndexed(FreenetURI key, String filename) throws ArchiveFailureException {
+		ArchiveIndex index;
+		synchronized(this) {
+			index = indexes.get(key);
+			if(index != null)
+				indexes.push(key, index);
+		}
+		if(index == null) {
+			index = openFromDisk(key);
+			if(index == null) return null;
+		}
+		Bucket data = index.getReaderBucket(filename);
+		if(data == null) return null;
+		if(logMINOR) Logger.minor(this, "Found data in index for "+key);
+		if(index.hit() == DISK_CACHE_MIN_HITS && !index.onDisk)
+			copyToDisk(index);
+		return data;
+	}
+
+	/** Use an index, replacing any earlier one for the same key. */
+	private void putIndex(ArchiveIndex index) {
+		ArchiveIndex old;
+		synchronized(this) {
+			old = indexes.push(index.key, index);
+			if(old != null && !old.onDisk)
+				indexedData -= old.dataSize();
+			if(!index.onDisk)
+				indexedData += index.dataSize();
+		}
+		if(old != null && old != index)
+			old.close();
+		trimIndexes();
+	}
+
+	/** Forget the index for a key, in memory and on disk, e.g. because we are unpacking it again. */
+	private void removeIndex(FreenetURI key) {
+		ArchiveIndex old;
+		boolean onDisk;
+		String filename = diskCacheFilename(key);
+		synchronized(this) {
+			old = indexes.get(key);
+			if(old != null) {
+				indexes.removeKey(key);
+				if(!old.onDisk)
+					indexedData -= old.dataSize();
+			}
+			Long size = diskCacheFiles.get(filename);
+			onDisk = size != null;
+			if(onDisk) {
+				diskCacheFiles.removeKey(filename);
+				diskCacheSize -= size;
+			}
+		}
+		if(old != null)
+			old.close();
+		if(onDisk)
+			new File(diskCacheDir, filename).delete();
+	}
+
+	/** Drop indexes beyond the limits. */
+	private void trimIndexes() {
+		while(true) {
+			ArchiveIndex index;
+			synchronized(this) {
+				if(indexes.isEmpty()) return;
+				if(indexedData <= maxCachedData && indexes.size() <= maxArchiveHandlers) return;
+				index = indexes.popValue();
+				if(!index.onDisk)
+					indexedData -= index.dataSize();
+			}
+			if(logMINOR) Logger.minor(this, "Dropping index for "+index.key+" : indexedData="+indexedData+" of "+maxCachedData);
+			index.close();
+		}
+	}
+
+	/**
+	 * Keep the most used archives on disk, so they survive restarts and don't use up space in
+	 * the temporary cache when they are dropped from it. Note that the files are not encrypted.
+	 * @param dir The directory to keep them in, or null to stop using the on-disk cache.
+	 * @param maxSize The maximum total size of the files.
+	 */
+	public void setDiskCache(File dir, long maxSize) {
+		File[] existing = null;
+		synchronized(this) {
+			if(dir != null && !dir.equals(diskCacheDir)) {
+				diskCacheFiles.clear();
+				diskCacheSize = 0;
+				if(dir.isDirectory() || dir.mkdirs())
+					existing = dir.listFiles();
+				else
+					Logger.error(this, "Unable to create archive cache directory "+dir);
+			}
+			diskCacheDir = dir;
+			maxDiskCacheSize = maxSize;
+		}
+		if(existing != null) {
+			// Least recently used first.
+			Arrays.sort(existing, new Comparator<File>() {
+				@Override
+				public int compare(File f1, File f2) {
+					long m1 = f1.lastModified();
+					long m2 = f2.lastModified();
+					return m1 < m2 ? -1 : (m1 > m2 ? 1 : 0);
+				}
+			});
+			synchronized(this) {
+				for(File f : existing) {
+					if(!f.getName().endsWith(DISK_CACHE_SUFFIX)) {
+						f.delete(); // Leftover temp file
+						continue;
+					}
+					diskCacheFiles.push(f.getName(), f.length());
+					diskCacheSize += f.length();
+				}
+			}
+		}
+		trimDiskCache();
+	}
+
+	private static String diskCacheFilename(FreenetURI key) {
+		try {
+			return HexUtil.bytesToHex(SHA256.digest(key.toString(false, false).getBytes("UTF-8"))) + DISK_CACHE_SUFFIX;
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new Error(e); // Impossible
+		}
+	}
+
+	private ArchiveIndex openFromDisk(FreenetURI key) {
+		File dir;
+		String filename = diskCacheFilename(key);
+		synchronized(this) {
+			dir = diskCacheDir;
+			if(dir == null) return null;
+			Long size = diskCacheFiles.get(filename);
+			if(size == null) return null;
+			diskCacheFiles.push(filename, size);
+		}
+		File f = new File(dir, filename);
+		ArchiveIndex index;
+		try {
+			index = ArchiveIndex.readFrom(f, key);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read cached archive "+f+" for "+key+" : "+e, e);
+			removeIndex(key);
+			return null;
+		}
+		f.setLastModified(System.currentTimeMillis());
+		if(logMINOR) Logger.minor(this, "Opened cached archive "+f+" for "+key);
+		putIndex(index);
+		return index;
+	}
+
+	private void copyToDisk(ArchiveIndex index) {
+		File dir;
+		synchronized(this) {
+			dir = diskCacheDir;
+			if(dir == null || index.dataSize() > maxDiskCacheSize) return;
+		}
+		String filename = diskCacheFilename(index.key);
+		File f = new File(dir, filename);
+		File temp = new File(dir, filename+".tmp");
+		try {
+			index.writeTo(temp);
+			if(!FileUtil.renameTo(temp, f))
+				throw new IOException("Unable to rename "+temp+" to "+f);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write archive to on-disk cache: "+e, e);
+			temp.delete();
+			return;
+		}
+		synchronized(this) {
+			if(dir != diskCacheDir) return;
+			Long old = diskCacheFiles.push(filename, f.length());
+			if(old != null) diskCacheSize -= old;
+			diskCacheSize += f.length();
+		}
+		if(logMINOR) Logger.minor(this, "Copied "+index.key+" to on-disk archive cache");
+		trimDiskCache();
+	}
+
+	private void trimDiskCache() {
+		while(true) {
+			File f;
+			synchronized(this) {
+				if(diskCacheSize <= maxDiskCacheSize || diskCacheFiles.isEmpty()) return;
+				String filename = diskCacheFiles.peekKey();
+				diskCacheSize -= diskCacheFiles.popValue();
+				f = new File(diskCacheDir, filename);
+			}
+			// An index which is still open will keep reading the deleted file where possible.
+			f.delete();
+		}
+	}
+
+	/** Whether to unpack archives into an ArchiveIndex, and read files from it on demand,
+	 * rather than extracting each file into its own bucket. */
+	public void setIndexArchives(boolean indexArchives) {
+		this.indexArchives = indexArchives;
+	}
+
+	public boolean indexArchives() {
+		return indexArchives;
+	}
+
 	/**
 	 * Remove a file from the cache. Called after it has been removed from its
 	 * ArchiveHandler.
@@ -262,6 +500,7 @@ public class ArchiveManager {
 
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
 		ctx.removeAllCachedItems(this); // flush cache anyway
+		removeIndex(key);
 		final long expectedSize = ctx.getLastSize();
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
@@ -348,7 +587,9 @@ public class ArchiveManager {
 				wrapper = null;
 			}
 
-			if(ARCHIVE_TYPE.ZIP == archiveType)
+			if(indexArchives && (ARCHIVE_TYPE.ZIP == archiveType || ARCHIVE_TYPE.TAR == archiveType))
+				indexArchive(key, archiveType, is, archiveSize, element, callback, throwAtExit, context);
+			else if(ARCHIVE_TYPE.ZIP == archiveType)
 				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
 			else if(ARCHIVE_TYPE.TAR == archiveType)
 				handleTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
@@ -365,6 +606,110 @@ public class ArchiveManager {
 	}
 	}
 
+	/**
+	 * Unpack an archive into an ArchiveIndex, and then give the caller the element it asked for.
+	 */
+	private void indexArchive(FreenetURI key, ARCHIVE_TYPE archiveType, InputStream data, long archiveSize, String element, ArchiveExtractCallback callback, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+		if(logMINOR) Logger.minor(this, "Indexing a "+archiveType+" archive");
+		ArchiveIndex.Builder builder = null;
+		TarArchiveInputStream tarIS = null;
+		ZipInputStream zis = null;
+		// The element they asked for, if it is too big to cache.
+		Bucket tooBig = null;
+		ArchiveIndex index;
+		try {
+			builder = new ArchiveIndex.Builder(tempBucketFactory, archiveSize);
+			InputStream is;
+			if(ARCHIVE_TYPE.TAR == archiveType)
+				is = tarIS = new TarArchiveInputStream(data);
+			else
+				is = zis = new ZipInputStream(data);
+			HashSet<String> names = new HashSet<String>();
+			boolean gotMetadata = false;
+
+			while(true) {
+				String name;
+				long size;
+				if(tarIS != null) {
+					ArchiveEntry entry;
+					try {
+						entry = tarIS.getNextEntry();
+					} catch (IllegalArgumentException e) {
+						// Annoyingly, it can throw this on some corruptions...
+						throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+					}
+					if(entry == null) break;
+					if(entry.isDirectory()) continue;
+					name = entry.getName();
+					size = entry.getSize();
+				} else {
+					ZipEntry entry = zis.getNextEntry();
+					if(entry == null) break;
+					if(entry.isDirectory()) continue;
+					name = entry.getName();
+					size = entry.getSize();
+				}
+				name = stripLeadingSlashes(name);
+				if(builder.contains(name)) {
+					Logger.error(this, "Duplicate key "+name+" in archive "+key);
+					continue;
+				}
+				if(name.equals(METADATA_NAME))
+					gotMetadata = true;
+				if(name.equals(element) && tooBig == null && (size > maxArchivedFileSize || size < 0)) {
+					// They asked for this file, and it may be too big to cache, so we need a copy.
+					Bucket copy = tempBucketFactory.makeBucket(size);
+					BucketTools.copyFrom(copy, is, -1);
+					size = copy.size();
+					if(size > maxArchivedFileSize) {
+						tooBig = copy;
+					} else {
+						try {
+							builder.add(name, copy);
+						} finally {
+							copy.free();
+						}
+						names.add(name);
+						continue;
+					}
+				}
+				if(size > maxArchivedFileSize) {
+					builder.addError(name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				} else if(builder.add(name, is, maxArchivedFileSize)) {
+					names.add(name);
+				}
+			}
+
+			// If no metadata, generate some
+			if(!gotMetadata)
+				generateMetadata(null, key, names, null, null, null, context, builder);
+			index = builder.build(key);
+			builder = null;
+		} catch (IOException e) {
+			if(tooBig != null) tooBig.free();
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		} catch (ArchiveFailureException e) {
+			if(tooBig != null) tooBig.free();
+			throw e;
+		} finally {
+			if(builder != null) builder.abort();
+			Closer.close(tarIS);
+			Closer.close(zis);
+		}
+		if(logMINOR) Logger.minor(this, "Indexed "+index.size()+" files, "+index.dataSize()+" bytes in "+key);
+
+		// Get the element before the index can be dropped from the cache.
+		Bucket found = tooBig;
+		if(found == null && element != null)
+			found = index.getReaderBucket(element);
+		putIndex(index);
+		if(found != null)
+			callback.gotBucket(found, context);
+		if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+		if(found == null && element != null)
+			callback.notInArchive(context);
+	}
+
 	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarArchiveInputStream tarIS = null;
@@ -435,7 +780,7 @@ outerTAR:		while(true) {
 
 			// If no metadata, generate some
 			if(!gotMetadata) {
-				generateMetadata(ctx, key, names, gotElement, element, callback, context);
+				generateMetadata(ctx, key, names, gotElement, element, callback, context, null);
 				trimStoredData();
 			}
 			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
@@ -515,7 +860,7 @@ outerZIP:		while(true) {
 
 			// If no metadata, generate some
 			if(!gotMetadata) {
-				generateMetadata(ctx, key, names, gotElement, element, callback, context);
+				generateMetadata(ctx, key, names, gotElement, element, callback, context, null);
 				trimStoredData();
 			}
 			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
@@ -552,7 +897,7 @@ outerZIP:		while(true) {
 	 * @param callbackName If we generate a
 	 * @throws ArchiveFailureException
 	 */
-	private ArchiveStoreItem generateMetadata(ArchiveStoreContext ctx, FreenetURI key, Set<String> names, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
+	private void generateMetadata(ArchiveStoreContext ctx, FreenetURI key, Set<String> names, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ClientContext context, ArchiveIndex.Builder builder) throws ArchiveFailureException {
 		/* What we have to do is to:
 		 * - Construct a filesystem tree of the names.
 		 * - Turn each level of the tree into a Metadata object, including those below it, with
@@ -572,10 +917,11 @@ outerZIP:		while(true) {
 		while(true) {
 			try {
 				bucket = metadata.toBucket(tempBucketFactory);
-				return addStoreElement(ctx, key, ".metadata", bucket, gotElement, element2, callback, context);
+				addGeneratedElement(ctx, key, METADATA_NAME, bucket, gotElement, element2, callback, context, builder);
+				return;
 			} catch (MetadataUnresolvedException e) {
 				try {
-					x = resolve(e, x, tempBucketFactory, ctx, key, gotElement, element2, callback, context);
+					x = resolve(e, x, tempBucketFactory, ctx, key, gotElement, element2, callback, context, builder);
 				} catch (IOException e1) {
 					throw new ArchiveFailureException("Failed to create metadata: "+e1, e1);
 				}
@@ -586,18 +932,31 @@ outerZIP:		while(true) {
 		}
 	}
 
-	private int resolve(MetadataUnresolvedException e, int x, BucketFactory bf, ArchiveStoreContext ctx, FreenetURI key, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ClientContext context) throws IOException, ArchiveFailureException {
+	private int resolve(MetadataUnresolvedException e, int x, BucketFactory bf, ArchiveStoreContext ctx, FreenetURI key, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ClientContext context, ArchiveIndex.Builder builder) throws IOException, ArchiveFailureException {
 		for(Metadata m: e.mustResolve) {
 			try {
-			    addStoreElement(ctx, key, ".metadata-"+(x++), m.toBucket(bf), gotElement, element2, callback, context);
+			    addGeneratedElement(ctx, key, ".metadata-"+(x++), m.toBucket(bf), gotElement, element2, callback, context, builder);
 			} catch (MetadataUnresolvedException e1) {
-				x = resolve(e, x, bf, ctx, key, gotElement, element2, callback, context);
+				x = resolve(e, x, bf, ctx, key, gotElement, element2, callback, context, builder);
 				continue;
 			}
 		}
 		return x;
 	}
 
+	/** Add generated metadata to the cache, or to the index we are building. */
+	private void addGeneratedElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket bucket, MutableBoolean gotElement, String element, ArchiveExtractCallback callback, ClientContext context, ArchiveIndex.Builder builder) throws ArchiveFailureException, IOException {
+		if(builder == null) {
+			addStoreElement(ctx, key, name, bucket, gotElement, element, callback, context);
+			return;
+		}
+		try {
+			builder.add(name, bucket);
+		} finally {
+			bucket.free();
+		}
+	}
+
 	private void addToDirectory(HashMap<String, Object> dir, String name, String prefix) throws ArchiveFailureException {
 		int x = name.indexOf('/');
 		if(x < 0) {
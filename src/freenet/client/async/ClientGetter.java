@@ -109,6 +109,9 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 	 * be compatible with this extension. */
 	final String forceCompatibleExtension;
 	private transient boolean resumedFetcher;
+	/** If set, decoded splitfile segments are passed to this in order before the request 
+	 * completes. Not persistent. */
+	private transient SplitFileStreamListener streamListener;
 
 	// Shorter constructors for convenience and backwards compatibility.
 
@@ -769,6 +772,16 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		}
 	}
 
+	/** Stream the data to a listener as it is decoded. Only has any effect if the final data is
+	 * an uncompressed splitfile which is not filtered. Must be called before start(). */
+	public void setStreamListener(SplitFileStreamListener listener) {
+		this.streamListener = listener;
+	}
+	
+	SplitFileStreamListener getStreamListener() {
+		return streamListener;
+	}
+
 	/** Are we collecting a binary blob? */
 	protected boolean collectingBinaryBlob() {
 		return binaryBlobWriter != null;
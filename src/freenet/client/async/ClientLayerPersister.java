@@ -16,7 +16,11 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -128,6 +132,38 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         this.bandwidthStatsPutter = stats;
     }
     
+    /** Requests which have been loaded but not resumed yet, because we were asked to resume them 
+     * later. Protected by serializeCheckpoints. */
+    private PendingResume pendingResume;
+    
+    /** Everything we need to resume the requests we have loaded, and to reload them if that 
+     * fails. */
+    private class PendingResume {
+        final PartialLoad loaded;
+        final File dir;
+        final String baseName;
+        boolean writeEncrypted;
+        DatabaseKey encryptionKey;
+        final ClientContext context;
+        final RequestStarterGroup requestStarters;
+        final Random random;
+        /** Set once resumeLoadedRequests() has started on these. */
+        boolean resuming;
+        
+        PendingResume(PartialLoad loaded, File dir, String baseName, boolean writeEncrypted, 
+                DatabaseKey encryptionKey, ClientContext context, 
+                RequestStarterGroup requestStarters, Random random) {
+            this.loaded = loaded;
+            this.dir = dir;
+            this.baseName = baseName;
+            this.writeEncrypted = writeEncrypted;
+            this.encryptionKey = encryptionKey;
+            this.context = context;
+            this.requestStarters = requestStarters;
+            this.random = random;
+        }
+    }
+    
     /** Set the files to write to and set up encryption
      * @param noWrite If true, don't write the data to disk at all, and delete existing 
      * client.dat*.
@@ -136,6 +172,21 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     public void setFilesAndLoad(File dir, String baseName, boolean writeEncrypted, boolean noWrite, 
             DatabaseKey encryptionKey, ClientContext context, RequestStarterGroup requestStarters, 
             Random random) throws MasterKeysWrongPasswordException {
+        setFilesAndLoad(dir, baseName, writeEncrypted, noWrite, encryptionKey, context, 
+                requestStarters, random, false);
+    }
+    
+    /** Set the files to write to and set up encryption
+     * @param noWrite If true, don't write the data to disk at all, and delete existing 
+     * client.dat*.
+     * @param resumeLater If true, only load the requests, and wait for resumeLoadedRequests() to
+     * resume them. Resuming re-registers every request with the schedulers, which can take a 
+     * long time with a big queue, and nothing is written until it has finished.
+     * @throws MasterKeysWrongPasswordException If we need the encryption key but it has not been 
+     * supplied. */
+    public void setFilesAndLoad(File dir, String baseName, boolean writeEncrypted, boolean noWrite, 
+            DatabaseKey encryptionKey, ClientContext context, RequestStarterGroup requestStarters, 
+            Random random, boolean resumeLater) throws MasterKeysWrongPasswordException {
         if(noWrite)
             super.disableWrite();
         synchronized(serializeCheckpoints) {
@@ -155,18 +206,24 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     random.nextBytes(salt);
                     requestStarters.setGlobalSalt(salt);
                 }
+            } else if(pendingResume != null) {
+                // Already loaded, just change where we will write to.
+                pendingResume.writeEncrypted = writeEncrypted;
+                pendingResume.encryptionKey = encryptionKey;
+                innerSetFilesOnly(dir, baseName, writeEncrypted, encryptionKey);
             } else if(!hasLoaded()) {
                 // Some serialization failures cause us to fail only at the point of scheduling the request.
                 // So if that happens we need to retry with serialization turned off.
                 // The requests that loaded fine already will not be affected as we check for duplicates.
                 if(innerSetFilesAndLoad(false, dir, baseName, writeEncrypted, encryptionKey, context, 
-                        requestStarters, random)) {
+                        requestStarters, random, resumeLater)) {
                     Logger.error(this, "Some requests failed to restart after serializing. Trying to recover/restart ...");
                     System.err.println("Some requests failed to restart after serializing. Trying to recover/restart ...");
                     innerSetFilesAndLoad(true, dir, baseName, writeEncrypted, encryptionKey, context, 
-                            requestStarters, random);
+                            requestStarters, random, false);
                 }
-                onStarted(noWrite);
+                if(pendingResume == null)
+                    onStarted(noWrite);
             } else {
                 innerSetFilesOnly(dir, baseName, writeEncrypted, encryptionKey);
                 onStarted(false);
@@ -211,9 +268,64 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         });
     }
 
+    /** Resume the requests loaded by setFilesAndLoad(..., true), and then start writing 
+     * checkpoints.
+     * @return True if there were requests waiting to be resumed. */
+    public boolean resumeLoadedRequests() {
+        PendingResume pending;
+        synchronized(serializeCheckpoints) {
+            pending = pendingResume;
+            if(pending == null || pending.resuming) return false;
+            if(shuttingDown()) return false;
+            pending.resuming = true;
+        }
+        // Only takes the lock for one request at a time, so that a checkpoint, or a change of 
+        // where to write to, doesn't have to wait for the whole queue to be resumed.
+        boolean failedSerialize = resumeRequests(pending.loaded, pending.context);
+        synchronized(serializeCheckpoints) {
+            try {
+                if(failedSerialize) {
+                    Logger.error(this, "Some requests failed to restart after serializing. Trying to recover/restart ...");
+                    System.err.println("Some requests failed to restart after serializing. Trying to recover/restart ...");
+                    innerSetFilesAndLoad(true, pending.dir, pending.baseName, pending.writeEncrypted, 
+                            pending.encryptionKey, pending.context, pending.requestStarters, 
+                            pending.random, false);
+                }
+            } catch (MasterKeysWrongPasswordException e) {
+                // Impossible, we loaded with the same key.
+                Logger.error(this, "Unable to reload requests: "+e, e);
+            } finally {
+                pendingResume = null;
+                pending.context.persistentRoot.releaseReservedIdentifiers();
+            }
+            onStarted(false);
+            return true;
+        }
+    }
+    
+    /** @return True if we have loaded requests but not resumed them yet. */
+    public boolean isResumePending() {
+        synchronized(serializeCheckpoints) {
+            return pendingResume != null;
+        }
+    }
+    
+    /** Most important requests first, so they are running again soonest after startup. */
+    private static final Comparator<PartiallyLoadedRequest> BY_PRIORITY = 
+        new Comparator<PartiallyLoadedRequest>() {
+        
+        @Override
+        public int compare(PartiallyLoadedRequest r1, PartiallyLoadedRequest r2) {
+            // Lower priority class means more important.
+            return r1.request.getPriority() - r2.request.getPriority();
+        }
+        
+    };
+    
     private boolean innerSetFilesAndLoad(boolean noSerialize, File dir, String baseName, 
             boolean writeEncrypted, DatabaseKey encryptionKey, ClientContext context, 
-            RequestStarterGroup requestStarters, Random random) throws MasterKeysWrongPasswordException {
+            RequestStarterGroup requestStarters, Random random, boolean resumeLater) 
+            throws MasterKeysWrongPasswordException {
         if(writeEncrypted && encryptionKey == null)
             throw new MasterKeysWrongPasswordException();
         File clientDat = new File(dir, baseName);
@@ -228,7 +340,6 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             if(clientDatCryptExists || clientDatBakCryptExists)
                 throw new MasterKeysWrongPasswordException();
         }
-        boolean failedSerialize = false;
         PartialLoad loaded = new PartialLoad();
         if(clientDatExists) {
             innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
@@ -263,14 +374,50 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     salt = loaded.salt;
                 }
             }
-            int success = 0;
-            int restoredRestarted = 0;
-            int restoredFully = 0;
-            int failed = 0;
-            // Resume the requests.
-            for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
-                ClientRequest req = partial.request;
-                if(req == null) continue;
+            if(resumeLater && !noSerialize) {
+                pendingResume = new PendingResume(loaded, dir, baseName, writeEncrypted, 
+                        encryptionKey, context, requestStarters, random);
+                // FCP clients can add requests before we resume these. Don't let them reuse 
+                // an identifier, which would make the loaded request fail to resume.
+                for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
+                    if(partial.request != null)
+                        context.persistentRoot.reserveIdentifier(partial.request);
+                }
+                System.out.println("Loaded "+loaded.partiallyLoadedRequests.size()+" requests, will resume them once the node has started");
+                return false;
+            }
+            return resumeRequests(loaded, context);
+        } else {
+            // FIXME backups etc!
+            System.err.println("Starting request persistence layer without resuming ...");
+            salt = new byte[32];
+            random.nextBytes(salt);
+            requestStarters.setGlobalSalt(salt);
+            onStarted(false);
+            return false;
+        }
+    }
+    
+    /** Resume loaded requests, most important first. Takes serializeCheckpoints for each 
+     * request in turn.
+     * @return True if a request which was loaded normally, rather than restarted from recovery
+     * data, failed to resume, so we should reload with serialization turned off. */
+    private boolean resumeRequests(PartialLoad loaded, ClientContext context) {
+        boolean failedSerialize = false;
+        List<PartiallyLoadedRequest> requests = new ArrayList<PartiallyLoadedRequest>();
+        for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
+            if(partial.request != null) requests.add(partial);
+        }
+        Collections.sort(requests, BY_PRIORITY);
+        int success = 0;
+        int restoredRestarted = 0;
+        int restoredFully = 0;
+        int failed = 0;
+        // Resume the requests.
+        for(PartiallyLoadedRequest partial : requests) {
+            ClientRequest req = partial.request;
+            if(shuttingDown()) return false;
+            synchronized(serializeCheckpoints) {
                 try {
                     req.onResume(context);
                     if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
@@ -304,24 +451,16 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     }
                 }
             }
-            if(success > 0)
-                System.out.println("Resumed "+success+" requests ...");
-            if(restoredFully > 0)
-                System.out.println("Restored "+restoredFully+" requests (in spite of data corruption)");
-            if(restoredRestarted > 0)
-                System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
-            if(failed > 0)
-                System.err.println("Failed to restore "+failed+" requests due to data corruption");
-            return failedSerialize;
-        } else {
-            // FIXME backups etc!
-            System.err.println("Starting request persistence layer without resuming ...");
-            salt = new byte[32];
-            random.nextBytes(salt);
-            requestStarters.setGlobalSalt(salt);
-            onStarted(false);
-            return false;
         }
+        if(success > 0)
+            System.out.println("Resumed "+success+" requests ...");
+        if(restoredFully > 0)
+            System.out.println("Restored "+restoredFully+" requests (in spite of data corruption)");
+        if(restoredRestarted > 0)
+            System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
+        if(failed > 0)
+            System.err.println("Failed to restore "+failed+" requests due to data corruption");
+        return failedSerialize;
     }
     
     /** Create a Bucket for client.dat[.bak][.crypt].
@@ -5,12 +5,12 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import freenet.support.math.MersenneTwister;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
-import freenet.keys.NodeSSK;
 import freenet.node.LowLevelGetException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
@@ -70,6 +70,11 @@ public class DatastoreChecker implements PrioRunnable {
 	private ClientContext context;
 	private final Node node;
 
+	/** Keys checked and found, and time spent checking them in nanoseconds, since startup. */
+	private long keysChecked;
+	private long keysFound;
+	private long checkTime;
+
 	public synchronized void setContext(ClientContext context) {
 		this.context = context;
 	}
@@ -155,32 +160,44 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 		sched = getter.getScheduler(context);
 		boolean anyValid = false;
-		for(Key key : keys) {
-			if(random != null) {
+		long startTime = System.nanoTime();
+		Key[] checkKeys = keys;
+		if(random != null) {
+			checkKeys = keys.clone();
+			for(int i = 0; i < checkKeys.length; i++) {
 				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+					checkKeys[i] = null;
 					anyValid = true;
-					continue;
 				}
 			}
-			KeyBlock block;
-			if(blocks != null)
-				block = blocks.get(key);
-			else
-				block = node.fetch(key, true, true, false, false, null);
-			if(block != null) {
-				if(logMINOR) Logger.minor(this, "Found key");
-				if(key instanceof NodeSSK)
-					sched.tripPendingKey(block);
-				else // CHK
-					sched.tripPendingKey(block);
+		}
+		KeyBlock[] found = new KeyBlock[checkKeys.length];
+		if(blocks != null) {
+			for(int i = 0; i < checkKeys.length; i++) {
+				if(checkKeys[i] != null)
+					found[i] = blocks.get(checkKeys[i]);
+			}
+		} else {
+			// All at once, so the store can sort the lookups by where they are on disk.
+			node.fetch(checkKeys, found, true, true, false);
+		}
+		int foundCount = 0;
+		for(int i = 0; i < checkKeys.length; i++) {
+			if(checkKeys[i] == null) continue;
+			if(found[i] != null) {
+				foundCount++;
+				sched.tripPendingKey(found[i]);
 			} else {
 				anyValid = true;
 			}
-//			synchronized(this) {
-//				keysToCheck[priority].remove(key);
-//			}
 		}
-		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys");
+		long elapsed = System.nanoTime() - startTime;
+		synchronized(this) {
+			keysChecked += keys.length;
+			keysFound += foundCount;
+			checkTime += elapsed;
+		}
+		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys, found "+foundCount+" in "+TimeUnit.NANOSECONDS.toMillis(elapsed)+"ms ("+getKeysCheckedPerSecond()+" keys/sec overall)");
 		if(getter.persistent()) {
 			final SendableGet get = getter;
 			final ClientRequestScheduler scheduler = sched;
@@ -225,6 +242,28 @@ public class DatastoreChecker implements PrioRunnable {
 		executor.execute(this, name);
 	}
 
+	public synchronized long getKeysChecked() {
+		return keysChecked;
+	}
+
+	public synchronized long getKeysFound() {
+		return keysFound;
+	}
+
+	/** @return Keys checked per second spent checking, or 0 if we haven't checked any yet. */
+	public synchronized long getKeysCheckedPerSecond() {
+		if(checkTime == 0) return 0;
+		return keysChecked * TimeUnit.SECONDS.toNanos(1) / checkTime;
+	}
+
+	/** @return The number of requests waiting to be checked. */
+	public synchronized int getQueuedRequests() {
+		int total = 0;
+		for(ArrayDeque<QueueItem> q : queue)
+			total += q.size();
+		return total;
+	}
+
 	@Override
 	public int getPriority() {
 		return NativeThread.NORM_PRIORITY;
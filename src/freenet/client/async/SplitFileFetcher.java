@@ -165,6 +165,14 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
             throw new FetchException(FetchExceptionMode.TOO_BIG, eventualLength, true, clientMetadata.getMIMEType());
         getter = new SplitFileFetcherGet(this, storage);
         raf = storage.getRAF();
+        // Streaming the decoded segments to the client.
+        if(isFinalFetch && callbackCompleteViaTruncation == null && cb instanceof ClientGetter &&
+                (decompressors == null || decompressors.size() == 0) && 
+                !fetchContext.filterData && !wantBinaryBlob) {
+            SplitFileStreamListener listener = ((ClientGetter)cb).getStreamListener();
+            if(listener != null)
+                storage.setStreamListener(listener, context);
+        }
         if(logMINOR)
             Logger.minor(this, "Created "+(persistent?"persistent" : "transient")+" download for "+
                     thisKey+" on "+raf+" for "+this);
@@ -227,6 +227,17 @@ public class SplitFileFetcherStorage {
      * startup. */
     private List<SplitFileFetcherSegmentStorage> segmentsToTryDecode;
     
+    /** If non-null, decoded segments are passed to this in order as soon as they are available.
+     * Not persistent. */
+    private SplitFileStreamListener streamListener;
+    private ClientContext streamContext;
+    /** Number of segments already passed to the streamListener. */
+    private int streamedSegments;
+    /** Number of bytes already passed to the streamListener. */
+    private long streamedBytes;
+    /** True while a thread is feeding segments to the streamListener. */
+    private boolean streaming;
+    
     /** Construct a new SplitFileFetcherStorage from metadata. Creates the RandomAccessBuffer and
      * writes the initial data to it. There is another constructor for resuming a download. 
      * @param metadata
@@ -1125,6 +1136,7 @@ public class SplitFileFetcherStorage {
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        maybeStreamSegments();
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
@@ -1190,6 +1202,109 @@ public class SplitFileFetcherStorage {
         };
     }
 
+    /** Pass decoded segments to the listener in order, as soon as each segment and all the 
+     * segments before it have succeeded. Must only be used when the data in the splitfile is the
+     * final data i.e. it is not compressed and will not be filtered.
+     * @param listener The listener. Called on a separate thread.
+     * @param context Passed to the listener. */
+    public void setStreamListener(SplitFileStreamListener listener, ClientContext context) {
+        synchronized(this) {
+            streamListener = listener;
+            streamContext = context;
+        }
+        maybeStreamSegments();
+    }
+    
+    private void maybeStreamSegments() {
+        final SplitFileStreamListener listener;
+        synchronized(this) {
+            listener = streamListener;
+            if(listener == null || streaming) return;
+            if(!nextSegmentReadyToStream()) return;
+            streaming = true;
+        }
+        ticker.getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                streamSegments(listener);
+            }
+            
+        }, "Streaming splitfile data for "+this);
+    }
+    
+    private synchronized boolean nextSegmentReadyToStream() {
+        return streamedSegments < segments.length && segments[streamedSegments].hasSucceeded() &&
+            !cancelled;
+    }
+    
+    private void streamSegments(SplitFileStreamListener listener) {
+        try {
+            while(true) {
+                final SplitFileFetcherSegmentStorage segment;
+                long offset;
+                synchronized(this) {
+                    if(!nextSegmentReadyToStream() || streamListener == null) {
+                        streaming = false;
+                        return;
+                    }
+                    segment = segments[streamedSegments];
+                    offset = streamedBytes;
+                }
+                final long length = segmentDataLength(segment);
+                StreamGenerator data = new StreamGenerator() {
+
+                    @Override
+                    public void writeTo(OutputStream os, ClientContext context) throws IOException {
+                        RAFLock lock = raf.lockOpen();
+                        try {
+                            segment.writeToInner(os);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+
+                    @Override
+                    public long size() {
+                        return length;
+                    }
+                    
+                };
+                if(!listener.onStreamedData(offset, data, streamContext)) {
+                    if(logMINOR) Logger.minor(this, "Listener stopped streaming at "+offset+" on "+this);
+                    synchronized(this) {
+                        streamListener = null;
+                        streaming = false;
+                    }
+                    return;
+                }
+                synchronized(this) {
+                    streamedSegments++;
+                    streamedBytes += length;
+                }
+            }
+        } catch (IOException e) {
+            // E.g. the download completed and the storage has been freed.
+            if(logMINOR) Logger.minor(this, "Stopped streaming on "+this+" : "+e, e);
+        } catch (Throwable t) {
+            Logger.error(this, "Failed to stream splitfile data on "+this+" : "+t, t);
+        }
+        synchronized(this) {
+            streamListener = null;
+            streaming = false;
+        }
+    }
+    
+    /** @return The number of bytes of final data in the segment. */
+    private long segmentDataLength(SplitFileFetcherSegmentStorage segment) {
+        long length = (long)segment.dataBlocks * CHKBlock.DATA_LENGTH;
+        if(segment.segNo == segments.length-1) {
+            long lastBlock = finalLength % CHKBlock.DATA_LENGTH;
+            if(lastBlock != 0) length -= CHKBlock.DATA_LENGTH - lastBlock;
+        }
+        return length;
+    }
+
     static final long LAZY_WRITE_METADATA_DELAY = TimeUnit.MINUTES.toMillis(5);
     
     private final PersistentJob writeMetadataJob = new PersistentJob() {
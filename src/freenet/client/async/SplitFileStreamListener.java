@@ -0,0 +1,25 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+
+/** Receives the decoded data of the final splitfile in order, one segment at a time, while the 
+ * rest of the splitfile is still being fetched. Only used when the splitfile data is the final 
+ * data, i.e. it is not compressed, filtered or collected into a binary blob. Not persistent: 
+ * a resumed download delivers its data only on completion.
+ * @see ClientGetter#setStreamListener(SplitFileStreamListener) */
+public interface SplitFileStreamListener {
+
+    /** Called on a dedicated thread, in order, for each segment as soon as it and all the 
+     * segments before it have been decoded. May block to apply back-pressure. The data is still
+     * delivered in full to the GetCompletionCallback when the download completes.
+     * @param offset The offset of the first byte of this segment in the final data.
+     * @param data The decoded data of the segment. Only valid during this call.
+     * @return False to stop streaming; no further segments will be offered.
+     * @throws IOException If the data could not be read, e.g. because the download has 
+     * completed and the storage has already been freed. Streaming stops. */
+    boolean onStreamedData(long offset, StreamGenerator data, ClientContext context) throws IOException;
+
+}
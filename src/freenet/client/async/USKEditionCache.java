@@ -0,0 +1,398 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.keys.ClientSSK;
+import freenet.keys.FreenetURI;
+import freenet.keys.NodeSSK;
+import freenet.keys.USK;
+import freenet.node.DatabaseKey;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+/**
+ * Remembers the latest known editions of recently used USKs across restarts, so that after a
+ * restart subscriptions and fetches carry on from where they were rather than polling forward
+ * from whatever edition the client (a bookmark, a plugin) asked for.
+ *
+ * The file is a list of clear USKs, oldest first, each with its latest known good edition and
+ * latest known slot. Changes are written at most every WRITE_DELAY, and on shutdown. Only the
+ * most recently updated USKs are kept.
+ *
+ * The file says which freesites and identities the user follows, so it is treated like client.dat:
+ * encrypted with the client layer key above physical security level LOW, and not written at all,
+ * and deleted, at MAXIMUM or if the cache is disabled. Nothing is read or written until
+ * setStorage() has been called.
+ *
+ * LOCKING: USKManager calls update() with its own lock held, so we must not call back into it.
+ */
+final class USKEditionCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(USKEditionCache.class);
+	}
+
+	/** "USKE" */
+	private static final int MAGIC = 0x55534B45;
+	private static final int VERSION = 1;
+
+	static final long WRITE_DELAY = MINUTES.toMillis(5);
+
+	private final File dir;
+	private final String baseName;
+	/** The file we write to, or null if we can't write at the moment. */
+	private File file;
+	private File tempFile;
+	/** Non-null if the file is encrypted. */
+	private DatabaseKey key;
+	/** True once we have read the file, or decided not to. */
+	private boolean loaded;
+	/** Entries by clear USK, least recently updated first. */
+	private final LRUMap<USK, Entry> entries;
+	/** Editions read from disk that no fetcher has started from yet. */
+	private final Map<USK, Long> restored;
+	private int maxEntries;
+	/** True if there are changes that haven't been written yet. */
+	private boolean dirty;
+	/** True if a write has been queued. */
+	private boolean writeQueued;
+	/** Held while writing, and while changing or deleting the file, so we never write to a file
+	 * which has just been deleted. Taken before (this). */
+	private final Object writeLock = new Object();
+	/** Editions we did not have to poll through again because we remembered them. */
+	private final AtomicLong pollsSaved = new AtomicLong();
+
+	private static class Entry {
+		final USK clear;
+		long knownGood;
+		long slot;
+
+		Entry(USK clear, long knownGood, long slot) {
+			this.clear = clear;
+			this.knownGood = knownGood;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * @param dir The directory to keep the file in.
+	 * @param baseName The filename, with ".crypt" added if it is encrypted.
+	 */
+	USKEditionCache(File dir, String baseName, int maxEntries) {
+		this.dir = dir;
+		this.baseName = baseName;
+		this.maxEntries = maxEntries;
+		entries = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+		restored = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
+	}
+
+	private File makeFilename(boolean encrypted, boolean temp) {
+		return new File(dir, baseName + (encrypted ? ".crypt" : "") + (temp ? ".tmp" : ""));
+	}
+
+	private static Bucket makeBucket(File f, DatabaseKey key) {
+		Bucket bucket = new FileBucket(f, false, false, false, false);
+		if(key != null)
+			bucket = key.createEncryptedBucketForClientLayer(bucket);
+		return bucket;
+	}
+
+	/**
+	 * Set where to write to, depending on the physical security level, and read the file the
+	 * first time we are able to. Called at startup and whenever the security level changes.
+	 * @param encrypted True if the file must be encrypted.
+	 * @param noWrite True if nothing may be written to disk. Deletes the file.
+	 * @param key The client layer key. May be null if we are still waiting for the password, in
+	 * which case we neither read nor write until we are called again with the key.
+	 * @param latestKnownGood Filled in with the latest known good edition of each USK read.
+	 * @param latestSlot Filled in with the latest known slot of each USK read.
+	 * @return The number of USKs read.
+	 */
+	int setStorage(boolean encrypted, boolean noWrite, DatabaseKey key,
+			Map<USK, Long> latestKnownGood, Map<USK, Long> latestSlot) {
+		synchronized(writeLock) {
+			synchronized(this) {
+				return innerSetStorage(encrypted, noWrite, key, latestKnownGood, latestSlot);
+			}
+		}
+	}
+
+	private int innerSetStorage(boolean encrypted, boolean noWrite, DatabaseKey key,
+			Map<USK, Long> latestKnownGood, Map<USK, Long> latestSlot) {
+		if(noWrite || maxEntries <= 0) {
+			file = null;
+			tempFile = null;
+			this.key = null;
+			// Nothing from before the change may be read back in.
+			loaded = true;
+			deleteFiles(true);
+			deleteFiles(false);
+			return 0;
+		}
+		if(encrypted && key == null) {
+			file = null;
+			tempFile = null;
+			this.key = null;
+			return 0;
+		}
+		file = makeFilename(encrypted, false);
+		tempFile = makeFilename(encrypted, true);
+		this.key = encrypted ? key : null;
+		int count = 0;
+		if(!loaded) {
+			loaded = true;
+			count = load(file, tempFile, this.key, latestKnownGood, latestSlot);
+			if(count == 0 && (!encrypted || key != null))
+				count = load(makeFilename(!encrypted, false), makeFilename(!encrypted, true),
+						encrypted ? null : key, latestKnownGood, latestSlot);
+		}
+		// Don't leave a copy in the other format, e.g. an unencrypted one after raising the
+		// security level.
+		if(deleteFiles(!encrypted))
+			dirty = true;
+		return count;
+	}
+
+	/** Delete the file and its temp file.
+	 * @return True if there was anything to delete. */
+	private boolean deleteFiles(boolean encrypted) {
+		boolean deleted = false;
+		for(File f : new File[] { makeFilename(encrypted, false), makeFilename(encrypted, true) }) {
+			if(!f.exists()) continue;
+			deleted = true;
+			try {
+				FileUtil.secureDelete(f);
+			} catch (IOException e) {
+				f.delete();
+				if(f.exists())
+					System.err.println("Failed to delete "+f+" : The list of USKs you follow may still be on disk.");
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Read a file, if there is one.
+	 * @param key Non-null if the file is encrypted.
+	 * @return The number of USKs read.
+	 */
+	private int load(File file, File tempFile, DatabaseKey key, Map<USK, Long> latestKnownGood, Map<USK, Long> latestSlot) {
+		File f = file.exists() ? file : tempFile;
+		if(!f.exists()) return 0;
+		DataInputStream dis = null;
+		int count = 0;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(makeBucket(f, key).getInputStream()));
+			if(dis.readInt() != MAGIC)
+				throw new IOException("Bad magic");
+			int version = dis.readInt();
+			if(version != VERSION)
+				throw new IOException("Unknown version "+version);
+			int total = dis.readInt();
+			for(int i=0;i<total;i++) {
+				USK clear = readUSK(dis);
+				long knownGood = dis.readLong();
+				long slot = dis.readLong();
+				entries.push(clear, new Entry(clear, knownGood, slot));
+				// We may have been running for a while already, e.g. waiting for the password.
+				Long old = latestKnownGood.get(clear);
+				if(knownGood >= 0 && (old == null || old < knownGood))
+					latestKnownGood.put(clear, knownGood);
+				old = latestSlot.get(clear);
+				if(slot >= 0 && (old == null || old < slot)) {
+					latestSlot.put(clear, slot);
+					restored.put(clear, slot);
+				}
+				count++;
+			}
+		} catch (EOFException e) {
+			Logger.error(this, "USK edition cache "+f+" is truncated, read "+count+" USKs");
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read USK edition cache "+f+" : "+e, e);
+		} finally {
+			Closer.close(dis);
+		}
+		trim();
+		if(logMINOR) Logger.minor(this, "Read "+count+" USKs from "+f);
+		return count;
+	}
+
+	private static USK readUSK(DataInputStream dis) throws IOException {
+		byte[] pubKeyHash = new byte[NodeSSK.PUBKEY_HASH_SIZE];
+		dis.readFully(pubKeyHash);
+		byte[] cryptoKey = new byte[ClientSSK.CRYPTO_KEY_LENGTH];
+		dis.readFully(cryptoKey);
+		byte[] extra = new byte[ClientSSK.EXTRA_LENGTH];
+		dis.readFully(extra);
+		String siteName = dis.readUTF();
+		return new USK(pubKeyHash, cryptoKey, extra, siteName, 0);
+	}
+
+	private static void writeUSK(USK clear, DataOutputStream dos) throws IOException {
+		FreenetURI uri = clear.getURI();
+		dos.write(uri.getRoutingKey());
+		dos.write(uri.getCryptoKey());
+		dos.write(uri.getExtra());
+		dos.writeUTF(uri.getDocName());
+	}
+
+	/** A newer edition of a USK has been found.
+	 * @return True if a write needs to be scheduled. */
+	synchronized boolean update(USK clear, long knownGood, long slot) {
+		if(maxEntries <= 0) return false;
+		Entry e = entries.get(clear);
+		if(e == null)
+			e = new Entry(clear, knownGood, slot);
+		else {
+			e.knownGood = Math.max(e.knownGood, knownGood);
+			e.slot = Math.max(e.slot, slot);
+		}
+		entries.push(clear, e);
+		trim();
+		dirty = true;
+		if(writeQueued) return false;
+		writeQueued = true;
+		return true;
+	}
+
+	private synchronized void trim() {
+		while(entries.size() > maxEntries)
+			entries.popKey();
+	}
+
+	void setMaxEntries(int maxEntries) {
+		synchronized(writeLock) {
+			synchronized(this) {
+				if(this.maxEntries == maxEntries) return;
+				this.maxEntries = maxEntries;
+				trim();
+				dirty = true;
+				if(maxEntries <= 0) {
+					// Disabled. Don't leave the list on disk.
+					deleteFiles(true);
+					deleteFiles(false);
+					dirty = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A fetcher is starting on a USK. The first time this happens for a USK that we read from
+	 * disk, count the editions it won't have to poll through because we remembered them.
+	 * @param usk The USK and the edition the fetcher was asked for.
+	 */
+	void onFetcherStarted(USK usk) {
+		Long slot;
+		synchronized(this) {
+			if(restored.isEmpty()) return;
+			slot = restored.remove(usk.clearCopy());
+		}
+		if(slot != null && slot > usk.suggestedEdition)
+			pollsSaved.addAndGet(slot - Math.max(0, usk.suggestedEdition));
+	}
+
+	long pollsSaved() {
+		return pollsSaved.get();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/** Write the file if anything has changed since the last write. */
+	void write() {
+		synchronized(writeLock) {
+			innerWrite();
+		}
+	}
+
+	private void innerWrite() {
+		USK[] keys;
+		long[] knownGood;
+		long[] slots;
+		File file;
+		File tempFile;
+		DatabaseKey key;
+		synchronized(this) {
+			writeQueued = false;
+			// If we can't write yet, stay dirty, so we write once we can.
+			if(!dirty || this.file == null || maxEntries <= 0) return;
+			dirty = false;
+			file = this.file;
+			tempFile = this.tempFile;
+			key = this.key;
+			int count = entries.size();
+			keys = new USK[count];
+			knownGood = new long[count];
+			slots = new long[count];
+			int i = 0;
+			for(Enumeration<Entry> e = entries.values(); e.hasMoreElements();i++) {
+				Entry entry = e.nextElement();
+				keys[i] = entry.clear;
+				knownGood[i] = entry.knownGood;
+				slots[i] = entry.slot;
+			}
+		}
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(makeBucket(tempFile, key).getOutputStream()));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(keys.length);
+			for(int i=0;i<keys.length;i++) {
+				writeUSK(keys[i], dos);
+				dos.writeLong(knownGood[i]);
+				dos.writeLong(slots[i]);
+			}
+			dos.close();
+			dos = null;
+			if(!FileUtil.renameTo(tempFile, file))
+				throw new IOException("Unable to rename "+tempFile+" to "+file);
+			if(logMINOR) Logger.minor(this, "Written "+keys.length+" USKs to "+file);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write USK edition cache "+file+" : "+e, e);
+			synchronized(this) {
+				dirty = true;
+			}
+		} finally {
+			Closer.close(dos);
+		}
+	}
+
+	/** Write the file after WRITE_DELAY, so that changes are batched. */
+	void writeSoon(Ticker ticker) {
+		ticker.queueTimedJob(writer, "Write USK edition cache", WRITE_DELAY, false, true);
+	}
+
+	private final Runnable writer = new Runnable() {
+
+		@Override
+		public void run() {
+			write();
+		}
+
+	};
+
+}
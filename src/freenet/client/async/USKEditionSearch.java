@@ -0,0 +1,160 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * Brackets the latest edition of a USK in O(log n) fetches when it is a long way ahead of the
+ * latest edition we know about. The search only starts when there is evidence that we are
+ * behind: the normal probes found the whole window of editions after the edition we started
+ * from, or a hint or a random probe found an edition beyond the window. Otherwise, e.g. when
+ * polling a site which has published one new edition or none, we only do the normal probing,
+ * and don't fetch a far-ahead edition which almost certainly doesn't exist every round.
+ *
+ * Once started, we probe exponentially further ahead of the latest known
+ * edition until a probe fails, and then binary search between the last edition found and the
+ * first failure, until the gap is small enough for USKFetcher's normal probing of the next few
+ * editions to cover it.
+ *
+ * This assumes that if an edition exists then so do the ones before it, which is usually but
+ * not always true, and a DNF doesn't prove that an edition doesn't exist. So the search only
+ * ever moves the latest known edition forward by actually fetching editions; a wrong failure
+ * just means it stops early and we fall back to the linear and random probes.
+ *
+ * Only the failures of our own probes narrow the search, because the linear probes just after
+ * the latest known edition often fail when we are far behind, as old editions drop out of the
+ * network. Editions found by any means, including date hints and USKManager.hintUpdate(),
+ * move the search forward.
+ *
+ * LOCKING: Not thread-safe; USKFetcher only calls it while holding its own lock.
+ */
+final class USKEditionSearch {
+
+	/** The normal probes cover this many editions after the latest known edition. */
+	private final long window;
+	/** The latest edition known to exist, or -1. */
+	private long lowest;
+	/** The lowest edition above lowest that a probe failed to find, or -1 if none yet. */
+	private long highest = -1;
+	/** How far ahead of lowest the next exponential probe is. */
+	private long step;
+	/** The edition currently being probed, or -1. */
+	private long probing = -1;
+	/** Total number of probes started. */
+	private int probes;
+	/** True if we have seen evidence that we are a long way behind, so are searching. */
+	private boolean active;
+	/** The latest known edition when we last (re)started. */
+	private long start;
+
+	private static final long MAX_STEP = Long.MAX_VALUE / 4;
+
+	/**
+	 * @param lowest The latest edition known to exist, or -1.
+	 * @param window The number of editions after the latest known edition that are probed anyway.
+	 */
+	USKEditionSearch(long lowest, int window) {
+		this.lowest = lowest;
+		this.window = Math.max(1, window);
+		step = this.window * 2;
+		start = lowest;
+	}
+
+	/** Start again from the latest known edition, e.g. for the next round of polling. We won't
+	 * probe until we see evidence that we are behind again.
+	 * @param latest The latest edition known to exist. Editions found since we last looked,
+	 * e.g. by other subscribers, are not evidence that we are behind. */
+	void restart(long latest) {
+		if(latest > lowest) lowest = latest;
+		if(probing != -1 && probing <= lowest) probing = -1;
+		highest = -1;
+		step = window * 2;
+		active = false;
+		start = lowest;
+	}
+
+	/** @return The next edition to probe, or -1 if a probe is still running, or the search
+	 * has narrowed the gap down to the normal probing window, or there is no sign that we are
+	 * behind. */
+	long nextProbe() {
+		if(!active || probing != -1) return -1;
+		long target;
+		if(highest == -1) {
+			target = lowest + step;
+		} else {
+			if(highest - lowest <= window * 2) return -1;
+			target = lowest + (highest - lowest) / 2;
+		}
+		probing = target;
+		probes++;
+		return target;
+	}
+
+	/** An edition has been found, by us or anyone else. */
+	void onFound(long edition) {
+		boolean ours = edition == probing;
+		if(ours) {
+			probing = -1;
+			if(highest == -1) step = Math.min(step * 2, MAX_STEP);
+		}
+		if(edition > lowest) {
+			boolean jumped = edition > lowest + window;
+			lowest = edition;
+			if(highest != -1 && highest <= lowest) {
+				// A probe gave a false negative. Start again from here.
+				highest = -1;
+				step = window * 2;
+			} else if(!ours && jumped && highest == -1) {
+				// Not the normal probes, so probably a hint. The latest edition is most likely
+				// just after it.
+				step = window * 2;
+			}
+			if(!active && (jumped || lowest >= start + window)) {
+				// A hint or random probe got ahead of the normal probes, or they found every
+				// edition they looked for. There are probably more.
+				active = true;
+				highest = -1;
+				step = window * 2;
+			}
+		}
+		// Anything at or below the latest known edition has been or will be cancelled.
+		if(probing != -1 && probing <= lowest) probing = -1;
+	}
+
+	/**
+	 * An edition was not found.
+	 * @return True if it was the edition we were probing, so a new probe may be started.
+	 */
+	boolean onNotFound(long edition) {
+		if(edition != probing) return false;
+		probing = -1;
+		if(edition > lowest && (highest == -1 || edition < highest))
+			highest = edition;
+		return true;
+	}
+
+	/** @return True if we have seen evidence that we are behind, and are searching. */
+	boolean isActive() {
+		return active;
+	}
+
+	/** @return True if we are waiting for a probe. */
+	boolean isProbing() {
+		return probing != -1;
+	}
+
+	/** @return The lowest edition a probe failed to find, or -1. */
+	long highest() {
+		return highest;
+	}
+
+	int probes() {
+		return probes;
+	}
+
+	@Override
+	public String toString() {
+		return "edition search: active="+active+" lowest="+lowest+" highest="+highest+" step="+step+" probing="+probing+" probes="+probes;
+	}
+
+}
@@ -94,9 +94,12 @@ import freenet.support.io.Closer;
  *   to other error codes handled below in the relevant method).
  * - We immediately update the USKManager if we successfully fetch an edition.
  * - If a new, higher suggestion comes in, that is also fetched.
+ * - If we are a long way behind, USKEditionSearch probes exponentially further ahead and
+ *   then binary searches, so we catch up in O(log n) fetches rather than O(n). It only
+ *   starts when the next few editions all exist or a hint jumps ahead, so normal polling
+ *   stays linear.
  * 
  * Future extensions:
- * - Binary search.
  * - Hierarchical DBRs.
  * - TUKs (when we have TUKs).
  * - Passive requests (when we have passive requests).
@@ -155,6 +158,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	
 	private final ArrayList<USKAttempt> attemptsToStart;
 	
+	/** Exponential then binary search for the latest edition, or null if disabled. */
+	private final USKEditionSearch editionSearch;
+	
 	private static final int WATCH_KEYS = 50;
 	
 	/**
@@ -578,7 +584,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		// origUSK is a hint. We *do* want to check the edition given.
 		// Whereas latestSlot we've definitely fetched, we don't want to re-check.
 		watchingKeys = new USKWatchingKeys(origUSK, Math.max(0, uskManager.lookupLatestSlot(origUSK)+1));
+		uskManager.onFetcherStarted(origUSK);
 		attemptsToStart = new ArrayList<USKAttempt>();
+		if(uskManager.useEditionSearch() && !checkStoreOnly)
+			editionSearch = new USKEditionSearch(uskManager.lookupLatestSlot(origUSK), minFailures);
+		else
+			editionSearch = null;
 	}
 	
 	public void onDBRsFinished(ClientContext context) {
@@ -694,11 +705,16 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	void onDNF(USKAttempt att, ClientContext context) {
 		if(logMINOR) Logger.minor(this, "DNF: "+att);
 		boolean finished = false;
+		boolean registerProbe = false;
 		long curLatest = uskManager.lookupLatestSlot(origUSK);
 		synchronized(this) {
 			if(completed || cancelled) return;
 			lastFetchedEdition = Math.max(lastFetchedEdition, att.number);
 			runningAttempts.remove(att.number);
+			if(editionSearch != null && editionSearch.onNotFound(att.number)) {
+				if(logMINOR) Logger.minor(this, "Search probe failed: "+editionSearch+" for "+this);
+				registerProbe = addSearchProbe(curLatest);
+			}
 			if(runningAttempts.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "latest: "+curLatest+", last fetched: "+lastFetchedEdition+", curLatest+MIN_FAILURES: "+(curLatest+origMinFailures));
 				if(started) {
@@ -708,6 +724,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		}
 		if(finished) {
 			finishSuccess(context);
+		} else if(registerProbe) {
+			registerAttempts(context);
 		}
 	}
 	
@@ -824,6 +842,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					if(logMINOR) Logger.minor(this, "Adding checker for edition "+i+" for "+origUSK);
 					attemptsToStart.add(add(i, false));
 				}
+				addSearchProbe(curLatest);
 			}
 			if((!scheduleAfterDBRsDone) || dbrAttempts.isEmpty())
 				registerNow = !fillKeysWatching(curLatest, context);
@@ -964,6 +983,30 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return a;
 	}
 
+	/**
+	 * Add the next probe of the edition search, if any, to attemptsToStart. Caller must hold the
+	 * lock, and must call registerAttempts() afterwards if we return true.
+	 * @param lookedUp The latest known edition.
+	 * @return True if we added a probe.
+	 */
+	private synchronized boolean addSearchProbe(long lookedUp) {
+		if(editionSearch == null || cancelled || completed) return false;
+		editionSearch.onFound(lookedUp);
+		long ed = editionSearch.nextProbe();
+		if(ed < 0) return false;
+		Lookup l = new Lookup();
+		l.val = ed;
+		l.key = origUSK.getSSK(ed);
+		// The datastore checker only covers WATCH_KEYS editions.
+		l.ignoreStore = ed - lookedUp < WATCH_KEYS;
+		USKAttempt attempt = add(l, false);
+		// If it is already running we will get its result anyway.
+		if(attempt == null) return false;
+		if(logMINOR) Logger.minor(this, "Probing edition "+ed+" for "+editionSearch+" for "+this);
+		attemptsToStart.add(attempt);
+		return true;
+	}
+
 	public FreenetURI getURI() {
 		return origUSK.getURI();
 	}
@@ -1030,6 +1073,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 						if(logMINOR) Logger.minor(this, "Adding checker for edition "+i+" for "+origUSK);
 						attemptsToStart.add(add(i, false));
 					}
+					if(editionSearch != null)
+						editionSearch.restart(lookedUp);
+					addSearchProbe(lookedUp);
 				}
 				
 				started = true;
@@ -1260,6 +1306,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					if(logMINOR) Logger.minor(this, "Adding checker for edition "+i+" for "+origUSK+" in onFoundEdition");
 					attemptsToStart.add(add(i, false));
 				}
+				addSearchProbe(ed);
 			}
 			if((!scheduleAfterDBRsDone) || dbrAttempts.isEmpty())
 				registerNow = !fillKeysWatching(ed, context);
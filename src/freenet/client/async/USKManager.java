@@ -20,6 +20,7 @@ import freenet.client.NullClientCallback;
 import freenet.clients.http.FProxyToadlet;
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
+import freenet.node.DatabaseKey;
 import freenet.node.NodeClientCore;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
@@ -95,6 +96,15 @@ public class USKManager {
 	
 	private ClientContext context;
 	
+	/** Whether new USKFetchers catch up with an exponential then binary search, see
+	 * USKEditionSearch. */
+	private volatile boolean editionSearch = true;
+	
+	/** Latest known editions saved across restarts. */
+	private final USKEditionCache editionCache;
+	
+	public static final int DEFAULT_EDITION_CACHE_SIZE = 10000;
+	
 	public USKManager(NodeClientCore core) {
 		HighLevelSimpleClient client = core.makeClient(RequestStarter.UPDATE_PRIORITY_CLASS, false, false);
 		client.setMaxIntermediateLength(FProxyToadlet.MAX_LENGTH_NO_PROGRESS);
@@ -113,12 +123,71 @@ public class USKManager {
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
+		editionCache = new USKEditionCache(core.node.userDir().dir(), "usk-editions.dat", DEFAULT_EDITION_CACHE_SIZE);
 	}
 
 	public void init(ClientContext context) {
 		this.context = context;
 	}
 
+	/** Set how the latest editions are saved, depending on the physical security level, like 
+	 * client.dat. Reads them in the first time we are able to.
+	 * @param encrypted True if the file must be encrypted.
+	 * @param noWrite True if nothing may be written to disk. Deletes the file.
+	 * @param key The client layer key, or null if we are still waiting for the password. */
+	public void setEditionCacheStorage(boolean encrypted, boolean noWrite, DatabaseKey key) {
+		int loaded;
+		synchronized(this) {
+			loaded = editionCache.setStorage(encrypted, noWrite, key, latestKnownGoodByClearUSK, latestSlotByClearUSK);
+		}
+		if(loaded > 0)
+			Logger.normal(this, "Loaded latest editions of "+loaded+" USKs");
+		// E.g. re-encrypted after the security level was raised.
+		editionCache.write();
+	}
+
+	/** Set the maximum number of USKs whose latest editions are saved across restarts.
+	 * 0 means don't save any. */
+	public void setEditionCacheSize(int size) {
+		editionCache.setMaxEntries(size);
+	}
+
+	/** @return The number of USKs whose latest editions will be saved across restarts. */
+	public int getEditionCacheSize() {
+		return editionCache.size();
+	}
+
+	/** @return The number of editions we have not had to poll through since startup because we
+	 * remembered the latest edition from before the restart. Each is at least one SSK request. */
+	public long getPollsSavedByEditionCache() {
+		return editionCache.pollsSaved();
+	}
+
+	/** Write any changes to the latest editions to disk now, e.g. on shutdown. */
+	public void writeEditionCache() {
+		editionCache.write();
+	}
+
+	/** Called when a USKFetcher is created, for statistics. */
+	void onFetcherStarted(USK usk) {
+		editionCache.onFetcherStarted(usk);
+	}
+
+	private void editionCacheUpdated(USK clear) {
+		Long good = latestKnownGoodByClearUSK.get(clear);
+		Long slot = latestSlotByClearUSK.get(clear);
+		if(editionCache.update(clear, good == null ? -1 : good, slot == null ? -1 : slot) && context != null)
+			editionCache.writeSoon(context.ticker);
+	}
+
+	public void setUseEditionSearch(boolean editionSearch) {
+		this.editionSearch = editionSearch;
+	}
+
+	public boolean useEditionSearch() {
+		return editionSearch;
+	}
+
 	/**
 	 * Look up the latest known working version of the given USK.
 	 * @return The latest known edition number, or -1.
@@ -446,6 +515,7 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
 			} 
+			editionCacheUpdated(clear);
 			
 			callbacks = subscribersByClearUSK.get(clear);
 		}
@@ -477,6 +547,7 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 			} else
 				return;
+			editionCacheUpdated(clear);
 			
 			callbacks = subscribersByClearUSK.get(clear);
 			if(temporaryBackgroundFetchersPrefetch.containsKey(clear)) {
@@ -202,6 +202,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			char pprevC = 0;
 			char prevC = 0;
 			char c = 0;
+			// Read a block at a time rather than calling read() for every character.
+			char[] buf = new char[READ_BUFFER_SIZE];
+			int bufPos = 0;
+			int bufLength = 0;
 			mode = INTEXT;
 			
 			// No text before <html>
@@ -218,21 +222,25 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 					return;
 				int x;
 				
-				try {
-					x = r.read();
-				}
-				/** 
-				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
-				 * line 299 at InputStreamReader.java (in refill()): http://www.koders.com/java/fidD8F7E2EB1E4C22DA90EBE0130306AE30F876AB00.aspx?s=refill#L279 
-				 * line 355 at BufferedInputStream.java (in refill()): http://www.koders.com/java/fid1949641524FAC0083432D79793F554CD85F46759.aspx?s=refill#L355
-				 * TODO: remove this when the gcj bug is fixed and the affected gcj versions are outdated. 
-				 */
-				catch(java.io.CharConversionException cce) {
-					if(freenet.node.Node.checkForGCJCharConversionBug()) /* only ignore the exception on affected libgcj */
-						x = -1; 
-					else
-						throw cce;
+				if(bufPos == bufLength) {
+					bufPos = 0;
+					try {
+						bufLength = Math.max(0, r.read(buf, 0, buf.length));
+					}
+					/** 
+					 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
+					 * line 299 at InputStreamReader.java (in refill()): http://www.koders.com/java/fidD8F7E2EB1E4C22DA90EBE0130306AE30F876AB00.aspx?s=refill#L279 
+					 * line 355 at BufferedInputStream.java (in refill()): http://www.koders.com/java/fid1949641524FAC0083432D79793F554CD85F46759.aspx?s=refill#L355
+					 * TODO: remove this when the gcj bug is fixed and the affected gcj versions are outdated. 
+					 */
+					catch(java.io.CharConversionException cce) {
+						if(freenet.node.Node.checkForGCJCharConversionBug()) /* only ignore the exception on affected libgcj */
+							bufLength = 0;
+						else
+							throw cce;
+					}
 				}
+				x = bufPos < bufLength ? buf[bufPos++] : -1;
 				
 				if (x == -1) {
 					switch (mode) {
@@ -240,7 +248,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 							if(textAllowed) {
 								saveText(b, currentTag, w, this);
 							} else {
-								if(!b.toString().trim().equals(""))
+								if(!isBlank(b))
 									throwFilterException(l10n("textBeforeHTML"));
 							}
 							break;
@@ -292,7 +300,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								b.setLength(0);
@@ -300,6 +308,21 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								mode = INTAG;
 							} else {
 								b.append(c);
+								// Copy the rest of the text in the buffer in one go.
+								int end = bufPos;
+								while(end < bufLength) {
+									char d = buf[end];
+									if(d == '<' || d == 0 || d == 0xFEFF) break;
+									end++;
+								}
+								int n = end - bufPos;
+								if(n > 0) {
+									b.append(buf, bufPos, n);
+									pprevC = n > 2 ? buf[end - 3] : (n == 2 ? c : prevC);
+									prevC = n > 1 ? buf[end - 2] : c;
+									c = buf[end - 1];
+									bufPos = end;
+								}
 							}
 							break;
 						case INTAG :
@@ -314,7 +337,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 
@@ -451,7 +474,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								balt.setLength(0);
@@ -484,6 +507,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		int mode;
+		static final int READ_BUFFER_SIZE = 8192;
 		static final int INTEXT = 0;
 		static final int INTAG = 1;
 		static final int INTAGQUOTES = 2;
@@ -501,7 +525,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		boolean killStyle = false;
 		int styleScriptRecurseCount = 0;
 		String currentStyleScriptChunk = "";
-		StringBuilder writeAfterTag = new StringBuilder(1024);
+		final StringBuilder writeAfterTag = new StringBuilder(1024);
 
 		public void closeXHTMLTag(String element, Writer w) throws IOException {
 			// Assume that missing closes are way more common than extra closes.
@@ -532,6 +556,31 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		
+		String sout = needsEscaping(s, pc) ? escapeText(s, pc) : s.toString();
+		
+		if (pc.inStyle || pc.inScript) {
+			pc.currentStyleScriptChunk += sout;
+			return; // is parsed and written elsewhere
+		}
+		if(pc.cb != null)
+			pc.cb.onText(HTMLDecoder.decode(sout), tagName); /* Tag name is given as type for the text */
+		
+		w.write(sout);
+	}
+
+	/** @return True if escapeText() would change the text. Most text doesn't need it, so we
+	 * can avoid copying it. */
+	private static boolean needsEscaping(StringBuilder s, HTMLParseContext pc) {
+		boolean styleOrScript = pc.inStyle || pc.inScript;
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c == '<' && !styleOrScript) return true;
+			if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) return true;
+		}
+		return false;
+	}
+
+	private String escapeText(StringBuilder s, HTMLParseContext pc) {
 		StringBuilder out = new StringBuilder(s.length()*2);
 		
 		for(int i=0;i<s.length();i++) {
@@ -551,16 +600,15 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				out.append(c);
 			}
 		}
-		String sout = out.toString();
-		
-		if (pc.inStyle || pc.inScript) {
-			pc.currentStyleScriptChunk += sout;
-			return; // is parsed and written elsewhere
+		return out.toString();
+	}
+
+	/** Equivalent to s.toString().trim().isEmpty(), without copying. */
+	private static boolean isBlank(CharSequence s) {
+		for(int i=0;i<s.length();i++) {
+			if(s.charAt(i) > ' ') return false;
 		}
-		if(pc.cb != null)
-			pc.cb.onText(HTMLDecoder.decode(sout), tagName); /* Tag name is given as type for the text */
-		
-		w.write(sout);
+		return true;
 	}
 
 	String processTag(List<String> splitTag, Writer w, HTMLParseContext pc)
@@ -634,7 +682,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 						t.write(w,pc);
 						if (pc.writeAfterTag.length() > 0) {
 							w.write(pc.writeAfterTag.toString());
-							pc.writeAfterTag = new StringBuilder(1024);
+							pc.writeAfterTag.setLength(0);
 						}
 					}
 				} else
@@ -645,7 +693,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 					return pc.openElements.peek();
 				if (pc.writeAfterTag.length() > 0) {
 					w.write(pc.writeAfterTag.toString());
-					pc.writeAfterTag = new StringBuilder(1024);
+					pc.writeAfterTag.setLength(0);
 				}
 				return null;
 			} else return t.element;
@@ -14,9 +14,14 @@ public abstract class BaseDataCarryingMessage extends FCPMessage {
 	
 	@Override
 	public void send(OutputStream os) throws IOException {
-		super.send(os);
+		sendHeader(os);
 		writeData(os);
 	}
+	
+	/** Send the message without the data. */
+	protected void sendHeader(OutputStream os) throws IOException {
+		super.send(os);
+	}
 
 	protected abstract void writeData(OutputStream os) throws IOException;
 
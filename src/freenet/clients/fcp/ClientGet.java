@@ -7,11 +7,13 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import freenet.client.FetchContext;
 import freenet.client.FetchException;
@@ -28,6 +30,8 @@ import freenet.client.async.CompatibilityAnalyser;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentClientCallback;
 import freenet.client.async.PersistentJob;
+import freenet.client.async.SplitFileStreamListener;
+import freenet.client.async.StreamGenerator;
 import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.EnterFiniteCooldownEvent;
@@ -60,7 +64,7 @@ import freenet.support.io.StorageFormatException;
  * A simple client fetch. This can of course fetch arbitrarily large
  * files, including splitfiles, redirects, etc.
  */
-public class ClientGet extends ClientRequest implements ClientGetCallback, ClientEventListener, PersistentClientCallback {
+public class ClientGet extends ClientRequest implements ClientGetCallback, ClientEventListener, PersistentClientCallback, SplitFileStreamListener {
 
     private static final long serialVersionUID = 1L;
     /** Fetch context. Never passed in: always created new by the ClientGet. Therefore, we
@@ -69,7 +73,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	private final ClientGetter getter;
 	private final ReturnType returnType;
 	private final File targetFile;
-	/** Bucket returned when the request was completed, if returnType == RETURN_TYPE_DIRECT. */
+	/** Bucket returned when the request was completed, if returnType == RETURN_TYPE_DIRECT or
+	 * RETURN_TYPE_STREAM. */
 	private Bucket returnBucketDirect;
 	private final boolean binaryBlob;
 	private final String extensionCheck;
@@ -106,6 +111,15 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	/** Expected hashes of the final data. Will be updated from ClientGetter in onResume() but we 
 	 * persist it anyway.  */
 	private ExpectedHashes expectedHashes;
+	/** Time at which the first byte of the data was queued for the client, or 0. */
+	private long firstDataTime;
+	/** Number of bytes already streamed to the client, if returnType == STREAM. */
+	private transient long streamedLength;
+	/** Number of streamed bytes queued but not yet written to the client. */
+	private transient long streamedBytesQueued;
+	
+	/** Don't stream more than this much data ahead of the client. */
+	private static final long MAX_STREAMED_BYTES_QUEUED = 8*1024*1024;
 
 	private static volatile boolean logMINOR;
 	static {
@@ -123,7 +137,10 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	    DIRECT((short)0),
 	    NONE((short)1),
 	    DISK((short)2),
-	    CHUNKED((short)3);
+	    CHUNKED((short)3),
+	    /** Like DIRECT, but send the data in parts as it becomes available. Only for 
+	     * non-persistent requests. @see StreamDataMessage */
+	    STREAM((short)4);
 	    
 	    final short code;
 	    
@@ -266,6 +283,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		this.extensionCheck = extensionCheck;
 		initialMetadata = message.getInitialMetadata();
 		getter = makeGetter(ret);
+		if(returnType == ReturnType.STREAM)
+		    getter.setStreamListener(this);
 	}
 	
 	private ClientGetter makeGetter(Bucket ret) {
@@ -364,8 +383,10 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			this.foundDataLength = data.size();
 			this.succeeded = true;
 			finished = true;
-			if(returnType == ReturnType.DIRECT)
+			if(returnType == ReturnType.DIRECT || returnType == ReturnType.STREAM) {
 			    returnBucketDirect = data;
+			    if(firstDataTime == 0) firstDataTime = completionTime;
+			}
 		}
 		trySendDataFoundOrGetFailed(null, null);
 		trySendAllDataMessage(null, null);
@@ -401,7 +422,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		if(succeeded) {
 			// FIXME: Duplicate of AllDataMessage
 			// FIXME: CompletionTime is set on finish() : we need to give it current time here
-			msg = new DataFoundMessage(foundDataLength, foundDataMimeType, identifier, global, startupTime, completionTime != 0 ? completionTime : System.currentTimeMillis());
+			msg = new DataFoundMessage(foundDataLength, foundDataMimeType, identifier, global, startupTime, completionTime != 0 ? completionTime : System.currentTimeMillis(), firstDataTime);
 		} else {
 			msg = getFailedMessage;
 		}
@@ -414,11 +435,19 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			client.queueClientRequestMessage(FCPMessage.withListRequestIdentifier(msg, listRequestIdentifier), 0);
 	}
 	
-	private synchronized AllDataMessage getAllDataMessage() {
-	    if(returnType != ReturnType.DIRECT)
+	private synchronized DataCarryingMessage getAllDataMessage() {
+	    DataCarryingMessage msg;
+	    if(returnType == ReturnType.STREAM) {
+	        // Whatever has not been streamed already.
+	        msg = new StreamDataMessage(returnBucketDirect, streamedLength, streamedLength, 
+	                returnBucketDirect.size() - streamedLength, identifier, global, startupTime, true, 
+	                null);
+	    } else if(returnType == ReturnType.DIRECT) {
+	        msg = new AllDataMessage(returnBucketDirect, identifier, global, startupTime, 
+	                completionTime, foundDataMimeType);
+	    } else {
 	        return null;
-	    AllDataMessage msg = new AllDataMessage(returnBucketDirect, identifier, global, startupTime, 
-	            completionTime, foundDataMimeType);
+	    }
         if(persistence == Persistence.CONNECTION)
             msg.setFreeOnSent();
         return msg;
@@ -436,6 +465,69 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	    }
 	}
 
+	/** Stream a decoded segment to the client. Waits while the client is too far behind. */
+	@Override
+	public boolean onStreamedData(long offset, StreamGenerator data, ClientContext context) throws IOException {
+	    final long length = data.size();
+	    synchronized(this) {
+	        while(streamedBytesQueued > 0 && streamedBytesQueued + length > MAX_STREAMED_BYTES_QUEUED) {
+	            if(finished || origHandler.isClosed()) return false;
+	            try {
+	                wait(TimeUnit.SECONDS.toMillis(1));
+	            } catch (InterruptedException e) {
+	                // Ignore.
+	            }
+	        }
+	        if(finished || offset != streamedLength) return false;
+	    }
+	    Bucket bucket = context.tempBucketFactory.makeBucket(length);
+	    OutputStream os = bucket.getOutputStream();
+	    try {
+	        data.writeTo(os, context);
+	    } catch (IOException e) {
+	        os.close();
+	        bucket.free();
+	        throw e;
+	    }
+	    os.close();
+	    StreamDataMessage msg;
+	    synchronized(this) {
+	        // Once finished, the rest of the data is sent from returnBucketDirect.
+	        if(finished || origHandler.isClosed()) {
+	            bucket.free();
+	            return false;
+	        }
+	        msg = new StreamDataMessage(bucket, 0, offset, length, identifier, global, startupTime, 
+	                false, new Runnable() {
+
+	            @Override
+	            public void run() {
+	                synchronized(ClientGet.this) {
+	                    streamedBytesQueued -= length;
+	                    ClientGet.this.notifyAll();
+	                }
+	            }
+
+	        });
+	        msg.setFreeOnSent();
+	        // Queue inside the lock so that the final part is always queued after this one.
+	        if(!origHandler.outputHandler.queue(msg)) {
+	            // Dropped, so it will never be sent or freed. Stop streaming; the final part 
+	            // starts at streamedLength, so the client still gets all the data, without a gap.
+	            Logger.error(this, "Stopped streaming "+identifier+" at "+offset+" because the FCP output queue dropped the data");
+	            bucket.free();
+	            return false;
+	        }
+	        streamedLength += length;
+	        streamedBytesQueued += length;
+	        if(firstDataTime == 0) {
+	            firstDataTime = System.currentTimeMillis();
+	            if(logMINOR) Logger.minor(this, "First data for "+identifier+" after "+(firstDataTime - startupTime)+"ms");
+	        }
+	    }
+	    return true;
+	}
+
 	private void queueProgressMessageInner(FCPMessage msg, FCPConnectionOutputHandler handler, int verbosityMask) {
 	    if(persistence == Persistence.CONNECTION && handler == null)
 	        handler = origHandler.outputHandler;
@@ -832,7 +924,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	}
 	
 	private Bucket makeBucket(boolean readOnly) {
-	    if(returnType == ReturnType.DIRECT) {
+	    if(returnType == ReturnType.DIRECT || returnType == ReturnType.STREAM) {
 	        synchronized(this) {
 	            return returnBucketDirect;
 	        }
@@ -36,6 +36,7 @@ import freenet.support.io.BucketTools;
  * Identifier=Request Number One
  * Verbosity=0 // no status, just tell us when it's done
  * ReturnType=direct // return all at once over the FCP connection
+ *    (or stream: return in parts over the FCP connection as soon as it is decoded)
  * MaxSize=100 // maximum size of returned data 
  * MaxTempSize=1000 // maximum size of intermediary data
  * MaxRetries=100 // automatic retry supported as an option
@@ -113,7 +114,7 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 		}
 		String returnTypeString = fs.get("ReturnType");
 		returnType = parseReturnTypeFCP(returnTypeString);
-		if(returnType == ReturnType.DIRECT) {
+		if(returnType == ReturnType.DIRECT || returnType == ReturnType.STREAM) {
 			diskFile = null;
 			// default just below FProxy
 			defaultPriority = RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS;
@@ -195,6 +196,9 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 		if(global && (persistence == Persistence.CONNECTION)) {
 			throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "Global requests must be persistent", identifier, global);
 		}
+		if(returnType == ReturnType.STREAM && persistence != Persistence.CONNECTION) {
+			throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "ReturnType=stream is only supported for Persistence=connection", identifier, global);
+		}
 		writeToClientCache = fs.getBoolean("WriteToClientCache", persistence == Persistence.CONNECTION);
 		binaryBlob = fs.getBoolean("BinaryBlob", false);
 		realTimeFlag = fs.getBoolean("RealTimeFlag", false);
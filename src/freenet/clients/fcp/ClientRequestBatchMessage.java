@@ -0,0 +1,110 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Submit many ClientGet's and ClientPut's in a single message. Each request is given as a
+ * subset of the message, with the same fields as the individual message plus its name:
+ * 
+ * ClientRequestBatch
+ * Identifier=batch-1
+ * Request.0.Message=ClientGet
+ * Request.0.Identifier=get-1
+ * Request.0.URI=CHK@...
+ * Request.0.Persistence=forever
+ * Request.1.Message=ClientPut
+ * Request.1.Identifier=put-1
+ * Request.1.URI=CHK@
+ * Request.1.UploadFrom=disk
+ * Request.1.Filename=/tmp/file
+ * EndMessage
+ * 
+ * Requests cannot carry data, so ClientPut's must use UploadFrom=disk or redirect. The 
+ * persistent-forever requests in a batch are all created in a single job on the persistent
+ * job runner, which saves a checkpoint per request compared to sending them one at a time. 
+ * The server replies with EndClientRequestBatch once every request has been queued; 
+ * requests which fail to start report this with the usual per-request messages.
+ */
+public class ClientRequestBatchMessage extends FCPMessage {
+
+	static final String NAME = "ClientRequestBatch";
+	/** Maximum number of requests in a single batch. */
+	static final int MAX_REQUESTS = 10000;
+	private final String identifier;
+	private final List<FCPMessage> requests;
+	/** Entries that could not be parsed, reported when the batch is run. */
+	private final List<ProtocolErrorMessage> rejected;
+
+	public ClientRequestBatchMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		requests = new ArrayList<FCPMessage>();
+		rejected = new ArrayList<ProtocolErrorMessage>();
+		SimpleFieldSet all = fs.subset("Request");
+		if(all == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No requests in batch", identifier, false);
+		for(int i=0;;i++) {
+			SimpleFieldSet sub = all.subset(Integer.toString(i));
+			if(sub == null) break;
+			if(i == MAX_REQUESTS)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "Too many requests in batch, maximum is "+MAX_REQUESTS, identifier, false);
+			try {
+				requests.add(parseRequest(sub));
+			} catch (MessageInvalidException e) {
+				String ident = e.ident == null ? sub.get("Identifier") : e.ident;
+				rejected.add(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), ident, e.global));
+			}
+		}
+	}
+
+	private static FCPMessage parseRequest(SimpleFieldSet fs) throws MessageInvalidException {
+		String type = fs.get("Message");
+		if(ClientGetMessage.NAME.equals(type)) {
+			ClientGetMessage get = new ClientGetMessage(fs);
+			if(get.dataLength() > 0)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Batched requests cannot carry initial metadata", get.identifier, get.global);
+			return get;
+		} else if(ClientPutMessage.NAME.equals(type)) {
+			ClientPutMessage put = new ClientPutMessage(fs);
+			if(put.dataLength() >= 0)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Batched inserts cannot use UploadFrom=direct", put.identifier, put.global);
+			return put;
+		} else {
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "Cannot batch message type "+type, null, false);
+		}
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		for(int i=0;i<requests.size();i++) {
+			FCPMessage request = requests.get(i);
+			SimpleFieldSet sub = request.getFieldSet();
+			sub.putSingle("Message", request.getName());
+			fs.put("Request."+i, sub);
+		}
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		for(ProtocolErrorMessage msg : rejected)
+			handler.outputHandler.queue(msg);
+		handler.startClientRequests(requests);
+		handler.outputHandler.queue(new EndClientRequestBatchMessage(identifier, requests.size(), rejected.size()));
+	}
+
+}
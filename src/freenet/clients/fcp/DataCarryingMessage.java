@@ -6,13 +6,18 @@ package freenet.clients.fcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
 
 import freenet.client.async.PersistenceDisabledException;
+import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.io.BucketTools;
+import freenet.support.io.ChannelTransferable;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NullBucket;
 import freenet.support.io.NullOutputStream;
@@ -20,6 +25,16 @@ import freenet.support.io.NullOutputStream;
 
 public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
     /** If this is a message from the client, then the Bucket was created by createBucket() and 
      * will be a RandomAccessBucket. However if it is a message we are sending to the client, it 
      * may not be. FIXME split up into two classes? */
@@ -69,6 +84,41 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 	}
 	
+	/** Send the message. If the data is in a plain file, write it straight from the file to the 
+	 * channel with FileChannel.transferTo(), rather than copying it through the heap.
+	 * @param os Buffered stream writing to the channel. Flushed before writing to the channel 
+	 * directly. */
+	void send(OutputStream os, WritableByteChannel channel) throws IOException {
+		sendHeader(os);
+		writeData(os, channel);
+	}
+	
+	protected void writeData(OutputStream os, WritableByteChannel channel) throws IOException {
+		if(transferData(os, channel, 0)) {
+			if(freeOnSent) bucket.free();
+		} else {
+			writeData(os);
+		}
+	}
+	
+	/** Write the data directly from the file to the channel if possible.
+	 * @param bucketOffset Offset of the data in the bucket.
+	 * @return False if the data is not in a plain file and has not been written. */
+	protected boolean transferData(OutputStream os, WritableByteChannel channel, long bucketOffset) throws IOException {
+		long len = dataLength();
+		if(len <= 0 || !(bucket instanceof ChannelTransferable)) return false;
+		// Headers must go out before the data.
+		os.flush();
+		long startTime = System.nanoTime();
+		if(!((ChannelTransferable)bucket).transferTo(bucketOffset, len, channel)) return false;
+		if(logMINOR) {
+			long time = Math.max(1, System.nanoTime() - startTime);
+			Logger.minor(this, "Transferred "+len+" bytes for "+getIdentifier()+" in "+
+					TimeUnit.NANOSECONDS.toMillis(time)+"ms ("+(len * 1000000000L / time)+" bytes/sec)");
+		}
+		return true;
+	}
+	
 	@Override
 	String getEndString() {
 		return "Data";
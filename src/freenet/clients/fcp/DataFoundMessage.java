@@ -14,6 +14,8 @@ public class DataFoundMessage extends FCPMessage {
 	final String mimeType;
 	final long dataLength;
 	final long startupTime, completionTime;
+	/** Time at which the first byte of the data was sent to the client, or 0 if not known. */
+	final long firstDataTime;
 	
 	public DataFoundMessage(FetchResult fr, String identifier, boolean global, long startupTime, long completionTime) {
 		this.identifier = identifier;
@@ -22,15 +24,21 @@ public class DataFoundMessage extends FCPMessage {
 		this.dataLength = fr.size();
 		this.startupTime = startupTime;
 		this.completionTime = completionTime;
+		this.firstDataTime = 0;
 	}
 
 	public DataFoundMessage(long foundDataLength, String foundDataMimeType, String identifier, boolean global, long startupTime, long completionTime) {
+		this(foundDataLength, foundDataMimeType, identifier, global, startupTime, completionTime, 0);
+	}
+
+	public DataFoundMessage(long foundDataLength, String foundDataMimeType, String identifier, boolean global, long startupTime, long completionTime, long firstDataTime) {
 		this.mimeType = foundDataMimeType;
 		this.identifier = identifier;
 		this.global = global;
 		this.dataLength = foundDataLength;
 		this.startupTime = startupTime;
 		this.completionTime = completionTime;
+		this.firstDataTime = firstDataTime;
 	}
 
 	@Override
@@ -42,6 +50,10 @@ public class DataFoundMessage extends FCPMessage {
 		fs.put("DataLength", dataLength);
 		fs.put("StartupTime", startupTime);
 		fs.put("CompletionTime", completionTime);
+		if(firstDataTime > 0) {
+			fs.put("FirstDataTime", firstDataTime);
+			fs.put("TimeToFirstByte", firstDataTime - startupTime);
+		}
 		return fs;
 	}
 
@@ -0,0 +1,47 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Sent after processing a ClientRequestBatch. Submitted is the number of requests that were
+ * queued, Rejected the number that could not be parsed (each of which will have had a 
+ * ProtocolError).
+ */
+public class EndClientRequestBatchMessage extends FCPMessage {
+
+	static final String NAME = "EndClientRequestBatch";
+	private final String identifier;
+	private final int submitted;
+	private final int rejected;
+
+	EndClientRequestBatchMessage(String identifier, int submitted, int rejected) {
+		this.identifier = identifier;
+		this.submitted = submitted;
+		this.rejected = rejected;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Submitted", submitted);
+		fs.put("Rejected", rejected);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+}
@@ -0,0 +1,54 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Sent after the RequestStatusChange's in reply to a GetRequestStatusChanges. Sequence is the
+ * value to pass as Since next time. If Reset=true, the changes since the requested sequence 
+ * number were no longer known, and the preceding messages list every request on the queue: 
+ * the client should forget any request it knows about that was not included.
+ */
+public class EndRequestStatusChangesMessage extends FCPMessage {
+
+	static final String NAME = "EndRequestStatusChanges";
+	private final String identifier;
+	private final long sequence;
+	private final boolean reset;
+	private final int changed;
+	private final int removed;
+
+	EndRequestStatusChangesMessage(String identifier, long sequence, boolean reset, int changed, int removed) {
+		this.identifier = identifier;
+		this.sequence = sequence;
+		this.reset = reset;
+		this.changed = changed;
+		this.removed = removed;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Sequence", sequence);
+		fs.put("Reset", reset);
+		fs.put("Changed", changed);
+		fs.put("Removed", removed);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+}
@@ -5,9 +5,14 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
@@ -33,6 +38,8 @@ import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.io.SocketChannelInputStream;
+import freenet.support.io.SocketChannelOutputStream;
 
 public class FCPConnectionHandler implements Closeable {
 	private static final class DirectoryAccess {
@@ -232,6 +239,27 @@ public class FCPConnectionHandler implements Closeable {
 		return isClosed;
 	}
 	
+	/** If the socket has a channel, read from it directly, so that the input thread waiting for 
+	 * the next message doesn't block the output thread. */
+	InputStream getInputStream() throws IOException {
+		SocketChannel channel = sock.getChannel();
+		if(channel != null)
+			return new SocketChannelInputStream(channel);
+		return sock.getInputStream();
+	}
+	
+	OutputStream getOutputStream() throws IOException {
+		SocketChannel channel = sock.getChannel();
+		if(channel != null)
+			return new SocketChannelOutputStream(channel);
+		return sock.getOutputStream();
+	}
+	
+	/** @return The channel for writing data directly from files, or null. */
+	SocketChannel getChannel() {
+		return sock.getChannel();
+	}
+	
 	public void closedInput() {
 		try {
 			sock.shutdownInput();
@@ -330,28 +358,7 @@ public class FCPConnectionHandler implements Closeable {
 					            
 					            @Override
 					            public boolean run(ClientContext context) {
-					                ClientGet getter;
-					                try {
-					                    getter = new ClientGet(FCPConnectionHandler.this, message, server.core);
-					                } catch (IdentifierCollisionException e1) {
-					                    Logger.normal(this, "Identifier collision on "+this);
-					                    FCPMessage msg = new IdentifierCollisionMessage(id, message.global);
-					                    outputHandler.queue(msg);
-					                    return false;
-					                } catch (MessageInvalidException e1) {
-					                    outputHandler.queue(new ProtocolErrorMessage(e1.protocolCode, false, e1.getMessage(), e1.ident, e1.global));
-					                    return false;
-					                }
-					                try {
-					                    getter.register(false);
-					                } catch (IdentifierCollisionException e) {
-					                    Logger.normal(this, "Identifier collision on "+this);
-					                    FCPMessage msg = new IdentifierCollisionMessage(id, global);
-					                    outputHandler.queue(msg);
-					                    return false;
-					                }
-					                getter.start(context);
-					                return true;
+					                return startPersistentClientGet(message, context);
 					            }
 					            
 					        }, NativeThread.HIGH_PRIORITY-1);
@@ -427,34 +434,7 @@ public class FCPConnectionHandler implements Closeable {
 				            
 				            @Override
 				            public boolean run(ClientContext context) {
-				                ClientPut putter;
-				                try {
-				                    putter = new ClientPut(FCPConnectionHandler.this, message, server);
-				                } catch (IdentifierCollisionException e) {
-				                    Logger.normal(this, "Identifier collision on "+this);
-				                    FCPMessage msg = new IdentifierCollisionMessage(id, message.global);
-				                    outputHandler.queue(msg);
-				                    return false;
-				                } catch (MessageInvalidException e) {
-				                    outputHandler.queue(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global));
-				                    return false;
-				                } catch (MalformedURLException e) {
-				                    outputHandler.queue(new ProtocolErrorMessage(ProtocolErrorMessage.FREENET_URI_PARSE_ERROR, true, null, id, message.global));
-				                    return false;
-				                } catch (IOException e) {
-                                    outputHandler.queue(new ProtocolErrorMessage(ProtocolErrorMessage.IO_ERROR, true, null, id, message.global));
-                                    return false;
-                                }
-				                try {
-				                    putter.register(false);
-				                } catch (IdentifierCollisionException e) {
-				                    Logger.normal(this, "Identifier collision on "+this);
-				                    FCPMessage msg = new IdentifierCollisionMessage(id, global);
-				                    outputHandler.queue(msg);
-				                    return false;
-				                }
-				                putter.start(context);
-				                return true;
+				                return startPersistentClientPut(message, context);
 				            }
 				        
 				        }, NativeThread.HIGH_PRIORITY-1);
@@ -502,6 +482,134 @@ public class FCPConnectionHandler implements Closeable {
 		}
 	}
 
+	/**
+	 * Create, register and start a persistent-forever ClientGet. Must be called on the 
+	 * persistent job runner.
+	 * @return True if the request was started, so the caller's job should checkpoint.
+	 */
+	boolean startPersistentClientGet(ClientGetMessage message, ClientContext context) {
+		ClientGet getter;
+		try {
+			getter = new ClientGet(this, message, server.core);
+		} catch (IdentifierCollisionException e1) {
+			Logger.normal(this, "Identifier collision on "+this);
+			FCPMessage msg = new IdentifierCollisionMessage(message.identifier, message.global);
+			outputHandler.queue(msg);
+			return false;
+		} catch (MessageInvalidException e1) {
+			outputHandler.queue(new ProtocolErrorMessage(e1.protocolCode, false, e1.getMessage(), e1.ident, e1.global));
+			return false;
+		}
+		try {
+			getter.register(false);
+		} catch (IdentifierCollisionException e) {
+			Logger.normal(this, "Identifier collision on "+this);
+			FCPMessage msg = new IdentifierCollisionMessage(message.identifier, message.global);
+			outputHandler.queue(msg);
+			return false;
+		}
+		getter.start(context);
+		return true;
+	}
+
+	/**
+	 * Create, register and start a persistent-forever ClientPut. Must be called on the 
+	 * persistent job runner.
+	 * @return True if the request was started, so the caller's job should checkpoint.
+	 */
+	boolean startPersistentClientPut(ClientPutMessage message, ClientContext context) {
+		final String id = message.identifier;
+		ClientPut putter;
+		try {
+			putter = new ClientPut(this, message, server);
+		} catch (IdentifierCollisionException e) {
+			Logger.normal(this, "Identifier collision on "+this);
+			FCPMessage msg = new IdentifierCollisionMessage(id, message.global);
+			outputHandler.queue(msg);
+			return false;
+		} catch (MessageInvalidException e) {
+			outputHandler.queue(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global));
+			return false;
+		} catch (MalformedURLException e) {
+			outputHandler.queue(new ProtocolErrorMessage(ProtocolErrorMessage.FREENET_URI_PARSE_ERROR, true, null, id, message.global));
+			return false;
+		} catch (IOException e) {
+			outputHandler.queue(new ProtocolErrorMessage(ProtocolErrorMessage.IO_ERROR, true, null, id, message.global));
+			return false;
+		}
+		try {
+			putter.register(false);
+		} catch (IdentifierCollisionException e) {
+			Logger.normal(this, "Identifier collision on "+this);
+			FCPMessage msg = new IdentifierCollisionMessage(id, message.global);
+			outputHandler.queue(msg);
+			return false;
+		}
+		putter.start(context);
+		return true;
+	}
+
+	/**
+	 * Start a batch of ClientGet's and ClientPut's. Persistent-forever requests are all 
+	 * created in a single job, so that we only checkpoint once for the whole batch rather 
+	 * than once per request; the rest are started as if they had been sent individually.
+	 * @return The number of persistent-forever requests queued, which will report their 
+	 * own failures.
+	 */
+	int startClientRequests(List<FCPMessage> messages) {
+		final List<FCPMessage> forever = new ArrayList<FCPMessage>();
+		for(FCPMessage message : messages) {
+			if(message instanceof ClientGetMessage) {
+				if(((ClientGetMessage) message).persistence == Persistence.FOREVER)
+					forever.add(message);
+				else
+					startClientGet((ClientGetMessage) message);
+			} else if(message instanceof ClientPutMessage) {
+				if(((ClientPutMessage) message).persistence == Persistence.FOREVER)
+					forever.add(message);
+				else
+					startClientPut((ClientPutMessage) message);
+			} else
+				throw new IllegalArgumentException("Cannot batch "+message);
+		}
+		if(forever.isEmpty()) return 0;
+		synchronized(this) {
+			if(isClosed) return 0;
+		}
+		try {
+			server.core.clientContext.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					boolean started = false;
+					for(FCPMessage message : forever) {
+						if(message instanceof ClientGetMessage)
+							started |= startPersistentClientGet((ClientGetMessage) message, context);
+						else
+							started |= startPersistentClientPut((ClientPutMessage) message, context);
+					}
+					return started;
+				}
+
+			}, NativeThread.HIGH_PRIORITY-1);
+		} catch (PersistenceDisabledException e) {
+			for(FCPMessage message : forever) {
+				String id;
+				boolean global;
+				if(message instanceof ClientGetMessage) {
+					id = ((ClientGetMessage) message).identifier;
+					global = ((ClientGetMessage) message).global;
+				} else {
+					id = ((ClientPutMessage) message).identifier;
+					global = ((ClientPutMessage) message).global;
+				}
+				outputHandler.queue(new ProtocolErrorMessage(ProtocolErrorMessage.PERSISTENCE_DISABLED, false, "Persistence is disabled", id, global));
+			}
+			return 0;
+		}
+		return forever.size();
+	}
+
 	public void startClientPutDir(final ClientPutDirMessage message, final HashMap<String, Object> buckets, final boolean wasDiskPut) {
 		if(logMINOR)
 			Logger.minor(this, "Start ClientPutDir");
@@ -62,7 +62,7 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	public void realRun() throws IOException {
-		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
+		InputStream is = new BufferedInputStream(handler.getInputStream(), 4096);
 		LineReadingInputStream lis = new LineReadingInputStream(is);
 
 		boolean firstMessage = true;
@@ -6,6 +6,7 @@ package freenet.clients.fcp;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayDeque;
 import java.util.Deque;
 
@@ -67,7 +68,10 @@ public class FCPConnectionOutputHandler implements Runnable {
 	}
  
 	private void realRun() throws IOException {
-		OutputStream os = new BufferedOutputStream(handler.sock.getOutputStream(), 4096);
+		// Headers of consecutive messages are buffered and written together. Bulk data in files
+		// is written to the channel directly, if there is one.
+		OutputStream os = new BufferedOutputStream(handler.getOutputStream(), 4096);
+		WritableByteChannel channel = handler.getChannel();
 		while(true) {
 			boolean closed;
 			FCPMessage msg = null;
@@ -113,7 +117,10 @@ public class FCPConnectionOutputHandler implements Runnable {
 				}
 			} else {
 				if(logMINOR) Logger.minor(this, "Sending "+msg);
-				msg.send(os);
+				if(channel != null && msg instanceof DataCarryingMessage)
+					((DataCarryingMessage)msg).send(os, channel);
+				else
+					msg.send(os);
 				flushed = false;
 			}
 		}
@@ -131,9 +138,11 @@ public class FCPConnectionOutputHandler implements Runnable {
      *     replaced by the suggested way of using send(), please make the member variable
      *     {@link FCPConnectionHandler#outputHandler} private and remove the deprecation at this
      *     function here.
+     * @return False if the message was dropped, because the connection is closed or the queue is
+     *     full. The message will never be sent.
      */
     @Deprecated
-	public void queue(FCPMessage msg) {
+	public boolean queue(FCPMessage msg) {
 		if(logDEBUG)
 			Logger.debug(this, "Queueing "+msg, new Exception("debug"));
 		if(msg == null) throw new NullPointerException();
@@ -143,19 +152,20 @@ public class FCPConnectionOutputHandler implements Runnable {
 			if(closedOutputQueue) {
 				Logger.error(this, "Closed already: "+this+" queueing message "+msg);
 				// FIXME throw something???
-				return;
+				return false;
 			}
 			if(outQueue.size() >= MAX_QUEUE_LENGTH) {
 				if(neverDropAMessage) {
 					Logger.error(this, "FCP message queue length is "+outQueue.size()+" for "+handler+" - not dropping message as configured...");
 				} else {
 					Logger.error(this, "Dropping FCP message to "+handler+" : "+outQueue.size()+" messages queued - maybe client died?", new Exception("debug"));
-					return;
+					return false;
 				}
 			}
 			outQueue.add(msg);
 			outQueue.notifyAll();
 		}
+		return true;
 	}
 
 	public void onClosed() {
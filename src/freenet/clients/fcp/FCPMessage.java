@@ -52,9 +52,8 @@ public abstract class FCPMessage {
 			return;
 		}
 		sfs.setEndMarker(getEndString());
-		String msg = sfs.toString();
 		os.write((getName()+ '\n').getBytes("UTF-8"));
-		os.write(msg.getBytes("UTF-8"));
+		os.write(sfs.toByteArray());
 		if(logDEBUG) {
 			Logger.debug(this, "Outgoing FCP message:\n"+getName()+'\n'+sfs.toString());
 			Logger.debug(this, "Being handled by "+this);
@@ -85,6 +84,8 @@ public abstract class FCPMessage {
 			return new ClientPutDiskDirMessage(fs);
 		if(name.equals(ClientPutMessage.NAME))
 			return new ClientPutMessage(fs);
+		if(name.equals(ClientRequestBatchMessage.NAME))
+			return new ClientRequestBatchMessage(fs);
 		if(name.equals(SendBookmarkMessage.NAME))
 			return new SendBookmarkMessage(fs);
 		if(name.equals(SendURIMessage.NAME))
@@ -99,12 +100,16 @@ public abstract class FCPMessage {
 			return new GenerateSSKMessage(fs);
 		if(name.equals(GetConfig.NAME))
 			return new GetConfig(fs);
+		if(name.equals(GetMetrics.NAME))
+			return new GetMetrics(fs);
 		if(name.equals(GetNode.NAME))
 			return new GetNode(fs);
 		if(name.equals(GetPluginInfo.NAME))
 			return new GetPluginInfo(fs);
 		if(name.equals(GetRequestStatusMessage.NAME))
 			return new GetRequestStatusMessage(fs);
+		if(name.equals(GetRequestStatusChangesMessage.NAME))
+			return new GetRequestStatusChangesMessage(fs);
 		if(name.equals(ListPeerMessage.NAME))
 			return new ListPeerMessage(fs);
 		if(name.equals(ListPeersMessage.NAME))
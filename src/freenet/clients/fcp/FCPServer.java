@@ -123,7 +123,8 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				// Channel-backed so that bulk data can be sent with FileChannel.transferTo().
+				tempNetworkInterface = NetworkInterface.createChannelBacked(port, bindTo, allowedHosts, node.executor, true);
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -621,6 +622,32 @@ public class FCPServer implements Runnable, DownloadCache {
 		return v.toArray(new RequestStatus[v.size()]);
 	}
 
+	/** Get the global queue requests that have changed since a given sequence number.
+	 * @param since The sequence number returned by the previous call, or 0.
+	 * @param changed Will be filled with the status of the changed requests, or of all 
+	 * requests if the client must reset.
+	 * @param removed Will be filled with the identifiers of removed requests.
+	 * @return The sequence number to pass in next time, negated if the client must forget 
+	 * what it knows about the global queue and use the full list in changed instead.
+	 * @see RequestStatusCache#getChangesSince(long, List, List) */
+	public long getGlobalRequestChanges(long since, List<RequestStatus> changed, 
+			List<String> removed) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		long sequence = RequestStatusCache.currentSequence();
+		boolean complete = globalRebootClient.getRequestStatusCache().getChangesSince(since, changed, removed);
+		if(globalForeverClient != null && complete)
+			complete = globalForeverClient.getRequestStatusCache().getChangesSince(since, changed, removed);
+		if(!complete) {
+			changed.clear();
+			removed.clear();
+			globalRebootClient.addPersistentRequestStatus(changed);
+			if(globalForeverClient != null)
+				globalForeverClient.addPersistentRequestStatus(changed);
+			return -sequence;
+		}
+		return sequence;
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, PersistenceDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, core.clientContext)) {
 			final CountDownLatch done = new CountDownLatch(1);
@@ -0,0 +1,41 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/** Ask for a snapshot of the node's metrics. The node replies with MetricsData. */
+public class GetMetrics extends FCPMessage {
+
+	static final String NAME = "GetMetrics";
+	final String identifier;
+
+	public GetMetrics(SimpleFieldSet fs) {
+		identifier = fs.get("Identifier");
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		if(!handler.hasFullAccess()) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ACCESS_DENIED, "GetMetrics requires full access", identifier, false);
+		}
+		handler.outputHandler.queue(new MetricsData(node.metrics.toFieldSet(), identifier));
+	}
+
+}
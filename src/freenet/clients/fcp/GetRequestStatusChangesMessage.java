@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.async.PersistenceDisabledException;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Ask for the requests on the global queue that have changed since the last time we asked.
+ * The server replies with a RequestStatusChange for each request that has been added, 
+ * changed or removed since the given sequence number, followed by an 
+ * EndRequestStatusChanges giving the sequence number to use next time. This is much cheaper 
+ * than ListPersistentRequests for clients that poll a large queue.
+ */
+public class GetRequestStatusChangesMessage extends FCPMessage {
+
+	static final String NAME = "GetRequestStatusChanges";
+	private final String identifier;
+	private final long since;
+
+	public GetRequestStatusChangesMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		String s = fs.get("Since");
+		if(s == null) {
+			since = 0;
+		} else {
+			try {
+				since = Long.parseLong(s);
+			} catch (NumberFormatException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, "Error parsing Since field: "+e.getMessage(), identifier, true);
+			}
+		}
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Since", since);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		if(!handler.hasFullAccess()) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ACCESS_DENIED, NAME+" requires full access", identifier, true);
+		}
+		List<RequestStatus> changed = new ArrayList<RequestStatus>();
+		List<String> removed = new ArrayList<String>();
+		long sequence;
+		try {
+			sequence = handler.server.getGlobalRequestChanges(since, changed, removed);
+		} catch (PersistenceDisabledException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.PERSISTENCE_DISABLED, null, identifier, true);
+		}
+		for(RequestStatus status : changed)
+			handler.outputHandler.queue(new RequestStatusChangeMessage(identifier, status));
+		for(String removedIdentifier : removed)
+			handler.outputHandler.queue(new RequestStatusChangeMessage(identifier, removedIdentifier));
+		boolean reset = sequence < 0;
+		handler.outputHandler.queue(new EndRequestStatusChangesMessage(identifier, 
+				reset ? -sequence : sequence, reset, changed.size(), removed.size()));
+	}
+
+}
@@ -0,0 +1,46 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * A snapshot of the node's metrics, in reply to GetMetrics. Each field under Metrics is a
+ * metric name followed by its label values, e.g. Metrics.freenet_store_keys.chk.store=1234.
+ * Histograms are subsets with Count, Sum, Max, P50, P90 and P99.
+ */
+public class MetricsData extends FCPMessage {
+
+	static final String NAME = "MetricsData";
+	final SimpleFieldSet metrics;
+	final String identifier;
+
+	public MetricsData(SimpleFieldSet metrics, String identifier) {
+		this.metrics = metrics;
+		this.identifier = identifier;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		if(!metrics.isEmpty())
+			fs.put("Metrics", metrics);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "MetricsData goes from server to client not the other way around", identifier, false);
+	}
+
+}
@@ -6,6 +6,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.InsertException.InsertExceptionMode;
@@ -67,6 +68,9 @@ public class PersistentRequestClient {
 	private final List<ClientRequest> completedUnackedRequests;
 	/** ClientRequest's by identifier */
 	private final Map<String, ClientRequest> clientRequestsByIdentifier;
+	/** Identifiers of requests which have been loaded from disk but not resumed yet. New 
+	 * requests can't use them. Protected by (this). */
+	private final Set<String> reservedIdentifiers = new HashSet<String>();
 	/** Are we the global queue? */
 	public final boolean isGlobalQueue;
 	/** Are we watching the global queue? */
@@ -221,6 +225,8 @@ public class PersistentRequestClient {
 			ClientRequest old = clientRequestsByIdentifier.get(ident);
 			if((old != null) && (old != cg))
 				throw new IdentifierCollisionException();
+			if(reservedIdentifiers.contains(ident))
+				throw new IdentifierCollisionException();
 			if(cg.hasFinished()) {
 				completedUnackedRequests.add(cg);
 			} else {
@@ -293,9 +299,23 @@ public class PersistentRequestClient {
 	}
 
 	public boolean hasPersistentRequests() {
+		synchronized(this) {
+			if(!reservedIdentifiers.isEmpty()) return true;
+		}
 		return !(runningPersistentRequests.isEmpty() && completedUnackedRequests.isEmpty());
 	}
 
+	/** A request with this identifier has been loaded, and will be resumed later. */
+	synchronized void reserveIdentifier(String identifier) {
+		reservedIdentifiers.add(identifier);
+	}
+
+	/** Called once we have finished resuming the requests loaded at startup. Any identifiers
+	 * still reserved belong to requests which failed to resume. */
+	synchronized void releaseReservedIdentifiers() {
+		reservedIdentifiers.clear();
+	}
+
 	public void addPersistentRequests(List<ClientRequest> v, boolean onlyForever) {
 		synchronized(this) {
 			for(ClientRequest req: runningPersistentRequests) {
@@ -533,6 +553,9 @@ public class PersistentRequestClient {
     }
 
     public void resume(ClientRequest clientRequest) {
+        synchronized(this) {
+            reservedIdentifiers.remove(clientRequest.identifier);
+        }
         if(clientRequest.hasFinished())
             completedUnackedRequests.add(clientRequest);
         else
@@ -96,6 +96,25 @@ public class PersistentRequestRoot {
         }
     }
 
+    /** Reserve the identifier of a request which has been loaded but won't be resumed until 
+     * later, so that a client can't start a new request with the same identifier meanwhile. */
+    public void reserveIdentifier(ClientRequest request) {
+        makeClient(request.global, request.clientName).reserveIdentifier(request.identifier);
+    }
+
+    /** We have finished resuming the requests loaded at startup. */
+    public void releaseReservedIdentifiers() {
+        globalForeverClient.releaseReservedIdentifiers();
+        PersistentRequestClient[] list;
+        synchronized(this) {
+            list = clients.values().toArray(new PersistentRequestClient[clients.size()]);
+        }
+        for(PersistentRequestClient client : list) {
+            client.releaseReservedIdentifiers();
+            maybeUnregisterClient(client);
+        }
+    }
+
     public synchronized boolean hasRequest(RequestIdentifier req) {
         PersistentRequestClient client;
         if(req.globalQueue)
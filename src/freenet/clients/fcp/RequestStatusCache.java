@@ -3,6 +3,9 @@ package freenet.clients.fcp;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.ClientMetadata;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -32,12 +35,59 @@ public class RequestStatusCache {
 	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
 	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
 	
+	/** Maximum number of removed requests we remember so that clients following changes 
+	 * via getChangesSince() can be told about them. If more requests are removed than this 
+	 * between two polls, the client has to reset and fetch the whole queue again. */
+	static final int MAX_REMEMBERED_REMOVALS = 1024;
+	
+	/** Sequence number of the last change to any cache. Shared so that a client can follow 
+	 * several caches (e.g. the global reboot and forever queues) with a single number. 
+	 * Starts at the current time so that sequence numbers handed out before a restart are 
+	 * very unlikely to be valid afterwards. */
+	private static final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+	/** Changes with a sequence number at or below this have been forgotten. */
+	private long forgottenBefore;
+	/** Last change to each request still in the cache, or removed recently, by identifier. */
+	private final HashMap<String, Long> lastChangeByIdentifier;
+	/** Identifier of the request changed at each sequence number. Only the most recent 
+	 * change to each request is kept. */
+	private final TreeMap<Long, String> changesBySequence;
+	/** Identifiers of recently removed requests, by the sequence number of the removal. */
+	private final TreeMap<Long, String> removalsBySequence;
+	
 	RequestStatusCache() {
 		downloads = new ArrayList<RequestStatus>();
 		uploads = new ArrayList<RequestStatus>();
 		requestsByIdentifier = new HashMap<String, RequestStatus>();
 		downloadsByURI = new MultiValueTable<FreenetURI, RequestStatus>();
 		uploadsByFinalURI = new MultiValueTable<FreenetURI, RequestStatus>();
+		lastChangeByIdentifier = new HashMap<String, Long>();
+		changesBySequence = new TreeMap<Long, String>();
+		removalsBySequence = new TreeMap<Long, String>();
+		forgottenBefore = sequence.get();
+	}
+	
+	/** Record that a request has changed. Caller must hold the lock. */
+	private void changed(String identifier) {
+		long seq = sequence.incrementAndGet();
+		Long old = lastChangeByIdentifier.put(identifier, seq);
+		if(old != null) {
+			changesBySequence.remove(old);
+			removalsBySequence.remove(old);
+		}
+		changesBySequence.put(seq, identifier);
+	}
+	
+	/** Record that a request has been removed. Caller must hold the lock. */
+	private void removed(String identifier) {
+		changed(identifier);
+		removalsBySequence.put(lastChangeByIdentifier.get(identifier), identifier);
+		while(removalsBySequence.size() > MAX_REMEMBERED_REMOVALS) {
+			Map.Entry<Long, String> oldest = removalsBySequence.pollFirstEntry();
+			changesBySequence.remove(oldest.getKey());
+			lastChangeByIdentifier.remove(oldest.getValue());
+			forgottenBefore = oldest.getKey();
+		}
 	}
 	
 	synchronized void addDownload(DownloadRequestStatus status) {
@@ -49,6 +99,7 @@ public class RequestStatusCache {
 		    downloads.remove(old);
 		downloads.add(status);
 		downloadsByURI.put(status.getURI(), status);
+		changed(status.getIdentifier());
 	}
 	
 	synchronized void addUpload(UploadRequestStatus status) {
@@ -62,6 +113,7 @@ public class RequestStatusCache {
 		FreenetURI uri = status.getURI();
 		if(uri != null)
 			uploadsByFinalURI.put(uri, status);
+		changed(status.getIdentifier());
 	}
 	
 	synchronized void finishedDownload(String identifier, boolean success, long dataSize, 
@@ -70,6 +122,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
 				failureReasonShort, dataShadow, filtered);
+		changed(identifier);
 	}
 	
 	synchronized void gotFinalURI(String identifier, FreenetURI finalURI) {
@@ -79,6 +132,7 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinalURI(finalURI);
+		changed(identifier);
 	}
 	
 	synchronized void finishedUpload(String identifier, boolean success,  
@@ -90,12 +144,14 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
+		changed(identifier);
 	}
 	
 	synchronized void updateStatus(String identifier, SplitfileProgressEvent event) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateStatus(event);
+		changed(identifier);
 	}
 	
 	synchronized void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
@@ -103,6 +159,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateDetectedCompatModes(compatModes, dontCompress);
 		status.updateDetectedSplitfileKey(splitfileKey);
+		changed(identifier);
 	}
 	
 	synchronized void removeByIdentifier(String identifier) {
@@ -119,6 +176,7 @@ public class RequestStatusCache {
 			if(uri != null)
 				uploadsByFinalURI.removeElement(uri, status);
 		}
+		removed(identifier);
 	}
 
 	synchronized void clear() {
@@ -127,13 +185,18 @@ public class RequestStatusCache {
 		requestsByIdentifier.clear();
 		downloadsByURI.clear();
 		uploadsByFinalURI.clear();
+		lastChangeByIdentifier.clear();
+		changesBySequence.clear();
+		removalsBySequence.clear();
+		forgottenBefore = sequence.get();
 	}
 
-	public void updateCompressionStatus(String identifier,
+	public synchronized void updateCompressionStatus(String identifier,
 			COMPRESS_STATE compressing) {
 		UploadFileRequestStatus status = (UploadFileRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateCompressionStatus(compressing);
+		changed(identifier);
 	}
 
 	public synchronized void addTo(List<RequestStatus> status) {
@@ -143,22 +206,59 @@ public class RequestStatusCache {
 			status.add(req.clone());
 	}
 
+	/** @return The sequence number of the most recent change to any cache. Callers 
+	 * following changes should read this *before* calling getChangesSince(), and pass it 
+	 * as the next "since" value; a change racing with the poll may then be reported twice, 
+	 * but will never be missed. */
+	static long currentSequence() {
+		return sequence.get();
+	}
+	
+	/** Get the requests that have changed since a given sequence number.
+	 * @param since The sequence number the client has seen, as returned by 
+	 * currentSequence() at the time of the previous poll.
+	 * @param changed Will be filled with copies of the status of each request that has 
+	 * been added or changed since then, or of every request if the caller must reset.
+	 * @param removed Will be filled with the identifiers of the requests removed since 
+	 * then. Not used if the caller must reset.
+	 * @return False if the changes since the given sequence number are no longer known 
+	 * (or it was never issued), in which case the caller should forget everything it knows
+	 * and use the full list of requests in changed. */
+	public synchronized boolean getChangesSince(long since, List<RequestStatus> changed, 
+			List<String> removed) {
+		if(since < forgottenBefore || since > sequence.get()) {
+			addTo(changed);
+			return false;
+		}
+		for(Map.Entry<Long, String> entry : changesBySequence.tailMap(since, false).entrySet()) {
+			RequestStatus status = requestsByIdentifier.get(entry.getValue());
+			if(status != null)
+				changed.add(status.clone());
+			else
+				removed.add(entry.getValue());
+		}
+		return true;
+	}
+	
 	public synchronized void updateExpectedMIME(String identifier, String foundDataMimeType) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedMIME(foundDataMimeType);
+		changed(identifier);
 	}
 
 	public synchronized void updateExpectedDataLength(String identifier, long expectedDataLength) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedDataLength(expectedDataLength);
+		changed(identifier);
 	}
 
-	public void setPriority(String identifier, short newPriorityClass) {
+	public synchronized void setPriority(String identifier, short newPriorityClass) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.setPriority(newPriorityClass);
+		changed(identifier);
 	}
 	
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
@@ -174,6 +274,7 @@ public class RequestStatusCache {
 		else
 			// Already restarted, just set started = true.
 			status.setStarted(started);
+		changed(identifier);
 	}
 	
 	/** Restart a download. Caller should call ,false first, at which point we setStarted,
@@ -189,6 +290,7 @@ public class RequestStatusCache {
 			status.redirect(redirect);
 			downloadsByURI.put(redirect, status);
 		}
+		changed(identifier);
 	}
 
 	public synchronized CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
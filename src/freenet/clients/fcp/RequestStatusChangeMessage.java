@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.Date;
+
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.InsertException.InsertExceptionMode;
+import freenet.keys.FreenetURI;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Compact status of a single request on the global queue, sent in reply to 
+ * GetRequestStatusChanges. Identifier is that of the GetRequestStatusChanges, the request 
+ * itself is identified by RequestIdentifier. If Removed=true, the request has been removed
+ * and no other fields are sent.
+ */
+public class RequestStatusChangeMessage extends FCPMessage {
+
+	static final String NAME = "RequestStatusChange";
+	private final String identifier;
+	private final String requestIdentifier;
+	/** Null if the request has been removed. */
+	private final RequestStatus status;
+
+	RequestStatusChangeMessage(String identifier, RequestStatus status) {
+		this.identifier = identifier;
+		this.requestIdentifier = status.getIdentifier();
+		this.status = status;
+	}
+
+	RequestStatusChangeMessage(String identifier, String removedIdentifier) {
+		this.identifier = identifier;
+		this.requestIdentifier = removedIdentifier;
+		this.status = null;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.putSingle("RequestIdentifier", requestIdentifier);
+		if(status == null) {
+			fs.put("Removed", true);
+			return fs;
+		}
+		if(status instanceof DownloadRequestStatus)
+			fs.putSingle("Type", "Get");
+		else if(status instanceof UploadDirRequestStatus)
+			fs.putSingle("Type", "PutDir");
+		else
+			fs.putSingle("Type", "Put");
+		fs.putSingle("Persistence", status.isPersistentForever() ? "forever" : "reboot");
+		fs.put("PriorityClass", status.getPriority());
+		fs.put("Started", status.isStarted());
+		fs.put("Finished", status.hasFinished());
+		fs.put("Success", status.hasSucceeded());
+		fs.put("Total", status.getTotalBlocks());
+		fs.put("Required", status.getMinBlocks());
+		fs.put("Succeeded", status.getFetchedBlocks());
+		fs.put("Failed", status.getFailedBlocks());
+		fs.put("FatallyFailed", status.getFatalyFailedBlocks());
+		fs.put("FinalizedTotal", status.isTotalFinalized());
+		Date lastSuccess = status.getLastSuccess();
+		if(lastSuccess != null)
+			fs.put("LastProgress", lastSuccess.getTime());
+		long dataSize = status.getDataSize();
+		if(dataSize >= 0)
+			fs.put("DataLength", dataSize);
+		if(status instanceof DownloadRequestStatus) {
+			DownloadRequestStatus download = (DownloadRequestStatus) status;
+			fs.putSingle("URI", download.getURI().toString(false, false));
+			String mime = download.getMIMEType();
+			if(mime != null)
+				fs.putSingle("Metadata.ContentType", mime);
+			FetchExceptionMode failureCode = download.getFailureCode();
+			if(failureCode != null)
+				fs.put("Code", failureCode.code);
+		} else {
+			UploadRequestStatus upload = (UploadRequestStatus) status;
+			FreenetURI targetURI = upload.getTargetURI();
+			if(targetURI != null)
+				fs.putSingle("URI", targetURI.toString(false, false));
+			FreenetURI finalURI = upload.getFinalURI();
+			if(finalURI != null)
+				fs.putSingle("FinalURI", finalURI.toString(false, false));
+			InsertExceptionMode failureCode = upload.getFailureCode();
+			if(failureCode != null)
+				fs.put("Code", failureCode.code);
+		}
+		if(status.hasFinished() && !status.hasSucceeded()) {
+			String reason = status.getFailureReason(false);
+			if(reason != null)
+				fs.putSingle("ShortCodeDescription", reason);
+		}
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+}
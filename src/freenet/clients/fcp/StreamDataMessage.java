@@ -0,0 +1,153 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * Part of the data for a ClientGet with ReturnType=stream. The parts are sent in order, the first
+ * one as soon as the first segment of the file has been decoded, and together they make up the 
+ * whole file. The last part has Last=true and is sent just after DataFound. The data is not 
+ * verified until the request completes, so a GetFailed may still follow.
+ * 
+ * StreamData
+ * Identifier=Request Number One
+ * Global=false
+ * StartOffset=0 // offset of the first byte of this part in the file
+ * DataLength=4194304 // length of this part
+ * StartupTime=...
+ * Last=false
+ * Data
+ * ...
+ */
+public class StreamDataMessage extends DataCarryingMessage {
+
+    private static final long serialVersionUID = 1L;
+    public static final String NAME = "StreamData";
+    final String identifier;
+    final boolean global;
+    final long startOffset;
+    final long dataLength;
+    /** Offset of the data within the bucket. */
+    private final long bucketOffset;
+    final long startupTime;
+    final boolean last;
+    /** Called once the data has been written to the client, or writing it has failed. */
+    private final transient Runnable onSent;
+    
+    /**
+     * @param bucket The bucket containing the data.
+     * @param bucketOffset The offset of the data to send within the bucket.
+     * @param startOffset The offset of the data within the file.
+     * @param dataLength The number of bytes to send.
+     * @param onSent If not null, called when the message has been sent.
+     */
+    StreamDataMessage(Bucket bucket, long bucketOffset, long startOffset, long dataLength, 
+            String identifier, boolean global, long startupTime, boolean last, Runnable onSent) {
+        this.bucket = bucket;
+        this.bucketOffset = bucketOffset;
+        this.startOffset = startOffset;
+        this.dataLength = dataLength;
+        this.identifier = identifier;
+        this.global = global;
+        this.startupTime = startupTime;
+        this.last = last;
+        this.onSent = onSent;
+    }
+    
+    protected StreamDataMessage() {
+        // For serialization.
+        identifier = null;
+        global = false;
+        startOffset = 0;
+        dataLength = 0;
+        bucketOffset = 0;
+        startupTime = 0;
+        last = false;
+        onSent = null;
+    }
+
+    @Override
+    long dataLength() {
+        return dataLength;
+    }
+
+    @Override
+    public SimpleFieldSet getFieldSet() {
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Identifier", identifier);
+        fs.put("Global", global);
+        fs.put("StartOffset", startOffset);
+        fs.put("DataLength", dataLength);
+        fs.put("StartupTime", startupTime);
+        fs.put("Last", last);
+        return fs;
+    }
+    
+    @Override
+    protected void writeData(OutputStream os) throws IOException {
+        try {
+            if(bucketOffset == 0) {
+                super.writeData(os);
+                return;
+            }
+            InputStream is = bucket.getInputStream();
+            try {
+                FileUtil.skipFully(is, bucketOffset);
+                FileUtil.copy(is, os, dataLength);
+            } finally {
+                Closer.close(is);
+            }
+            if(freeOnSent) bucket.free();
+        } finally {
+            if(onSent != null) onSent.run();
+        }
+    }
+
+    @Override
+    protected void writeData(OutputStream os, WritableByteChannel channel) throws IOException {
+        boolean copy = false;
+        try {
+            if(transferData(os, channel, bucketOffset)) {
+                if(freeOnSent) bucket.free();
+            } else {
+                copy = true;
+            }
+        } finally {
+            // If copying, onSent will be called by writeData().
+            if(!copy && onSent != null) onSent.run();
+        }
+        if(copy) writeData(os);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+        throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, global);
+    }
+
+    @Override
+    String getIdentifier() {
+        return identifier;
+    }
+
+    @Override
+    boolean isGlobal() {
+        return global;
+    }
+
+}
@@ -44,6 +44,10 @@ public abstract class UploadRequestStatus extends RequestStatus {
 		return finalURI;
 	}
 	
+	public InsertExceptionMode getFailureCode() {
+		return failureCode;
+	}
+	
 	public FreenetURI getTargetURI() {
 		return targetURI;
 	}
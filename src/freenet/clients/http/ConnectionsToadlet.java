@@ -29,6 +29,7 @@ import freenet.l10n.NodeL10n;
 import freenet.node.DarknetPeerNode;
 import freenet.node.DarknetPeerNode.FRIEND_VISIBILITY;
 import freenet.node.DarknetPeerNode.FRIEND_TRUST;
+import freenet.node.FNPPacketMangler;
 import freenet.node.FSParseException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -297,6 +298,17 @@ public abstract class ConnectionsToadlet extends Toadlet {
 				overviewList.addChild("li", "routingMissDistanceRT:\u00a0" + fix4.format(routingMissDistanceRT));
 				overviewList.addChild("li", "backedOffPercent:\u00a0" + fix1.format(backedOffPercent));
 				overviewList.addChild("li", "pInstantReject:\u00a0" + fix1.format(stats.pRejectIncomingInstantly()));
+				FNPPacketMangler mangler = node.getPacketMangler(isOpennet());
+				if(mangler != null) {
+					long ecdhHits = mangler.getECDHPoolHits();
+					long ecdhMisses = mangler.getECDHPoolMisses();
+					overviewList.addChild("li", "handshakeRate:\u00a0" + fix4.format(mangler.getHandshakeRate()) + "/sec");
+					overviewList.addChild("li", "handshakeTime:\u00a0" + (int) mangler.getHandshakeRoundTripTime() + "ms");
+					overviewList.addChild("li", "jfk1ProcessingTime:\u00a0" + (int) mangler.getJFKMessage1ProcessingTime() + "ms");
+					overviewList.addChild("li", "ecdhPoolSize:\u00a0" + mangler.getECDHPoolSize());
+					if(ecdhHits + ecdhMisses > 0)
+						overviewList.addChild("li", "ecdhPoolHitRate:\u00a0" + fix1.format((double) ecdhHits / (ecdhHits + ecdhMisses)));
+				}
 				nextTableCell = overviewTableRow.addChild("td");
 				
 				// Activity box
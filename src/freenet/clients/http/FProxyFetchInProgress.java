@@ -123,6 +123,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private FetchContext fctx;
 	private boolean cancelled = false;
 	private final RequestClient rc;
+	/** Key in the filtered content cache, or null if the result can't be cached. */
+	private final String filteredCacheKey;
 	
 	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier, ClientContext context, FetchContext fctx, RequestClient rc, REFILTER_POLICY refilter) {
 		this.refilterPolicy = refilter;
@@ -132,6 +134,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		this.timeStarted = System.currentTimeMillis();
 		this.fctx = fctx;
         this.rc = rc;
+		this.filteredCacheKey = FilteredContentCache.makeKey(key, fctx);
 		FetchContext alteredFctx = new FetchContext(fctx, FetchContext.IDENTICAL_MASK);
 		alteredFctx.maxOutputLength = fctx.maxTempLength = maxSize;
 		alteredFctx.eventProducer.addEventListener(this);
@@ -174,7 +177,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	public void start(ClientContext context) throws FetchException {
 		try {
-			if(!checkCache(context))
+			if(!checkFilteredCache(context) && !checkCache(context))
 				context.start(getter);
 		} catch (FetchException e) {
 			synchronized(this) {
@@ -191,6 +194,25 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	/** Look up the key in the filtered content cache.
+	 * @return True if it was found and we don't need to start the request. */
+	private boolean checkFilteredCache(ClientContext context) {
+		if(filteredCacheKey == null) return false;
+		// Same as re-using already filtered data from the downloads queue.
+		if(refilterPolicy == REFILTER_POLICY.RE_FETCH) return false;
+		if(bogusUSK(context)) return false;
+		FetchResult result = tracker.filteredCache.get(filteredCacheKey, maxSize);
+		if(result == null) return false;
+		if(logMINOR) Logger.minor(this, "Found filtered content in cache for "+uri);
+		onSuccess(result, null);
+		return true;
+	}
+
+	/** Share data we have just filtered with the filtered content cache. */
+	private FetchResult cacheFiltered(FetchResult result) {
+		return new FetchResult(result, tracker.filteredCache.put(filteredCacheKey, result.getMimeType(), result.asBucket()));
+	}
+
 	/** Look up the key in the downloads queue.
 	 * @return True if it was found and we don't need to start the request. */
 	private boolean checkCache(ClientContext context) {
@@ -266,7 +288,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				os.close();
 				os = null;
 				// Since we are not re-using the data bucket, we can happily stay in the FProxyFetchTracker.
-				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
+				this.onSuccess(cacheFiltered(new FetchResult(new ClientMetadata(fullMimeType), output)), null);
 				output = null;
 				return true;
 			} catch (IOException e) {
@@ -390,6 +412,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
+		if(state != null)
+			result = cacheFiltered(result);
 		Bucket droppedData = null;
 		synchronized(this) {
 			if(cancelled)
@@ -531,6 +555,11 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		requestImmediateCancel=true;
 	}
 
+	/** Keep the fetch for at least another {@link #LIFETIME}, e.g. while a suspended request is resumed. */
+	synchronized void touch() {
+		lastTouched = System.currentTimeMillis();
+	}
+	
 	public synchronized long lastTouched() {
 		return lastTouched;
 	}
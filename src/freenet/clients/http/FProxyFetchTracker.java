@@ -33,14 +33,17 @@ public class FProxyFetchTracker implements Runnable {
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
 	private final RequestClient rc;
+	/** Filtered content of recent fetches, consulted before starting a fetch. */
+	final FilteredContentCache filteredCache;
 	private boolean queuedJob;
 	private boolean requeue;
 
-	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
+	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc, FilteredContentCache filteredCache) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
+		this.filteredCache = filteredCache;
 	}
 	
 	public FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize, FetchContext fctx, REFILTER_POLICY refilterPolicy) throws FetchException {
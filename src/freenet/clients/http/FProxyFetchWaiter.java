@@ -1,5 +1,9 @@
 package freenet.clients.http;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import freenet.support.Ticker;
+
 /** An fproxy fetch which is stalled waiting for either the data or a progress screen. */
 public class FProxyFetchWaiter {
 	
@@ -15,6 +19,12 @@ public class FProxyFetchWaiter {
 	private boolean finished;
 	private boolean awoken;
 	
+	/** Set by whenReady(), run once getResult() would no longer wait. */
+	private Runnable readyCallback;
+	private boolean readyWaitForever;
+	
+	static final long WAIT_TIME = SECONDS.toMillis(5);
+	
 	public FProxyFetchResult getResult() {
 		return getResult(false);
 	}
@@ -41,7 +51,7 @@ public class FProxyFetchWaiter {
 				if(!(finished || hasWaited || awoken)) {
 					awoken = false;
 					try {
-						wait(5000);
+						wait(WAIT_TIME);
 					} catch (InterruptedException e) { 
 						// Not likely
 					}
@@ -54,6 +64,57 @@ public class FProxyFetchWaiter {
 		return progress.innerGetResult(waited);
 	}
 	
+	/** Would getResult(waitForever) wait, rather than returning immediately? */
+	public synchronized boolean wouldWait(boolean waitForever) {
+		if(waitForever)
+			return !finished;
+		else
+			return !(finished || hasWaited || awoken);
+	}
+	
+	/**
+	 * Non-blocking alternative to getResult(): Run the callback once the fetch has got as far 
+	 * as getResult(waitForever) would have waited for. After that, a new waiter on the same 
+	 * fetch will return its result without waiting. The callback must not block.
+	 * @param ticker Used to time out the short wait if nothing happens.
+	 */
+	public void whenReady(boolean waitForever, Runnable callback, Ticker ticker) {
+		synchronized(this) {
+			if(wouldWait(waitForever)) {
+				readyCallback = callback;
+				readyWaitForever = waitForever;
+				if(!waitForever) {
+					ticker.queueTimedJob(new Runnable() {
+
+						@Override
+						public void run() {
+							synchronized(FProxyFetchWaiter.this) {
+								hasWaited = true;
+							}
+							maybeRunReadyCallback();
+						}
+
+					}, WAIT_TIME);
+				}
+				return;
+			}
+		}
+		progress.setHasWaited();
+		callback.run();
+	}
+	
+	private void maybeRunReadyCallback() {
+		Runnable callback;
+		synchronized(this) {
+			if(readyCallback == null || wouldWait(readyWaitForever)) return;
+			callback = readyCallback;
+			readyCallback = null;
+		}
+		progress.setHasWaited();
+		progress.touch();
+		callback.run();
+	}
+	
 	/** Returns the result, without waiting*/
 	public FProxyFetchResult getResultFast(){
 		return progress.innerGetResult(false);
@@ -67,12 +128,15 @@ public class FProxyFetchWaiter {
 		progress.close(this);
 	}
 	
-	public synchronized void wakeUp(boolean fin) {
-		if(fin)
-			this.finished = true;
-		else
-			this.awoken = true;
-		notifyAll();
+	public void wakeUp(boolean fin) {
+		synchronized(this) {
+			if(fin)
+				this.finished = true;
+			else
+				this.awoken = true;
+			notifyAll();
+		}
+		maybeRunReadyCallback();
 	}
 	
 	public boolean hasWaited() {
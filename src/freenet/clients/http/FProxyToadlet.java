@@ -694,6 +694,32 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			}
 			if(fetch != null)
 			while(true) {
+			if(fetch.wouldWait(!canSendProgress)) {
+				// Don't hold a thread while waiting, if the connection allows it.
+				// The whole request will be handled again when there is something to show.
+				final SuspendedRequest suspended = ctx.suspend();
+				if(suspended != null) {
+					final FProxyFetchWaiter waiter = fetch;
+					waiter.whenReady(!canSendProgress, new Runnable() {
+
+						@Override
+						public void run() {
+							waiter.close();
+							suspended.resume();
+						}
+
+					}, core.getTicker());
+					suspended.whenClosed(new Runnable() {
+
+						@Override
+						public void run() {
+							waiter.close();
+						}
+
+					});
+					return;
+				}
+			}
 			fr = fetch.getResult(!canSendProgress);
 			if(fr.hasData()) {
 
@@ -1116,7 +1142,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		core.random.nextBytes(random);
 
 		FProxyFetchTracker fetchTracker = new FProxyFetchTracker(core.clientContext, client.getFetchContext(),
-				new RequestClientBuilder().realTime().build());
+				new RequestClientBuilder().realTime().build(), server.getFilteredContentCache());
 
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
@@ -1242,6 +1268,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(diagnosticToadlet, "FProxyToadlet.categoryStatus", "/diagnostic/", true,
 		        "FProxyToadlet.diagnosticTitle", "FProxyToadlet.diagnostic", true, null);
 
+		MetricsToadlet metricsToadlet = new MetricsToadlet(client, node);
+		server.register(metricsToadlet, null, MetricsToadlet.TOADLET_URL, true, true);
+
 		ConnectivityToadlet connectivityToadlet = new ConnectivityToadlet(client, node);
 		server.register(connectivityToadlet, "FProxyToadlet.categoryStatus", "/connectivity/", true,
 		        "ConnectivityToadlet.connectivityTitle", "ConnectivityToadlet.connectivity", true, null);
@@ -0,0 +1,220 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.filter.HTMLFilter;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.MultiReaderBucket;
+
+/**
+ * Content which FProxy has recently fetched and filtered, so that it can be shown again without
+ * fetching and filtering it again, e.g. going back to a page, or an image used on every page of
+ * a freesite. The data is kept in the temp buckets it was filtered into, which are shared with
+ * the fetches using them, and only freed when both we and they have finished with them.
+ *
+ * Only keys whose content can't change are cached: CHKs, SSKs, and USKs with an edition, which
+ * are cached as the SSK for that edition. The key also includes the MIME type and charset asked
+ * for, and the filter settings which change its output. Web-pushing changes the output for every
+ * request, so it is never cached.
+ *
+ * LOCKING: Thread-safe. Buckets are freed outside the lock.
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(FilteredContentCache.class);
+	}
+
+	/** Don't let one big file push out everything else. */
+	static final int MAX_ENTRY_FRACTION = 4;
+	static final int DEFAULT_MAX_ENTRIES = 1024;
+
+	private final LRUMap<String, Entry> entries;
+	private long maxSize;
+	private final int maxEntries;
+	/** Total size of the entries. */
+	private long size;
+	private long hits;
+	private long misses;
+	private long bytesSaved;
+
+	private static class Entry {
+		final MultiReaderBucket data;
+		/** Keeps data from being freed while it is cached. */
+		final Bucket ourReader;
+		final String mimeType;
+		final long size;
+
+		Entry(MultiReaderBucket data, Bucket ourReader, String mimeType, long size) {
+			this.data = data;
+			this.ourReader = ourReader;
+			this.mimeType = mimeType;
+			this.size = size;
+		}
+	}
+
+	public FilteredContentCache(long maxSize) {
+		this(maxSize, DEFAULT_MAX_ENTRIES);
+	}
+
+	FilteredContentCache(long maxSize, int maxEntries) {
+		this.maxSize = maxSize;
+		this.maxEntries = maxEntries;
+		entries = LRUMap.createSafeMap();
+	}
+
+	/**
+	 * @return The key to cache the filtered content under, or null if it can't be cached because
+	 * it isn't being filtered, the key can change, or the output differs for every request.
+	 */
+	static String makeKey(FreenetURI uri, FetchContext fctx) {
+		if(!fctx.filterData || fctx.tagReplacer != null) return null;
+		FreenetURI key;
+		if(uri.isCHK() || uri.isSSK())
+			key = uri;
+		else if(uri.isUSK() && uri.getSuggestedEdition() >= 0)
+			key = uri.sskForUSK();
+		else
+			return null;
+		return key.toString(false, false)+'\n'+fctx.overrideMIME+'\n'+fctx.charset+'\n'+
+			HTMLFilter.metaRefreshSamePageMinInterval+','+HTMLFilter.metaRefreshRedirectMinInterval;
+	}
+
+	/**
+	 * Look up filtered content.
+	 * @param key From makeKey(). May be null.
+	 * @param maxLength The largest result the request will accept.
+	 * @return The content, whose bucket the caller must free, or null.
+	 */
+	FetchResult get(String key, long maxLength) {
+		if(key == null) return null;
+		Entry removed = null;
+		try {
+			synchronized(this) {
+				Entry e = entries.get(key);
+				if(e != null && e.size <= maxLength) {
+					Bucket reader = e.data.getReaderBucket();
+					if(reader != null) {
+						entries.push(key, e);
+						hits++;
+						bytesSaved += e.size;
+						return new FetchResult(new ClientMetadata(e.mimeType), reader);
+					}
+					// Shouldn't happen as we hold a reader.
+					entries.removeKey(key);
+					size -= e.size;
+					removed = e;
+				}
+				misses++;
+				return null;
+			}
+		} finally {
+			if(removed != null) removed.ourReader.free();
+		}
+	}
+
+	/**
+	 * Cache filtered content, if it is small enough.
+	 * @param key From makeKey(). May be null.
+	 * @param data The filtered content. The caller must not use or free it after this.
+	 * @return The bucket to use in its place, which the caller must free.
+	 */
+	Bucket put(String key, String mimeType, Bucket data) {
+		if(key == null) return data;
+		long length = data.size();
+		List<Entry> evicted = new ArrayList<Entry>();
+		Bucket theirs;
+		synchronized(this) {
+			if(length > maxSize / MAX_ENTRY_FRACTION) return data;
+			MultiReaderBucket shared = new MultiReaderBucket(data);
+			Bucket ours = shared.getReaderBucket();
+			theirs = shared.getReaderBucket();
+			Entry old = entries.get(key);
+			if(old != null) {
+				entries.removeKey(key);
+				size -= old.size;
+				evicted.add(old);
+			}
+			entries.push(key, new Entry(shared, ours, mimeType, length));
+			size += length;
+			trim(evicted);
+		}
+		free(evicted);
+		if(logMINOR) Logger.minor(this, "Cached "+length+" bytes, evicted "+evicted.size());
+		return theirs;
+	}
+
+	private synchronized void trim(List<Entry> evicted) {
+		while(size > maxSize || entries.size() > maxEntries) {
+			Entry e = entries.popValue();
+			if(e == null) break;
+			size -= e.size;
+			evicted.add(e);
+		}
+	}
+
+	private static void free(List<Entry> evicted) {
+		for(Entry e : evicted)
+			e.ourReader.free();
+	}
+
+	public void setMaxSize(long maxSize) {
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized(this) {
+			this.maxSize = maxSize;
+			trim(evicted);
+		}
+		free(evicted);
+	}
+
+	/** Drop everything, e.g. because the filter's output may have changed. Fetches using the
+	 * content keep it until they finish. */
+	public void clear() {
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized(this) {
+			while(!entries.isEmpty())
+				evicted.add(entries.popValue());
+			size = 0;
+		}
+		free(evicted);
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized int entries() {
+		return entries.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/** @return The number of lookups of content that could have been cached, but wasn't. */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/** @return The total size of the content served from the cache, which didn't have to be
+	 * fetched and filtered again. */
+	public synchronized long bytesSaved() {
+		return bytesSaved;
+	}
+
+}
@@ -0,0 +1,622 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.clients.http.ToadletContextImpl.RequestOutcome;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NativeThread;
+
+/**
+ * Non-blocking front end for web interface connections.
+ *
+ * With {@link SimpleToadletServer.SocketHandler}, every connection has its own thread for
+ * as long as it is open, including while a keep-alive connection is idle and while a
+ * toadlet waits for a fetch to progress or for a push notification. Here, a few selector
+ * threads read from all connections until a whole request has been buffered, and only then
+ * is a pooled thread used to parse it and run the toadlet. Pipelined requests are handled
+ * in order. A toadlet which would block waiting for something can
+ * {@link ToadletContext#suspend()} the request, releasing the thread until it is resumed.
+ *
+ * SSL connections have no channel and are always served by the blocking handler.
+ */
+final class HTTPSelectorServer {
+
+	/** We buffer up to this much of a request before handing it to a thread. The rest of
+	 * a larger request (an upload) is then read directly from the channel. */
+	static final int MAX_BUFFERED_REQUEST = 65536;
+
+	private static final int READ_SIZE = 8192;
+
+	/** Returned by {@link Connection#findRequestEnd()} if the request is not complete yet. */
+	private static final int INCOMPLETE = -1;
+	/** Returned by {@link Connection#findRequestEnd()} if the headers are too big to buffer. */
+	private static final int TOO_BIG = -2;
+
+	/** Handles one request at a time, on a pooled thread. */
+	interface RequestHandler {
+		/** Parse a request and run the toadlet, see ToadletContextImpl.handle(). */
+		RequestOutcome handle(LineReadingInputStream is, OutputStream out, InetAddress remoteAddr, ToadletContextImpl.Suspender suspender);
+		/** A connection has started using a thread. */
+		void connectionHandlerStarted();
+		/** A connection has stopped using a thread. */
+		void connectionHandlerFinished();
+	}
+
+	private final RequestHandler handler;
+	private final Executor executor;
+	private final SelectorThread[] selectorThreads;
+	private int nextSelectorThread;
+	private volatile boolean closed;
+
+	/** Connections which are open, whether idle, being handled or suspended. */
+	private final AtomicInteger openConnections = new AtomicInteger();
+	/** The same connections, so that they can all be closed on shutdown. */
+	private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+	/** Connections which are currently using a thread. */
+	private final AtomicInteger busyConnections = new AtomicInteger();
+	/** Connections whose request has been suspended by the toadlet. */
+	private final AtomicInteger suspendedConnections = new AtomicInteger();
+
+	/** Selectors used by pooled threads to wait until a channel can be read or written, which
+	 * aren't in use at the moment. Protected by waitSelectors. */
+	private final List<Selector> waitSelectors = new ArrayList<Selector>();
+	/** Selectors in use by a waiting thread. Protected by waitSelectors. */
+	private final HashSet<Selector> busyWaitSelectors = new HashSet<Selector>();
+	/** Wait selectors which are open, for tests. */
+	private final AtomicInteger openWaitSelectors = new AtomicInteger();
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(HTTPSelectorServer.class);
+	}
+
+	HTTPSelectorServer(RequestHandler handler, Executor executor, int threads) throws IOException {
+		this.handler = handler;
+		this.executor = executor;
+		selectorThreads = new SelectorThread[threads];
+		for(int i=0;i<threads;i++)
+			selectorThreads[i] = new SelectorThread(Selector.open());
+	}
+
+	void start() {
+		for(int i=0;i<selectorThreads.length;i++)
+			executor.execute(selectorThreads[i], "HTTP selector "+i);
+	}
+
+	void close() {
+		closed = true;
+		for(SelectorThread t : selectorThreads)
+			t.selector.wakeup();
+		// Including those being handled, whose handler will fail on its next read or write,
+		// and those which are suspended, whose toadlet is told to stop waiting.
+		for(Connection conn : connections)
+			conn.close();
+		Selector[] idle;
+		synchronized(waitSelectors) {
+			idle = waitSelectors.toArray(new Selector[waitSelectors.size()]);
+			waitSelectors.clear();
+			// The rest are closed when the threads waiting on them give them back.
+			for(Selector selector : busyWaitSelectors)
+				selector.wakeup();
+		}
+		for(Selector selector : idle)
+			closeWaitSelector(selector);
+	}
+
+	/** Take over a connection accepted by the network interface.
+	 * @throws IOException If the socket has no channel or it cannot be made non-blocking. */
+	void register(Socket sock) throws IOException {
+		SocketChannel channel = sock.getChannel();
+		if(channel == null) throw new IOException("Socket has no channel");
+		channel.configureBlocking(false);
+		SelectorThread t;
+		synchronized(this) {
+			t = selectorThreads[nextSelectorThread];
+			nextSelectorThread = (nextSelectorThread + 1) % selectorThreads.length;
+		}
+		openConnections.incrementAndGet();
+		Connection conn = new Connection(channel, sock.getInetAddress(), t);
+		connections.add(conn);
+		if(closed) {
+			conn.close();
+			return;
+		}
+		t.register(conn);
+	}
+
+	/** @return The number of open connections. */
+	int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	/** @return The number of connections currently using a thread. */
+	int getBusyConnections() {
+		return busyConnections.get();
+	}
+
+	/** @return The number of connections waiting for a suspended request to be resumed. */
+	int getSuspendedConnections() {
+		return suspendedConnections.get();
+	}
+
+	/** @return The number of selectors open for threads waiting to read or write. */
+	int getOpenWaitSelectors() {
+		return openWaitSelectors.get();
+	}
+
+	private class SelectorThread implements PrioRunnable {
+
+		final Selector selector;
+		/** Connections to (re-)register for reading. Only the selector thread touches the keys. */
+		private final List<Connection> toRegister = new ArrayList<Connection>();
+
+		SelectorThread(Selector selector) {
+			this.selector = selector;
+		}
+
+		void register(Connection conn) {
+			synchronized(toRegister) {
+				toRegister.add(conn);
+			}
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(!closed) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					Logger.error(this, "Selector failed: "+e, e);
+					break;
+				}
+				Connection[] conns;
+				synchronized(toRegister) {
+					conns = toRegister.toArray(new Connection[toRegister.size()]);
+					toRegister.clear();
+				}
+				for(Connection conn : conns)
+					conn.startReading(selector);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()) continue;
+					((Connection)key.attachment()).onReadable(key);
+				}
+			}
+			for(SelectionKey key : selector.keys())
+				((Connection)key.attachment()).close();
+			Closer.close(selector);
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	}
+
+	private enum State {
+		/** Waiting for the rest of a request, on the selector. */
+		READING,
+		/** A pooled thread is handling a request. */
+		HANDLING,
+		/** The toadlet suspended the request; the selector watches for the client closing. */
+		SUSPENDED,
+		CLOSED
+	}
+
+	private class Connection implements Runnable, ToadletContextImpl.Suspender {
+
+		final SocketChannel channel;
+		final InetAddress remoteAddr;
+		final SelectorThread selectorThread;
+		final OutputStream out;
+		private SelectionKey key;
+		private State state = State.READING;
+
+		/** Data read but not yet handled. */
+		private byte[] buf = new byte[READ_SIZE];
+		private int bufLength;
+
+		/** The request being handled or suspended. */
+		private byte[] request;
+		/** Bytes of the request still to be read from the channel, or -1 if we don't know
+		 * where it ends, in which case we close the connection afterwards. */
+		private long unread;
+		/** Incremented for each new request, so stale resume handles are ignored. */
+		private int generation;
+		/** Set if the request was resumed before the handler returned. */
+		private boolean resumeRequested;
+		/** Run if the connection is closed before the suspended request is resumed. */
+		private Runnable closedCallback;
+
+		Connection(SocketChannel channel, InetAddress remoteAddr, SelectorThread selectorThread) {
+			this.channel = channel;
+			this.remoteAddr = remoteAddr;
+			this.selectorThread = selectorThread;
+			this.out = new BufferedOutputStream(new ChannelOutputStream(channel), 16384);
+		}
+
+		/** Called on the selector thread. */
+		synchronized void startReading(Selector selector) {
+			if(state == State.CLOSED) return;
+			try {
+				if(key == null)
+					key = channel.register(selector, SelectionKey.OP_READ, this);
+				else
+					key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/** Called on the selector thread. */
+		synchronized void onReadable(SelectionKey key) {
+			if(state == State.CLOSED) return;
+			if(state == State.HANDLING) {
+				// Selected just before the handler took over.
+				key.interestOps(0);
+				return;
+			}
+			if(buf.length - bufLength < READ_SIZE) {
+				byte[] newBuf = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, newBuf, 0, bufLength);
+				buf = newBuf;
+			}
+			int read;
+			try {
+				read = channel.read(ByteBuffer.wrap(buf, bufLength, buf.length - bufLength));
+			} catch (IOException e) {
+				read = -1;
+			}
+			if(read < 0) {
+				if(logMINOR) Logger.minor(this, "Connection closed by "+remoteAddr+" in state "+state);
+				close();
+				return;
+			}
+			bufLength += read;
+			if(state == State.SUSPENDED) {
+				// Pipelined requests wait until the suspended one has been answered.
+				if(bufLength >= MAX_BUFFERED_REQUEST) key.interestOps(0);
+				return;
+			}
+			if(takeRequest()) {
+				state = State.HANDLING;
+				key.interestOps(0);
+				busyConnections.incrementAndGet();
+				executor.execute(this, "HTTP request handler for "+remoteAddr);
+			}
+		}
+
+		/** If the buffer contains a whole request, or as much as we are prepared to buffer,
+		 * move it to {@link #request}. Caller must hold the lock.
+		 * @return True if there is a request to handle. */
+		private boolean takeRequest() {
+			int end = findRequestEnd();
+			if(end == INCOMPLETE) return false;
+			long length;
+			if(end == TOO_BIG) {
+				end = bufLength;
+				unread = -1;
+			} else {
+				length = (long)end + contentLength;
+				if(length <= bufLength) {
+					end = (int)length;
+					unread = 0;
+				} else {
+					end = bufLength;
+					unread = length - bufLength;
+				}
+			}
+			request = new byte[end];
+			System.arraycopy(buf, 0, request, 0, end);
+			System.arraycopy(buf, end, buf, 0, bufLength - end);
+			bufLength -= end;
+			generation++;
+			resumeRequested = false;
+			return true;
+		}
+
+		/** Set by {@link #findRequestEnd()}. */
+		private long contentLength;
+
+		/**
+		 * Find the end of the headers of the first request in the buffer, and its content length.
+		 * We only need to find the boundaries of the request here; all the actual parsing, and
+		 * error reporting, happens later in {@link ToadletContextImpl}.
+		 * @return The offset just after the headers, {@link #INCOMPLETE} if we need more data,
+		 * or {@link #TOO_BIG} if we should stop buffering and let the parser deal with it.
+		 */
+		private int findRequestEnd() {
+			int headersEnd = -1;
+			int lineStart = 0;
+			contentLength = 0;
+			boolean gotRequestLine = false;
+			for(int i=0;i<bufLength;i++) {
+				if(buf[i] != '\n') continue;
+				int lineEnd = (i > lineStart && buf[i-1] == '\r') ? i-1 : i;
+				if(lineEnd == lineStart) {
+					// Empty lines before the request line are ignored by the parser too.
+					if(gotRequestLine) {
+						headersEnd = i+1;
+						break;
+					}
+				} else if(!gotRequestLine) {
+					gotRequestLine = true;
+				} else {
+					parseContentLength(lineStart, lineEnd);
+				}
+				lineStart = i+1;
+			}
+			if(headersEnd == -1)
+				return bufLength >= MAX_BUFFERED_REQUEST ? TOO_BIG : INCOMPLETE;
+			if(headersEnd + contentLength > MAX_BUFFERED_REQUEST || headersEnd + contentLength <= bufLength)
+				return headersEnd;
+			return INCOMPLETE;
+		}
+
+		private void parseContentLength(int start, int end) {
+			final String name = "content-length:";
+			if(end - start <= name.length()) return;
+			for(int i=0;i<name.length();i++) {
+				if(Character.toLowerCase((char)buf[start+i]) != name.charAt(i)) return;
+			}
+			long len = 0;
+			for(int i=start+name.length();i<end;i++) {
+				byte b = buf[i];
+				if(b == ' ' || b == '\t') continue;
+				if(b < '0' || b > '9' || len > Integer.MAX_VALUE) {
+					// The parser will reject it.
+					contentLength = 0;
+					return;
+				}
+				len = len * 10 + (b - '0');
+			}
+			contentLength = len;
+		}
+
+		/** Handle requests on a pooled thread, until there are no more complete requests
+		 * buffered, or the connection is closed or suspended. */
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			handler.connectionHandlerStarted();
+			try {
+				while(true) {
+					InputStream is = new ByteArrayInputStream(request);
+					if(unread != 0)
+						is = new SequenceInputStream(is, new ChannelInputStream(channel, unread));
+					RequestOutcome outcome = handler.handle(new LineReadingInputStream(is), out, remoteAddr, this);
+					if(outcome != RequestOutcome.SUSPENDED) {
+						try {
+							out.flush();
+						} catch (IOException e) {
+							outcome = RequestOutcome.CLOSE;
+						}
+					}
+					synchronized(this) {
+						if(state == State.CLOSED) return;
+						if(outcome == RequestOutcome.SUSPENDED) {
+							if(resumeRequested) {
+								resumeRequested = false;
+								continue;
+							}
+							state = State.SUSPENDED;
+							suspendedConnections.incrementAndGet();
+							selectorThread.register(this);
+							return;
+						}
+						if(outcome == RequestOutcome.CLOSE || unread < 0) {
+							close();
+							return;
+						}
+						request = null;
+						if(!takeRequest()) {
+							state = State.READING;
+							selectorThread.register(this);
+							return;
+						}
+					}
+				}
+			} finally {
+				busyConnections.decrementAndGet();
+				handler.connectionHandlerFinished();
+			}
+		}
+
+		@Override
+		public synchronized SuspendedRequest suspend() {
+			// The request must be replayable from the buffer.
+			if(unread != 0 || state != State.HANDLING) return null;
+			final int suspendedGeneration = generation;
+			return new SuspendedRequest() {
+
+				private boolean resumed;
+
+				@Override
+				public void resume() {
+					synchronized(Connection.this) {
+						if(resumed || suspendedGeneration != generation) return;
+						resumed = true;
+						closedCallback = null;
+						if(state == State.HANDLING) {
+							resumeRequested = true;
+							return;
+						}
+						if(state != State.SUSPENDED) return;
+						state = State.HANDLING;
+						suspendedConnections.decrementAndGet();
+						busyConnections.incrementAndGet();
+						// The selector thread will stop reading when it next sees the key.
+					}
+					executor.execute(Connection.this, "HTTP request handler for "+remoteAddr+" (resumed)");
+				}
+
+				@Override
+				public void whenClosed(Runnable callback) {
+					synchronized(Connection.this) {
+						if(resumed || suspendedGeneration != generation) return;
+						if(state != State.CLOSED) {
+							closedCallback = callback;
+							return;
+						}
+					}
+					callback.run();
+				}
+
+			};
+		}
+
+		synchronized void close() {
+			if(state == State.CLOSED) return;
+			if(state == State.SUSPENDED)
+				suspendedConnections.decrementAndGet();
+			state = State.CLOSED;
+			openConnections.decrementAndGet();
+			connections.remove(this);
+			Closer.close(channel);
+			if(closedCallback != null) {
+				// Not under our lock, the toadlet's callback may take its own locks.
+				executor.execute(closedCallback, "Clean up suspended HTTP request for "+remoteAddr);
+				closedCallback = null;
+			}
+		}
+
+	}
+
+	/** Wait until the channel can be read or written, from a pooled thread.
+	 * @throws IOException If the server has been closed. */
+	private void waitFor(SocketChannel channel, int op) throws IOException {
+		Selector selector = null;
+		synchronized(waitSelectors) {
+			if(closed) throw new IOException("Closed");
+			if(!waitSelectors.isEmpty())
+				selector = waitSelectors.remove(waitSelectors.size()-1);
+		}
+		if(selector == null) {
+			selector = Selector.open();
+			openWaitSelectors.incrementAndGet();
+		}
+		boolean ok = false;
+		synchronized(waitSelectors) {
+			busyWaitSelectors.add(selector);
+		}
+		try {
+			if(closed) throw new IOException("Closed");
+			SelectionKey key = channel.register(selector, op);
+			try {
+				selector.select();
+			} finally {
+				key.cancel();
+				// Actually deregister the channel, so it can be closed cleanly.
+				selector.selectNow();
+			}
+			ok = true;
+		} finally {
+			synchronized(waitSelectors) {
+				busyWaitSelectors.remove(selector);
+				if(ok && !closed) {
+					waitSelectors.add(selector);
+					selector = null;
+				}
+			}
+			if(selector != null)
+				closeWaitSelector(selector);
+		}
+	}
+
+	private void closeWaitSelector(Selector selector) {
+		Closer.close(selector);
+		openWaitSelectors.decrementAndGet();
+	}
+
+	/** Blocking output to a non-blocking channel. */
+	private class ChannelOutputStream extends OutputStream {
+
+		private final SocketChannel channel;
+
+		ChannelOutputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+			while(bb.hasRemaining()) {
+				if(channel.write(bb) == 0)
+					waitFor(channel, SelectionKey.OP_WRITE);
+			}
+		}
+
+	}
+
+	/** Blocking input from a non-blocking channel, limited to the rest of a single request. */
+	private class ChannelInputStream extends InputStream {
+
+		private final SocketChannel channel;
+		/** Bytes left to read, or -1 for no limit. */
+		private long remaining;
+
+		ChannelInputStream(SocketChannel channel, long remaining) {
+			this.channel = channel;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read = read(b, 0, 1);
+			if(read < 0) return -1;
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) throws IOException {
+			if(remaining == 0) return -1;
+			if(length == 0) return 0;
+			if(remaining > 0 && length > remaining) length = (int) remaining;
+			ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+			int read;
+			while((read = channel.read(bb)) == 0)
+				waitFor(channel, SelectionKey.OP_READ);
+			if(read > 0 && remaining > 0) remaining -= read;
+			return read;
+		}
+
+	}
+
+}
@@ -0,0 +1,39 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.node.Node;
+import freenet.support.api.HTTPRequest;
+
+/**
+ * Exports the node's metrics in the Prometheus text format, so monitoring tools can scrape
+ * them. Requires full access, so the scraper's address must be in the allowed hosts with full
+ * access.
+ */
+public class MetricsToadlet extends Toadlet {
+
+	public static final String TOADLET_URL = "/metrics/";
+	private final Node node;
+
+	MetricsToadlet(HighLevelSimpleClient client, Node node) {
+		super(client);
+		this.node = node;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
+		if(!ctx.checkFullAccess(this))
+			return;
+		writeReply(ctx, 200, "text/plain; version=0.0.4; charset=utf-8", "OK", null, node.metrics.toPrometheus(), true);
+	}
+
+	@Override
+	public String path() {
+		return TOADLET_URL;
+	}
+
+}
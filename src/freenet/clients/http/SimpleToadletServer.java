@@ -5,6 +5,7 @@ package freenet.clients.http;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
@@ -53,6 +54,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.StringCallback;
 import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.NativeThread;
 
 /** 
@@ -109,6 +111,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private boolean enableInlinePrefetch;
 	private boolean enableActivelinks;
 	private boolean enableExtendedMethodHandling;
+	private boolean nonBlockingConnections;
 	
 	// Something does not really belongs to here
 	volatile static boolean isPanicButtonToBeShown;				// move to QueueToadlet ?
@@ -119,9 +122,14 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private volatile boolean fproxyHasCompletedWizard;	// hmmm..
 	private volatile boolean disableProgressPage;
 	private int maxFproxyConnections;
+	private final FilteredContentCache filteredContentCache;
 	
 	private int fproxyConnections;
 	
+	/** Serves connections without a thread each, if enabled. Only exists while the
+	 * accept loop is running. */
+	private HTTPSelectorServer selectorServer;
+	
 	private boolean finishedStartup;
 	
 	/** The PushDataManager handles all the pushing tasks*/
@@ -604,6 +612,29 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		});
 		enablePersistentConnections = fproxyConfig.getBoolean("enablePersistentConnections");
 		
+		// Selector threads hold idle and waiting connections, so only requests actually being
+		// handled use a thread. Not available with SSL.
+		fproxyConfig.register("nonBlockingConnections", false, configItemOrder++, true, false, "SimpleToadletServer.nonBlockingConnections", "SimpleToadletServer.nonBlockingConnectionsLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(SimpleToadletServer.this) {
+							return nonBlockingConnections;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(SimpleToadletServer.this) {
+							if(nonBlockingConnections == val) return;
+							nonBlockingConnections = val;
+						}
+						throw new NodeNeedRestartException(l10n("nonBlockingConnectionsNeedsRestart"));
+					}
+		});
+		nonBlockingConnections = fproxyConfig.getBoolean("nonBlockingConnections");
+		
 		// Off by default.
 		// I had hoped it would yield a significant performance boost to bootstrap performance
 		// on browsers with low numbers of simultaneous connections. Unfortunately the bottleneck
@@ -748,6 +779,22 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		
 		this.refilterPolicy = REFILTER_POLICY.valueOf(fproxyConfig.getString("refilterPolicy"));
 		
+		fproxyConfig.register("filteredContentCacheSize", "32MiB", configItemOrder++, true, false, "SimpleToadletServer.filteredContentCacheSize", "SimpleToadletServer.filteredContentCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						return filteredContentCache.getMaxSize();
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if(val < 0) throw new InvalidConfigValueException(l10n("filteredContentCacheSizeMustNotBeNegative"));
+						filteredContentCache.setMaxSize(val);
+					}
+		}, true);
+		filteredContentCache = new FilteredContentCache(Math.max(0, fproxyConfig.getLong("filteredContentCacheSize")));
+		
 		// Network seclevel not physical seclevel because bad filtering can cause network level anonymity breaches.
 		SimpleToadletServer.isPanicButtonToBeShown = fproxyConfig.getBoolean("showPanicButton");
 		SimpleToadletServer.noConfirmPanic = fproxyConfig.getBoolean("noConfirmPanic");
@@ -814,6 +861,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if (this.networkInterface!=null) return;
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(nonBlockingConnections) {
+			this.networkInterface = NetworkInterface.createChannelBacked(port, this.bindTo, allowedHosts, executor, true);
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
@@ -892,6 +941,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			else toadlets.addLast(te);
 			t.container = this;
 		}
+		// Links to it may no longer be filtered.
+		filteredContentCache.clear();
 		if (menu != null && name != null) {
 			pageMaker.addNavigationLink(menu, urlPrefix, name, title, fullOnly, cb, l10n);
 		}
@@ -914,6 +965,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			}
 		}
 		if(e != null && e.t == t) {
+			filteredContentCache.clear();
 			if(e.menu != null && e.name != null) {
 				pageMaker.removeNavigationLink(e.menu, e.name);
 			}
@@ -975,6 +1027,32 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		} catch (SocketException e1) {
 			Logger.error(this, "Could not set so-timeout to 500ms; on-the-fly disabling of the interface will not work");
 		}
+		HTTPSelectorServer selector = null;
+		if(nonBlockingConnections && !ssl) {
+			try {
+				selector = new HTTPSelectorServer(selectorRequestHandler, executor, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+				selector.start();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to start non-blocking HTTP connection handling, using a thread per connection: "+e, e);
+				selector = null;
+			}
+		}
+		synchronized(this) {
+			selectorServer = selector;
+		}
+		try {
+			acceptConnections(selector);
+		} finally {
+			if(selector != null) {
+				synchronized(this) {
+					selectorServer = null;
+				}
+				selector.close();
+			}
+		}
+	}
+	
+	private void acceptConnections(HTTPSelectorServer selector) {
 		boolean finishedStartup = false;
 		while(true) {
 			synchronized(this) {
@@ -996,11 +1074,71 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            // During startup we use a dedicated thread, as the executor may not be ready.
+            if(selector != null && finishedStartup && conn.getChannel() != null) {
+                try {
+                    selector.register(conn);
+                    continue;
+                } catch (IOException e) {
+                    Logger.normal(this, "Unable to handle connection without blocking, using a thread: "+e);
+                }
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	/** Called by the non-blocking front end when a connection starts using a thread. */
+	void connectionHandlerStarted() {
+		synchronized(this) {
+			fproxyConnections++;
+		}
+	}
+	
+	/** Called by the non-blocking front end when a connection stops using a thread. */
+	void connectionHandlerFinished() {
+		synchronized(this) {
+			fproxyConnections--;
+			notifyAll();
+		}
+	}
+	
+	private final HTTPSelectorServer.RequestHandler selectorRequestHandler = new HTTPSelectorServer.RequestHandler() {
+
+		@Override
+		public ToadletContextImpl.RequestOutcome handle(LineReadingInputStream is, OutputStream out, InetAddress remoteAddr, ToadletContextImpl.Suspender suspender) {
+			return ToadletContextImpl.handle(is, out, remoteAddr, SimpleToadletServer.this, getPageMaker(), getUserAlertManager(), bookmarkManager, suspender);
+		}
+
+		@Override
+		public void connectionHandlerStarted() {
+			SimpleToadletServer.this.connectionHandlerStarted();
+		}
+
+		@Override
+		public void connectionHandlerFinished() {
+			SimpleToadletServer.this.connectionHandlerFinished();
+		}
+
+	};
+	
+	/** @return The number of open web interface connections, including idle ones. */
+	public synchronized int getOpenConnections() {
+		if(selectorServer == null) return fproxyConnections;
+		return selectorServer.getOpenConnections() + fproxyConnections - selectorServer.getBusyConnections();
+	}
+	
+	/** @return The number of web interface connections currently using a thread. */
+	public synchronized int getConnectionThreads() {
+		return fproxyConnections;
+	}
+	
+	/** @return The number of requests suspended by a toadlet, waiting without a thread. */
+	public synchronized int getSuspendedRequests() {
+		if(selectorServer == null) return 0;
+		return selectorServer.getSuspendedConnections();
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -1203,6 +1341,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	
 	private REFILTER_POLICY refilterPolicy;
 
+	/** Filtered content FProxy has recently fetched. */
+	public FilteredContentCache getFilteredContentCache() {
+		return filteredContentCache;
+	}
+
 	@Override
 	public REFILTER_POLICY getReFilterPolicy() {
 		return refilterPolicy;
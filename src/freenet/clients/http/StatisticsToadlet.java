@@ -17,6 +17,7 @@ import java.util.Locale;
 import java.util.Map;
 
 import freenet.client.async.ClientRequester;
+import freenet.client.async.DatastoreChecker;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
@@ -41,6 +42,7 @@ import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
+import freenet.store.KeyMembershipFilter;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
@@ -202,6 +204,11 @@ public class StatisticsToadlet extends Toadlet {
 		
 		drawJVMStatsBox(jvmStatsInfobox, advancedMode);
 		
+		// filtered content cache box
+		SimpleToadletServer webServer = node.clientCore.getToadletContainer();
+		if(webServer != null)
+			drawFilteredContentCacheBox(nextTableCell.addChild("div", "class", "infobox"), webServer.getFilteredContentCache());
+		
 		// Statistic gathering box
 		HTMLNode statGatheringContent = ctx.getPageMaker().getInfobox("#", l10n("statisticGatheringTitle"), nextTableCell, "statistics-generating", true);
 		// Generate a Thread-Dump
@@ -611,6 +618,11 @@ public class StatisticsToadlet extends Toadlet {
 		jvmStatsList.addChild("li", l10n("maxMemory", "memory", SizeUtil.formatSize(maxJavaMem, true)));
 		jvmStatsList.addChild("li", l10n("threads", new String[] { "running", "max" },
 				new String[] { thousandPoint.format(threadCount), Integer.toString(stats.getThreadLimit()) }));
+		SimpleToadletServer webServer = node.clientCore.getToadletContainer();
+		if(webServer != null) {
+			jvmStatsList.addChild("li", l10n("webConnections", new String[] { "open", "threads", "suspended" },
+					new String[] { Integer.toString(webServer.getOpenConnections()), Integer.toString(webServer.getConnectionThreads()), Integer.toString(webServer.getSuspendedRequests()) }));
+		}
 		jvmStatsList.addChild("li", l10n("cpus", "count", Integer.toString(availableCpus)));
 		jvmStatsList.addChild("li", l10n("javaVersion", "version", System.getProperty("java.version")));
 		jvmStatsList.addChild("li", l10n("jvmVendor", "vendor", System.getProperty("java.vendor")));
@@ -627,6 +639,18 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 	
+	private void drawFilteredContentCacheBox(HTMLNode box, FilteredContentCache cache) {
+		box.addChild("div", "class", "infobox-header", l10n("filteredContentCacheTitle"));
+		HTMLNode list = box.addChild("div", "class", "infobox-content").addChild("ul");
+		long hits = cache.hits();
+		long lookups = hits + cache.misses();
+		list.addChild("li", l10n("filteredContentCacheSize", new String[] { "count", "size", "max" },
+				new String[] { thousandPoint.format(cache.entries()), SizeUtil.formatSize(cache.size(), true), SizeUtil.formatSize(cache.getMaxSize(), true) }));
+		list.addChild("li", l10n("filteredContentCacheHitRate", new String[] { "rate", "hits", "lookups" },
+				new String[] { fix3p1pct.format(lookups == 0 ? 0.0 : ((double) hits) / lookups), thousandPoint.format(hits), thousandPoint.format(lookups) }));
+		list.addChild("li", l10n("filteredContentCacheBytesSaved", "size", SizeUtil.formatSize(cache.bytesSaved(), true)));
+	}
+	
 	private void drawThreadPriorityStatsBox(HTMLNode node) {
 		
 		node.addChild("div", "class", "infobox-header", l10n("threadsByPriority"));
@@ -825,6 +849,37 @@ public class StatisticsToadlet extends Toadlet {
 			}
 		}
 
+		long ramStoreHeap = node.getRAMStoreHeapUsage();
+		if(ramStoreHeap >= 0) {
+			storeSizeInfoboxContent.addChild("p", NodeL10n.getBase().getString("StatisticsToadlet.ramStoreMemory",
+					new String[] { "heap", "offHeap", "reserved" },
+					new String[] { SizeUtil.formatSize(ramStoreHeap), SizeUtil.formatSize(node.getRAMStoreOffHeapUsage()),
+						SizeUtil.formatSize(node.getRAMStoreOffHeapReserved()) }));
+		}
+
+		KeyMembershipFilter filter = node.getStoreMembershipFilter();
+		if(filter != null) {
+			storeSizeInfoboxContent.addChild("p", NodeL10n.getBase().getString("StatisticsToadlet.membershipFilter",
+					new String[] { "lookups", "negatives", "avoided", "falsePos", "complete", "total", "memory" },
+					new String[] { thousandPoint.format(filter.lookups()), thousandPoint.format(filter.negatives()),
+						thousandPoint.format(filter.probesAvoided()), thousandPoint.format(filter.falsePositives()),
+						Integer.toString(node.countMembershipCompleteStores()), Integer.toString(Node.MEMBERSHIP_TRACKED_STORES),
+						SizeUtil.formatSize(filter.memoryUsage()) }));
+		}
+
+		int slotFiltersLoading = node.countSlotFiltersLoading();
+		if(slotFiltersLoading >= 0) {
+			storeSizeInfoboxContent.addChild("p", NodeL10n.getBase().getString("StatisticsToadlet.slotFilters",
+					new String[] { "written", "writes", "time", "loading" },
+					new String[] { SizeUtil.formatSize(node.getSlotFilterBytesWritten()), thousandPoint.format(node.getSlotFilterWrites()),
+						TimeUtil.formatTime(node.getSlotFilterWriteTime(), 2, true), Integer.toString(slotFiltersLoading) }));
+		}
+
+		DatastoreChecker checker = core.storeChecker;
+		storeSizeInfoboxContent.addChild("p", NodeL10n.getBase().getString("StatisticsToadlet.datastoreChecker",
+				new String[] { "checked", "found", "rate", "queued" },
+				new String[] { thousandPoint.format(checker.getKeysChecked()), thousandPoint.format(checker.getKeysFound()),
+					thousandPoint.format(checker.getKeysCheckedPerSecond()), thousandPoint.format(checker.getQueuedRequests()) }));
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -0,0 +1,21 @@
+package freenet.clients.http;
+
+/**
+ * Handle for a request suspended by {@link ToadletContext#suspend()}. The connection is 
+ * kept open without a thread until {@link #resume()} is called, at which point the 
+ * request is handled again from the start.
+ */
+public interface SuspendedRequest {
+	
+	/** Handle the request again. May be called from any thread, and more than once; 
+	 * only the first call has any effect. Does nothing if the client has gone away in 
+	 * the meantime. */
+	void resume();
+
+	/** Run the callback on another thread if the connection is closed before the request 
+	 * is resumed, because the client went away or the web interface is shutting down, so 
+	 * the toadlet can stop waiting for whatever would have resumed it. Runs it at once if 
+	 * the connection has already been closed. */
+	void whenClosed(Runnable callback);
+
+}
@@ -222,5 +222,22 @@ public interface ToadletContext {
 	/** What to do when we find cached data on the global queue but it's already been 
 	 * filtered, and we want a filtered copy. */
 	REFILTER_POLICY getReFilterPolicy();
+	
+	/**
+	 * Suspend this request rather than blocking the handling thread while waiting for 
+	 * something to happen (e.g. a fetch making progress or a push notification). Only 
+	 * possible when the connection is served by the non-blocking front end, the request 
+	 * carries no data, and nothing has been sent yet.
+	 * 
+	 * If a handle is returned, the toadlet must return immediately without sending 
+	 * anything. When {@link SuspendedRequest#resume()} is called, the whole request is 
+	 * handled again from the start on a pooled thread, so toadlets should only suspend 
+	 * where repeating the call is cheap and will not block again. Toadlets should use 
+	 * {@link SuspendedRequest#whenClosed(Runnable)} to release what they were waiting on if 
+	 * the request is never resumed.
+	 * @return A handle used to resume the request, or null if the request cannot be 
+	 * suspended, in which case the toadlet should block as usual.
+	 */
+	SuspendedRequest suspend();
 }
 
@@ -97,14 +97,40 @@ public class ToadletContextImpl implements ToadletContext {
 	private boolean closed;
 	private boolean shouldDisconnect;
 	
+	/** Non-null if the request can be suspended, see {@link #suspend()}. */
+	private Suspender suspender;
+	/** Set if the toadlet suspended the request instead of replying. */
+	private boolean suspended;
+	
+	/** What happened to the connection after handling a single request. */
+	enum RequestOutcome {
+		/** The connection can be used for another request. */
+		KEEP_ALIVE,
+		/** The connection must be closed. */
+		CLOSE,
+		/** The toadlet suspended the request; nothing has been sent yet. */
+		SUSPENDED
+	}
+	
+	/** Provided by the non-blocking front end for requests which may be suspended. */
+	interface Suspender {
+		/** @return A handle to resume the request, or null if it cannot be suspended. */
+		SuspendedRequest suspend();
+	}
+	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
+		this(sock.getOutputStream(), sock.getInetAddress(), headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, uniqueID, null);
+	}
+	
+	ToadletContextImpl(OutputStream sockOutputStream, InetAddress remoteAddr, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID, Suspender suspender) {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
-		remoteAddr = sock.getInetAddress();
+		this.sockOutputStream = sockOutputStream;
+		this.remoteAddr = remoteAddr;
+		this.suspender = suspender;
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
@@ -479,198 +505,216 @@ public class ToadletContextImpl implements ToadletContext {
 			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
 			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
+			OutputStream os = sock.getOutputStream();
+			InetAddress remoteAddr = sock.getInetAddress();
+			
+			while(handle(lis, os, remoteAddr, container, pageMaker, userAlertManager, bookmarkManager, null) == RequestOutcome.KEEP_ALIVE) {
+				// Persistent connection, handle the next request.
+			}
+			sock.close();
+		} catch (IOException e) {
+			// ignore and return
+		}
+	}
+	
+	/**
+	 * Read and handle a single request from a connection. Blocking. Errors are reported to
+	 * the client, after which the connection should be closed.
+	 * @param lis The stream to read the request line, headers and any data from.
+	 * @param os The stream to send the reply to.
+	 * @param remoteAddr The address of the client.
+	 * @param suspender If non-null, the request may be suspended by the toadlet, in which case
+	 * nothing will have been sent when we return.
+	 * @return Whether the connection can be used for another request.
+	 */
+	static RequestOutcome handle(LineReadingInputStream lis, OutputStream os, InetAddress remoteAddr, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, Suspender suspender) {
+		try {
+			String firstLine;
+			do {
+				firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
+				if (firstLine == null)
+					return RequestOutcome.CLOSE;
+			} while (firstLine.equals(""));
+			
+			if(logMINOR)
+				Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
+			
+			String[] split = firstLine.split(" ");
+			
+			if(split.length != 3)
+				throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+			
+			if(!split[2].startsWith("HTTP/1."))
+				throw new ParseException("Unrecognized protocol "+split[2], -1);
+			
+			URI uri;
+			try {
+				uri = URIPreEncoder.encodeURI(split[1]).normalize();
+				if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+			} catch (URISyntaxException e) {
+				sendURIParseError(os, true, e);
+				return RequestOutcome.CLOSE;
+			}
+			String method = split[0];
+			
+			MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
 			
 			while(true) {
-				
-				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
-				if (firstLine == null) {
-					sock.close();
-					return;
-				} else if (firstLine.equals("")) {
-					continue;
-				}
-				
-				if(logMINOR)
-					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
-				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
-				
-				URI uri;
-				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
-				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
-				}
-				String method = split[0];
-				
-				MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
-				
-				while(true) {
-					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
-					if (line == null) {
-						sock.close();
-						return;
-					}
-					//System.out.println("Length="+line.length()+": "+line);
-					if(line.length() == 0) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
-					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
+				String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
+				if (line == null)
+					return RequestOutcome.CLOSE;
+				//System.out.println("Length="+line.length()+": "+line);
+				if(line.length() == 0) break;
+				int index = line.indexOf(':');
+				if (index < 0) {
+					throw new ParseException("Missing ':' in request header field", -1);
 				}
-				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				String before = line.substring(0, index).toLowerCase();
+				String after = line.substring(index+1);
+				after = after.trim();
+				headers.put(before, after);
+			}
+			
+			boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
 
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
+			boolean allowPost = container.allowPosts();
+			BucketFactory bf = container.getBucketFactory();
+			
+			ToadletContextImpl ctx = new ToadletContextImpl(os, remoteAddr, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID(), suspender);
+			ctx.shouldDisconnect = disconnect;
+			
+			/*
+			 * copy the data into a bucket now,
+			 * before we go into the redirect loop
+			 */
+			
+			Bucket data;
 
-				boolean methodIsConfigurable = true;
+			boolean methodIsConfigurable = true;
 
-				String slen = headers.get("content-length");
+			String slen = headers.get("content-length");
 
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					methodIsConfigurable = false;
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					methodIsConfigurable = false;
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
+			if (METHODS_MUST_HAVE_DATA.contains(method)) {
+				// <method> must have data
+				methodIsConfigurable = false;
+				if (slen == null) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return RequestOutcome.CLOSE;
 				}
-
+			} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+				// <method> can not have data
+				methodIsConfigurable = false;
 				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return RequestOutcome.CLOSE;
+				}
+			}
+
+			if (slen != null) {
+				long len;
+				try {
+					len = Integer.parseInt(slen);
+					if(len < 0) throw new NumberFormatException("content-length less than 0");
+				} catch (NumberFormatException e) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return RequestOutcome.CLOSE;
+				}
+				if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
+					data = bf.makeBucket(len);
+					BucketTools.copyFrom(data, lis, len);
+					// Replaying the request would need the data again.
+					ctx.suspender = null;
+				} else {
+					FileUtil.skipFully(lis, len);
+					if (method.equals("POST")) {
+						ctx.sendMethodNotAllowed("POST", true);
 					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
+						sendError(os, 403, "Forbidden", "Content not allowed in this configuration", true, null);
 					}
-				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
+					ctx.close();
+					return RequestOutcome.CLOSE;
 				}
+			} else {
+				// we're not doing to use it, but we have to keep
+				// the compiler happy
+				data = null;
+			}
 
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
+			if (!container.enableExtendedMethodHandling()) {
+				if (!METHODS_RESTRICTED_MODE.contains(method)) {
+					sendError(os, 403, "Forbidden", "Method not allowed in this configuration", true, null);
+					return RequestOutcome.CLOSE;
 				}
+			}
 
-				// Handle it.
-				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
+			// Handle it.
+			try {
+				boolean redirect = true;
+				while (redirect) {
+					// don't go around the loop unless set explicitly
+					redirect = false;
 					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
+					Toadlet t;
+					try {
+						t = container.findToadlet(uri);
+					} catch (PermanentRedirectException e) {
+						Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+						break;
+					}
+				
+					if(t == null) {
+						ctx.sendNoToadletError(ctx.shouldDisconnect);
+						break;
+					}
 
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
+					// if the Toadlet does not support the method, we don't need to parse the data
+					// also due this pre check a 'NoSuchMethodException' should never appear
+					if (!(t.findSupportedMethods().contains(method))) {
+						ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+						break;
+					}
 
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						
-						// require form password if it's a POST, unless the toadlet requests otherwise
-						if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
-							if (!ctx.checkFormPassword(req, t.path())) {
-								break;
-							}
-						}
-						
-						if(ctx.isAllowedFullAccess()) {
-							ctx.getPageMaker().parseMode(req, container);
-						}
-						
-						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
+					HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+					
+					// require form password if it's a POST, unless the toadlet requests otherwise
+					if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
+						if (!ctx.checkFormPassword(req, t.path())) {
+							break;
 						}
 					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+					
+					if(ctx.isAllowedFullAccess()) {
+						ctx.getPageMaker().parseMode(req, container);
+					}
+					
+					try {
+						callToadletMethod(t, method, uri, req, ctx, data, os, redirect);
+					} catch (RedirectException re) {
+						uri = re.newuri;
+						redirect = true;
+					} finally {
+						req.freeParts();
 					}
-				} finally {
-					if(data != null) data.free();
 				}
+				if(ctx.suspended)
+					return RequestOutcome.SUSPENDED;
+				return ctx.shouldDisconnect ? RequestOutcome.CLOSE : RequestOutcome.KEEP_ALIVE;
+			} finally {
+				if(data != null) data.free();
 			}
 			
 		} catch (ParseException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+				sendError(os, 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
 		} catch (TooLongException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+				sendError(os, 400, "Bad Request", l10n("headersLineTooLong"), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
@@ -689,21 +733,22 @@ public class ToadletContextImpl implements ToadletContext {
 				pw.flush();
 				msg = msg + sw.toString() + "</pre></body></html>";
 				byte[] messageBytes = msg.getBytes("UTF-8");
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
-				sock.getOutputStream().write(messageBytes);
+				sendReplyHeaders(os, 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
+				os.write(messageBytes);
 			} catch (IOException e1) {
 				// ignore and return
 			}
 		}
+		return RequestOutcome.CLOSE;
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
-			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
+			ToadletContextImpl ctx, Bucket data, OutputStream os, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 		if("GET".equals(method)) {
 			// Short cut the common case.
 			if (data != null) {
-				sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+				sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 				ctx.close();
 				return;
 			}
@@ -718,13 +763,13 @@ public class ToadletContextImpl implements ToadletContext {
 				AllowData anno = m.getAnnotation(AllowData.class);
 				if (anno == null) {
 					if (data != null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+						sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 						ctx.close();
 						return;
 					}
 				} else if (anno.value()) {
 					if (data == null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+						sendError(os, 400, "Bad Request", "Missing Content", true, null);
 						ctx.close();
 						return;
 					}
@@ -849,4 +894,16 @@ public class ToadletContextImpl implements ToadletContext {
 	public REFILTER_POLICY getReFilterPolicy() {
 		return container.getReFilterPolicy();
 	}
+	
+	@Override
+	public SuspendedRequest suspend() {
+		if(closed || suspended || firstReplySendingException != null || suspender == null)
+			return null;
+		SuspendedRequest handle = suspender.suspend();
+		if(handle == null) return null;
+		suspended = true;
+		// Nothing may be sent now, the reply will come from the resumed request.
+		close();
+		return handle;
+	}
 }
@@ -6,6 +6,7 @@ import java.net.URI;
 import freenet.client.HighLevelSimpleClient;
 import freenet.clients.http.RedirectException;
 import freenet.clients.http.SimpleToadletServer;
+import freenet.clients.http.SuspendedRequest;
 import freenet.clients.http.Toadlet;
 import freenet.clients.http.ToadletContext;
 import freenet.clients.http.ToadletContextClosedException;
@@ -15,7 +16,8 @@ import freenet.support.Base64;
 import freenet.support.Logger;
 import freenet.support.api.HTTPRequest;
 
-/** This toadlet provides notifications for clients. It will block until one is present. It requires the requestId parameter. */
+/** This toadlet provides notifications for clients. It will block until one is present, or suspend the request if the connection
+ * allows it. It requires the requestId parameter. */
 public class PushNotificationToadlet extends Toadlet {
 
 	private static volatile boolean	logMINOR;
@@ -29,8 +31,33 @@ public class PushNotificationToadlet extends Toadlet {
 	}
 
 	public void handleMethodGET(URI uri, HTTPRequest req, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
-		String requestId = req.getParam("requestId");
-		PushDataManager.UpdateEvent event = ((SimpleToadletServer) ctx.getContainer()).pushDataManager.getNextNotification(requestId);
+		final String requestId = req.getParam("requestId");
+		final PushDataManager pushDataManager = ((SimpleToadletServer) ctx.getContainer()).pushDataManager;
+		if (!pushDataManager.isNotificationReady(requestId)) {
+			// Don't hold a thread while the client long-polls; we will be called again when there is something to send.
+			final SuspendedRequest suspended = ctx.suspend();
+			if (suspended != null) {
+				final Runnable resume = new Runnable() {
+
+					@Override
+					public void run() {
+						suspended.resume();
+					}
+
+				};
+				pushDataManager.waitForNotification(requestId, resume);
+				suspended.whenClosed(new Runnable() {
+
+					@Override
+					public void run() {
+						pushDataManager.cancelWaitForNotification(requestId, resume);
+					}
+
+				});
+				return;
+			}
+		}
+		PushDataManager.UpdateEvent event = pushDataManager.getNextNotification(requestId);
 		if (event != null) {
 			String elementRequestId = event.getRequestId();
 			String elementId = event.getElementId();
@@ -32,6 +32,9 @@ public class PushDataManager {
 	
 	private Map<String, Boolean>						isFirstKeepaliveReceived		= new HashMap<String, Boolean>();
 
+	/** Callbacks of suspended notification polls, run when a notification becomes available */
+	private Map<String, List<Runnable>>					notificationWaiters		= new HashMap<String, List<Runnable>>();
+
 	/** The Cleaner that runs periodically and cleanes the failing requests */
 	private Ticker										cleaner;
 
@@ -86,6 +89,7 @@ public class PushDataManager {
 				Logger.minor(this, "Waking up notification polls");
 			}
 			notifyAll();
+			wakeNotificationWaiters();
 		}
 	}
 
@@ -169,6 +173,7 @@ public class PushDataManager {
 				Logger.minor(this, "copied " + awaitingNotifications.get(newRequestId).size() + " notification:" + awaitingNotifications.get(newRequestId));
 			}
 			notifyAll();
+			wakeNotificationWaiters();
 			return true;
 		} else {
 			if (logMINOR) {
@@ -210,6 +215,7 @@ public class PushDataManager {
 		isKeepaliveReceived.put(requestId, true);
 		isFirstKeepaliveReceived.put(requestId, true);
 		notifyAll();
+		wakeNotificationWaiters();
 		return true;
 	}
 
@@ -224,8 +230,7 @@ public class PushDataManager {
 		if (logMINOR) {
 			Logger.minor(this, "Polling for notification:" + requestId);
 		}
-		while (awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() == 0 || // No notifications 
-				(awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() != 0 && isFirstKeepaliveReceived.containsKey(awaitingNotifications.get(requestId).get(0).requestId)==false)) { // Not asked us yet
+		while (mustWaitForNotification(requestId)) {
 			try {
 				wait();
 			} catch (InterruptedException ie) {
@@ -241,6 +246,73 @@ public class PushDataManager {
 		return awaitingNotifications.get(requestId).remove(0);
 	}
 
+	/**
+	 * Would {@link #getNextNotification(String)} have to wait?
+	 */
+	private boolean mustWaitForNotification(String requestId) {
+		List<UpdateEvent> notifications = awaitingNotifications.get(requestId);
+		if (notifications == null) {
+			return false;
+		}
+		return notifications.size() == 0 || // No notifications
+				isFirstKeepaliveReceived.containsKey(notifications.get(0).requestId) == false; // Not asked us yet
+	}
+
+	/**
+	 * @return True if {@link #getNextNotification(String)} would return without waiting.
+	 */
+	public synchronized boolean isNotificationReady(String requestId) {
+		return !mustWaitForNotification(requestId);
+	}
+
+	/**
+	 * Runs the callback once {@link #getNextNotification(String)} would return without waiting,
+	 * either because a notification is available or because the request is gone. Used by
+	 * suspended requests instead of blocking a thread. The callback is run with the lock held,
+	 * so it must not block.
+	 */
+	public synchronized void waitForNotification(String requestId, Runnable callback) {
+		if (!mustWaitForNotification(requestId)) {
+			callback.run();
+			return;
+		}
+		List<Runnable> waiters = notificationWaiters.get(requestId);
+		if (waiters == null) {
+			waiters = new ArrayList<Runnable>(1);
+			notificationWaiters.put(requestId, waiters);
+		}
+		waiters.add(callback);
+	}
+
+	/**
+	 * Forgets a callback passed to {@link #waitForNotification(String, Runnable)}, because the
+	 * suspended request it would have resumed has gone away.
+	 */
+	public synchronized void cancelWaitForNotification(String requestId, Runnable callback) {
+		List<Runnable> waiters = notificationWaiters.get(requestId);
+		if (waiters == null) {
+			return;
+		}
+		waiters.remove(callback);
+		if (waiters.isEmpty()) {
+			notificationWaiters.remove(requestId);
+		}
+	}
+
+	private void wakeNotificationWaiters() {
+		if (notificationWaiters.isEmpty()) {
+			return;
+		}
+		for (String requestId : new ArrayList<String>(notificationWaiters.keySet())) {
+			if (mustWaitForNotification(requestId)) {
+				continue;
+			}
+			for (Runnable callback : notificationWaiters.remove(requestId)) {
+				callback.run();
+			}
+		}
+	}
+
 	/** Returns the cleaner's delay in ms */
 	private int getDelayInMs() {
 		return (int) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
@@ -288,6 +360,8 @@ public class PushDataManager {
 			}
 		}
 		awaitingNotifications.remove(requestId);
+		notifyAll();
+		wakeNotificationWaiters();
 		return true;
 	}
 
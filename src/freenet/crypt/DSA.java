@@ -149,6 +149,47 @@ public class DSA {
 		}
 	}
 
+	/**
+	 * Verifies a signature which may have been made over the hash clipped to 255 bits or over the
+	 * whole hash, as SSK signatures may be. The same as calling verify() with forceMod false and
+	 * then true, but y^u2 is only computed once.
+	 * @param gPow Precomputed powers of the group's generator, or null.
+	 * @param yPow Precomputed powers of the public key, or null.
+	 */
+	public static boolean verifyEitherForm(DSAPublicKey kp, DSASignature sig, BigInteger m,
+			FixedBaseModPow gPow, FixedBaseModPow yPow) {
+		if(m.signum() == -1) throw new IllegalArgumentException();
+		BigInteger q = kp.getQ();
+		BigInteger p = kp.getP();
+		BigInteger r = sig.getR();
+		BigInteger s = sig.getS();
+		// 0<r<q and 0<s<q
+		if(r.signum() < 1 || q.compareTo(r) < 1 || s.signum() < 1 || q.compareTo(s) < 1) {
+			if(logMINOR)
+				Logger.minor(DSA.class, "r or s out of range: r="+r+" s="+s+" q="+q);
+			return false;
+		}
+		try {
+			BigInteger w = s.modInverse(q);
+			BigInteger u2 = r.multiply(w).mod(q);
+			BigInteger v2 = yPow != null ? yPow.pow(u2) : kp.getY().modPow(u2, p);
+			BigInteger clipped = q.bitLength() == 256 ? m.and(SIGNATURE_MASK) : m;
+			if(verifyWith(kp, r, w, v2, clipped, gPow)) return true;
+			return !clipped.equals(m) && verifyWith(kp, r, w, v2, m, gPow);
+		} catch (ArithmeticException e) {  // catch error raised by invalid data
+			if(logMINOR)
+				Logger.minor(DSA.class, "Verify failed: "+e, e);
+			return false;
+		}
+	}
+
+	private static boolean verifyWith(DSAPublicKey kp, BigInteger r, BigInteger w, BigInteger v2,
+			BigInteger m, FixedBaseModPow gPow) {
+		BigInteger u1 = m.multiply(w).mod(kp.getQ());
+		BigInteger v1 = gPow != null ? gPow.pow(u1) : kp.getG().modPow(u1, kp.getP());
+		return v1.multiply(v2).mod(kp.getP()).mod(kp.getQ()).equals(r);
+	}
+
 	public static void main(String[] args) throws Exception {
 		//DSAGroup g=DSAGroup.readFromField(args[0]);
 		freenet.support.SimpleFieldSet fs = args.length >= 1 && args[0].length() != 0 ? freenet.support.SimpleFieldSet.readFrom(new java.io.File(args[0]), false, false) : null;
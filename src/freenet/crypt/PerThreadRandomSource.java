@@ -0,0 +1,259 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.Logger;
+
+/**
+ * A RandomSource which gives every thread its own generator, so that packet padding, IVs, UIDs
+ * and the like don't all queue up on Yarrow's lock.
+ *
+ * Each thread's generator is AES-256 in counter mode. It is keyed from the master source (in
+ * practice the node's Yarrow) when the thread first asks for random bytes, and rekeyed from the
+ * master again after {@link #RESEED_BYTES} bytes or {@link #RESEED_INTERVAL} milliseconds,
+ * whichever comes first, so that entropy which reaches the master also reaches every thread.
+ * After every buffer it also rekeys itself from its own output, as Yarrow's generator gate does,
+ * so that stealing a generator's state does not reveal what it produced earlier.
+ *
+ * Entropy goes to the master. Timer entropy, which we get on every incoming packet, is batched
+ * per thread and handed over in one go, so the master's lock is taken once per batch rather than
+ * once per packet.
+ *
+ * Calling setSeed() has no effect: threads are always seeded from the master.
+ */
+public class PerThreadRandomSource extends RandomSource implements PersistentRandomSource {
+
+	private static final long serialVersionUID = -1;
+
+	/** Bytes of output per thread before we rekey from the master. */
+	static final int RESEED_BYTES = 1024 * 1024;
+	/** Time before we rekey from the master, in milliseconds. */
+	static final long RESEED_INTERVAL = 60 * 1000;
+	/** Bytes of keystream handed out per generator key. */
+	private static final int BUFFER_SIZE = 4096;
+	private static final int KEY_SIZE = 32;
+	/** Timing events per thread before we pass them to the master. */
+	static final int ENTROPY_BATCH = 64;
+	/** Don't hold timing events back for longer than this, in milliseconds. */
+	private static final long ENTROPY_BATCH_TIME = 1000;
+
+	private final RandomSource master;
+	private final ThreadLocal<Generator> generators;
+	private final ThreadLocal<EntropyBatch> entropyBatches;
+
+	public PerThreadRandomSource(RandomSource master) {
+		this.master = master;
+		this.generators = new ThreadLocal<Generator>();
+		this.entropyBatches = new ThreadLocal<EntropyBatch>() {
+			@Override
+			protected EntropyBatch initialValue() {
+				return new EntropyBatch();
+			}
+		};
+	}
+
+	/** @return The source we seed the per-thread generators from and give entropy to. */
+	public RandomSource getMaster() {
+		return master;
+	}
+
+	private Generator generator() {
+		Generator g = generators.get();
+		if(g == null) {
+			g = new Generator();
+			generators.set(g);
+		}
+		return g;
+	}
+
+	@Override
+	protected int next(int bits) {
+		return generator().next(bits);
+	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		generator().nextBytes(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		// We are always seeded from the master. Random's constructor calls this too.
+	}
+
+	@Override
+	public int acceptEntropy(EntropySource source, long data, int entropyGuess) {
+		return master.acceptEntropy(source, data, entropyGuess);
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource timer) {
+		return acceptTimerEntropy(timer, 1.0);
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource timer, double bias) {
+		return entropyBatches.get().add(timer, bias, System.currentTimeMillis());
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource timer, long[] times, int count, double bias) {
+		return master.acceptTimerEntropy(timer, times, count, bias);
+	}
+
+	@Override
+	public int acceptEntropyBytes(EntropySource source, byte[] buf, int offset, int length, double bias) {
+		return master.acceptEntropyBytes(source, buf, offset, length, bias);
+	}
+
+	@Override
+	public void waitForEntropy(int bits) {
+		master.waitForEntropy(bits);
+	}
+
+	@Override
+	public void write_seed(boolean force) {
+		if(master instanceof PersistentRandomSource)
+			((PersistentRandomSource) master).write_seed(force);
+	}
+
+	@Override
+	public void close() {
+		master.close();
+	}
+
+	/** One thread's AES-CTR generator. Only ever used by the thread which owns it. */
+	private class Generator {
+
+		private final Cipher cipher;
+		private final byte[] zeros = new byte[BUFFER_SIZE + KEY_SIZE];
+		private final byte[] buffer = new byte[BUFFER_SIZE + KEY_SIZE];
+		private final byte[] key = new byte[KEY_SIZE];
+		/** Next unused byte in buffer. */
+		private int offset;
+		private long outputSinceReseed;
+		private long lastReseed;
+
+		Generator() {
+			try {
+				if(Rijndael.AesCtrProvider != null)
+					cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+				else
+					cipher = Cipher.getInstance("AES/CTR/NOPADDING");
+			} catch (GeneralSecurityException e) {
+				// Rijndael has already checked that AES/CTR works.
+				throw new Error(e);
+			}
+			reseed();
+		}
+
+		/** Mix fresh output from the master into the key. */
+		private void reseed() {
+			byte[] fresh = new byte[KEY_SIZE];
+			master.nextBytes(fresh);
+			MessageDigest md = SHA256.getMessageDigest();
+			md.update(key);
+			md.update(fresh);
+			byte[] newKey = md.digest();
+			SHA256.returnMessageDigest(md);
+			System.arraycopy(newKey, 0, key, 0, KEY_SIZE);
+			Arrays.fill(newKey, (byte) 0);
+			Arrays.fill(fresh, (byte) 0);
+			outputSinceReseed = 0;
+			lastReseed = System.currentTimeMillis();
+			refill();
+		}
+
+		/** Generate a new buffer, and take the next key from the end of it. */
+		private void refill() {
+			try {
+				// The key is only ever used for one buffer, so a fixed IV is fine.
+				cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+				cipher.doFinal(zeros, 0, zeros.length, buffer, 0);
+			} catch (GeneralSecurityException e) {
+				throw new Error(e);
+			}
+			System.arraycopy(buffer, BUFFER_SIZE, key, 0, KEY_SIZE);
+			Arrays.fill(buffer, BUFFER_SIZE, buffer.length, (byte) 0);
+			offset = 0;
+		}
+
+		private void ensure(int bytes) {
+			if(offset + bytes <= BUFFER_SIZE) return;
+			if(outputSinceReseed >= RESEED_BYTES || System.currentTimeMillis() - lastReseed >= RESEED_INTERVAL)
+				reseed();
+			else
+				refill();
+		}
+
+		void nextBytes(byte[] out, int off, int length) {
+			while(length > 0) {
+				ensure(1);
+				int chunk = Math.min(length, BUFFER_SIZE - offset);
+				System.arraycopy(buffer, offset, out, off, chunk);
+				// Don't keep output we have handed out.
+				Arrays.fill(buffer, offset, offset + chunk, (byte) 0);
+				offset += chunk;
+				off += chunk;
+				length -= chunk;
+				outputSinceReseed += chunk;
+			}
+		}
+
+		int next(int bits) {
+			ensure(4);
+			int val = ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) |
+				((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+			Arrays.fill(buffer, offset, offset + 4, (byte) 0);
+			offset += 4;
+			outputSinceReseed += 4;
+			return bits == 32 ? val : val >>> (32 - bits);
+		}
+	}
+
+	/** Timing events waiting to go to the master, for one thread and one source at a time. */
+	private class EntropyBatch {
+
+		private final long[] times = new long[ENTROPY_BATCH];
+		private int count;
+		private EntropySource source;
+		private double bias;
+
+		/** @return The entropy passed on to the master, 0 if we are still batching. */
+		int add(EntropySource timer, double bias, long now) {
+			int total = 0;
+			if(count > 0 && (timer != source || bias != this.bias))
+				total += flush();
+			source = timer;
+			this.bias = bias;
+			times[count++] = now;
+			if(count == ENTROPY_BATCH || now - times[0] >= ENTROPY_BATCH_TIME)
+				total += flush();
+			return total;
+		}
+
+		private int flush() {
+			int total;
+			try {
+				total = master.acceptTimerEntropy(source, times, count, bias);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" passing entropy to "+master, t);
+				total = 0;
+			}
+			count = 0;
+			source = null;
+			return total;
+		}
+	}
+
+}
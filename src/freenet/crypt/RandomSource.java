@@ -56,6 +56,20 @@ public abstract class RandomSource extends Random {
      * Must be <= 1.0.
      */
     public abstract int acceptTimerEntropy(EntropySource fnpTimingSource, double bias);
+    
+    /**
+     * Accept a batch of timing events from one source, as if acceptTimerEntropy() had been
+     * called at each of them in turn. Implementations should only take their locks once.
+     * @param times System.currentTimeMillis() at each event.
+     * @param count The number of events in times.
+     * @param bias Value by which we multiply the entropy before counting it. Must be <= 1.0.
+     */
+    public int acceptTimerEntropy(EntropySource timer, long[] times, int count, double bias) {
+    	int total = 0;
+    	for(int i = 0; i < count; i++)
+    		total += acceptEntropy(timer, times[i] - timer.lastVal, (int) (32 * bias));
+    	return total;
+    }
 
     /**
      * Accepts larger amounts of entropy data from a source, with a bias
@@ -501,6 +501,26 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 
 	private int accept_entropy(long data, EntropySource source, int actualEntropy) {
 
+		boolean performedPoolReseed;
+		synchronized(this) {
+			performedPoolReseed = pool_entropy(data, source, actualEntropy);
+		}
+		if(performedPoolReseed && (seedfile != null)) {
+			//Dont do this while synchronized on 'this' since
+			//opening a file seems to be suprisingly slow on windows
+			if(logMINOR)
+				Logger.minor(this, "Writing seedfile");
+			write_seed(seedfile);
+			if(logMINOR)
+				Logger.minor(this, "Written seedfile");
+		}
+
+		return actualEntropy;
+	}
+
+	/** Add one sample to the pools. Caller must be synchronized on this.
+	 * @return True if we reseeded. */
+	private boolean pool_entropy(long data, EntropySource source, int actualEntropy) {
 		boolean performedPoolReseed = false;
 		byte[] b = new byte[] {
 				(byte) data,
@@ -513,63 +533,51 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 				(byte) (data >> 56)
 		};
 
-		synchronized(this) {
-			fast_select = !fast_select;
-			MessageDigest pool = (fast_select ? fast_pool : slow_pool);
-			pool.update(b);
-
-			if(fast_select) {
-				fast_entropy += actualEntropy;
-				if(fast_entropy > FAST_THRESHOLD) {
-					fast_pool_reseed();
-					performedPoolReseed = true;
-				}
-			} else {
-				slow_entropy += actualEntropy;
-
-				if(source != null) {
-					int[] contributedEntropy = entropySeen.get(source);
-					if(contributedEntropy == null) {
-						contributedEntropy = new int[] { actualEntropy };
-						entropySeen.put(source, contributedEntropy);
-					} else
-						contributedEntropy[0]+=actualEntropy;
-
-					if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
-						int kc = 0;
-						for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
-							EntropySource key = e.getKey();
-							int[] v = e.getValue();
-							if(DEBUG)
-								Logger.normal(this, "Key: <" + key + "> " + v);
-							if(v[0] > SLOW_THRESHOLD) {
-								kc++;
-								if(kc >= SLOW_K) {
-									slow_pool_reseed();
-									performedPoolReseed = true;
-									break;
-								}
+		fast_select = !fast_select;
+		MessageDigest pool = (fast_select ? fast_pool : slow_pool);
+		pool.update(b);
+
+		if(fast_select) {
+			fast_entropy += actualEntropy;
+			if(fast_entropy > FAST_THRESHOLD) {
+				fast_pool_reseed();
+				performedPoolReseed = true;
+			}
+		} else {
+			slow_entropy += actualEntropy;
+
+			if(source != null) {
+				int[] contributedEntropy = entropySeen.get(source);
+				if(contributedEntropy == null) {
+					contributedEntropy = new int[] { actualEntropy };
+					entropySeen.put(source, contributedEntropy);
+				} else
+					contributedEntropy[0]+=actualEntropy;
+
+				if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
+					int kc = 0;
+					for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
+						EntropySource key = e.getKey();
+						int[] v = e.getValue();
+						if(DEBUG)
+							Logger.normal(this, "Key: <" + key + "> " + v);
+						if(v[0] > SLOW_THRESHOLD) {
+							kc++;
+							if(kc >= SLOW_K) {
+								slow_pool_reseed();
+								performedPoolReseed = true;
+								break;
 							}
 						}
 					}
 				}
 			}
-			if(DEBUG)
-				//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
-				// "+slow_entropy, LogLevel.NORMAL);
-				System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
 		}
-		if(performedPoolReseed && (seedfile != null)) {
-			//Dont do this while synchronized on 'this' since
-			//opening a file seems to be suprisingly slow on windows
-			if(logMINOR)
-				Logger.minor(this, "Writing seedfile");
-			write_seed(seedfile);
-			if(logMINOR)
-				Logger.minor(this, "Written seedfile");
-		}
-
-		return actualEntropy;
+		if(DEBUG)
+			//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
+			// "+slow_entropy, LogLevel.NORMAL);
+			System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+		return performedPoolReseed;
 	}
 
 	private int estimateEntropy(EntropySource source, long newVal) {
@@ -627,6 +635,23 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 		return acceptEntropy(timer, now - timer.lastVal, 32, bias);
 	}
 
+	@Override
+	public int acceptTimerEntropy(EntropySource timer, long[] times, int count, double bias) {
+		int total = 0;
+		boolean performedPoolReseed = false;
+		synchronized(this) {
+			for(int i = 0; i < count; i++) {
+				long data = times[i] - timer.lastVal;
+				int actualEntropy = (int) (bias * Math.min(32, estimateEntropy(timer, data)));
+				performedPoolReseed |= pool_entropy(data, timer, actualEntropy);
+				total += actualEntropy;
+			}
+		}
+		if(performedPoolReseed && (seedfile != null))
+			write_seed(seedfile);
+		return total;
+	}
+
 	/**
 	 * If entropy estimation is supported, this method will block until the
 	 * specified number of bits of entropy are available. If estimation isn't
@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
 import java.util.Arrays;
@@ -103,11 +104,31 @@ public class NetworkInterface implements Closeable {
 
 	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
 		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor);
-		String[] failedBind = iface.setBindTo(bindTo, ignoreUnbindableIP6);
+		iface.bindOrWarn(bindTo, ignoreUnbindableIP6);
+		return iface;
+	}
+	
+	/**
+	 * Like {@link #create(int, String, String, Executor, boolean)}, but the accepted sockets
+	 * have a {@link java.nio.channels.SocketChannel}, so they can be served by a selector, or
+	 * written to directly from a file with {@link java.nio.channels.FileChannel#transferTo}.
+	 */
+	public static NetworkInterface createChannelBacked(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor) {
+			@Override
+			protected ServerSocket createServerSocket() throws IOException {
+				return ServerSocketChannel.open().socket();
+			}
+		};
+		iface.bindOrWarn(bindTo, ignoreUnbindableIP6);
+		return iface;
+	}
+	
+	private void bindOrWarn(String bindTo, boolean ignoreUnbindableIP6) {
+		String[] failedBind = setBindTo(bindTo, ignoreUnbindableIP6);
 		if(failedBind != null) {
 			System.err.println("Could not bind to some of the interfaces specified for port "+port+" : "+Arrays.toString(failedBind));
 		}
-		return iface;
 	}
 	
 	/**
@@ -145,6 +145,8 @@ public class DMT {
 	public static final String REJECT_STATS = "rejectStats";
 	public static final String OUTPUT_BANDWIDTH_CLASS = "outputBandwidthClass";
 	public static final String CAPACITY_USAGE = "capacityUsage";
+	public static final String FIRST_BLOCK = "firstBlock";
+	public static final String BLOCK_COUNT = "blockCount";
 	
 	/** Very urgent */
 	public static final short PRIORITY_NOW=0;
@@ -1668,6 +1670,21 @@ public class DMT {
 		return msg;
 	}
 	
+	/** Attached to a UOMFetchDependency to ask for only some of the blocks, so that we can
+	 * fetch different parts of the file from different peers at the same time. Older nodes
+	 * ignore it and send the whole file. */
+	public static final MessageType UOMFetchDependencyRange = new MessageType("UOMFetchDependencyRange", PRIORITY_LOW) {{
+		addField(FIRST_BLOCK, Integer.class);
+		addField(BLOCK_COUNT, Integer.class);
+	}};
+	
+	public static Message createUOMFetchDependencyRange(int firstBlock, int blockCount) {
+		Message msg = new Message(UOMFetchDependencyRange);
+		msg.set(FIRST_BLOCK, firstBlock);
+		msg.set(BLOCK_COUNT, blockCount);
+		return msg;
+	}
+	
 	// Secondary messages (debug messages attached to primary messages)
 	
 	public static final MessageType FNPSwapNodeUIDs = new MessageType("FNPSwapNodeUIDs", PRIORITY_UNSPECIFIED) {{
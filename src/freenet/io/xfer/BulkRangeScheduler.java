@@ -0,0 +1,191 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import freenet.support.Logger;
+
+/**
+ * Decides which blocks of a PartiallyReceivedBulk to fetch from which peer, when we are fetching
+ * it from several peers at once. The file is split into ranges of blocks, and each peer is given
+ * the next range nobody has fetched yet as soon as it has finished its last one, so faster peers
+ * fetch more of the file. When there are no ranges left, a peer which has finished is given a
+ * range which a slower peer is still working on, so the last few ranges aren't held up by the
+ * slowest peer. Whichever finishes first wins; the blocks are only stored once.
+ *
+ * The caller receives each range with a BulkReceiver and reports the result.
+ *
+ * LOCKING: Thread-safe.
+ * @param <P> The peer type.
+ */
+public class BulkRangeScheduler<P> {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(BulkRangeScheduler.class);
+	}
+
+	/** At most this many peers work on a range at once. */
+	static final int MAX_PEERS_PER_RANGE = 2;
+
+	public static final class Range {
+		public final int firstBlock;
+		public final int blockCount;
+		/** The range this duplicates, or null. */
+		private final Range original;
+
+		private Range(int firstBlock, int blockCount, Range original) {
+			this.firstBlock = firstBlock;
+			this.blockCount = blockCount;
+			this.original = original;
+		}
+
+		@Override
+		public String toString() {
+			return "blocks "+firstBlock+" to "+(firstBlock+blockCount-1);
+		}
+	}
+
+	/** Per-peer statistics. */
+	private static class PeerStats {
+		long blocks;
+		long millis;
+		int failures;
+
+		/** @return Blocks per second, or 0 if we don't know yet. */
+		double throughput() {
+			if(blocks == 0) return 0;
+			return blocks * 1000.0 / Math.max(1, millis);
+		}
+	}
+
+	private final PartiallyReceivedBulk prb;
+	/** Ranges nobody is working on. */
+	private final LinkedList<Range> pending = new LinkedList<Range>();
+	/** Ranges somebody is working on, not including duplicates, and the peers working on each
+	 * range or a duplicate of it. */
+	private final Map<Range, List<P>> running = new HashMap<Range, List<P>>();
+	private final Map<P, PeerStats> stats = new HashMap<P, PeerStats>();
+
+	/**
+	 * @param prb The file we are receiving. We will only fetch the blocks it doesn't have.
+	 * @param rangeSize The number of blocks to fetch from a peer at once.
+	 */
+	public BulkRangeScheduler(PartiallyReceivedBulk prb, int rangeSize) {
+		if(rangeSize <= 0) throw new IllegalArgumentException();
+		this.prb = prb;
+		for(int first = 0; first < prb.blocks; first += rangeSize)
+			pending.add(new Range(first, Math.min(rangeSize, prb.blocks - first), null));
+	}
+
+	/**
+	 * Choose a range for a peer to fetch.
+	 * @return The range, or null if there is nothing for the peer to do, because we have or are
+	 * fetching everything, and any ranges still running are running on faster peers.
+	 */
+	public synchronized Range next(P peer) {
+		while(!pending.isEmpty()) {
+			Range r = pending.removeFirst();
+			int first = prb.firstMissingBlock(r.firstBlock);
+			int end = r.firstBlock + r.blockCount;
+			if(first == -1 || first >= end) continue;
+			if(first != r.firstBlock)
+				// Partly fetched before it failed.
+				r = new Range(first, end - first, null);
+			start(r, peer);
+			return r;
+		}
+		// Endgame: Help with the range running on the slowest peer, if we are faster.
+		double ours = throughput(peer);
+		if(ours == 0) return null;
+		Range slowest = null;
+		double slowestThroughput = ours;
+		for(Map.Entry<Range, List<P>> e : running.entrySet()) {
+			List<P> peers = e.getValue();
+			if(peers.size() >= MAX_PEERS_PER_RANGE || peers.contains(peer)) continue;
+			double theirs = throughput(peers.get(0));
+			if(theirs < slowestThroughput) {
+				slowest = e.getKey();
+				slowestThroughput = theirs;
+			}
+		}
+		if(slowest == null) return null;
+		int end = slowest.firstBlock + slowest.blockCount;
+		int first = prb.firstMissingBlock(slowest.firstBlock);
+		if(first == -1 || first >= end) return null; // Just finished.
+		Range dup = new Range(first, end - first, slowest);
+		start(slowest, peer);
+		if(logMINOR) Logger.minor(this, "Duplicating "+slowest+" which is running on "+running.get(slowest).get(0)+" on "+peer);
+		return dup;
+	}
+
+	private void start(Range original, P peer) {
+		List<P> peers = running.get(original);
+		if(peers == null) {
+			peers = new ArrayList<P>(MAX_PEERS_PER_RANGE);
+			running.put(original, peers);
+		}
+		peers.add(peer);
+	}
+
+	/**
+	 * A peer has sent us all of a range.
+	 * @param millis How long it took.
+	 */
+	public synchronized void succeeded(Range r, P peer, long millis) {
+		PeerStats s = getStats(peer);
+		s.blocks += r.blockCount;
+		s.millis += millis;
+		running.remove(r.original == null ? r : r.original);
+	}
+
+	/**
+	 * A peer failed to send a range. Unless another peer is working on it, another peer will
+	 * be asked for the blocks we are still missing.
+	 */
+	public synchronized void failed(Range r, P peer) {
+		getStats(peer).failures++;
+		Range original = r.original == null ? r : r.original;
+		List<P> peers = running.get(original);
+		if(peers == null) return; // Already finished.
+		peers.remove(peer);
+		if(peers.isEmpty()) {
+			running.remove(original);
+			pending.addFirst(original);
+		}
+	}
+
+	private PeerStats getStats(P peer) {
+		PeerStats s = stats.get(peer);
+		if(s == null) {
+			s = new PeerStats();
+			stats.put(peer, s);
+		}
+		return s;
+	}
+
+	/** @return The rate at which the peer has sent us ranges, in blocks per second, or 0 if it
+	 * hasn't finished any yet. */
+	public synchronized double throughput(P peer) {
+		PeerStats s = stats.get(peer);
+		return s == null ? 0 : s.throughput();
+	}
+
+	/** @return The number of ranges the peer has failed to send. */
+	public synchronized int failures(P peer) {
+		PeerStats s = stats.get(peer);
+		return s == null ? 0 : s.failures;
+	}
+
+	/** @return True if there are ranges which nobody is fetching. */
+	public synchronized boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+}
@@ -18,6 +18,10 @@ import freenet.support.ShortBuffer;
 /**
  * Bulk (not block) data transfer - receiver class. Bulk transfer is designed for largish files, much
  * larger than blocks, where we have the whole file at the outset.
+ * 
+ * Normally we receive the whole file from one peer. We can also receive a range of blocks, in which
+ * case there may be several BulkReceivers for different peers filling in the same
+ * PartiallyReceivedBulk, and if one of them fails the others carry on.
  * @author toad
  */
 public class BulkReceiver {
@@ -30,18 +34,44 @@ public class BulkReceiver {
 	/** Transfer UID for messages */
 	final long uid;
 	private boolean sentCancel;
+	/** Range only: Why we gave up on this peer, or -1. */
+	private int failureReason = -1;
+	private String failureDescription;
 	/** Not persistent over reboots */
 	final long peerBootID;
 	private final ByteCounter ctr;
+	/** The blocks we are receiving. */
+	final int firstBlock;
+	final int blockCount;
+	/** If true we are only receiving some of the blocks, and don't abort the prb on failure. */
+	final boolean range;
 
 	public BulkReceiver(PartiallyReceivedBulk prb, PeerContext peer, long uid, ByteCounter ctr) {
+		this(prb, peer, uid, ctr, 0, prb.blocks, false);
+	}
+
+	/**
+	 * Receive some of the blocks. Blocks outside the range are kept if the sender sends them,
+	 * e.g. if it doesn't support ranges.
+	 * @throws IllegalArgumentException If the range is not within the file.
+	 */
+	public BulkReceiver(PartiallyReceivedBulk prb, PeerContext peer, long uid, ByteCounter ctr, int firstBlock, int blockCount) {
+		this(prb, peer, uid, ctr, firstBlock, blockCount, true);
+	}
+
+	private BulkReceiver(PartiallyReceivedBulk prb, PeerContext peer, long uid, ByteCounter ctr, int firstBlock, int blockCount, boolean range) {
+		if(range && !prb.isValidRange(firstBlock, blockCount))
+			throw new IllegalArgumentException("Bad range "+firstBlock+" + "+blockCount+" of "+prb.blocks);
 		this.prb = prb;
 		this.peer = peer;
 		this.uid = uid;
 		this.peerBootID = peer.getBootID();
 		this.ctr = ctr;
+		this.firstBlock = firstBlock;
+		this.blockCount = blockCount;
+		this.range = range;
 		
-		prb.recv = this;
+		prb.add(this);
 	}
 
 	public void onAborted() {
@@ -57,14 +87,22 @@ public class BulkReceiver {
 	}
 
 	/**
-	 * Receive the file.
-	 * @return True if the whole file was received, false otherwise.
+	 * Receive the file, or the range of blocks.
+	 * @return True if the whole file (or range) was received, false otherwise.
 	 */
 	public boolean receive() {
+		try {
+			return innerReceive();
+		} finally {
+			if(range) prb.remove(this);
+		}
+	}
+
+	private boolean innerReceive() {
 		while(true) {
 			MessageFilter mfSendKilled = MessageFilter.create().setSource(peer).setType(DMT.FNPBulkSendAborted) .setField(DMT.UID, uid).setTimeout(TIMEOUT);
 			MessageFilter mfPacket = MessageFilter.create().setSource(peer).setType(DMT.FNPBulkPacketSend) .setField(DMT.UID, uid).setTimeout(TIMEOUT);
-			if(prb.hasWholeFile()) {
+			if(range ? prb.hasBlocks(firstBlock, blockCount) : prb.hasWholeFile()) {
 				try {
 					peer.sendAsync(DMT.createFNPBulkReceivedAll(uid), null, ctr);
 				} catch (NotConnectedException e) {
@@ -76,26 +114,54 @@ public class BulkReceiver {
 			try {
 				m = prb.usm.waitFor(mfSendKilled.or(mfPacket), ctr);
 			} catch (DisconnectedException e) {
-				prb.abort(RetrievalException.SENDER_DISCONNECTED, "Sender disconnected");
+				failed(RetrievalException.SENDER_DISCONNECTED, "Sender disconnected");
 				return false;
 			}
 			if(peer.getBootID() != peerBootID) {
-				prb.abort(RetrievalException.SENDER_DIED, "Sender restarted");
+				failed(RetrievalException.SENDER_DIED, "Sender restarted");
 				return false;
 			}
 			if(m == null) {
-				prb.abort(RetrievalException.TIMED_OUT, "Sender timeout");
+				failed(RetrievalException.TIMED_OUT, "Sender timeout");
 				return false;
 			}
 			if(m.getSpec() == DMT.FNPBulkSendAborted) {
-				prb.abort(RetrievalException.SENDER_DIED, "Sender cancelled send");
+				failed(RetrievalException.SENDER_DIED, "Sender cancelled send");
 				return false;
 			}
 			if(m.getSpec() == DMT.FNPBulkPacketSend) {
 				int packetNo = m.getInt(DMT.PACKET_NO);
 				byte[] data = ((ShortBuffer) m.getObject(DMT.DATA)).getData();
+				if(range && !prb.isValidBlock(packetNo, data.length)) {
+					// Don't let one bad peer abort the transfer for the others.
+					failed(RetrievalException.PREMATURE_EOF, "Bad block "+packetNo+" length "+data.length);
+					return false;
+				}
 				prb.received(packetNo, data, 0, data.length);
+				if(prb.isAborted()) return false;
 			}
 		}
 	}
+
+	/** Abort the whole transfer, or if we are only receiving a range, just this one. */
+	private void failed(int reason, String description) {
+		if(range) {
+			synchronized(this) {
+				failureReason = reason;
+				failureDescription = description;
+			}
+			onAborted();
+		} else
+			prb.abort(reason, description);
+	}
+
+	/** @return Why receiving the range failed, or -1. If the whole transfer was aborted, see
+	 * the PartiallyReceivedBulk instead. */
+	public synchronized int getFailureReason() {
+		return failureReason;
+	}
+
+	public synchronized String getFailureDescription() {
+		return failureDescription;
+	}
 }
@@ -61,6 +61,9 @@ public class BulkTransmitter {
 	private String cancelReason;
 	private final ByteCounter ctr;
 	private final boolean realTime;
+	/** The blocks we are sending. Normally the whole file. */
+	private final int firstBlock;
+	private final int endBlock;
 	
 	private static long transfersCompleted;
 	private static long transfersSucceeded;
@@ -88,6 +91,21 @@ public class BulkTransmitter {
 	 * @throws DisconnectedException If the peer we are trying to send to becomes disconnected.
 	 */
 	public BulkTransmitter(PartiallyReceivedBulk prb, PeerContext peer, long uid, boolean noWait, ByteCounter ctr, boolean realTime, AllSentCallback cb) throws DisconnectedException {
+		this(prb, peer, uid, noWait, ctr, realTime, cb, 0, prb.blocks);
+	}
+	
+	/**
+	 * Create a bulk data transmitter which only sends some of the blocks, e.g. because the 
+	 * receiver is fetching the rest from other peers.
+	 * @param firstBlock The first block to send.
+	 * @param blockCount The number of blocks to send.
+	 * @throws IllegalArgumentException If the range is not within the file.
+	 */
+	public BulkTransmitter(PartiallyReceivedBulk prb, PeerContext peer, long uid, boolean noWait, ByteCounter ctr, boolean realTime, AllSentCallback cb, int firstBlock, int blockCount) throws DisconnectedException {
+		if(!prb.isValidRange(firstBlock, blockCount) && !(firstBlock == 0 && blockCount == prb.blocks))
+			throw new IllegalArgumentException("Bad range "+firstBlock+" + "+blockCount+" of "+prb.blocks);
+		this.firstBlock = firstBlock;
+		this.endBlock = firstBlock + blockCount;
 		this.prb = prb;
 		this.peer = peer;
 		this.uid = uid;
@@ -104,6 +122,10 @@ public class BulkTransmitter {
 		synchronized(prb) {
 			// We can just clone it.
 			blocksNotSentButPresent = prb.cloneBlocksReceived();
+			for(int i=0;i<firstBlock;i++)
+				blocksNotSentButPresent.setBit(i, false);
+			for(int i=endBlock;i<prb.blocks;i++)
+				blocksNotSentButPresent.setBit(i, false);
 			prb.add(this);
 		}
 		try {
@@ -176,6 +198,7 @@ public class BulkTransmitter {
 	 * @param block The block number that has been received.
 	 */
 	synchronized void blockReceived(int block) {
+		if(block < firstBlock || block >= endBlock) return;
 		blocksNotSentButPresent.setBit(block, true);
 		notifyAll();
 	}
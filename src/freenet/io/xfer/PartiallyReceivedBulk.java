@@ -33,8 +33,9 @@ public class PartiallyReceivedBulk {
 	final int blocks;
 	private BulkTransmitter[] transmitters;
 	final MessageCore usm;
-	/** The one and only BulkReceiver */
-	BulkReceiver recv;
+	/** Normally only one, but there can be several if we are fetching different blocks from
+	 * different peers. */
+	private BulkReceiver[] receivers;
 	private int blocksReceivedCount;
 	// Abort status
 	boolean _aborted;
@@ -99,6 +100,30 @@ public class PartiallyReceivedBulk {
 		}
 	}
 	
+	/**
+	 * Add a BulkReceiver. If we are aborted, we will tell each BulkReceiver.
+	 * @param br The BulkReceiver to register.
+	 */
+	synchronized void add(BulkReceiver br) {
+		if(receivers == null)
+			receivers = new BulkReceiver[] { br };
+		else {
+			receivers = Arrays.copyOf(receivers, receivers.length+1);
+			receivers[receivers.length-1] = br;
+		}
+	}
+	
+	synchronized void remove(BulkReceiver remove) {
+		if(receivers == null) return;
+		int j = 0;
+		BulkReceiver[] newRecv = new BulkReceiver[receivers.length];
+		for(BulkReceiver r: receivers) {
+			if(r != remove) newRecv[j++] = r;
+		}
+		if(j == receivers.length) return;
+		receivers = j == 0 ? null : Arrays.copyOf(newRecv, j);
+	}
+	
 	/**
 	 * Called when a block has been received. Will copy the data from the provided buffer and store it.
 	 * @param blockNum The block number.
@@ -144,21 +169,24 @@ public class PartiallyReceivedBulk {
 		if(logMINOR)
 			Logger.normal(this, "Aborting "+this+": "+errCode+" : "+why+" first missing is "+blocksReceived.firstZero(0), new Exception("debug"));
 		BulkTransmitter[] notifyBTs;
-		BulkReceiver notifyBR;
+		BulkReceiver[] notifyBRs;
 		synchronized(this) {
 			_aborted = true;
 			_abortReason = errCode;
 			_abortDescription = why;
 			notifyBTs = transmitters;
-			notifyBR = recv;
+			notifyBRs = receivers;
 		}
 		if(notifyBTs != null) {
 			for(BulkTransmitter notifyBT: notifyBTs) {
 				notifyBT.onAborted();
 			}
 		}
-		if(notifyBR != null)
-			notifyBR.onAborted();
+		if(notifyBRs != null) {
+			for(BulkReceiver notifyBR: notifyBRs) {
+				notifyBR.onAborted();
+			}
+		}
 		raf.close();
 	}
 
@@ -170,6 +198,35 @@ public class PartiallyReceivedBulk {
 		return blocksReceivedCount >= blocks;
 	}
 
+	/** @return True if we have all of the given blocks. */
+	public synchronized boolean hasBlocks(int firstBlock, int blockCount) {
+		int missing = blocksReceived.firstZero(firstBlock);
+		return missing == -1 || missing >= firstBlock + blockCount;
+	}
+
+	/** @return The first block at or after start which we don't have, or -1. */
+	public synchronized int firstMissingBlock(int start) {
+		return blocksReceived.firstZero(start);
+	}
+
+	/** @return The number of blocks in the file. */
+	public int getBlockCount() {
+		return blocks;
+	}
+
+	/** @return True if blockCount blocks starting at firstBlock are all in the file. */
+	public boolean isValidRange(int firstBlock, int blockCount) {
+		return firstBlock >= 0 && blockCount > 0 && (long)firstBlock + blockCount <= blocks;
+	}
+
+	/** @return True if a block with this number and length could be part of the file, i.e. 
+	 * received() would store it rather than ignore it or abort the transfer. */
+	public boolean isValidBlock(int blockNum, int length) {
+		if(blockNum < 0 || blockNum >= blocks) return false;
+		long fileOffset = (long)blockNum * (long)blockSize;
+		return length >= Math.min(blockSize, size - fileOffset);
+	}
+
 	public byte[] getBlockData(int blockNum) {
 		long fileOffset = (long)blockNum * (long)blockSize;
 		int bs = (int) Math.min(blockSize, size - fileOffset);
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.crypt.DSA;
+import freenet.crypt.DSAGroup;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSASignature;
+import freenet.crypt.FixedBaseModPow;
+import freenet.crypt.SHA256;
+import freenet.node.NodeStarter;
+import freenet.support.TinyLFUCache;
+
+/**
+ * Checks the signatures on SSK blocks, which USK polling in particular does a lot of: the same
+ * block is fetched and verified again every time we poll, from the store or from the network,
+ * and a popular USK's editions are all signed with the same key.
+ *
+ * So we remember which (public key, hash, signature) triples have verified, in a bounded cache
+ * which only admits entries that are used more often than the ones they would replace. Only
+ * successful verifications are cached, and the cache key covers everything that goes into the
+ * check, so a hit gives the same answer verifying again would.
+ *
+ * We also keep tables of precomputed powers ({@link FixedBaseModPow}) for the group generator,
+ * which every SSK uses, and for the public keys which have signed the most blocks recently.
+ * @see SSKBlock
+ */
+public class SSKVerifier {
+
+	/** Verified signatures we remember. Each entry costs a few hundred bytes. */
+	static final int VERIFIED_CACHE_SIZE = 8192;
+	/** Public keys we keep powers of. Each table costs around 800KiB. */
+	static final int KEY_TABLES = 4;
+	/** Verifications with a key, among the recently used keys, before we build a table for it. */
+	static final int KEY_TABLE_THRESHOLD = 32;
+	/** Recently used keys we count verifications for. */
+	private static final int KEY_USES_SIZE = 1024;
+
+	private final TinyLFUCache<Boolean> verified;
+	private final TinyLFUCache<AtomicInteger> keyUses;
+	private final TinyLFUCache<FixedBaseModPow> keyTables;
+	/** Generator tables by group. In practice there is only one group. */
+	private final Map<DSAGroup, FixedBaseModPow> groupTables = new HashMap<DSAGroup, FixedBaseModPow>();
+
+	private static final SSKVerifier global = new SSKVerifier();
+
+	/** @return The verifier shared by everything in this JVM. */
+	public static SSKVerifier get() {
+		return global;
+	}
+
+	SSKVerifier() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		verified = new TinyLFUCache<Boolean>(VERIFIED_CACHE_SIZE, cores, true, null, NodeStarter.getGlobalSecureRandom());
+		keyUses = new TinyLFUCache<AtomicInteger>(KEY_USES_SIZE, cores, false, null, NodeStarter.getGlobalSecureRandom());
+		keyTables = new TinyLFUCache<FixedBaseModPow>(KEY_TABLES, cores, true, null, NodeStarter.getGlobalSecureRandom());
+	}
+
+	/**
+	 * Verify the signature on an SSK, over either form of the hash.
+	 * @param pubKeyHash The hash of pubKey, as in the NodeSSK.
+	 * @param overallHash The hash the signature is over.
+	 * @param bufR The signature's R, as unsigned bytes.
+	 * @param bufS The signature's S, as unsigned bytes.
+	 */
+	public boolean verify(DSAPublicKey pubKey, byte[] pubKeyHash, byte[] overallHash, byte[] bufR, byte[] bufS) {
+		byte[] cacheKey = cacheKey(pubKeyHash, overallHash, bufR, bufS);
+		if(verified.get(cacheKey) != null) return true;
+		BigInteger r = new BigInteger(1, bufR);
+		BigInteger s = new BigInteger(1, bufS);
+		if(r.signum() == 0 || s.signum() == 0) return false;
+		DSASignature sig = new DSASignature(r, s);
+		boolean valid = DSA.verifyEitherForm(pubKey, sig, new BigInteger(1, overallHash),
+				groupTable(pubKey.getGroup()), keyTable(pubKey, pubKeyHash));
+		if(valid)
+			verified.offer(cacheKey, Boolean.TRUE);
+		return valid;
+	}
+
+	private static byte[] cacheKey(byte[] pubKeyHash, byte[] overallHash, byte[] bufR, byte[] bufS) {
+		MessageDigest md = SHA256.getMessageDigest();
+		md.update(pubKeyHash);
+		md.update(overallHash);
+		md.update(bufR);
+		md.update(bufS);
+		byte[] key = md.digest();
+		SHA256.returnMessageDigest(md);
+		return key;
+	}
+
+	private FixedBaseModPow groupTable(DSAGroup group) {
+		synchronized(groupTables) {
+			FixedBaseModPow table = groupTables.get(group);
+			if(table == null) {
+				table = new FixedBaseModPow(group.getG(), group.getP(), group.getQ().bitLength());
+				groupTables.put(group, table);
+			}
+			return table;
+		}
+	}
+
+	/** @return The table for the key if we have one, building it if the key is used enough. */
+	private FixedBaseModPow keyTable(DSAPublicKey pubKey, byte[] pubKeyHash) {
+		FixedBaseModPow table = keyTables.get(pubKeyHash);
+		if(table != null) return table;
+		AtomicInteger uses = keyUses.get(pubKeyHash);
+		if(uses == null) {
+			keyUses.offer(pubKeyHash, new AtomicInteger(1));
+			return null;
+		}
+		// If the table isn't admitted, try again after as many uses again.
+		if(uses.incrementAndGet() % KEY_TABLE_THRESHOLD != 0) return null;
+		// Building a table costs about as much as 50 verifications.
+		table = new FixedBaseModPow(pubKey.getY(), pubKey.getP(), pubKey.getQ().bitLength());
+		return keyTables.offer(pubKeyHash, table) ? table : null;
+	}
+
+	/** @return The number of verifications answered from the cache. */
+	public long cacheHits() {
+		return verified.hits();
+	}
+
+	/** @return The number of verifications we had to do. */
+	public long cacheMisses() {
+		return verified.misses();
+	}
+
+}
@@ -0,0 +1,277 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import freenet.crypt.ECDHLightContext;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Precomputed ECDH contexts (a key pair, signed with our ECDSA key) for JFK handshakes, so that
+ * we never have to generate one while handling a handshake packet.
+ *
+ * Contexts are handed out in rotation and reused, as JFK allows, but each one is only used for
+ * {@link #MAX_USES_PER_CONTEXT} handshakes and {@link #MAX_CONTEXT_AGE} at most, so that a storm
+ * of handshakes doesn't put lots of peers on the same exponential. When handshakes are rare the
+ * pool behaves as the old FIFO did: {@link FNPPacketMangler#DH_CONTEXT_BUFFER_SIZE} contexts,
+ * one replaced every {@link FNPPacketMangler#DH_GENERATION_INTERVAL}. When they come faster the
+ * target size grows with the observed rate, and contexts are generated by several low priority
+ * jobs in parallel. If we run out of fresh contexts we reuse one which is over its limit rather
+ * than generate on-thread; that is counted as a miss.
+ *
+ * Contexts which have left the rotation are kept for {@link #RETIRED_LIFETIME} so that we can
+ * still find them when JFK(3) comes back for a handshake which used them.
+ */
+class ECDHContextPool {
+
+	/** Generates a new, signed context. Called on a low priority job. */
+	interface Generator {
+		ECDHLightContext generate();
+	}
+
+	/** Handshakes per context before we take it out of the rotation. */
+	static final int MAX_USES_PER_CONTEXT = 32;
+	/** Contexts older than this are taken out of the rotation. */
+	static final long MAX_CONTEXT_AGE = (long) FNPPacketMangler.DH_GENERATION_INTERVAL * FNPPacketMangler.DH_CONTEXT_BUFFER_SIZE;
+	/** The fewest contexts we keep. */
+	static final int MIN_SIZE = FNPPacketMangler.DH_CONTEXT_BUFFER_SIZE;
+	/** The most contexts we keep in the rotation, however busy we are. */
+	static final int MAX_SIZE = 512;
+	/** We aim to have enough fresh contexts for this long at the current handshake rate. */
+	static final long REFILL_HORIZON = 30 * 1000;
+	/** How long we can still find a context after it has left the rotation. */
+	static final long RETIRED_LIFETIME = 5 * 60 * 1000;
+	/** Period over which we count handshakes to estimate the rate. */
+	private static final long RATE_PERIOD = 10 * 1000;
+
+	private final Generator generator;
+	private final Executor executor;
+	private final int maxParallel;
+
+	private final ArrayDeque<Entry> rotation = new ArrayDeque<Entry>();
+	/** In the order they were retired. */
+	private final ArrayDeque<Entry> retired = new ArrayDeque<Entry>();
+	/** By encoded public key: the key we get back in JFK(3) may not come from the same provider. */
+	private final HashMap<ByteArrayWrapper, Entry> byKey = new HashMap<ByteArrayWrapper, Entry>();
+	private int generating;
+	private long lastGenerated;
+
+	private long rateStart;
+	private int rateCount;
+	/** Handshakes per second, decaying average. */
+	private double rate;
+
+	private long hits;
+	private long misses;
+	private long empty;
+	private long generated;
+
+	private static final class Entry {
+		final ECDHLightContext ctx;
+		final long created;
+		int uses;
+		long retiredAt;
+
+		Entry(ECDHLightContext ctx, long created) {
+			this.ctx = ctx;
+			this.created = created;
+		}
+	}
+
+	ECDHContextPool(Generator generator, Executor executor) {
+		this.generator = generator;
+		this.executor = executor;
+		this.maxParallel = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	}
+
+	/** Generate contexts on this thread, up to the minimum size. Used at startup. */
+	void fill() {
+		int needed;
+		synchronized(this) {
+			needed = MIN_SIZE - rotation.size();
+		}
+		for(int i = 0; i < needed; i++)
+			add(generator.generate(), System.currentTimeMillis());
+	}
+
+	/**
+	 * @return A context to use for a handshake, or null if we have none at all.
+	 */
+	ECDHLightContext get(long now) {
+		ECDHLightContext result = null;
+		synchronized(this) {
+			countHandshake(now);
+			Entry e;
+			while((e = rotation.pollFirst()) != null) {
+				if(!rotation.isEmpty() && isStale(e, now)) {
+					retire(e, now);
+					continue;
+				}
+				if(isStale(e, now))
+					misses++;
+				else
+					hits++;
+				e.uses++;
+				if(e.uses >= MAX_USES_PER_CONTEXT && !rotation.isEmpty())
+					retire(e, now);
+				else
+					rotation.addLast(e);
+				result = e.ctx;
+				break;
+			}
+			if(result == null)
+				empty++;
+		}
+		maybeGenerate(now);
+		return result;
+	}
+
+	/** @return The context with the given public key, if it is or was recently in the pool. */
+	synchronized ECDHLightContext find(ECPublicKey key) {
+		Entry e = byKey.get(new ByteArrayWrapper(key.getEncoded()));
+		return e == null ? null : e.ctx;
+	}
+
+	private static boolean isStale(Entry e, long now) {
+		return e.uses >= MAX_USES_PER_CONTEXT || now - e.created > MAX_CONTEXT_AGE;
+	}
+
+	private void countHandshake(long now) {
+		if(rateStart == 0) rateStart = now;
+		rateCount++;
+		updateRate(now);
+	}
+
+	private void updateRate(long now) {
+		long elapsed = now - rateStart;
+		if(elapsed < RATE_PERIOD) return;
+		double current = rateCount * 1000.0 / elapsed;
+		// Forget quickly, so we shrink back after a storm.
+		if(elapsed > 2 * RATE_PERIOD)
+			rate = current;
+		else
+			rate = (rate + current) / 2;
+		rateStart = now;
+		rateCount = 0;
+	}
+
+	/** @return The number of contexts we want in the rotation at the current handshake rate. */
+	synchronized int targetSize() {
+		double perHorizon = rate * REFILL_HORIZON / 1000.0 / MAX_USES_PER_CONTEXT;
+		return (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, Math.ceil(perHorizon)));
+	}
+
+	private void retire(Entry e, long now) {
+		e.retiredAt = now;
+		retired.addLast(e);
+	}
+
+	private void pruneRetired(long now) {
+		Entry e;
+		while((e = retired.peekFirst()) != null &&
+				(now - e.retiredAt > RETIRED_LIFETIME || retired.size() > MAX_SIZE)) {
+			retired.removeFirst();
+			byKey.remove(new ByteArrayWrapper(e.ctx.getPublicKey().getEncoded()));
+		}
+	}
+
+	private void maybeGenerate(long now) {
+		int jobs;
+		synchronized(this) {
+			int fresh = 0;
+			for(Entry e : rotation)
+				if(!isStale(e, now)) fresh++;
+			int deficit = targetSize() - fresh - generating;
+			// Replace one every DH_GENERATION_INTERVAL even if we have enough.
+			if(deficit <= 0 && generating == 0 && now - lastGenerated > FNPPacketMangler.DH_GENERATION_INTERVAL)
+				deficit = 1;
+			jobs = Math.min(deficit, maxParallel - generating);
+			if(jobs <= 0) return;
+			generating += jobs;
+			lastGenerated = now;
+		}
+		for(int i = 0; i < jobs; i++) {
+			executor.execute(new PrioRunnable() {
+				@Override
+				public void run() {
+					ECDHLightContext ctx = null;
+					try {
+						ctx = generator.generate();
+					} catch (Throwable t) {
+						Logger.error(this, "Failed to generate ECDH context: "+t, t);
+					} finally {
+						synchronized(ECDHContextPool.this) {
+							generating--;
+						}
+					}
+					if(ctx != null)
+						add(ctx, System.currentTimeMillis());
+				}
+
+				@Override
+				public int getPriority() {
+					return NativeThread.MIN_PRIORITY;
+				}
+			}, "ECDH exponential signing");
+		}
+	}
+
+	private synchronized void add(ECDHLightContext ctx, long now) {
+		Entry added = new Entry(ctx, now);
+		rotation.addLast(added);
+		byKey.put(new ByteArrayWrapper(ctx.getPublicKey().getEncoded()), added);
+		generated++;
+		int target = targetSize();
+		while(rotation.size() > target) {
+			// Retire the oldest.
+			Entry oldest = null;
+			for(Entry e : rotation)
+				if(oldest == null || e.created < oldest.created) oldest = e;
+			rotation.remove(oldest);
+			retire(oldest, now);
+		}
+		pruneRetired(now);
+	}
+
+	/** @return Handshakes which got a fresh context. */
+	synchronized long hits() {
+		return hits;
+	}
+
+	/** @return Handshakes which had to reuse a context beyond its limits. */
+	synchronized long misses() {
+		return misses;
+	}
+
+	/** @return Handshakes which got no context at all. */
+	synchronized long empty() {
+		return empty;
+	}
+
+	synchronized long generated() {
+		return generated;
+	}
+
+	/** @return Contexts in the rotation. */
+	synchronized int size() {
+		return rotation.size();
+	}
+
+	/** @return Contexts which have left the rotation but can still be found. */
+	synchronized int retiredSize() {
+		return retired.size();
+	}
+
+	/** @return Handshakes per second, averaged over the last minute or so. */
+	synchronized double handshakeRate() {
+		return rate;
+	}
+
+}
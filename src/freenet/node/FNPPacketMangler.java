@@ -10,7 +10,6 @@ import java.security.MessageDigest;
 import java.security.interfaces.ECPublicKey;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.ECDH;
@@ -47,6 +46,7 @@ import freenet.support.TimeUtil;
 import freenet.support.io.FileUtil;
 import freenet.support.io.InetAddressComparator;
 import freenet.support.io.NativeThread;
+import freenet.support.math.BootstrappingDecayingRunningAverage;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -91,18 +91,19 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		JFK_PREFIX_RESPONDER = R;
 	}
 
-	/* How often shall we generate a new exponential and add it to the FIFO? */
+	/* How often shall we generate a new exponential even when handshakes are rare? */
 	public final static int DH_GENERATION_INTERVAL = 30000; // 30sec
-	/* How big is the FIFO? */
+	/* How many exponentials do we keep when handshakes are rare? */
 	public final static int DH_CONTEXT_BUFFER_SIZE = 20;
-	/*
-	* The FIFO itself
-	* Get a lock on dhContextFIFO before touching it!
-	*/
-	private final LinkedList<ECDHLightContext> ecdhContextFIFO = new LinkedList<ECDHLightContext>();
-	private ECDHLightContext ecdhContextToBePrunned;
 	private static final ECDH.Curves ecdhCurveToUse = ECDH.Curves.P256;
-	private long jfkECDHLastGenerationTimestamp = 0;
+	/** Our precomputed exponentials, sized to the handshake rate. */
+	private final ECDHContextPool ecdhContexts;
+	/** Time from sending JFK(1) to completing a handshake on JFK(4), in ms. */
+	private final BootstrappingDecayingRunningAverage handshakeRoundTrip =
+		new BootstrappingDecayingRunningAverage(0.0, 0.0, MINUTES.toMillis(10), 100, null);
+	/** Time to handle a JFK(1) and send JFK(2), in ms. */
+	private final BootstrappingDecayingRunningAverage jfk1ProcessingTime =
+		new BootstrappingDecayingRunningAverage(0.0, 0.0, MINUTES.toMillis(1), 100, null);
 
 	private static final int HASH_LENGTH = SHA256.getDigestLength();
 	/** The size of the key used to authenticate the hmac */
@@ -133,6 +134,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		this.crypto = crypt;
 		this.sock = sock;
 		authenticatorCache = new HashMap<ByteArrayWrapper, byte[]>();
+		ecdhContexts = new ECDHContextPool(new ECDHContextPool.Generator() {
+			@Override
+			public ECDHLightContext generate() {
+				return _genECDHLightContext();
+			}
+		}, node.executor);
 	}
 
 	/**
@@ -142,10 +149,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	public void start() {
 		// Run it directly so that the transient key is set.
 		maybeResetTransientKey();
-		// Fill the DH FIFO on-thread
-		for(int i=0;i<DH_CONTEXT_BUFFER_SIZE;i++) {
-			_fillJFKECDHFIFO();
-		}
+		// Fill the DH pool on-thread
+		ecdhContexts.fill();
 		this.authHandlingThread.start(node.executor, "FNP incoming auth packet handler thread");
 	}
 
@@ -472,8 +477,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			Logger.error(this, "Decrypted auth packet but invalid version: "+version);
 			return;
 		}
-		if(!(negType == 9 || negType == 10)) {
-			if(negType > 10)
+		if(!supportsNegType(negType)) {
+			if(negType > 9)
 				Logger.error(this, "Unknown neg type: "+negType);
 			else
 				Logger.warning(this, "Received a setup packet with unsupported obsolete neg type: "+negType);
@@ -532,8 +537,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			Logger.error(this, "Decrypted auth packet but invalid version: "+version);
 			return;
 		}
-		if(!(negType == 9 || negType == 10)) {
-			if(negType > 10)
+		if(!supportsNegType(negType)) {
+			if(negType > 9)
 				Logger.error(this, "Unknown neg type: "+negType);
 			else
 				Logger.warning(this, "Received a setup packet with unsupported obsolete neg type: "+negType);
@@ -611,7 +616,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			// negType 0 through 5 no longer supported, used old FNP.
 			Logger.warning(this, "Old neg type "+negType+" not supported");
 			return;
-		} else if (negType == 9 || negType == 10) {
+		} else if (supportsNegType(negType)) {
+			// negType == 11 => Encrypt packets with AES-256 in CTR mode through the JCA (128-bit blocks)
+			//      instead of Rijndael with 256-bit blocks in PCFB mode. Only offered if the JCA can do it.
 			// negType == 10 => Changes the method of ack encoding (from single-ack to cummulative range acks)
 		    // negType == 9 => Lots of changes:
 		    //      Security fixes:
@@ -751,6 +758,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		    }
 
 		long t2=System.currentTimeMillis();
+		jfk1ProcessingTime.report(t2-t1);
 		if((t2-t1)>500) {
 			Logger.error(this,"Message1 timeout error:Processing packet for "+pn);
 		}
@@ -865,6 +873,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		} else {
 			sendAuthPacket(1,negType,0,message1,pn,replyTo);
 		}
+		pn.jfkMessage1SentTime = now;
 		long t2=System.currentTimeMillis();
 		if((t2-now)>500) {
 			Logger.error(this,"Message1 timeout error:Sending packet for "+pn.getPeer());
@@ -1594,6 +1603,10 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		}
 
 		final long t2=System.currentTimeMillis();
+		if(pn.jfkMessage1SentTime > 0) {
+			handshakeRoundTrip.report(t2 - pn.jfkMessage1SentTime);
+			pn.jfkMessage1SentTime = 0;
+		}
 		if((t2-t1)>500)
 			Logger.error(this,"Message4 timeout error:Processing packet from "+pn.getPeer());
 		return true;
@@ -2038,9 +2051,17 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 
 	@Override
 	public int[] supportedNegTypes(boolean forPublic) {
+		if(PacketCipher.aesCtrAvailable())
+			return new int[] { 9, 10, 11 };
 		return new int[] { 9, 10 };
 	}
 
+	private boolean supportsNegType(int negType) {
+		for(int supported : supportedNegTypes(false))
+			if(supported == negType) return true;
+		return false;
+	}
+
 	@Override
 	public SocketHandler getSocketHandler() {
 		return sock;
@@ -2069,66 +2090,16 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
         return ctx;
     }
 
-    private void _fillJFKECDHFIFOOffThread() {
-        // do it off-thread
-        node.executor.execute(new PrioRunnable() {
-            @Override
-            public void run() {
-                _fillJFKECDHFIFO();
-            }
-            @Override
-            public int getPriority() {
-                return NativeThread.MIN_PRIORITY;
-            }
-        }, "ECDH exponential signing");
-    }
-    
-	private void _fillJFKECDHFIFO() {
-        synchronized (ecdhContextFIFO) {
-            int size = ecdhContextFIFO.size();
-            if((size > 0) && (size + 1 > DH_CONTEXT_BUFFER_SIZE)) {
-                ECDHLightContext result = null;
-                long oldestSeen = Long.MAX_VALUE;
-
-                for (ECDHLightContext tmp: ecdhContextFIFO) {
-                    if(tmp.lifetime < oldestSeen) {
-                        oldestSeen = tmp.lifetime;
-                        result = tmp;
-                    }
-                }
-                ecdhContextFIFO.remove(ecdhContextToBePrunned = result);
-            }
-
-            ecdhContextFIFO.addLast(_genECDHLightContext());
-        }
-    }
-	
     /**
-     * Change the ECDH key on a regular basis but at most once every 30sec
+     * Get an exponential from the pool. Never generates on-thread as it might block.
      *
      * @return {@link ECDHLightContext}
-     * @throws NoContextsException 
+     * @throws NoContextsException If the pool is empty.
      */
     private ECDHLightContext getECDHLightContext() throws NoContextsException {
-        final long now = System.currentTimeMillis();
-        ECDHLightContext result = null;
-
-        synchronized (ecdhContextFIFO) {
-            result = ecdhContextFIFO.pollFirst();
-            
-            // Shall we replace one element of the queue ?
-            if((jfkECDHLastGenerationTimestamp + DH_GENERATION_INTERVAL) < now) {
-                jfkECDHLastGenerationTimestamp = now;
-                _fillJFKECDHFIFOOffThread();
-            }
-            
-            // Don't generate on-thread as it might block.
-            if(result == null)
-                throw new NoContextsException();
-
-            ecdhContextFIFO.addLast(result);
-        }
-
+        ECDHLightContext result = ecdhContexts.get(System.currentTimeMillis());
+        if(result == null)
+            throw new NoContextsException();
         if(logMINOR) Logger.minor(this, "getECDHLightContext() is serving "+result.hashCode());
         return result;
     }
@@ -2144,24 +2115,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 
 	 /**
      * Used in processJFK[3|4]
-     * That's O^(n) ... but we have only a few elements and
-     * we call it only once a round-trip has been done
      *
      * @param exponential
      * @return the corresponding ECDHLightContext with the right exponent
      */
     private ECDHLightContext findECDHContextByPubKey(ECPublicKey exponential) {
-        synchronized (ecdhContextFIFO) {
-            for (ECDHLightContext result : ecdhContextFIFO) {
-                if(exponential.equals(result.getPublicKey())) {
-                    return result;
-                }
-            }
-
-            if((ecdhContextToBePrunned != null) && ((ecdhContextToBePrunned.getPublicKey()).equals(exponential)))
-                return ecdhContextToBePrunned;
-        }
-        return null;
+        return ecdhContexts.find(exponential);
     }
 
 	/*
@@ -2287,6 +2246,36 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	public void setPortForwardingBroken() {
 		crypto.setPortForwardingBroken();
 	}
+
+	/** @return Handshakes which got a fresh precomputed exponential. */
+	public long getECDHPoolHits() {
+		return ecdhContexts.hits();
+	}
+
+	/** @return Handshakes which had to reuse an exponential more than we would like, or had none. */
+	public long getECDHPoolMisses() {
+		return ecdhContexts.misses() + ecdhContexts.empty();
+	}
+
+	/** @return Precomputed exponentials ready for use. */
+	public int getECDHPoolSize() {
+		return ecdhContexts.size();
+	}
+
+	/** @return Handshakes per second, recently. */
+	public double getHandshakeRate() {
+		return ecdhContexts.handshakeRate();
+	}
+
+	/** @return Average time from sending JFK(1) to completing the handshake, in ms. */
+	public double getHandshakeRoundTripTime() {
+		return handshakeRoundTrip.currentValue();
+	}
+
+	/** @return Average time to handle a JFK(1), in ms. */
+	public double getJFKMessage1ProcessingTime() {
+		return jfk1ProcessingTime.currentValue();
+	}
 	
 	/** @returns the modulus length in bytes for a given negType */
 	private int getModulusLength(int negType) {
@@ -11,9 +11,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
-import freenet.crypt.BlockCipher;
-import freenet.crypt.HMAC;
-import freenet.crypt.PCFBMode;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
@@ -383,20 +380,10 @@ public class NewPacketFormat implements PacketFormat {
 
 	/** Must NOT modify buf contents. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
+		PacketCipher packetCipher = sessionKey.packetCipher;
 
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
-
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
 		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
+		byte[] localHash = Arrays.copyOf(packetCipher.macIncoming(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH), HMAC_LENGTH);
 		if (!MessageDigest.isEqual(hash, localHash)) {
 			if (logMINOR) {
 				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
@@ -405,8 +392,8 @@ public class NewPacketFormat implements PacketFormat {
 			return null;
 		}
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
+		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
+		packetCipher.decipherIncoming(sequenceNumber, payload, 0, payload.length);
 
 		NPFPacket p = NPFPacket.create(payload, pn);
 
@@ -429,23 +416,7 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	static byte[] encryptSequenceNumber(int seqNum, SessionKey sessionKey) {
-		byte[] seqNumBytes = new byte[4];
-		seqNumBytes[0] = (byte) (seqNum >>> 24);
-		seqNumBytes[1] = (byte) (seqNum >>> 16);
-		seqNumBytes[2] = (byte) (seqNum >>> 8);
-		seqNumBytes[3] = (byte) (seqNum);
-
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
-
-		return seqNumBytes;
+		return sessionKey.packetCipher.encipherIncomingSequenceNumber(seqNum);
 	}
 
 	@Override
@@ -497,22 +468,11 @@ public class NewPacketFormat implements PacketFormat {
 		byte[] data = new byte[paddedLen];
 		packet.toBytes(data, HMAC_LENGTH, pn.paddingGen());
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
+		PacketCipher packetCipher = sessionKey.packetCipher;
+		packetCipher.encipherOutgoing(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
 
 		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
+		byte[] hash = packetCipher.macOutgoing(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
 
 		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
 
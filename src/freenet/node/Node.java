@@ -27,14 +27,19 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -64,6 +69,7 @@ import freenet.config.SubConfig;
 import freenet.crypt.DSAPublicKey;
 import freenet.crypt.ECDH;
 import freenet.crypt.MasterSecret;
+import freenet.crypt.PerThreadRandomSource;
 import freenet.crypt.PersistentRandomSource;
 import freenet.crypt.RandomSource;
 import freenet.crypt.Yarrow;
@@ -122,6 +128,7 @@ import freenet.store.BlockMetadata;
 import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
+import freenet.store.KeyMembershipFilter;
 import freenet.store.NullFreenetStore;
 import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
@@ -156,7 +163,9 @@ import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.MersenneTwister;
+import freenet.support.metrics.MetricsRegistry;
 import freenet.support.transport.ip.HostnameSyntaxException;
 
 /**
@@ -519,7 +528,13 @@ public class Node implements TimeSkewDetectorCallback {
 	/** Datastore properties */
 	private String storeType;
 	private boolean storeUseSlotFilters;
+	private boolean storeUseMembershipFilter;
+	/** Keep the contents of RAM stores and the RAM client-cache in direct memory. */
+	private boolean storeOffHeap;
 	private boolean storeSaltHashResizeOnStart;
+	/** Node-wide filter of the keys in the datastore, store and slashdot cache tiers. Null if
+	 * disabled. NEVER covers the client-cache. */
+	private KeyMembershipFilter storeMembershipFilter;
 	
 	/** Minimum total datastore size */
 	static final long MIN_STORE_SIZE = 32 * 1024 * 1024;
@@ -674,6 +689,10 @@ public class Node implements TimeSkewDetectorCallback {
 	// General stuff
 
 	public final Executor executor;
+	/** When each phase of startup happened, for working out why startup is slow. */
+	public final StartupTimeline startupTimeline = new StartupTimeline();
+	/** Counters, gauges and histograms exported to monitoring tools, see NodeMetrics. */
+	public final MetricsRegistry metrics = new MetricsRegistry();
 	public final PacketSender ps;
 	public final PrioritizedTicker ticker;
 	final DNSRequester dnsr;
@@ -1117,7 +1136,9 @@ public class Node implements TimeSkewDetectorCallback {
 			FileUtil.setOwnerRW(seed);
 			entropyGatheringThread.start();
 			// Can block.
-			this.random = new Yarrow(seed);
+			Yarrow yarrow = new Yarrow(seed);
+			// Every thread gets its own generator, seeded from Yarrow, so they don't all queue up on it.
+			this.random = new PerThreadRandomSource(yarrow);
 			// http://bugs.sun.com/view_bug.do;jsessionid=ff625daf459fdffffffffcd54f1c775299e0?bug_id=4705093
 			// This might block on /dev/random while doing new SecureRandom(). Once it's created, it won't block.
 			ECDH.blockingInit();
@@ -1664,8 +1685,10 @@ public class Node implements TimeSkewDetectorCallback {
 		nodeStats = new NodeStats(this, sortOrder, new SubConfig("node.load", config), obwLimit, ibwLimit, lastVersion);
 
 		// clientCore needs new load management and other settings from stats.
+		startupTimeline.begin("client layer");
 		clientCore = new NodeClientCore(this, config, nodeConfig, installConfig, getDarknetPortNumber(), sortOrder, oldConfig, fproxyConfig, toadlets, nodeDBHandle, databaseKey, db, persistentSecret);
 		toadlets.setCore(clientCore);
+		startupTimeline.end("client layer");
 
 		if (JVMVersion.isTooOld()) {
 			clientCore.alerts.register(new JVMVersionAlert());
@@ -1967,6 +1990,48 @@ public class Node implements TimeSkewDetectorCallback {
 		
 		storeUseSlotFilters = nodeConfig.getBoolean("storeUseSlotFilters");
 		
+		nodeConfig.register("storeUseMembershipFilter", false, sortOrder++, true, false, "Node.storeUseMembershipFilter", "Node.storeUseMembershipFilterLong", new BooleanCallback() {
+
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeUseMembershipFilter;
+				}
+			}
+
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeUseMembershipFilter = val;
+				}
+				
+				throw new NodeNeedRestartException(l10n("needRestartChangeStoreMembershipFilter"));
+			}
+			
+		});
+		
+		storeUseMembershipFilter = nodeConfig.getBoolean("storeUseMembershipFilter");
+		
+		nodeConfig.register("storeOffHeap", true, sortOrder++, true, false, "Node.storeOffHeap", "Node.storeOffHeapLong", new BooleanCallback() {
+
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeOffHeap;
+				}
+			}
+
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeOffHeap = val;
+				}
+				
+				throw new NodeNeedRestartException(l10n("needRestartChangeStoreOffHeap"));
+			}
+			
+		});
+		
+		storeOffHeap = nodeConfig.getBoolean("storeOffHeap");
+		
 		nodeConfig.register("storeSaltHashSlotFilterPersistenceTime", ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME, sortOrder++, true, false, 
 				"Node.storeSaltHashSlotFilterPersistenceTime", "Node.storeSaltHashSlotFilterPersistenceTimeLong", new IntCallback() {
 
@@ -2001,6 +2066,27 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashCleanerBandwidth", SaltedHashFreenetStore.DEFAULT_CLEANER_BANDWIDTH, sortOrder++, true, false,
+				"Node.storeSaltHashCleanerBandwidth", "Node.storeSaltHashCleanerBandwidthLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return SaltedHashFreenetStore.getCleanerBandwidth();
+					}
+
+					@Override
+					public void set(Integer val)
+							throws InvalidConfigValueException,
+							NodeNeedRestartException {
+						if(val >= 0)
+							SaltedHashFreenetStore.setCleanerBandwidth(val);
+						else
+							throw new InvalidConfigValueException(l10n("cleanerBandwidthError"));
+					}
+
+		}, true);
+		SaltedHashFreenetStore.setCleanerBandwidth(nodeConfig.getInt("storeSaltHashCleanerBandwidth"));
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 		installConfig.finishedInitialization();
 
@@ -2191,12 +2277,18 @@ public class Node implements TimeSkewDetectorCallback {
 			shouldWriteConfig = true;
 			deleteOldBDBIndexStoreFiles();
 		}
+		if(storeUseMembershipFilter) {
+			// Store and cache for each of CHK, SSK and pubkey. The slashdot cache is small in comparison.
+			storeMembershipFilter = new KeyMembershipFilter(3 * maxTotalKeys, random);
+		}
+		startupTimeline.begin("datastore");
 		if (storeType.equals("salt-hash")) {
 			initRAMFS();
 			initSaltHashFS(suffix, false, null);
 		} else {
 			initRAMFS();
 		}
+		startupTimeline.end("datastore");
 
 		if(databaseAwaitingPassword) createPasswordUserAlert();
 
@@ -2207,6 +2299,7 @@ public class Node implements TimeSkewDetectorCallback {
 		nodeConfig.register("clientCacheType", "ram", sortOrder++, true, true, "Node.clientCacheType", "Node.clientCacheTypeLong", new ClientCacheTypeCallback());
 
 		clientCacheType = nodeConfig.getString("clientCacheType");
+		startupTimeline.begin("client cache");
 
 		nodeConfig.register("clientCacheSize", DEFAULT_CLIENT_CACHE_SIZE, sortOrder++, false, true, "Node.clientCacheSize", "Node.clientCacheSizeLong",
 				new LongCallback() {
@@ -2267,6 +2360,7 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 		if(!startedClientCache)
 			initRAMClientCacheFS();
+		startupTimeline.end("client cache");
 		
 		if(!clientCore.loadedDatabase() && databaseKey != null)  {
 			try {
@@ -2399,12 +2493,12 @@ public class Node implements TimeSkewDetectorCallback {
 
 		maxSlashdotCacheKeys = (int) Math.min(maxSlashdotCacheSize / sizePerKey, Integer.MAX_VALUE);
 
-		chkSlashdotcache = new CHKStore();
+		chkSlashdotcache = tracked(new CHKStore());
 		chkSlashdotcacheStore = new SlashdotStore<CHKBlock>(chkSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
-		pubKeySlashdotcache = new PubkeyStore();
+		pubKeySlashdotcache = tracked(new PubkeyStore());
 		pubKeySlashdotcacheStore = new SlashdotStore<DSAPublicKey>(pubKeySlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
 		getPubKey.setLocalSlashdotcache(pubKeySlashdotcache);
-		sskSlashdotcache = new SSKStore(getPubKey);
+		sskSlashdotcache = tracked(new SSKStore(getPubKey));
 		sskSlashdotcacheStore = new SlashdotStore<SSKBlock>(sskSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
 
 		// MAXIMUM seclevel = no slashdot cache.
@@ -2527,6 +2621,8 @@ public class Node implements TimeSkewDetectorCallback {
 		registerNodeToNodeMessageListener(N2N_MESSAGE_TYPE_FPROXY, fproxyN2NMListener);
 		registerNodeToNodeMessageListener(Node.N2N_MESSAGE_TYPE_DIFFNODEREF, diffNoderefListener);
 
+		NodeMetrics.register(this);
+
 		// FIXME this is a hack
 		// toadlet server should start after all initialized
 		// see NodeClientCore line 437
@@ -2951,11 +3047,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initRAMClientCacheFS() {
 		chkClientcache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys), storeOffHeap);
 		pubKeyClientcache = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys), storeOffHeap);
 		sskClientcache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys), storeOffHeap);
 	}
 
 	private void initNoClientCacheFS() {
@@ -2982,19 +3078,25 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	private void initRAMFS() {
-		chkDatastore = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
-		chkDatacache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
-		pubKeyDatastore = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
-		pubKeyDatacache = new PubkeyStore();
+		chkDatastore = tracked(new CHKStore());
+		new RAMFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys), storeOffHeap);
+		chkDatacache = tracked(new CHKStore());
+		new RAMFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys), storeOffHeap);
+		pubKeyDatastore = tracked(new PubkeyStore());
+		new RAMFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys), storeOffHeap);
+		pubKeyDatacache = tracked(new PubkeyStore());
 		getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
-		sskDatastore = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
-		sskDatacache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		new RAMFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys), storeOffHeap);
+		sskDatastore = tracked(new SSKStore(getPubKey));
+		new RAMFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys), storeOffHeap);
+		sskDatacache = tracked(new SSKStore(getPubKey));
+		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys), storeOffHeap);
+	}
+
+	/** Share the membership filter with a store, store or slashdot cache tier only. */
+	private <C extends StoreCallback<?>> C tracked(C callback) {
+		callback.setMembershipFilter(storeMembershipFilter);
+		return callback;
 	}
 
 	private long cachingFreenetStoreMaxSize;
@@ -3003,20 +3105,28 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initSaltHashFS(final String suffix, boolean dontResizeOnStart, byte[] masterKey) throws NodeInitException {
 		try {
-			final CHKStore chkDatastore = new CHKStore();
-			final FreenetStore<CHKBlock> chkDataFS = makeStore("CHK", true, chkDatastore, dontResizeOnStart, masterKey);
-			final CHKStore chkDatacache = new CHKStore();
-			final FreenetStore<CHKBlock> chkCacheFS = makeStore("CHK", false, chkDatacache, dontResizeOnStart, masterKey);
+			final CHKStore chkDatastore = tracked(new CHKStore());
+			final CHKStore chkDatacache = tracked(new CHKStore());
+			final PubkeyStore pubKeyDatastore = tracked(new PubkeyStore());
+			final PubkeyStore pubKeyDatacache = tracked(new PubkeyStore());
+			final SSKStore sskDatastore = tracked(new SSKStore(getPubKey));
+			final SSKStore sskDatacache = tracked(new SSKStore(getPubKey));
+			// Opening a store reads its config and may resize it, so open them all at once.
+			FutureTask<FreenetStore<CHKBlock>> chkDataTask = makeStoreTask("CHK", true, chkDatastore, dontResizeOnStart, masterKey);
+			FutureTask<FreenetStore<CHKBlock>> chkCacheTask = makeStoreTask("CHK", false, chkDatacache, dontResizeOnStart, masterKey);
+			FutureTask<FreenetStore<DSAPublicKey>> pubkeyDataTask = makeStoreTask("PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
+			FutureTask<FreenetStore<DSAPublicKey>> pubkeyCacheTask = makeStoreTask("PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
+			FutureTask<FreenetStore<SSKBlock>> sskDataTask = makeStoreTask("SSK", true, sskDatastore, dontResizeOnStart, masterKey);
+			FutureTask<FreenetStore<SSKBlock>> sskCacheTask = makeStoreTask("SSK", false, sskDatacache, dontResizeOnStart, masterKey);
+			runInParallel("Open datastore", chkDataTask, chkCacheTask, pubkeyDataTask, pubkeyCacheTask, sskDataTask, sskCacheTask);
+			final FreenetStore<CHKBlock> chkDataFS = getStore(chkDataTask);
+			final FreenetStore<CHKBlock> chkCacheFS = getStore(chkCacheTask);
 			((SaltedHashFreenetStore<CHKBlock>) chkCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<CHKBlock>) chkDataFS.getUnderlyingStore()));
-			final PubkeyStore pubKeyDatastore = new PubkeyStore();
-			final FreenetStore<DSAPublicKey> pubkeyDataFS = makeStore("PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
-			final PubkeyStore pubKeyDatacache = new PubkeyStore();
-			final FreenetStore<DSAPublicKey> pubkeyCacheFS = makeStore("PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
+			final FreenetStore<DSAPublicKey> pubkeyDataFS = getStore(pubkeyDataTask);
+			final FreenetStore<DSAPublicKey> pubkeyCacheFS = getStore(pubkeyCacheTask);
 			((SaltedHashFreenetStore<DSAPublicKey>) pubkeyCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<DSAPublicKey>) pubkeyDataFS.getUnderlyingStore()));
-			final SSKStore sskDatastore = new SSKStore(getPubKey);
-			final FreenetStore<SSKBlock> sskDataFS = makeStore("SSK", true, sskDatastore, dontResizeOnStart, masterKey);
-			final SSKStore sskDatacache = new SSKStore(getPubKey);
-			final FreenetStore<SSKBlock> sskCacheFS = makeStore("SSK", false, sskDatacache, dontResizeOnStart, masterKey);
+			final FreenetStore<SSKBlock> sskDataFS = getStore(sskDataTask);
+			final FreenetStore<SSKBlock> sskCacheFS = getStore(sskCacheTask);
 			((SaltedHashFreenetStore<SSKBlock>) sskCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<SSKBlock>) sskDataFS.getUnderlyingStore()));
 			
 			boolean delay =
@@ -3109,11 +3219,15 @@ public class Node implements TimeSkewDetectorCallback {
 
 		try {
 			final CHKStore chkClientcache = new CHKStore();
-			final FreenetStore<CHKBlock> chkDataFS = makeClientcache("CHK", true, chkClientcache, dontResizeOnStart, clientCacheMasterKey);
 			final PubkeyStore pubKeyClientcache = new PubkeyStore();
-			final FreenetStore<DSAPublicKey> pubkeyDataFS = makeClientcache("PUBKEY", true, pubKeyClientcache, dontResizeOnStart, clientCacheMasterKey);
 			final SSKStore sskClientcache = new SSKStore(getPubKey);
-			final FreenetStore<SSKBlock> sskDataFS = makeClientcache("SSK", true, sskClientcache, dontResizeOnStart, clientCacheMasterKey);
+			FutureTask<FreenetStore<CHKBlock>> chkDataTask = makeClientcacheTask("CHK", chkClientcache, dontResizeOnStart, clientCacheMasterKey);
+			FutureTask<FreenetStore<DSAPublicKey>> pubkeyDataTask = makeClientcacheTask("PUBKEY", pubKeyClientcache, dontResizeOnStart, clientCacheMasterKey);
+			FutureTask<FreenetStore<SSKBlock>> sskDataTask = makeClientcacheTask("SSK", sskClientcache, dontResizeOnStart, clientCacheMasterKey);
+			runInParallel("Open client-cache", chkDataTask, pubkeyDataTask, sskDataTask);
+			final FreenetStore<CHKBlock> chkDataFS = getStore(chkDataTask);
+			final FreenetStore<DSAPublicKey> pubkeyDataFS = getStore(pubkeyDataTask);
+			final FreenetStore<SSKBlock> sskDataFS = getStore(sskDataTask);
 
 			boolean delay =
 				chkDataFS.start(ticker, false) |
@@ -3171,6 +3285,63 @@ public class Node implements TimeSkewDetectorCallback {
 		return store;
 	}
 
+	private <T extends StorableBlock> FutureTask<FreenetStore<T>> makeClientcacheTask(final String type, final StoreCallback<T> cb, final boolean dontResizeOnStart, final byte[] clientCacheMasterKey) {
+		return new FutureTask<FreenetStore<T>>(new Callable<FreenetStore<T>>() {
+
+			@Override
+			public FreenetStore<T> call() throws IOException {
+				return makeClientcache(type, true, cb, dontResizeOnStart, clientCacheMasterKey);
+			}
+
+		});
+	}
+
+	private <T extends StorableBlock> FutureTask<FreenetStore<T>> makeStoreTask(final String type, final boolean isStore, final StoreCallback<T> cb, final boolean dontResizeOnStart, final byte[] clientCacheMasterKey) {
+		return new FutureTask<FreenetStore<T>>(new Callable<FreenetStore<T>>() {
+
+			@Override
+			public FreenetStore<T> call() throws IOException {
+				return makeStore(type, isStore, cb, dontResizeOnStart, clientCacheMasterKey);
+			}
+
+		});
+	}
+
+	/** Run each task on its own thread, and wait for all of them to finish. */
+	private void runInParallel(String name, Runnable... tasks) {
+		NativeThread[] threads = new NativeThread[tasks.length];
+		for(int i=0;i<tasks.length;i++) {
+			threads[i] = new NativeThread(tasks[i], name+" ("+(i+1)+"/"+tasks.length+")", NativeThread.NORM_PRIORITY, false);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		for(NativeThread thread : threads) {
+			while(true) {
+				try {
+					thread.join();
+					break;
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	/** Get the store opened by a task which has finished, or rethrow whatever it threw. */
+	private static <T extends StorableBlock> FreenetStore<T> getStore(FutureTask<FreenetStore<T>> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted opening store", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
 	private <T extends StorableBlock> FreenetStore<T> makeStore(String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
 		String store = isStore ? "store" : "cache";
 		long maxKeys = isStore ? maxStoreKeys : maxCacheKeys;
@@ -3191,6 +3362,7 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public void start(boolean noSwaps) throws NodeInitException {
+		startupTimeline.begin("node start");
 		
 		// IMPORTANT: Read the peers only after we have finished initializing Node.
 		// Peer constructors are complex and can call methods on Node.
@@ -3269,6 +3441,8 @@ public class Node implements TimeSkewDetectorCallback {
 		peers.readExtraPeerData();
 
 		Logger.normal(this, "Started node");
+		startupTimeline.end("node start");
+		startupTimeline.log("at node start");
 
 		hasStarted = true;
 	}
@@ -3580,6 +3754,7 @@ public class Node implements TimeSkewDetectorCallback {
 	public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
+		boolean maybeInStore = maybeInStore(key.getRoutingKey());
 		if(canReadClientCache) {
 			try {
 				SSKBlock block = sskClientcache.fetch(key, dontPromote || !canWriteClientCache, canReadClientCache, forULPR, false, meta);
@@ -3594,7 +3769,7 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Could not read from client cache: "+e, e);
 			}
 		}
-		if(forULPR || useSlashdotCache || canReadClientCache) {
+		if((forULPR || useSlashdotCache || canReadClientCache) && shouldProbe(sskSlashdotcache, maybeInStore)) {
 			try {
 				SSKBlock block = sskSlashdotcache.fetch(key, dontPromote, canReadClientCache, forULPR, false, meta);
 				if(block != null) {
@@ -3614,10 +3789,12 @@ public class Node implements TimeSkewDetectorCallback {
 		try {
 
 			nodeStats.avgRequestLocation.report(loc);
-			SSKBlock block = sskDatastore.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
+			SSKBlock block = null;
+			if(shouldProbe(sskDatastore, maybeInStore))
+				block = sskDatastore.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
 			if(block == null) {
 				SSKStore store = oldSSK;
-				if(store != null)
+				if(store != null && shouldProbe(store, maybeInStore))
 					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
 			}
 			if(block != null) {
@@ -3627,10 +3804,11 @@ public class Node implements TimeSkewDetectorCallback {
 				if(logDEBUG) Logger.debug(this, "Found key "+key+" in store");
 				return block;
 			}
-			block=sskDatacache.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
+			if(shouldProbe(sskDatacache, maybeInStore))
+				block=sskDatacache.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
 			if(block == null) {
 				SSKStore store = oldSSKCache;
-				if(store != null)
+				if(store != null && shouldProbe(store, maybeInStore))
 					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
 			}
 			if (block != null) {
@@ -3638,7 +3816,8 @@ public class Node implements TimeSkewDetectorCallback {
 				if (dist > nodeStats.furthestCacheSSKSuccess)
 					nodeStats.furthestCacheSSKSuccess=dist;
 				if(logDEBUG) Logger.debug(this, "Found key "+key+" in cache");
-			}
+			} else
+				onStoreMiss(maybeInStore);
 			return block;
 		} catch (IOException e) {
 			Logger.error(this, "Cannot fetch data: "+e, e);
@@ -3649,6 +3828,7 @@ public class Node implements TimeSkewDetectorCallback {
 	public CHKBlock fetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
+		boolean maybeInStore = maybeInStore(key.getRoutingKey());
 		if(canReadClientCache) {
 			try {
 				CHKBlock block = chkClientcache.fetch(key, dontPromote || !canWriteClientCache, false, meta);
@@ -3662,7 +3842,7 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Could not read from client cache: "+e, e);
 			}
 		}
-		if(forULPR || useSlashdotCache || canReadClientCache) {
+		if((forULPR || useSlashdotCache || canReadClientCache) && shouldProbe(chkSlashdotcache, maybeInStore)) {
 			try {
 				CHKBlock block = chkSlashdotcache.fetch(key, dontPromote, false, meta);
 				if(block != null) {
@@ -3680,10 +3860,12 @@ public class Node implements TimeSkewDetectorCallback {
 		if(logMINOR) dumpStoreHits();
 		try {
 			nodeStats.avgRequestLocation.report(loc);
-			CHKBlock block = chkDatastore.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
+			CHKBlock block = null;
+			if(shouldProbe(chkDatastore, maybeInStore))
+				block = chkDatastore.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
 			if(block == null) {
 				CHKStore store = oldCHK;
-				if(store != null)
+				if(store != null && shouldProbe(store, maybeInStore))
 					block = store.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
 			}
 			if (block != null) {
@@ -3692,17 +3874,19 @@ public class Node implements TimeSkewDetectorCallback {
 					nodeStats.furthestStoreCHKSuccess=dist;
 				return block;
 			}
-			block=chkDatacache.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
+			if(shouldProbe(chkDatacache, maybeInStore))
+				block=chkDatacache.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
 			if(block == null) {
 				CHKStore store = oldCHKCache;
-				if(store != null)
+				if(store != null && shouldProbe(store, maybeInStore))
 					block = store.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
 			}
 			if (block != null) {
 				nodeStats.avgCacheCHKSuccess.report(loc);
 				if (dist > nodeStats.furthestCacheCHKSuccess)
 					nodeStats.furthestCacheCHKSuccess=dist;
-			}
+			} else
+				onStoreMiss(maybeInStore);
 			return block;
 		} catch (IOException e) {
 			Logger.error(this, "Cannot fetch data: "+e, e);
@@ -3710,6 +3894,243 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Fetch many blocks from the datastore at once. Looks in the same places as
+	 * {@link #fetch(Key, boolean, boolean, boolean, boolean, BlockMetadata)}, but passes all the
+	 * keys to each store in turn, so it can order the lookups to suit how it is laid out on disk.
+	 * @param keys The keys to look up. Null entries are skipped.
+	 * @param blocks Filled in with the blocks found, at the same index as their keys.
+	 * @return The number of blocks found.
+	 */
+	public int fetch(Key[] keys, KeyBlock[] blocks, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore) {
+		int chks = 0;
+		int ssks = 0;
+		for(Key key : keys) {
+			if(key == null) continue;
+			if(key instanceof NodeCHK) chks++;
+			else if(key instanceof NodeSSK) ssks++;
+			else throw new IllegalArgumentException();
+		}
+		int found = 0;
+		if(chks > 0)
+			found += fetchBatch(keys, blocks, new CHKBlock[keys.length], true, canReadClientCache, canWriteClientCache, canWriteDatastore);
+		if(ssks > 0)
+			found += fetchBatch(keys, blocks, new SSKBlock[keys.length], false, canReadClientCache, canWriteClientCache, canWriteDatastore);
+		return found;
+	}
+
+	/** Fetch the CHKs or the SSKs from a batch, from each tier in the same order as fetch() does. */
+	@SuppressWarnings("unchecked")
+	private <T extends KeyBlock> int fetchBatch(Key[] keys, KeyBlock[] blocks, T[] found, boolean chk, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore) {
+		int count = keys.length;
+		byte[][] routingKeys = new byte[count][];
+		byte[][] fullKeys = new byte[count][];
+		boolean[] maybeInStore = new boolean[count];
+		for(int i = 0; i < count; i++) {
+			if(keys[i] == null || (keys[i] instanceof NodeCHK) != chk) continue;
+			routingKeys[i] = keys[i].getRoutingKey();
+			fullKeys[i] = keys[i].getFullKey();
+			maybeInStore[i] = maybeInStore(routingKeys[i]);
+		}
+		// SSKs may need to look for the pubkey in the client cache.
+		boolean readClientCache = !chk && canReadClientCache;
+		int total = 0;
+		if(canReadClientCache)
+			total += fetchBatch((StoreCallback<T>) (chk ? chkClientcache : sskClientcache), routingKeys, fullKeys, found, null,
+					!canWriteClientCache, readClientCache, false,
+					chk ? nodeStats.avgClientCacheCHKSuccess : nodeStats.avgClientCacheSSKSuccess, keys);
+		if(useSlashdotCache || canReadClientCache)
+			total += fetchBatch((StoreCallback<T>) (chk ? chkSlashdotcache : sskSlashdotcache), routingKeys, fullKeys, found, maybeInStore,
+					false, readClientCache, false,
+					chk ? nodeStats.avgSlashdotCacheCHKSucess : nodeStats.avgSlashdotCacheSSKSuccess, keys);
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		for(int i = 0; i < count; i++) {
+			if(routingKeys[i] != null && found[i] == null)
+				nodeStats.avgRequestLocation.report(keys[i].toNormalizedDouble());
+		}
+		StoreCallback<T>[] stores = (StoreCallback<T>[]) (chk ?
+				new StoreCallback<?>[] { chkDatastore, oldCHK, chkDatacache, oldCHKCache } :
+				new StoreCallback<?>[] { sskDatastore, oldSSK, sskDatacache, oldSSKCache });
+		for(int j = 0; j < stores.length; j++) {
+			DecayingKeyspaceAverage avg = j < 2 ?
+					(chk ? nodeStats.avgStoreCHKSuccess : nodeStats.avgStoreSSKSuccess) :
+					(chk ? nodeStats.avgCacheCHKSuccess : nodeStats.avgCacheSSKSuccess);
+			total += fetchBatch(stores[j], routingKeys, fullKeys, found, maybeInStore,
+					!canWriteDatastore, readClientCache, ignoreOldBlocks, avg, keys);
+		}
+		for(int i = 0; i < count; i++) {
+			if(routingKeys[i] == null) continue;
+			if(found[i] != null)
+				blocks[i] = found[i];
+			else
+				onStoreMiss(maybeInStore[i]);
+		}
+		return total;
+	}
+
+	/** Fetch whatever we haven't found yet from one store or cache. */
+	private <T extends KeyBlock> int fetchBatch(StoreCallback<T> store, byte[][] routingKeys, byte[][] fullKeys, T[] found, boolean[] maybeInStore,
+			boolean dontPromote, boolean canReadClientCache, boolean ignoreOldBlocks, DecayingKeyspaceAverage avgSuccess, Key[] keys) {
+		if(store == null) return 0;
+		byte[][] probe = routingKeys.clone();
+		boolean skip = maybeInStore != null && store.isMembershipComplete();
+		int avoided = 0;
+		for(int i = 0; i < probe.length; i++) {
+			if(probe[i] == null) continue;
+			if(found[i] != null) {
+				probe[i] = null;
+			} else if(skip && !maybeInStore[i]) {
+				probe[i] = null;
+				avoided++;
+			}
+		}
+		if(avoided > 0)
+			storeMembershipFilter.onProbesAvoided(avoided);
+		int count;
+		try {
+			count = store.getStore().fetchBatch(probe, fullKeys, found, dontPromote, canReadClientCache, false, ignoreOldBlocks);
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+			return 0;
+		}
+		if(count > 0) {
+			for(int i = 0; i < probe.length; i++)
+				if(probe[i] != null && found[i] != null)
+					avgSuccess.report(keys[i].toNormalizedDouble());
+		}
+		return count;
+	}
+
+	/** @return False if the membership filter says that no store or cache tier it covers 
+	 * has the key. */
+	boolean maybeInStore(byte[] routingKey) {
+		KeyMembershipFilter filter = storeMembershipFilter;
+		return filter == null || filter.mightContain(routingKey);
+	}
+
+	/** @return True if we need to look in the store, false if the membership filter says the 
+	 * key isn't in it. */
+	boolean shouldProbe(StoreCallback<?> store, boolean maybeInStore) {
+		if(maybeInStore || !store.isMembershipComplete()) return true;
+		storeMembershipFilter.onProbesAvoided(1);
+		return false;
+	}
+
+	/** We looked everywhere and didn't find the key. */
+	void onStoreMiss(boolean maybeInStore) {
+		KeyMembershipFilter filter = storeMembershipFilter;
+		if(filter != null && maybeInStore)
+			filter.onFalsePositive();
+	}
+
+	/** Store, cache and slashdot cache for each of CHK, SSK and pubkey. */
+	public static final int MEMBERSHIP_TRACKED_STORES = 9;
+
+	/** @return How many of the tiers the membership filter tracks it fully covers, i.e. can 
+	 * skip when the filter says no. */
+	public int countMembershipCompleteStores() {
+		int count = 0;
+		StoreCallback<?>[] stores = new StoreCallback<?>[] { chkDatastore, chkDatacache, chkSlashdotcache,
+				sskDatastore, sskDatacache, sskSlashdotcache, pubKeyDatastore, pubKeyDatacache, pubKeySlashdotcache };
+		for(StoreCallback<?> store : stores) {
+			if(store != null && store.isMembershipComplete()) count++;
+		}
+		return count;
+	}
+
+	/** @return The in-memory stores, including the client-cache if it is in memory. */
+	private List<RAMFreenetStore<?>> getRAMStores() {
+		List<RAMFreenetStore<?>> ramStores = new ArrayList<RAMFreenetStore<?>>();
+		StoreCallback<?>[] stores = new StoreCallback<?>[] { chkDatastore, chkDatacache, chkClientcache,
+				sskDatastore, sskDatacache, sskClientcache, pubKeyDatastore, pubKeyDatacache, pubKeyClientcache };
+		for(StoreCallback<?> store : stores) {
+			if(store != null && store.getStore() instanceof RAMFreenetStore)
+				ramStores.add((RAMFreenetStore<?>) store.getStore());
+		}
+		return ramStores;
+	}
+
+	/** @return Roughly how much heap the in-memory stores use, or -1 if there are none. */
+	public long getRAMStoreHeapUsage() {
+		List<RAMFreenetStore<?>> stores = getRAMStores();
+		if(stores.isEmpty()) return -1;
+		long total = 0;
+		for(RAMFreenetStore<?> store : stores)
+			total += store.getHeapBytes();
+		return total;
+	}
+
+	/** @return How much direct memory the in-memory stores use for blocks. */
+	public long getRAMStoreOffHeapUsage() {
+		long total = 0;
+		for(RAMFreenetStore<?> store : getRAMStores())
+			total += store.getOffHeapBytes();
+		return total;
+	}
+
+	/** @return How much direct memory the in-memory stores have reserved, used or not. */
+	public long getRAMStoreOffHeapReserved() {
+		long total = 0;
+		for(RAMFreenetStore<?> store : getRAMStores())
+			total += store.getOffHeapReservedBytes();
+		return total;
+	}
+
+	/** @return The on-disk stores, including the client-cache if it is on disk. */
+	private List<SaltedHashFreenetStore<?>> getSaltedHashStores() {
+		List<SaltedHashFreenetStore<?>> diskStores = new ArrayList<SaltedHashFreenetStore<?>>();
+		StoreCallback<?>[] stores = new StoreCallback<?>[] { chkDatastore, chkDatacache, chkClientcache,
+				sskDatastore, sskDatacache, sskClientcache, pubKeyDatastore, pubKeyDatacache, pubKeyClientcache };
+		for(StoreCallback<?> store : stores) {
+			if(store == null || store.getStore() == null) continue;
+			FreenetStore<?> underlying = store.getStore().getUnderlyingStore();
+			if(underlying instanceof SaltedHashFreenetStore)
+				diskStores.add((SaltedHashFreenetStore<?>) underlying);
+		}
+		return diskStores;
+	}
+
+	/** @return Bytes of slot filter the on-disk stores have written since startup. */
+	public long getSlotFilterBytesWritten() {
+		long total = 0;
+		for(SaltedHashFreenetStore<?> store : getSaltedHashStores())
+			total += store.getSlotFilterBytesWritten();
+		return total;
+	}
+
+	/** @return Milliseconds the on-disk stores have spent writing their slot filters. */
+	public long getSlotFilterWriteTime() {
+		long total = 0;
+		for(SaltedHashFreenetStore<?> store : getSaltedHashStores())
+			total += store.getSlotFilterWriteTime();
+		return total;
+	}
+
+	/** @return How many times the on-disk stores have written their slot filters. */
+	public int getSlotFilterWrites() {
+		int total = 0;
+		for(SaltedHashFreenetStore<?> store : getSaltedHashStores())
+			total += store.getSlotFilterWrites();
+		return total;
+	}
+
+	/** @return How many on-disk stores are still reading in their slot filters, or -1 if there
+	 * are no on-disk stores. */
+	public int countSlotFiltersLoading() {
+		List<SaltedHashFreenetStore<?>> stores = getSaltedHashStores();
+		if(stores.isEmpty()) return -1;
+		int count = 0;
+		for(SaltedHashFreenetStore<?> store : stores)
+			if(!store.isSlotFilterLoaded()) count++;
+		return count;
+	}
+
+	/** @return The node-wide datastore membership filter, or null if it is disabled. */
+	public KeyMembershipFilter getStoreMembershipFilter() {
+		return storeMembershipFilter;
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -4541,6 +4962,13 @@ public class Node implements TimeSkewDetectorCallback {
 		return opennet;
 	}
 
+	/** @return The packet mangler for darknet or opennet, or null if opennet is disabled. */
+	public FNPPacketMangler getPacketMangler(boolean forOpennet) {
+		if(!forOpennet) return darknetCrypto.packetMangler;
+		OpennetManager om = opennet;
+		return om == null ? null : om.crypto.packetMangler;
+	}
+
 	public synchronized boolean passOpennetRefsThroughDarknet() {
 		return passOpennetRefsThroughDarknet;
 	}
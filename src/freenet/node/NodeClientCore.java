@@ -168,6 +168,8 @@ public class NodeClientCore implements Persistable {
 	public transient final ClientContext clientContext;
 
 	private static int maxBackgroundUSKFetchers;	// Client stuff that needs to be configged - FIXME
+	private int editionCacheSize;
+	private long archiveDiskCacheSize;
 	static final int MAX_ARCHIVE_HANDLERS = 200; // don't take up much RAM... FIXME
 	static final long MAX_CACHED_ARCHIVE_DATA = 32 * 1024 * 1024; // make a fixed fraction of the store by default? FIXME
 	static final long MAX_ARCHIVED_FILE_SIZE = 1024 * 1024; // arbitrary... FIXME
@@ -366,6 +368,13 @@ public class NodeClientCore implements Persistable {
 		    
 		});
 		
+		shutdownHook.addEarlyJob(new NativeThread("Save USK editions", NativeThread.HIGH_PRIORITY, true) {
+			@Override
+			public void realRun() {
+				uskManager.writeEditionCache();
+			}
+		});
+		
         shutdownHook.addLateJob(new NativeThread("Close database", NativeThread.HIGH_PRIORITY, true) {
 
             @Override
@@ -380,6 +389,40 @@ public class NodeClientCore implements Persistable {
         
 		archiveManager = new ArchiveManager(MAX_ARCHIVE_HANDLERS, MAX_CACHED_ARCHIVE_DATA, MAX_ARCHIVED_FILE_SIZE, MAX_CACHED_ELEMENTS, tempBucketFactory);
 
+		nodeConfig.register("indexArchives", true, sortOrder++, true, false, "NodeClientCore.indexArchives",
+			"NodeClientCore.indexArchivesLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return archiveManager.indexArchives();
+			}
+
+			@Override
+			public void set(Boolean val) {
+				archiveManager.setIndexArchives(val);
+			}
+		});
+		archiveManager.setIndexArchives(nodeConfig.getBoolean("indexArchives"));
+
+		nodeConfig.register("archiveDiskCacheSize", "0", sortOrder++, true, false, "NodeClientCore.archiveDiskCacheSize",
+			"NodeClientCore.archiveDiskCacheSizeLong", new LongCallback() {
+
+			@Override
+			public Long get() {
+				return archiveDiskCacheSize;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("archiveDiskCacheSizeMustNotBeNegative"));
+				archiveDiskCacheSize = val;
+				setArchiveDiskCache();
+			}
+		}, true);
+		archiveDiskCacheSize = nodeConfig.getLong("archiveDiskCacheSize");
+		setArchiveDiskCache();
+
 		healingQueue = new SimpleHealingQueue(
 				new InsertContext(
 						0, 2, 0, 0, new SimpleEventProducer(),
@@ -478,7 +521,8 @@ public class NodeClientCore implements Persistable {
         }
         
         try {
-            initStorage(databaseKey);
+            // Resume the requests once the node has started, see start().
+            initStorage(databaseKey, true);
         } catch (MasterKeysWrongPasswordException e) {
             System.err.println("Cannot load persistent requests, awaiting password ...");
             node.setDatabaseAwaitingPassword();
@@ -509,10 +553,12 @@ public class NodeClientCore implements Persistable {
 					}
 					persistentRAFFactory.setEncryption(true);
 				}
-                if(clientLayerPersister.hasLoaded()) {
+				uskManager.setEditionCacheStorage(NodeClientCore.this.node.wantEncryptedDatabase(),
+						NodeClientCore.this.node.wantNoPersistentDatabase(), NodeClientCore.this.node.getDatabaseKey());
+                if(loadedDatabase()) {
                     // May need to change filenames for client.dat* or even create them.
                     try {
-                        initStorage(NodeClientCore.this.node.getDatabaseKey());
+                        initStorage(NodeClientCore.this.node.getDatabaseKey(), false);
                     } catch (MasterKeysWrongPasswordException e) {
                         NodeClientCore.this.node.setDatabaseAwaitingPassword();
                     }
@@ -598,6 +644,42 @@ public class NodeClientCore implements Persistable {
 
 		maxBackgroundUSKFetchers = nodeConfig.getInt("maxBackgroundUSKFetchers");
 
+		nodeConfig.register("uskEditionSearch", true, sortOrder++, true, false, "NodeClientCore.uskEditionSearch",
+			"NodeClientCore.uskEditionSearchLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return uskManager.useEditionSearch();
+			}
+
+			@Override
+			public void set(Boolean val) {
+				uskManager.setUseEditionSearch(val);
+			}
+		});
+
+		uskManager.setUseEditionSearch(nodeConfig.getBoolean("uskEditionSearch"));
+
+		nodeConfig.register("uskEditionCacheSize", USKManager.DEFAULT_EDITION_CACHE_SIZE, sortOrder++, true, false, "NodeClientCore.uskEditionCacheSize",
+			"NodeClientCore.uskEditionCacheSizeLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				return editionCacheSize;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("uskEditionCacheSizeMustNotBeNegative"));
+				editionCacheSize = val;
+				uskManager.setEditionCacheSize(val);
+			}
+		}, false);
+
+		editionCacheSize = nodeConfig.getInt("uskEditionCacheSize");
+		uskManager.setEditionCacheSize(editionCacheSize);
+
 
 		// This is all part of construction, not of start().
 		// Some plugins depend on it, so it needs to be *created* before they are started.
@@ -636,6 +718,7 @@ public class NodeClientCore implements Persistable {
 				synchronized(NodeClientCore.this) {
 					if(!killedDatabase()) return false;
 				}
+				if(clientLayerPersister.isResumePending()) return false;
 				if(NodeClientCore.this.node.awaitingPassword()) return false;
 				if(NodeClientCore.this.node.isStopping()) return false;
 				return true;
@@ -732,7 +815,7 @@ public class NodeClientCore implements Persistable {
 	boolean lateInitDatabase(long nodeDBHandle, ObjectContainer container, DatabaseKey databaseKey) throws NodeInitException {
 		System.out.println("Late database initialisation: starting middle phase");
 		try {
-		    initStorage(databaseKey);
+		    initStorage(databaseKey, false);
 		} catch (MasterKeysWrongPasswordException e) {
 		    Logger.error(this, "Impossible: can't load even though have key? "+(databaseKey != null));
 		    return true;
@@ -748,15 +831,32 @@ public class NodeClientCore implements Persistable {
 	/** Give ClientLayerPersister a filename and possibly an encryption key. May cause it to load,
 	 * but can also be called afterwards to change where to write to.
 	 * @param databaseKey The encryption key.
+	 * @param resumeLater If true, requests loaded now are resumed by resumeRequests().
 	 * @throws MasterKeysWrongPasswordException If it needs an encryption key.
 	 */
-	private void initStorage(DatabaseKey databaseKey) throws MasterKeysWrongPasswordException {
+	private void initStorage(DatabaseKey databaseKey, boolean resumeLater) throws MasterKeysWrongPasswordException {
+	    uskManager.setEditionCacheStorage(node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey);
 	    clientLayerPersister.setFilesAndLoad(node.nodeDir.dir(), "client.dat", 
-	            node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey, clientContext, requestStarters, random);
+	            node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey, clientContext, requestStarters, random,
+	            resumeLater);
+	}
+	
+	/** Resume the persistent requests loaded at startup, if we haven't already. They are 
+	 * resumed most important first, after the node has started routing. */
+	private void resumeRequests() {
+	    if(!clientLayerPersister.isResumePending()) return;
+	    node.startupTimeline.begin("resume requests");
+	    if(clientLayerPersister.resumeLoadedRequests() && fcpServer != null) {
+	        // The status cache was built before the requests were resumed.
+	        fcpServer.load();
+	    }
+	    node.startupTimeline.end("resume requests");
 	}
 	
 	/** Must only be called after we have loaded master.keys */
 	private void finishInitStorage(ObjectContainer container) {
+	    // Mustn't clean up persistent-temp until every request has been resumed.
+	    resumeRequests();
 	    boolean success = false;
 	    synchronized(this) {
 	        if(finishedInitStorage || finishingInitStorage) return;
@@ -954,6 +1054,7 @@ public class NodeClientCore implements Persistable {
 			@Override
 			public void run() {
 				Logger.normal(this, "Resuming persistent requests");
+				resumeRequests();
 				if(node.getDatabaseKey() != null) {
 				    try {
 				        finishInitStorage(container);
@@ -966,6 +1067,7 @@ public class NodeClientCore implements Persistable {
 				}
 				Logger.normal(this, "Completed startup: All persistent requests resumed or restarted");
 				alerts.unregister(startingUpAlert);
+				node.startupTimeline.log("after resuming requests");
 			}
 
 			@Override
@@ -1973,6 +2075,18 @@ public class NodeClientCore implements Persistable {
 		return requestStarters.countQueuedRequests();
 	}
 
+	private void setArchiveDiskCache() {
+		File dir = node.userDir().file("archive-cache");
+		if(archiveDiskCacheSize > 0) {
+			archiveManager.setDiskCache(dir, archiveDiskCacheSize);
+		} else {
+			archiveManager.setDiskCache(null, 0);
+			// The files are not encrypted, so don't leave them lying around.
+			if(dir.exists())
+				FileUtil.removeAll(dir);
+		}
+	}
+
 	public static int getMaxBackgroundUSKFetchers() {
 		return maxBackgroundUSKFetchers;
 	}
@@ -2029,7 +2143,7 @@ public class NodeClientCore implements Persistable {
     }
 
     public boolean loadedDatabase() {
-        return clientLayerPersister.hasLoaded();
+        return clientLayerPersister.hasLoaded() || clientLayerPersister.isResumePending();
     }
 
 }
@@ -68,6 +68,7 @@ public class NodeGetPubkey implements GetPubkey {
 		}
 		try {
 			DSAPublicKey key = null;
+			boolean maybeInStore = node.maybeInStore(hash);
 			if(pubKeyClientcache != null && canReadClientCache)
 				key = pubKeyClientcache.fetch(hash, false, false, meta);
 			if(node.oldPKClientCache != null && canReadClientCache && key == null) {
@@ -77,29 +78,29 @@ public class NodeGetPubkey implements GetPubkey {
 					Logger.minor(this, "Got "+HexUtil.bytesToHex(hash)+" from old client cache");
 			}
 			// We can *read* from the datastore even if nearby, but we cannot promote in that case.
-			if(key == null) {
+			if(key == null && node.shouldProbe(pubKeyDatastore, maybeInStore)) {
 				key = pubKeyDatastore.fetch(hash, false, ignoreOldBlocks, meta);
 				if(key != null && logMINOR)
 					Logger.minor(this, "Got "+HexUtil.bytesToHex(hash)+" from store");
 			}
 			if(key == null) {
 				PubkeyStore pks = node.oldPK;
-				if(pks != null) key = pks.fetch(hash, false, ignoreOldBlocks, meta);
+				if(pks != null && node.shouldProbe(pks, maybeInStore)) key = pks.fetch(hash, false, ignoreOldBlocks, meta);
 				if(key != null && logMINOR)
 					Logger.minor(this, "Got "+HexUtil.bytesToHex(hash)+" from old store");
 			}
-			if (key == null) {
+			if (key == null && node.shouldProbe(pubKeyDatacache, maybeInStore)) {
 				key = pubKeyDatacache.fetch(hash, false, ignoreOldBlocks, meta);
 				if(key != null && logMINOR)
 					Logger.minor(this, "Got "+HexUtil.bytesToHex(hash)+" from cache");
 			}
 			if(key == null) {
 				PubkeyStore pks = node.oldPKCache;
-				if(pks != null) key = pks.fetch(hash, false, ignoreOldBlocks, meta);
+				if(pks != null && node.shouldProbe(pks, maybeInStore)) key = pks.fetch(hash, false, ignoreOldBlocks, meta);
 				if(key != null && logMINOR)
 					Logger.minor(this, "Got "+HexUtil.bytesToHex(hash)+" from old cache");
 			}
-			if(key == null && pubKeySlashdotcache != null && forULPR) {
+			if(key == null && pubKeySlashdotcache != null && forULPR && node.shouldProbe(pubKeySlashdotcache, maybeInStore)) {
 				key = pubKeySlashdotcache.fetch(hash, false, ignoreOldBlocks, meta);
 				if (logMINOR)
 					Logger.minor(this, "Got " + HexUtil.bytesToHex(hash) + " from slashdot cache");
@@ -107,7 +108,8 @@ public class NodeGetPubkey implements GetPubkey {
 			if (key != null) {
 				// Just put into the in-memory cache
 				cacheKey(hash, key, false, false, false, false, false);
-			}
+			} else
+				node.onStoreMiss(maybeInStore);
 			return key;
 		} catch (IOException e) {
 			// FIXME deal with disk full, access perms etc; tell user about it.
@@ -0,0 +1,233 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Locale;
+
+import freenet.io.xfer.PacketThrottle;
+import freenet.node.stats.DataStoreInstanceType;
+import freenet.node.stats.DataStoreKeyType;
+import freenet.node.stats.DataStoreStats;
+import freenet.node.stats.DataStoreType;
+import freenet.node.stats.StoreAccessStats;
+import freenet.support.metrics.Gauge;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * Publishes the statistics the node already keeps into its MetricsRegistry. Everything here
+ * is read when the metrics are exported, so none of it costs anything on the paths that keep
+ * the statistics. Latency histograms and request counters are updated directly by NodeStats.
+ */
+final class NodeMetrics {
+
+	private NodeMetrics() {
+		// Static only.
+	}
+
+	static void register(final Node node) {
+		MetricsRegistry metrics = node.metrics;
+		final NodeStats stats = node.nodeStats;
+		final RequestTracker tracker = node.tracker;
+
+		metrics.gauge("freenet_uptime_seconds", "Time since the node started", new Gauge() {
+			@Override
+			public double get() {
+				return (System.currentTimeMillis() - node.startupTime) / 1000.0;
+			}
+		});
+
+		// Bandwidth
+		metrics.counter("freenet_io_bytes_total", "Bytes sent and received by the node, including overheads", new Gauge() {
+			@Override
+			public double get() {
+				return node.collector.getTotalIO()[0];
+			}
+		}, "direction", "out");
+		metrics.counter("freenet_io_bytes_total", "Bytes sent and received by the node, including overheads", new Gauge() {
+			@Override
+			public double get() {
+				return node.collector.getTotalIO()[1];
+			}
+		}, "direction", "in");
+		metrics.gauge("freenet_bwlimit_delay_milliseconds", "Average delay caused by the bandwidth limiter", new Gauge() {
+			@Override
+			public double get() {
+				return stats.getBwlimitDelayTime();
+			}
+		});
+		metrics.gauge("freenet_node_average_ping_milliseconds", "Average ping time to our peers", new Gauge() {
+			@Override
+			public double get() {
+				return stats.getNodeAveragePingTime();
+			}
+		});
+
+		// Threads
+		for(int i=0;i<node.executor.runningThreads().length;i++) {
+			final int prio = i;
+			metrics.gauge("freenet_threads", "Threads in the node's executor, by priority", new Gauge() {
+				@Override
+				public double get() {
+					return node.executor.runningThreads()[prio];
+				}
+			}, "priority", Integer.toString(prio + 1), "state", "running");
+			metrics.gauge("freenet_threads", "Threads in the node's executor, by priority", new Gauge() {
+				@Override
+				public double get() {
+					return node.executor.waitingThreads()[prio];
+				}
+			}, "priority", Integer.toString(prio + 1), "state", "waiting");
+		}
+
+		// Running requests
+		for(int i=0;i<8;i++) {
+			final boolean ssk = i >= 4;
+			final boolean insert = (i & 2) == 2;
+			final boolean local = (i & 1) == 1;
+			metrics.gauge("freenet_running_requests", "Requests and inserts currently running", new Gauge() {
+				@Override
+				public double get() {
+					if(ssk) {
+						if(insert)
+							return local ? tracker.getNumLocalSSKInserts() : tracker.getNumRemoteSSKInserts();
+						else
+							return local ? tracker.getNumLocalSSKRequests() : tracker.getNumRemoteSSKRequests();
+					} else {
+						if(insert)
+							return local ? tracker.getNumLocalCHKInserts() : tracker.getNumRemoteCHKInserts();
+						else
+							return local ? tracker.getNumLocalCHKRequests() : tracker.getNumRemoteCHKRequests();
+					}
+				}
+			}, "type", ssk ? "ssk" : "chk", "kind", insert ? "insert" : "request", "origin", local ? "local" : "remote");
+		}
+
+		// Peers and their packet throttles
+		metrics.gauge("freenet_peers_connected", "Connected peers that we can route to", new Gauge() {
+			@Override
+			public double get() {
+				return node.peers.countConnectedPeers();
+			}
+		});
+		metrics.gauge("freenet_peer_round_trip_milliseconds", "Average round trip time of the packet throttles of connected peers", new Gauge() {
+			@Override
+			public double get() {
+				long total = 0;
+				int count = 0;
+				for(PeerNode peer : node.peers.myPeers()) {
+					if(!peer.isConnected()) continue;
+					total += peer.getThrottle().getRoundTripTime();
+					count++;
+				}
+				return count == 0 ? 0 : (double) total / count;
+			}
+		});
+		metrics.gauge("freenet_peer_window_size_packets", "Total congestion window of the packet throttles of connected peers", new Gauge() {
+			@Override
+			public double get() {
+				double total = 0;
+				for(PeerNode peer : node.peers.myPeers()) {
+					if(!peer.isConnected()) continue;
+					total += peer.getThrottle().getWindowSize();
+				}
+				return total;
+			}
+		});
+		metrics.gauge("freenet_peer_throttle_bandwidth_bytes_per_second", "Total bandwidth allowed by the packet throttles of connected peers", new Gauge() {
+			@Override
+			public double get() {
+				double total = 0;
+				for(PeerNode peer : node.peers.myPeers()) {
+					if(!peer.isConnected()) continue;
+					PacketThrottle throttle = peer.getThrottle();
+					total += throttle.getBandwidth();
+				}
+				return total;
+			}
+		});
+
+		// USKs
+		metrics.gauge("freenet_usk_edition_cache_entries", "USKs whose latest editions are saved across restarts", new Gauge() {
+			@Override
+			public double get() {
+				return node.clientCore.uskManager.getEditionCacheSize();
+			}
+		});
+		metrics.counter("freenet_usk_polls_saved_total", "USK editions not polled again after a restart because the latest edition was saved", new Gauge() {
+			@Override
+			public double get() {
+				return node.clientCore.uskManager.getPollsSavedByEditionCache();
+			}
+		});
+
+		// Datastores
+		for(DataStoreKeyType key : DataStoreKeyType.values()) {
+			for(DataStoreType store : DataStoreType.values()) {
+				registerStore(node, metrics, new DataStoreInstanceType(key, store));
+			}
+		}
+	}
+
+	/** The fields of DataStoreStats we publish. */
+	private enum StoreField {
+		KEYS, CAPACITY, HITS, MISSES, FALSE_POSITIVES, WRITES
+	}
+
+	private static void registerStore(Node node, MetricsRegistry metrics, DataStoreInstanceType type) {
+		String key = type.key.name().toLowerCase(Locale.ENGLISH);
+		String store = type.store.name().toLowerCase(Locale.ENGLISH);
+		metrics.gauge("freenet_store_keys", "Keys in each datastore", new StoreGauge(node, type, StoreField.KEYS),
+				"key", key, "store", store);
+		metrics.gauge("freenet_store_capacity_keys", "Maximum number of keys in each datastore", new StoreGauge(node, type, StoreField.CAPACITY),
+				"key", key, "store", store);
+		metrics.counter("freenet_store_hits_total", "Successful datastore reads since startup", new StoreGauge(node, type, StoreField.HITS),
+				"key", key, "store", store);
+		metrics.counter("freenet_store_misses_total", "Unsuccessful datastore reads since startup", new StoreGauge(node, type, StoreField.MISSES),
+				"key", key, "store", store);
+		metrics.counter("freenet_store_false_positives_total", "Datastore reads that found the wrong key since startup", new StoreGauge(node, type, StoreField.FALSE_POSITIVES),
+				"key", key, "store", store);
+		metrics.counter("freenet_store_writes_total", "Datastore writes since startup", new StoreGauge(node, type, StoreField.WRITES),
+				"key", key, "store", store);
+	}
+
+	/** Looks up the store each time, because the store type can be changed while running. */
+	private static class StoreGauge implements Gauge {
+
+		private final Node node;
+		private final DataStoreInstanceType type;
+		private final StoreField field;
+
+		StoreGauge(Node node, DataStoreInstanceType type, StoreField field) {
+			this.node = node;
+			this.type = type;
+			this.field = field;
+		}
+
+		@Override
+		public double get() {
+			DataStoreStats stats = node.getDataStoreStats().get(type);
+			StoreAccessStats access;
+			switch(field) {
+			case KEYS:
+				return stats.keys();
+			case CAPACITY:
+				return stats.capacity();
+			default:
+				access = stats.getSessionAccessStats();
+			}
+			switch(field) {
+			case HITS:
+				return access.hits();
+			case MISSES:
+				return access.misses();
+			case FALSE_POSITIVES:
+				return access.falsePos();
+			default:
+				return access.writes();
+			}
+		}
+
+	}
+
+}
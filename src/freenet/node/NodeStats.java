@@ -45,6 +45,9 @@ import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.TimeDecayingRunningAverage;
 import freenet.support.math.TrivialRunningAverage;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 
 /** Node (as opposed to NodeClientCore) level statistics. Includes shouldRejectRequest(), but not limited
  * to stuff required to implement that. */
@@ -207,6 +210,14 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	final public Histogram2 chkSuccessRatesByLocation;
 
+	/** Local fetch times for the metrics registry, indexed by (realtime ? 2 : 0) + (success ? 1 : 0) */
+	private final Histogram[] localCHKFetchTimes;
+	private final Histogram[] localSSKFetchTimes;
+	/** Indexed by (realtime ? 2 : 0) + (local ? 1 : 0) */
+	private final Histogram[] nlmDelays;
+	/** Indexed by (ssk ? 4 : 0) + (remote ? 2 : 0) + (success ? 1 : 0) */
+	private final Counter[] requestsCompleted;
+
 	private long previous_input_stat;
 	private long previous_output_stat;
 	private long previous_io_stat_time;
@@ -582,6 +593,16 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		successfulLocalSSKFetchTimeAverageBulk = new TrivialRunningAverage();
 		unsuccessfulLocalSSKFetchTimeAverageBulk = new TrivialRunningAverage();
 		localSSKFetchTimeAverageBulk = new TrivialRunningAverage();
+		localCHKFetchTimes = fetchTimeHistograms(node.metrics, "chk");
+		localSSKFetchTimes = fetchTimeHistograms(node.metrics, "ssk");
+		nlmDelays = new Histogram[4];
+		for(int i=0;i<nlmDelays.length;i++)
+			nlmDelays[i] = node.metrics.histogram("freenet_nlm_delay_milliseconds", "Time requests waited for a slot under new load management",
+					"realtime", Boolean.toString(i >= 2), "origin", (i & 1) == 1 ? "local" : "remote");
+		requestsCompleted = new Counter[8];
+		for(int i=0;i<requestsCompleted.length;i++)
+			requestsCompleted[i] = node.metrics.counter("freenet_requests_completed_total", "Requests completed, by key type, origin and outcome",
+					"type", i >= 4 ? "ssk" : "chk", "origin", (i & 2) == 2 ? "remote" : "local", "result", (i & 1) == 1 ? "success" : "failure");
 
 		chkSuccessRatesByLocation = new Histogram2(10, 1.0);
 
@@ -2280,6 +2301,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public synchronized void requestCompleted(boolean succeeded, boolean isRemote, boolean isSSK) {
+		requestsCompleted[(isSSK ? 4 : 0) + (isRemote ? 2 : 0) + (succeeded ? 1 : 0)].increment();
 		globalFetchPSuccess.report(succeeded ? 1.0 : 0.0);
 		if(isSSK) {
 			if (isRemote) {
@@ -3052,7 +3074,16 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return result;
 	}
 
+	private static Histogram[] fetchTimeHistograms(MetricsRegistry metrics, String type) {
+		Histogram[] histograms = new Histogram[4];
+		for(int i=0;i<histograms.length;i++)
+			histograms[i] = metrics.histogram("freenet_local_fetch_time_milliseconds", "Time taken by local requests, by key type, realtime flag and outcome",
+					"type", type, "realtime", Boolean.toString(i >= 2), "result", (i & 1) == 1 ? "success" : "failure");
+		return histograms;
+	}
+
 	public void reportCHKOutcome(long rtt, boolean successful, double location, boolean isRealtime) {
+		localCHKFetchTimes[(isRealtime ? 2 : 0) + (successful ? 1 : 0)].report(rtt);
 		if (successful) {
 			(isRealtime ? successfulLocalCHKFetchTimeAverageRT : successfulLocalCHKFetchTimeAverageBulk).report(rtt);
 			chkSuccessRatesByLocation.report(location, 1.0);
@@ -3064,6 +3095,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportSSKOutcome(long rtt, boolean successful, boolean isRealtime) {
+		localSSKFetchTimes[(isRealtime ? 2 : 0) + (successful ? 1 : 0)].report(rtt);
 		if (successful) {
 			(isRealtime ? successfulLocalSSKFetchTimeAverageRT : successfulLocalSSKFetchTimeAverageBulk).report(rtt);
 		} else {
@@ -3733,6 +3765,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private RunningAverage nlmDelayBulkRemote = new TrivialRunningAverage();
 
 	public void reportNLMDelay(long waitTime, boolean realTime, boolean local) {
+		nlmDelays[(realTime ? 2 : 0) + (local ? 1 : 0)].report(waitTime);
 		if(realTime) {
 			if(local)
 				nlmDelayRTLocal.report(waitTime);
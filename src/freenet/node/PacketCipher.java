@@ -0,0 +1,180 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Encrypts, decrypts and authenticates the data packets of one SessionKey, keeping the cipher
+ * and MAC contexts around rather than setting them up again for every packet.
+ *
+ * From negType 11 on, packets are encrypted with AES-256 in CTR mode through the JCA, which uses
+ * the CPU's AES instructions where the JVM supports them. Earlier negTypes use Rijndael with
+ * 256-bit blocks in PCFB mode, which only our own pure Java implementation can do. Either way the
+ * IV is the sequence number with the IV nonce, encrypted with the IV cipher, and the packet is
+ * authenticated with HMAC-SHA256 over the ciphertext.
+ *
+ * Sending and receiving can happen on different threads, so each direction has its own contexts
+ * and its own lock.
+ * @see NewPacketFormat
+ */
+final class PacketCipher {
+
+	/** The first negType which encrypts packets with AES-CTR. */
+	static final int FIRST_AES_CTR_NEG_TYPE = 11;
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	private final boolean aesCtr;
+	private final BlockCipher ivCipher;
+	private final byte[] ivNonce;
+	private final byte[] hmacKey;
+	private final Direction outgoing;
+	private final Direction incoming;
+
+	PacketCipher(int negType, BlockCipher outgoingCipher, byte[] outgoingKey,
+			BlockCipher incomingCipher, byte[] incomingKey, BlockCipher ivCipher, byte[] ivNonce,
+			byte[] hmacKey) {
+		this.aesCtr = negType >= FIRST_AES_CTR_NEG_TYPE;
+		this.ivCipher = ivCipher;
+		this.ivNonce = ivNonce;
+		this.hmacKey = hmacKey;
+		this.outgoing = new Direction(outgoingCipher, outgoingKey);
+		this.incoming = new Direction(incomingCipher, incomingKey);
+	}
+
+	/** @return True if packets are encrypted with AES-CTR rather than Rijndael PCFB. */
+	boolean isAesCtr() {
+		return aesCtr;
+	}
+
+	/** @return True if the JCA can do AES-CTR with 256-bit keys, so we can offer negType 11. */
+	static boolean aesCtrAvailable() {
+		return Rijndael.AesCtrProvider != null;
+	}
+
+	/**
+	 * Encrypt an outgoing packet in place. The first 4 bytes of the plaintext are the sequence
+	 * number, which the IV is derived from.
+	 */
+	void encipherOutgoing(byte[] buf, int offset, int length) {
+		outgoing.encipher(iv(buf, offset), buf, offset, length);
+	}
+
+	/** Decrypt an incoming packet in place, given the sequence number it was matched to. */
+	void decipherIncoming(int sequenceNumber, byte[] buf, int offset, int length) {
+		incoming.decipher(iv(sequenceNumber), buf, offset, length);
+	}
+
+	/** @return The sequence number as it will appear in an incoming packet. */
+	byte[] encipherIncomingSequenceNumber(int sequenceNumber) {
+		byte[] seqNumBytes = sequenceNumberBytes(sequenceNumber);
+		incoming.encipher(iv(sequenceNumber), seqNumBytes, 0, seqNumBytes.length);
+		return seqNumBytes;
+	}
+
+	/** @return The full HMAC of an outgoing packet's ciphertext. */
+	byte[] macOutgoing(byte[] buf, int offset, int length) {
+		return outgoing.mac(buf, offset, length);
+	}
+
+	/** @return The full HMAC of an incoming packet's ciphertext. */
+	byte[] macIncoming(byte[] buf, int offset, int length) {
+		return incoming.mac(buf, offset, length);
+	}
+
+	private static byte[] sequenceNumberBytes(int sequenceNumber) {
+		byte[] seqNumBytes = new byte[4];
+		seqNumBytes[0] = (byte) (sequenceNumber >>> 24);
+		seqNumBytes[1] = (byte) (sequenceNumber >>> 16);
+		seqNumBytes[2] = (byte) (sequenceNumber >>> 8);
+		seqNumBytes[3] = (byte) (sequenceNumber);
+		return seqNumBytes;
+	}
+
+	private byte[] iv(int sequenceNumber) {
+		return iv(sequenceNumberBytes(sequenceNumber), 0);
+	}
+
+	/** The IV nonce with the sequence number in the last 4 bytes, encrypted with the IV cipher. */
+	private byte[] iv(byte[] seqNumBytes, int offset) {
+		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		System.arraycopy(ivNonce, 0, IV, 0, IV.length);
+		System.arraycopy(seqNumBytes, offset, IV, IV.length - 4, 4);
+		ivCipher.encipher(IV, IV);
+		return IV;
+	}
+
+	/** The contexts for one direction. */
+	private class Direction {
+
+		private final BlockCipher blockCipher;
+		private final byte[] key;
+		/** Created on first use, AES-CTR only. */
+		private Cipher cipher;
+		private SecretKeySpec keySpec;
+		/** Created on first use. */
+		private Mac mac;
+
+		Direction(BlockCipher blockCipher, byte[] key) {
+			this.blockCipher = blockCipher;
+			this.key = key;
+		}
+
+		void encipher(byte[] IV, byte[] buf, int offset, int length) {
+			if(aesCtr)
+				ctr(IV, buf, offset, length);
+			else
+				PCFBMode.create(blockCipher, IV).blockEncipher(buf, offset, length);
+		}
+
+		void decipher(byte[] IV, byte[] buf, int offset, int length) {
+			if(aesCtr)
+				ctr(IV, buf, offset, length);
+			else
+				PCFBMode.create(blockCipher, IV).blockDecipher(buf, offset, length);
+		}
+
+		private synchronized void ctr(byte[] IV, byte[] buf, int offset, int length) {
+			try {
+				if(cipher == null) {
+					if(Rijndael.AesCtrProvider != null)
+						cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+					else
+						cipher = Cipher.getInstance("AES/CTR/NOPADDING");
+					keySpec = new SecretKeySpec(key, "AES");
+				}
+				// The IV cipher may have 256-bit blocks; AES only needs the first 128 bits.
+				cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(IV, 0, 16));
+				cipher.doFinal(buf, offset, length, buf, offset);
+			} catch (GeneralSecurityException e) {
+				// We only negotiate AES-CTR if Rijndael has checked that the JCA can do it.
+				throw new Error(e);
+			}
+		}
+
+		synchronized byte[] mac(byte[] buf, int offset, int length) {
+			try {
+				if(mac == null) {
+					mac = Mac.getInstance(HMAC_ALGORITHM);
+					mac.init(new SecretKeySpec(hmacKey, HMAC_ALGORITHM));
+				}
+			} catch (GeneralSecurityException e) {
+				throw new Error(e);
+			}
+			mac.update(buf, offset, length);
+			return mac.doFinal();
+		}
+	}
+
+}
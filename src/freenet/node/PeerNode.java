@@ -1,9 +1,6 @@
 package freenet.node;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.lang.ref.WeakReference;
@@ -140,6 +137,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	// The following is used only if we are the initiator
 
 	protected long jfkContextLifetime = 0;
+	/** When we last sent a JFK(1), so we can tell how long the handshake took. */
+	protected long jfkMessage1SentTime = 0;
 	/** My low-level address for SocketManager purposes */
 	private Peer detectedPeer;
 	/** My OutgoingPacketMangler i.e. the object which encrypts packets sent to this node */
@@ -2082,7 +2081,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			} else {
 				// else it's a rekey
 			}
-			newTracker = new SessionKey(this, outgoingCipher, outgoingKey, incommingCipher, incommingKey, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(ourInitialSeqNum, theirInitialSeqNum), trackerID);
+			newTracker = new SessionKey(this, outgoingCipher, outgoingKey, incommingCipher, incommingKey, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(ourInitialSeqNum, theirInitialSeqNum), trackerID, negType);
 			if(logMINOR) Logger.minor(this, "New key tracker in completedHandshake: "+newTracker+" for "+shortToString()+" neg type "+negType);
 			if(unverified) {
 				if(unverifiedTracker != null) {
@@ -2393,16 +2392,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			Logger.minor(PeerNode.class, "Reference: " + HexUtil.bytesToHex(data, offset, length) + '(' + length + ')');
 
 		// Now decode it
-		ByteArrayInputStream bais = new ByteArrayInputStream(data, offset, length);
-		InputStreamReader isr;
 		try {
-			isr = new InputStreamReader(bais, "UTF-8");
-		} catch(UnsupportedEncodingException e1) {
-			throw new Error("Impossible: JVM doesn't support UTF-8: " + e1, e1);
-		}
-		BufferedReader br = new BufferedReader(isr);
-		try {
-			SimpleFieldSet fs = new SimpleFieldSet(br, false, true);
+			SimpleFieldSet fs = new SimpleFieldSet(data, offset, length, false, true, false);
+			// Parsing a noderef does a lot of lookups of keys in subsets.
+			fs.buildKeyIndex();
 			return fs;
 		} catch(IOException e) {
 			throw (FSParseException)new FSParseException("Impossible: " + e).initCause(e);
@@ -31,9 +31,21 @@ public class SessionKey {
 	
 	public final NewPacketFormatKeyContext packetContext;
 
+	/** Encrypts, decrypts and authenticates packets with the above keys. */
+	final PacketCipher packetCipher;
+
 	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
 	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
 			byte[] ivNonce, byte[] hmacKey, NewPacketFormatKeyContext context, long trackerID) {
+		// negType 10 and earlier use Rijndael PCFB for packets.
+		this(parent, outgoingCipher, outgoingKey, incommingCipher, incommingKey, ivCipher, ivNonce,
+				hmacKey, context, trackerID, 10);
+	}
+
+	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
+	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
+			byte[] ivNonce, byte[] hmacKey, NewPacketFormatKeyContext context, long trackerID,
+			int negType) {
 		this.pn = parent;
 		this.outgoingCipher = outgoingCipher;
 		this.outgoingKey = outgoingKey;
@@ -44,6 +56,8 @@ public class SessionKey {
 		this.hmacKey = hmacKey;
 		this.packetContext = context;
 		this.trackerID = trackerID;
+		this.packetCipher = new PacketCipher(negType, outgoingCipher, outgoingKey, incommingCipher,
+				incommingKey, ivCipher, ivNonce, hmacKey);
 	}
 	
 	public void disconnected() {
@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.Logger;
+import freenet.support.TimeUtil;
+
+/**
+ * Records when each phase of node startup began and ended, so we can tell what makes startup
+ * slow. Phases may overlap, e.g. plugins load while the download queue is resumed.
+ */
+public class StartupTimeline {
+
+	private final long startTime;
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	private static class Phase {
+		final String name;
+		final long begin;
+		long end = -1;
+
+		Phase(String name, long begin) {
+			this.name = name;
+			this.begin = begin;
+		}
+	}
+
+	public StartupTimeline() {
+		startTime = System.currentTimeMillis();
+	}
+
+	/** Start timing a phase. */
+	public synchronized void begin(String name) {
+		phases.add(new Phase(name, System.currentTimeMillis()));
+	}
+
+	/** Finish timing a phase. Ignored if it hasn't begun or has already ended. */
+	public synchronized void end(String name) {
+		for(Phase phase : phases) {
+			if(phase.name.equals(name) && phase.end == -1) {
+				phase.end = System.currentTimeMillis();
+				return;
+			}
+		}
+	}
+
+	/** Log the timeline so far, and print it to stdout. */
+	public void log(String when) {
+		String timeline = toString();
+		Logger.normal(this, "Startup timeline "+when+": "+timeline);
+		System.out.println("Startup timeline "+when+": "+timeline);
+	}
+
+	/** @return Each phase with when it began relative to startup, and how long it took or
+	 * that it is still running. */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Phase phase : phases) {
+			if(sb.length() > 0) sb.append(", ");
+			sb.append(phase.name).append(" at ");
+			sb.append(TimeUtil.formatTime(phase.begin - startTime, 2, true));
+			if(phase.end == -1)
+				sb.append(" (running)");
+			else
+				sb.append(" took ").append(TimeUtil.formatTime(phase.end - phase.begin, 2, true));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,94 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import freenet.io.AddressTracker.Status;
+import freenet.io.comm.IncomingPacketFilter;
+import freenet.io.comm.PacketSocketHandler;
+import freenet.io.comm.Peer;
+import freenet.io.comm.UdpSocketHandler;
+import freenet.support.Logger;
+
+/**
+ * A {@link PacketSocketHandler} which sends packets over an {@link InMemoryTransport} instead of
+ * UDP. Incoming packets are passed to the low level filter on the transport's ticker thread, at
+ * the virtual time they arrive.
+ */
+public class InMemoryPacketSocketHandler implements PacketSocketHandler {
+
+	private final InMemoryTransport transport;
+	private final Peer address;
+	private final int maxPacketSize;
+	private IncomingPacketFilter lowLevelFilter;
+
+	private long packetsReceived;
+	private long bytesReceived;
+
+	InMemoryPacketSocketHandler(InMemoryTransport transport, Peer address, int maxPacketSize) {
+		this.transport = transport;
+		this.address = address;
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	/** @return Our address on the transport. */
+	public Peer getAddress() {
+		return address;
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return maxPacketSize;
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) {
+		if(blockToSend.length > maxPacketSize) {
+			Logger.error(this, "Sending packet of "+blockToSend.length+" bytes, maximum is "+maxPacketSize, new Exception("error"));
+		}
+		transport.send(address, blockToSend, 0, blockToSend.length, destination);
+	}
+
+	void receive(byte[] data, Peer source, long now) {
+		packetsReceived++;
+		bytesReceived += data.length;
+		IncomingPacketFilter filter = lowLevelFilter;
+		if(filter == null) return;
+		filter.process(data, 0, data.length, source, now);
+	}
+
+	@Override
+	public int getHeadersLength() {
+		return UdpSocketHandler.UDP_HEADERS_LENGTH;
+	}
+
+	@Override
+	public int getHeadersLength(Peer peer) {
+		return getHeadersLength();
+	}
+
+	@Override
+	public void setLowLevelFilter(IncomingPacketFilter f) {
+		lowLevelFilter = f;
+	}
+
+	@Override
+	public int getPacketSendThreshold() {
+		return maxPacketSize - 100;
+	}
+
+	@Override
+	public Status getDetectedConnectivityStatus() {
+		// Everyone can reach everyone.
+		return Status.DEFINITELY_PORT_FORWARDED;
+	}
+
+	public long packetsReceived() {
+		return packetsReceived;
+	}
+
+	public long bytesReceived() {
+		return bytesReceived;
+	}
+
+}
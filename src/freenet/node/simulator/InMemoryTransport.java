@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Random;
+
+import freenet.io.comm.Peer;
+
+/**
+ * The wire between {@link InMemoryPacketSocketHandler}s: delivers packets in virtual time on a
+ * {@link VirtualTimeTicker}, after a latency which is fixed for each pair of endpoints, and drops
+ * some of them at random. Everything is decided by the seeded Random and the order in which
+ * packets are sent, so a simulation is reproducible.
+ */
+public class InMemoryTransport {
+
+	private final VirtualTimeTicker ticker;
+	private final Random random;
+	private final int minLatency;
+	private final int maxLatency;
+	private final double dropProbability;
+	/** Mixed into the latency of each link, so different seeds give different networks. */
+	private final long latencySalt;
+	private final HashMap<Peer, InMemoryPacketSocketHandler> endpoints = new HashMap<Peer, InMemoryPacketSocketHandler>();
+
+	private long packetsSent;
+	private long packetsDropped;
+	private long bytesSent;
+
+	/**
+	 * @param minLatency The shortest one-way latency of a link, in ms.
+	 * @param maxLatency The longest one-way latency of a link, in ms.
+	 * @param dropProbability The probability of losing any given packet.
+	 */
+	public InMemoryTransport(VirtualTimeTicker ticker, Random random, int minLatency, int maxLatency, double dropProbability) {
+		if(minLatency < 0 || maxLatency < minLatency) throw new IllegalArgumentException();
+		this.ticker = ticker;
+		this.random = random;
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+		this.dropProbability = dropProbability;
+		this.latencySalt = random.nextLong();
+	}
+
+	/** Create an endpoint with the next free address. */
+	public InMemoryPacketSocketHandler createEndpoint(int maxPacketSize) {
+		int id = endpoints.size();
+		// 10.0.0.0/8, so nothing mistakes it for a local address.
+		byte[] addr = new byte[] { 10, (byte) (id >> 16), (byte) (id >> 8), (byte) id };
+		Peer peer;
+		try {
+			peer = new Peer(InetAddress.getByAddress(addr), 1024 + (id & 0xffff));
+		} catch (UnknownHostException e) {
+			throw new Error("Impossible: "+e, e);
+		}
+		InMemoryPacketSocketHandler endpoint = new InMemoryPacketSocketHandler(this, peer, maxPacketSize);
+		endpoints.put(peer, endpoint);
+		return endpoint;
+	}
+
+	/** @return The one-way latency between two endpoints, in ms. The same both ways. */
+	public int latency(Peer a, Peer b) {
+		if(maxLatency == minLatency) return minLatency;
+		long h = latencySalt ^ ((long) a.hashCode() * b.hashCode()) ^ (a.hashCode() + b.hashCode());
+		// Finalizer from MurmurHash3, to spread the bits.
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return minLatency + (int) ((h >>> 1) % (maxLatency - minLatency + 1));
+	}
+
+	void send(final Peer source, byte[] buf, int offset, int length, Peer destination) {
+		packetsSent++;
+		bytesSent += length;
+		final InMemoryPacketSocketHandler dest = endpoints.get(destination);
+		if(dest == null || (dropProbability > 0 && random.nextDouble() < dropProbability)) {
+			packetsDropped++;
+			return;
+		}
+		// The sender may reuse the buffer.
+		final byte[] data = new byte[length];
+		System.arraycopy(buf, offset, data, 0, length);
+		ticker.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				dest.receive(data, source, ticker.now());
+			}
+		}, latency(source, destination));
+	}
+
+	public VirtualTimeTicker getTicker() {
+		return ticker;
+	}
+
+	public long packetsSent() {
+		return packetsSent;
+	}
+
+	public long packetsDropped() {
+		return packetsDropped;
+	}
+
+	public long bytesSent() {
+		return bytesSent;
+	}
+
+}
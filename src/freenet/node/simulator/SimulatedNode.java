@@ -0,0 +1,387 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import freenet.io.comm.IncomingPacketFilter;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerContext;
+import freenet.node.Location;
+import freenet.node.Node;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+
+/**
+ * A node in a {@link VirtualNetworkSimulator}. This is a simplified model of a node, not the
+ * node itself: it has a location, some peers and a datastore of keys, and routes requests and
+ * inserts greedily with backtracking: each request goes to the closest peer to the key which it
+ * hasn't been to yet, the HTL is decremented with the same probabilistic rules at the top and
+ * bottom as PeerNode uses, loops are rejected, and if a peer can't find the key while there is
+ * HTL left we try the next closest. None of the node's own request, insert, load management or
+ * transport code runs here, and messages are our own fixed size packets sent over an
+ * {@link InMemoryPacketSocketHandler}, not FNP messages.
+ *
+ * Each message takes the node a fixed processing time, one at a time, so a node which gets too
+ * many requests builds up a queue; this is the only load management in the model.
+ *
+ * Subclasses can override {@link #choosePeer(double, Peer, ArrayList)} to try other routing.
+ */
+public class SimulatedNode implements IncomingPacketFilter {
+
+	static final byte MSG_REQUEST = 1;
+	static final byte MSG_INSERT = 2;
+	static final byte MSG_DATA_FOUND = 3;
+	/** Route not found or data not found, with the HTL left. */
+	static final byte MSG_NOT_FOUND = 4;
+	static final byte MSG_REJECTED_LOOP = 5;
+	static final byte MSG_INSERT_REPLY = 6;
+	/** type, uid, key, htl, depth */
+	static final int MESSAGE_LENGTH = 1 + 8 + 8 + 2 + 2;
+	/** The same assumption as BaseSender makes: HTL 1 lasts this many hops on average. */
+	static final double EXTRA_HOPS_AT_BOTTOM = 1.0 / Node.DECREMENT_AT_MIN_PROB;
+
+	/** A connection to a peer. */
+	protected static class Link {
+		public final Peer address;
+		public final double location;
+		/** As on PeerNode: how we decrement HTL on requests from this peer. */
+		final boolean decrementAtMax;
+		final boolean decrementAtMin;
+
+		Link(Peer address, double location, boolean decrementAtMax, boolean decrementAtMin) {
+			this.address = address;
+			this.location = location;
+			this.decrementAtMax = decrementAtMax;
+			this.decrementAtMin = decrementAtMin;
+		}
+	}
+
+	/** A request or insert we are handling. */
+	private static class RequestState {
+		final long uid;
+		final long key;
+		final boolean insert;
+		/** Null if we started it. */
+		final Link source;
+		final long startTime;
+		final short depth;
+		final ArrayList<Peer> routedTo = new ArrayList<Peer>();
+		short htl;
+		/** The peer we are waiting for a reply from, if any. */
+		Peer waitingFor;
+		/** Changes every time we route, so a timeout can tell whether it is still current. */
+		int attempt;
+
+		RequestState(long uid, long key, boolean insert, Link source, short htl, short depth, long startTime) {
+			this.uid = uid;
+			this.key = key;
+			this.insert = insert;
+			this.source = source;
+			this.htl = htl;
+			this.depth = depth;
+			this.startTime = startTime;
+		}
+	}
+
+	protected final VirtualNetworkSimulator sim;
+	protected final InMemoryPacketSocketHandler endpoint;
+	protected final double location;
+	protected final ArrayList<Link> peers = new ArrayList<Link>();
+	private final HashMap<Peer, Link> peersByAddress = new HashMap<Peer, Link>();
+	private final LRUMap<Long, Boolean> store = new LRUMap<Long, Boolean>();
+	private final int storeSize;
+	private final HashMap<Long, RequestState> running = new HashMap<Long, RequestState>();
+	/** UIDs we have seen recently, to reject loops. */
+	private final LRUMap<Long, Boolean> recentUIDs = new LRUMap<Long, Boolean>();
+	private static final int MAX_RECENT_UIDS = 10000;
+
+	/** When we will have finished the messages we have already been sent. */
+	private long busyUntil;
+	private long messagesHandled;
+	private long cpuNanos;
+
+	protected SimulatedNode(VirtualNetworkSimulator sim, InMemoryPacketSocketHandler endpoint, double location, int storeSize) {
+		this.sim = sim;
+		this.endpoint = endpoint;
+		this.location = location;
+		this.storeSize = storeSize;
+		endpoint.setLowLevelFilter(this);
+	}
+
+	public double getLocation() {
+		return location;
+	}
+
+	public Peer getAddress() {
+		return endpoint.getAddress();
+	}
+
+	public int countPeers() {
+		return peers.size();
+	}
+
+	/** @return True if we weren't already connected. */
+	boolean connect(SimulatedNode other, boolean decrementAtMax, boolean decrementAtMin) {
+		if(other == this || peersByAddress.containsKey(other.getAddress())) return false;
+		Link link = new Link(other.getAddress(), other.location, decrementAtMax, decrementAtMin);
+		peers.add(link);
+		peersByAddress.put(link.address, link);
+		return true;
+	}
+
+	/** Start a request or insert for a key from this node. */
+	void start(long uid, long key, boolean insert) {
+		long now = sim.ticker.now();
+		recentUIDs.push(uid, Boolean.TRUE);
+		if(!insert && store.containsKey(key)) {
+			sim.completed(this, uid, insert, true, 0, 0);
+			return;
+		}
+		if(insert) maybeStore(key, false);
+		RequestState state = new RequestState(uid, key, insert, null, sim.maxHTL, (short) 0, now);
+		running.put(uid, state);
+		route(state);
+	}
+
+	boolean hasKey(long key) {
+		return store.containsKey(key);
+	}
+
+	@Override
+	public DECODED process(byte[] buf, int offset, int length, final Peer peer, long now) {
+		if(length < MESSAGE_LENGTH) return DECODED.NOT_DECODED;
+		final Link link = peersByAddress.get(peer);
+		if(link == null) return DECODED.NOT_DECODED;
+		final ByteBuffer msg = ByteBuffer.wrap(buf, offset, length);
+		long processingTime = sim.processingTime;
+		if(processingTime <= 0) {
+			handle(msg, link);
+		} else {
+			// Wait for the messages before this one to be done.
+			busyUntil = Math.max(busyUntil, now) + processingTime;
+			sim.ticker.queueTimedJob(new Runnable() {
+				@Override
+				public void run() {
+					handle(msg, link);
+				}
+			}, busyUntil - now);
+		}
+		return DECODED.DECODED;
+	}
+
+	@Override
+	public boolean isDisconnected(PeerContext context) {
+		return false;
+	}
+
+	private void handle(ByteBuffer msg, Link link) {
+		long startCPU = VirtualNetworkSimulator.cpuTime();
+		try {
+			byte type = msg.get();
+			long uid = msg.getLong();
+			long key = msg.getLong();
+			short htl = msg.getShort();
+			short depth = msg.getShort();
+			switch(type) {
+			case MSG_REQUEST:
+			case MSG_INSERT:
+				handleRequest(link, uid, key, htl, depth, type == MSG_INSERT);
+				break;
+			case MSG_DATA_FOUND:
+			case MSG_INSERT_REPLY:
+				handleSuccess(link, uid, depth);
+				break;
+			case MSG_NOT_FOUND:
+				handleNotFound(link, uid, htl);
+				break;
+			case MSG_REJECTED_LOOP:
+				handleRejectedLoop(link, uid);
+				break;
+			default:
+				Logger.error(this, "Unknown message type "+type);
+			}
+		} finally {
+			messagesHandled++;
+			cpuNanos += VirtualNetworkSimulator.cpuTime() - startCPU;
+		}
+	}
+
+	private void handleRequest(Link source, long uid, long key, short htl, short depth, boolean insert) {
+		if(recentUIDs.containsKey(uid)) {
+			send(source.address, MSG_REJECTED_LOOP, uid, key, htl, depth);
+			return;
+		}
+		recentUIDs.push(uid, Boolean.TRUE);
+		while(recentUIDs.size() > MAX_RECENT_UIDS)
+			recentUIDs.popKey();
+		if(!insert && store.containsKey(key)) {
+			store.push(key, Boolean.TRUE);
+			send(source.address, MSG_DATA_FOUND, uid, key, (short) 0, depth);
+			return;
+		}
+		htl = decrementHTL(source, htl);
+		if(insert) maybeStore(key, htl == 0);
+		RequestState state = new RequestState(uid, key, insert, source, htl, depth, sim.ticker.now());
+		if(htl == 0) {
+			finish(state, false);
+			return;
+		}
+		running.put(uid, state);
+		route(state);
+	}
+
+	/** The same rules as PeerNode.decrementHTL(), reimplemented here. */
+	private short decrementHTL(Link source, short htl) {
+		short max = sim.maxHTL;
+		if(htl > max) htl = max;
+		if(htl <= 0) return 0;
+		if(htl == max) {
+			if(source.decrementAtMax) htl--;
+			return htl;
+		}
+		if(htl == 1) {
+			if(source.decrementAtMin) htl--;
+			return htl;
+		}
+		return --htl;
+	}
+
+	/** Inserts are stored on nodes which are closer to the key than all their peers, and where
+	 * they end. */
+	private void maybeStore(long key, boolean last) {
+		double target = VirtualNetworkSimulator.keyLocation(key);
+		if(!last) {
+			double ourDistance = Location.distance(location, target);
+			for(Link l : peers) {
+				if(Location.distance(l.location, target) < ourDistance) return;
+			}
+		}
+		cache(key);
+	}
+
+	private void cache(long key) {
+		store.push(key, Boolean.TRUE);
+		while(store.size() > storeSize)
+			store.popKey();
+	}
+
+	private void route(final RequestState state) {
+		Peer sourceAddress = state.source == null ? null : state.source.address;
+		Link next = choosePeer(VirtualNetworkSimulator.keyLocation(state.key), sourceAddress, state.routedTo);
+		if(next == null) {
+			// Route not found.
+			finish(state, false);
+			return;
+		}
+		state.routedTo.add(next.address);
+		state.waitingFor = next.address;
+		final int attempt = ++state.attempt;
+		send(next.address, state.insert ? MSG_INSERT : MSG_REQUEST, state.uid, state.key, state.htl, (short) (state.depth + 1));
+		sim.ticker.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				if(running.get(state.uid) != state || state.attempt != attempt) return;
+				sim.timeouts++;
+				// Try somewhere else, as if they had run out of places to route to.
+				state.waitingFor = null;
+				route(state);
+			}
+		}, (long) (sim.hopTimeout * (state.htl + EXTRA_HOPS_AT_BOTTOM)));
+	}
+
+	/**
+	 * Choose the next peer to route to.
+	 * @param target The location of the key.
+	 * @param source The peer the request came from, or null if it is ours.
+	 * @param routedTo Peers we have already routed this request to.
+	 * @return The peer, or null if there is nowhere left to route to.
+	 */
+	protected Link choosePeer(double target, Peer source, ArrayList<Peer> routedTo) {
+		Link best = null;
+		double bestDistance = Double.MAX_VALUE;
+		for(Link l : peers) {
+			if(l.address.equals(source) || routedTo.contains(l.address)) continue;
+			double distance = Location.distance(l.location, target);
+			if(distance < bestDistance) {
+				best = l;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	private RequestState replyTo(Link link, long uid) {
+		RequestState state = running.get(uid);
+		// A late reply after a timeout.
+		if(state == null || !link.address.equals(state.waitingFor)) return null;
+		state.waitingFor = null;
+		return state;
+	}
+
+	private void handleSuccess(Link link, long uid, short depth) {
+		RequestState state = replyTo(link, uid);
+		if(state == null) return;
+		// Requests cache the data on the way back.
+		if(!state.insert) cache(state.key);
+		running.remove(uid);
+		if(state.source == null)
+			sim.completed(this, uid, state.insert, true, depth, sim.ticker.now() - state.startTime);
+		else
+			send(state.source.address, state.insert ? MSG_INSERT_REPLY : MSG_DATA_FOUND, uid, state.key, (short) 0, depth);
+	}
+
+	private void handleNotFound(Link link, long uid, short htl) {
+		RequestState state = replyTo(link, uid);
+		if(state == null) return;
+		state.htl = htl;
+		if(htl > 0)
+			route(state);
+		else
+			finish(state, state.insert);
+	}
+
+	private void handleRejectedLoop(Link link, long uid) {
+		RequestState state = replyTo(link, uid);
+		if(state == null) return;
+		route(state);
+	}
+
+	/** Finish a request or insert which hasn't found the data: an insert has succeeded if it ran
+	 * out of HTL, a request has failed. */
+	private void finish(RequestState state, boolean success) {
+		running.remove(state.uid);
+		if(state.insert && state.htl == 0) success = true;
+		if(state.source == null) {
+			sim.completed(this, state.uid, state.insert, success, state.depth, sim.ticker.now() - state.startTime);
+		} else if(success) {
+			send(state.source.address, MSG_INSERT_REPLY, state.uid, state.key, (short) 0, state.depth);
+		} else {
+			send(state.source.address, MSG_NOT_FOUND, state.uid, state.key, state.htl, state.depth);
+		}
+	}
+
+	private void send(Peer to, byte type, long uid, long key, short htl, short depth) {
+		ByteBuffer buf = ByteBuffer.allocate(MESSAGE_LENGTH);
+		buf.put(type);
+		buf.putLong(uid);
+		buf.putLong(key);
+		buf.putShort(htl);
+		buf.putShort(depth);
+		endpoint.sendPacket(buf.array(), to, true);
+	}
+
+	/** @return The number of messages we have handled. */
+	public long messagesHandled() {
+		return messagesHandled;
+	}
+
+	/** @return The CPU time we have spent handling messages, in nanoseconds. */
+	public long cpuNanos() {
+		return cpuNanos;
+	}
+
+}
@@ -0,0 +1,307 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.node.Node;
+
+/**
+ * Simulates a darknet of hundreds to thousands of {@link SimulatedNode}s in one JVM, on one
+ * thread, in virtual time: packets go over an {@link InMemoryTransport} and everything is
+ * scheduled on a {@link VirtualTimeTicker}, so a run takes as long as the model takes to run,
+ * rather than as long as the network would, and the same seed always gives the same result.
+ *
+ * The nodes are a simplified model of greedy routing, not real nodes, so this is only good for
+ * a first look at how a routing idea scales, e.g. on path length and success rate in a big
+ * network. It doesn't evaluate the node's actual routing, load management or transport code:
+ * changes to those must still be tried with the RealNode*Test simulators, which run the whole
+ * node, but need real time and real UDP, so are limited to small networks and aren't
+ * reproducible.
+ *
+ * The network is a Kleinberg small world with the nodes at ideal locations, as RealNodeTest
+ * makes. We insert some keys from random nodes, then request them from other random nodes,
+ * and report the success rate, path length and latency of the requests, and the CPU time each
+ * node's model spent handling messages.
+ *
+ * Usage: VirtualNetworkSimulator [nodes [degree [requests [seed]]]]
+ */
+public class VirtualNetworkSimulator {
+
+	/** The parameters of a simulation. Set them before calling {@link #build()}. */
+	public static class Settings {
+		public int nodes = 1000;
+		public int degree = 10;
+		public short maxHTL = Node.DEFAULT_MAX_HTL;
+		public long seed = 3142;
+		/** One-way link latency range, in ms. */
+		public int minLatency = 10;
+		public int maxLatency = 150;
+		public double dropProbability = 0.0;
+		/** Time to handle one message, in ms. */
+		public long processingTime = 1;
+		/** Keys each node can store. */
+		public int storeSize = 1000;
+		/** How long to wait for a reply for each hop of HTL left, in ms. */
+		public long hopTimeout = 2000;
+		/** Requests or inserts started per second across the network. */
+		public double operationsPerSecond = 50;
+	}
+
+	/** The results of a batch of requests or inserts. */
+	public static class Stats {
+		public final boolean inserts;
+		public int started;
+		public int succeeded;
+		public int failed;
+		/** Total path length of successful operations. */
+		public long totalHops;
+		private long[] latencies = new long[64];
+		private int latencyCount;
+		/** Virtual time the batch took, in ms. */
+		public long duration;
+		/** CPU time each node spent, in nanoseconds, and messages it handled. */
+		public long[] nodeCPU;
+		public long[] nodeMessages;
+
+		Stats(boolean inserts) {
+			this.inserts = inserts;
+		}
+
+		void addLatency(long latency) {
+			if(latencyCount == latencies.length)
+				latencies = Arrays.copyOf(latencies, latencyCount * 2);
+			latencies[latencyCount++] = latency;
+		}
+
+		public double successRate() {
+			return started == 0 ? 0.0 : (double) succeeded / started;
+		}
+
+		public double averageHops() {
+			return succeeded == 0 ? 0.0 : (double) totalHops / succeeded;
+		}
+
+		/** @return The given percentile of the latency of successful operations, in ms. */
+		public long latencyPercentile(double percentile) {
+			if(latencyCount == 0) return 0;
+			long[] sorted = Arrays.copyOf(latencies, latencyCount);
+			Arrays.sort(sorted);
+			int index = (int) Math.min(latencyCount - 1, Math.floor(percentile * latencyCount / 100.0));
+			return sorted[index];
+		}
+
+		public double averageLatency() {
+			if(latencyCount == 0) return 0.0;
+			long total = 0;
+			for(int i = 0; i < latencyCount; i++) total += latencies[i];
+			return (double) total / latencyCount;
+		}
+
+		public void print(PrintStream out) {
+			String what = inserts ? "Inserts" : "Requests";
+			out.println(what + ": " + started + " started, " + succeeded + " succeeded, " + failed + " failed (" + String.format("%.1f", successRate() * 100) + "%)");
+			out.println("Average path length: " + String.format("%.2f", averageHops()) + " hops");
+			out.println("Latency: average " + String.format("%.0f", averageLatency()) + "ms, median " + latencyPercentile(50) + "ms, 95th percentile " + latencyPercentile(95) + "ms");
+			out.println("Virtual time: " + duration + "ms");
+			if(nodeCPU != null && nodeCPU.length > 0) {
+				long total = 0;
+				long max = 0;
+				long messages = 0;
+				long maxMessages = 0;
+				for(int i = 0; i < nodeCPU.length; i++) {
+					total += nodeCPU[i];
+					max = Math.max(max, nodeCPU[i]);
+					messages += nodeMessages[i];
+					maxMessages = Math.max(maxMessages, nodeMessages[i]);
+				}
+				out.println("Routing CPU per node: average " + (total / nodeCPU.length / 1000) + "us, max " + (max / 1000) + "us" +
+						(messages == 0 ? "" : ", " + (total / messages) + "ns per message"));
+				out.println("Messages per node: average " + (messages / nodeMessages.length) + ", max " + maxMessages);
+			}
+		}
+	}
+
+	final VirtualTimeTicker ticker;
+	final short maxHTL;
+	final long processingTime;
+	final long hopTimeout;
+	final Settings settings;
+	private final Random random;
+	private final InMemoryTransport transport;
+	private SimulatedNode[] nodes;
+	private final ArrayList<Long> insertedKeys = new ArrayList<Long>();
+	private long nextUID;
+	private Stats current;
+	private int outstanding;
+	private long lastCompleted;
+	long timeouts;
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean useThreadCPU = threads.isCurrentThreadCpuTimeSupported();
+
+	public VirtualNetworkSimulator(Settings settings) {
+		this.settings = settings;
+		this.maxHTL = settings.maxHTL;
+		this.processingTime = settings.processingTime;
+		this.hopTimeout = settings.hopTimeout;
+		this.random = new DummyRandomSource(settings.seed);
+		// Start at a realistic time, in case anything formats it.
+		this.ticker = new VirtualTimeTicker(1000L * 1000 * 1000 * 1000);
+		this.transport = new InMemoryTransport(ticker, random, settings.minLatency, settings.maxLatency, settings.dropProbability);
+	}
+
+	/** Create the nodes and connect them. */
+	public void build() {
+		int n = settings.nodes;
+		nodes = new SimulatedNode[n];
+		for(int i = 0; i < n; i++)
+			nodes[i] = createNode(transport.createEndpoint(1280), (double) i / n);
+		// Neighbours, so the network is connected.
+		for(int i = 0; i < n; i++)
+			connect(nodes[i], nodes[(i + 1) % n]);
+		// Long links with probability inversely proportional to distance, degree/2 from each node.
+		double logMax = Math.log(n / 2.0);
+		for(int i = 0; i < n; i++) {
+			for(int k = 0; k < settings.degree / 2; k++) {
+				for(int tries = 0; tries < 10; tries++) {
+					int offset = (int) Math.round(Math.exp(random.nextDouble() * logMax));
+					if(offset < 1) offset = 1;
+					int j = random.nextBoolean() ? (i + offset) % n : (i - offset + n) % n;
+					if(connect(nodes[i], nodes[j])) break;
+				}
+			}
+		}
+	}
+
+	/** Override to simulate different routing. */
+	protected SimulatedNode createNode(InMemoryPacketSocketHandler endpoint, double location) {
+		return new SimulatedNode(this, endpoint, location, settings.storeSize);
+	}
+
+	private boolean connect(SimulatedNode a, SimulatedNode b) {
+		if(!a.connect(b, random.nextDouble() < Node.DECREMENT_AT_MAX_PROB, random.nextDouble() < Node.DECREMENT_AT_MIN_PROB))
+			return false;
+		b.connect(a, random.nextDouble() < Node.DECREMENT_AT_MAX_PROB, random.nextDouble() < Node.DECREMENT_AT_MIN_PROB);
+		return true;
+	}
+
+	/** Insert random keys from random nodes, and wait for them all to finish. */
+	public Stats runInserts(int count) {
+		return run(count, true);
+	}
+
+	/** Request keys we have inserted from random nodes, and wait for them all to finish. */
+	public Stats runRequests(int count) {
+		if(insertedKeys.isEmpty()) throw new IllegalStateException("Nothing inserted");
+		return run(count, false);
+	}
+
+	private Stats run(int count, final boolean inserts) {
+		if(nodes == null) build();
+		final Stats stats = new Stats(inserts);
+		current = stats;
+		long[] startCPU = new long[nodes.length];
+		long[] startMessages = new long[nodes.length];
+		for(int i = 0; i < nodes.length; i++) {
+			startCPU[i] = nodes[i].cpuNanos();
+			startMessages[i] = nodes[i].messagesHandled();
+		}
+		long startTime = ticker.now();
+		lastCompleted = startTime;
+		double interval = 1000.0 / settings.operationsPerSecond;
+		for(int i = 0; i < count; i++) {
+			final SimulatedNode origin = nodes[random.nextInt(nodes.length)];
+			final long key = inserts ? random.nextLong() : insertedKeys.get(random.nextInt(insertedKeys.size()));
+			final long uid = nextUID++;
+			stats.started++;
+			outstanding++;
+			if(inserts) insertedKeys.add(key);
+			ticker.queueTimedJob(new Runnable() {
+				@Override
+				public void run() {
+					origin.start(uid, key, inserts);
+				}
+			}, (long) (i * interval));
+		}
+		while(outstanding > 0 && ticker.queued() > 0)
+			ticker.runAll();
+		// Not ticker.now(): that includes the timeouts left over after the requests finished.
+		stats.duration = lastCompleted - startTime;
+		stats.nodeCPU = new long[nodes.length];
+		stats.nodeMessages = new long[nodes.length];
+		for(int i = 0; i < nodes.length; i++) {
+			stats.nodeCPU[i] = nodes[i].cpuNanos() - startCPU[i];
+			stats.nodeMessages[i] = nodes[i].messagesHandled() - startMessages[i];
+		}
+		current = null;
+		return stats;
+	}
+
+	void completed(SimulatedNode node, long uid, boolean insert, boolean success, int hops, long latency) {
+		Stats stats = current;
+		if(stats == null || stats.inserts != insert) return;
+		outstanding--;
+		lastCompleted = ticker.now();
+		if(success) {
+			stats.succeeded++;
+			stats.totalHops += hops;
+			stats.addLatency(latency);
+		} else {
+			stats.failed++;
+		}
+	}
+
+	public SimulatedNode[] getNodes() {
+		return nodes;
+	}
+
+	public InMemoryTransport getTransport() {
+		return transport;
+	}
+
+	/** @return Hops which timed out. */
+	public long timeouts() {
+		return timeouts;
+	}
+
+	/** @return The location of a simulated key. */
+	static double keyLocation(long key) {
+		return (key >>> 11) * 0x1.0p-53;
+	}
+
+	/** @return The CPU time of this thread if we can get it, otherwise the wall clock time, in
+	 * nanoseconds. */
+	static long cpuTime() {
+		return useThreadCPU ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	public static void main(String[] args) {
+		Settings settings = new Settings();
+		int requests = 1000;
+		if(args.length > 0) settings.nodes = Integer.parseInt(args[0]);
+		if(args.length > 1) settings.degree = Integer.parseInt(args[1]);
+		if(args.length > 2) requests = Integer.parseInt(args[2]);
+		if(args.length > 3) settings.seed = Long.parseLong(args[3]);
+		System.out.println("Virtual time simulation: " + settings.nodes + " nodes, degree " + settings.degree + ", max HTL " + settings.maxHTL + ", seed " + settings.seed);
+		long start = System.currentTimeMillis();
+		VirtualNetworkSimulator sim = new VirtualNetworkSimulator(settings);
+		sim.build();
+		Stats inserts = sim.runInserts(requests);
+		inserts.print(System.out);
+		System.out.println();
+		Stats fetches = sim.runRequests(requests);
+		fetches.print(System.out);
+		System.out.println();
+		System.out.println("Packets: " + sim.transport.packetsSent() + " sent, " + sim.transport.packetsDropped() + " dropped; hop timeouts: " + sim.timeouts);
+		System.out.println("Real time: " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+}
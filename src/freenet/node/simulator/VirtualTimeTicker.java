@@ -0,0 +1,171 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread;
+
+/**
+ * A {@link Ticker} and {@link Executor} which run everything on one thread in virtual time.
+ * Jobs are queued with the virtual time they are due, and {@link #run(long)} runs them in order
+ * of time and then of queueing, advancing the clock to each job as it goes. Nothing waits in
+ * real time, so a simulation runs as fast as the jobs do, and given the same jobs in the same
+ * order it always does the same thing.
+ *
+ * Executed jobs run at the current virtual time, after any jobs already due. Jobs must not
+ * block: there is only one thread.
+ */
+public class VirtualTimeTicker implements Ticker, Executor {
+
+	private final PriorityQueue<Job> jobs = new PriorityQueue<Job>();
+	/** Jobs queued with noDupes which haven't run yet. */
+	private final HashSet<Runnable> queuedNoDupes = new HashSet<Runnable>();
+	private long now;
+	private long sequence;
+	private long jobsRun;
+
+	private static final class Job implements Comparable<Job> {
+		final Runnable runnable;
+		final long time;
+		final long sequence;
+		final boolean noDupes;
+		boolean cancelled;
+
+		Job(Runnable runnable, long time, long sequence, boolean noDupes) {
+			this.runnable = runnable;
+			this.time = time;
+			this.sequence = sequence;
+			this.noDupes = noDupes;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if(time != o.time) return time < o.time ? -1 : 1;
+			if(sequence != o.sequence) return sequence < o.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/** @param startTime The virtual time to start at. */
+	public VirtualTimeTicker(long startTime) {
+		this.now = startTime;
+	}
+
+	/** @return The current virtual time, in milliseconds. */
+	public long now() {
+		return now;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "", offset, false, false);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		if(offset < 0) offset = 0;
+		if(noDupes) {
+			if(!queuedNoDupes.add(job)) return;
+		}
+		jobs.add(new Job(job, now + offset, sequence++, noDupes));
+	}
+
+	@Override
+	public void removeQueuedJob(Runnable job) {
+		// Rare, so a scan is fine.
+		for(Job j : jobs) {
+			if(j.runnable == job) j.cancelled = true;
+		}
+		queuedNoDupes.remove(job);
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return this;
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		queueTimedJob(job, 0);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		queueTimedJob(job, 0);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName, boolean fromTicker) {
+		queueTimedJob(job, 0);
+	}
+
+	/**
+	 * Run jobs until there are none left which are due by the given time, and then advance the
+	 * clock to that time.
+	 * @return The number of jobs run.
+	 */
+	public long run(long until) {
+		long ran = runJobs(until);
+		if(until > now) now = until;
+		return ran;
+	}
+
+	/**
+	 * Run jobs until there are none left. The clock is left at the last job's time.
+	 * @return The number of jobs run.
+	 */
+	public long runAll() {
+		return runJobs(Long.MAX_VALUE);
+	}
+
+	private long runJobs(long until) {
+		long ran = 0;
+		Job job;
+		while((job = jobs.peek()) != null && job.time <= until) {
+			jobs.poll();
+			if(job.cancelled) continue;
+			if(job.noDupes) queuedNoDupes.remove(job.runnable);
+			if(job.time > now) now = job.time;
+			try {
+				job.runnable.run();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" running "+job.runnable, t);
+			}
+			ran++;
+		}
+		jobsRun += ran;
+		return ran;
+	}
+
+	/** @return The number of jobs waiting to run. */
+	public int queued() {
+		return jobs.size();
+	}
+
+	/** @return The number of jobs run so far. */
+	public long jobsRun() {
+		return jobsRun;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		return new int[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	}
+
+	@Override
+	public int[] runningThreads() {
+		return new int[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return 0;
+	}
+
+}
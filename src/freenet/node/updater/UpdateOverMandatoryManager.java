@@ -46,6 +46,9 @@ import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
 import freenet.io.comm.Message;
 import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.RetrievalException;
+import freenet.io.xfer.BulkRangeScheduler;
+import freenet.io.xfer.BulkRangeScheduler.Range;
 import freenet.io.xfer.BulkReceiver;
 import freenet.io.xfer.BulkTransmitter;
 import freenet.io.xfer.PartiallyReceivedBulk;
@@ -70,7 +73,6 @@ import freenet.support.api.RandomAccessBucket;
 import freenet.support.api.RandomAccessBuffer;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.ByteArrayRandomAccessBuffer;
-import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
 import freenet.support.io.FileRandomAccessBuffer;
@@ -508,6 +510,10 @@ public class UpdateOverMandatoryManager implements RequestClient {
 		}
 	}
 
+	/** Ask for the whole main jar blob from each of up to MAX_NODES_SENDING_JAR peers. Unlike
+	 * dependencies, it can't be fetched in ranges from several peers: each peer writes its
+	 * blob with the blocks in the order it happened to fetch them, so blobs of the same
+	 * version and length still differ byte for byte. */
 	protected void maybeRequestMainJar() {
 		PeerNode[] offers;
 		synchronized(this) {
@@ -1681,6 +1687,10 @@ public class UpdateOverMandatoryManager implements RequestClient {
 	}
 	
 	static final int MAX_TRANSFERS_PER_PEER = 2;
+	/** Fetch a dependency from up to this many peers at once. */
+	static final int MAX_NODES_SENDING_DEPENDENCY = 4;
+	/** The number of blocks of a dependency to fetch from a peer at once. */
+	static final int DEPENDENCY_RANGE_BLOCKS = 256;
 
 	public void handleFetchDependency(Message m, final PeerNode source) {
 		File data;
@@ -1724,8 +1734,23 @@ public class UpdateOverMandatoryManager implements RequestClient {
 		    fail = true;
 		}
 		
+		// They may only want some of the blocks, because they are fetching the rest from other peers.
+		int firstBlock = 0;
+		int blockCount = prb.getBlockCount();
+		Message range = m.getSubMessage(DMT.UOMFetchDependencyRange);
+		if(range != null && !fail) {
+			firstBlock = range.getInt(DMT.FIRST_BLOCK);
+			blockCount = range.getInt(DMT.BLOCK_COUNT);
+			if(!prb.isValidRange(firstBlock, blockCount)) {
+				Logger.error(this, "Peer "+source+" asked for invalid range "+firstBlock+" + "+blockCount+" of dependency with hash "+HexUtil.bytesToHex(buf.getData()));
+				firstBlock = 0;
+				blockCount = prb.getBlockCount();
+				fail = true;
+			}
+		}
+		
 		try {
-			bt = new BulkTransmitter(prb, source, uid, false, updateManager.ctr, true);
+			bt = new BulkTransmitter(prb, source, uid, false, updateManager.ctr, true, null, firstBlock, blockCount);
 		} catch(DisconnectedException e) {
 			Logger.error(this, "Peer " + source + " asked us for the dependency with hash "+HexUtil.bytesToHex(buf.getData())+" jar then disconnected", e);
 			raf.close();
@@ -1857,6 +1882,32 @@ public class UpdateOverMandatoryManager implements RequestClient {
 		private final UOMDependencyFetcherCallback cb;
 		private final WeakHashSet<PeerNode> peersFailed;
 		private final HashSet<PeerNode> peersFetching;
+		/** The download shared by all the peers we are fetching from, or null. */
+		private Swarm swarm;
+		
+		/** The file is split into ranges, which are fetched from different peers at once. */
+		private class Swarm {
+			final File tmp;
+			final FileRandomAccessBuffer raf;
+			final PartiallyReceivedBulk prb;
+			final BulkRangeScheduler<PeerNode> scheduler;
+			/** Peers which have sent us some of the file. */
+			final HashSet<PeerNode> senders = new HashSet<PeerNode>();
+			/** True once the whole file has been received. */
+			boolean finished;
+			
+			Swarm(File tmp) throws IOException {
+				this.tmp = tmp;
+				try {
+					raf = new FileRandomAccessBuffer(tmp, size, false);
+				} catch (IOException e) {
+					tmp.delete();
+					throw e;
+				}
+				prb = new PartiallyReceivedBulk(updateManager.node.getUSM(), size, Node.PACKET_SIZE, raf, false);
+				scheduler = new BulkRangeScheduler<PeerNode>(prb, DEPENDENCY_RANGE_BLOCKS);
+			}
+		}
 		
 		private UOMDependencyFetcher(byte[] expectedHash, long size, File saveTo, boolean executable, UOMDependencyFetcherCallback callback) {
 			this.expectedHash = expectedHash;
@@ -1883,8 +1934,8 @@ public class UpdateOverMandatoryManager implements RequestClient {
 			PeerNode chosen = null;
 			while(true) {
 				synchronized(this) {
-					if(peersFetching.size() >= MAX_NODES_SENDING_JAR) {
-						if(logMINOR) Logger.minor(this, "Already fetching jar from 2 peers "+peersFetching);
+					if(peersFetching.size() >= MAX_NODES_SENDING_DEPENDENCY) {
+						if(logMINOR) Logger.minor(this, "Already fetching dependency from "+peersFetching);
 						return false;
 					}
 					if(completed) return false;
@@ -1929,53 +1980,49 @@ public class UpdateOverMandatoryManager implements RequestClient {
 				@Override
 				public void run() {
 					boolean failed = false;
-					File tmp = null;
-					FileRandomAccessBuffer raf = null;
+					Swarm swarm = null;
+					Range range = null;
 					try {
 						System.out.println("Fetching "+saveTo+" from "+fetchFrom);
-						long uid = updateManager.node.fastWeakRandom.nextLong();
-						fetchFrom.sendAsync(DMT.createUOMFetchDependency(uid, expectedHash, size), null, updateManager.ctr);
-						tmp = FileUtil.createTempFile(saveTo.getName(), NodeUpdateManager.TEMP_FILE_SUFFIX, saveTo.getParentFile());
-						raf = new FileRandomAccessBuffer(tmp, size, false);
-						PartiallyReceivedBulk prb = 
-							new PartiallyReceivedBulk(updateManager.node.getUSM(), size,
-								Node.PACKET_SIZE, raf, false);
-						BulkReceiver br = new BulkReceiver(prb, fetchFrom, uid, updateManager.ctr);
-						failed = !br.receive();
-						raf.close();
-						raf = null;
-						if(!failed) {
-							// Check the hash.
-							if(MainJarDependenciesChecker.validFile(tmp, expectedHash, size, executable)) {
-								if(FileUtil.renameTo(tmp, saveTo)) {
-									synchronized(UOMDependencyFetcher.this) {
-										if(completed) return;
-										completed = true;
-									}
-									synchronized(UpdateOverMandatoryManager.this) {
-										dependencyFetchers.remove(expectedHashBuffer);
-									}
-									cb.onSuccess();
-								} else {
-									synchronized(UOMDependencyFetcher.this) {
-										if(completed) return;
-									}
-									failed = true;
-									System.err.println("Update failing: Saved dependency to "+tmp+" for "+saveTo+" but cannot rename it! Permissions problems?");
-								}
-								peerMaybeFreeAllSlots(fetchFrom);
-							} else {
+						swarm = getSwarm();
+						while(true) {
+							synchronized(UOMDependencyFetcher.this) {
+								if(completed || UOMDependencyFetcher.this.swarm != swarm) return;
+							}
+							range = swarm.scheduler.next(fetchFrom);
+							if(range == null) break;
+							long uid = updateManager.node.fastWeakRandom.nextLong();
+							Message msg = DMT.createUOMFetchDependency(uid, expectedHash, size);
+							msg.addSubMessage(DMT.createUOMFetchDependencyRange(range.firstBlock, range.blockCount));
+							long start = System.currentTimeMillis();
+							fetchFrom.sendAsync(msg, null, updateManager.ctr);
+							BulkReceiver br = new BulkReceiver(swarm.prb, fetchFrom, uid, updateManager.ctr, range.firstBlock, range.blockCount);
+							if(!br.receive()) {
 								synchronized(UOMDependencyFetcher.this) {
-									if(completed) return;
+									// Finished or cancelled meanwhile.
+									if(completed || UOMDependencyFetcher.this.swarm != swarm) return;
 								}
+								if(swarm.prb.isAborted()) {
+									// Range receivers never abort the shared transfer because of
+									// what a peer sent, so this should be a local problem.
+									reset(swarm);
+									if(swarm.prb.getAbortReason() == RetrievalException.IO_ERROR)
+										throw new IOException(swarm.prb.getAbortDescription());
+									Logger.error(this, "Dependency download "+saveTo+" aborted: "+swarm.prb.getAbortDescription()+" while fetching from "+fetchFrom);
+								}
+								System.out.println("Download failed: "+saveTo+" ("+range+") from "+fetchFrom+" : "+br.getFailureDescription());
 								failed = true;
-								System.err.println("Update failing: Downloaded file "+saveTo+" from "+fetchFrom+" but file does not match expected hash.");
-								// Wrong length -> transfer would have failed.
+								break;
 							}
-						} else {
-							System.out.println("Download failed: "+saveTo+" from "+fetchFrom);
-							failed = true;
+							swarm.scheduler.succeeded(range, fetchFrom, System.currentTimeMillis() - start);
+							range = null;
+							synchronized(UOMDependencyFetcher.this) {
+								swarm.senders.add(fetchFrom);
+							}
+							if(logMINOR) Logger.minor(this, "Fetched range of "+saveTo+" from "+fetchFrom+" at "+swarm.scheduler.throughput(fetchFrom)+" blocks/sec");
 						}
+						if(swarm.prb.hasWholeFile() && !finish(swarm, fetchFrom))
+							failed = true;
 					} catch (NotConnectedException e) {
 						// Not counting this as a failure.
 						System.out.println("Disconnected while downloading "+saveTo+" from "+fetchFrom);
@@ -1993,6 +2040,9 @@ public class UpdateOverMandatoryManager implements RequestClient {
 						System.err.println("Fetch failed due to internal error (bug or severe local problem?): "+e);
 						e.printStackTrace();
 					} finally {
+						// Somebody else will have to fetch it.
+						if(range != null)
+							swarm.scheduler.failed(range, fetchFrom);
 						boolean connected = fetchFrom.isConnected();
 						boolean addFailed = failed && connected;
 						synchronized(UOMDependencyFetcher.this) {
@@ -2000,9 +2050,6 @@ public class UpdateOverMandatoryManager implements RequestClient {
 								peersFailed.add(fetchFrom);
 							peersFetching.remove(fetchFrom);
 						}
-						Closer.close(raf);
-						if(tmp != null) 
-							tmp.delete();
 						if(failed) {
 							start();
 							if(fetchFrom.isConnected() && fetchFrom.isDarknet()) {
@@ -2017,18 +2064,82 @@ public class UpdateOverMandatoryManager implements RequestClient {
 							        
 							    }, TimeUnit.HOURS.toMillis(1));
 							}
+						} else if(swarm != null && swarm.scheduler.hasPending()) {
+							// E.g. disconnected, give its range to another peer.
+							start();
 						}
 					}
 				}
-				
+
 			});
 			return true;
 		}
+
+		private synchronized Swarm getSwarm() throws IOException {
+			if(swarm == null)
+				swarm = new Swarm(FileUtil.createTempFile(saveTo.getName(), NodeUpdateManager.TEMP_FILE_SUFFIX, saveTo.getParentFile()));
+			return swarm;
+		}
+		
+		/** Stop using a swarm and delete what it has fetched. The next peer will start again. */
+		private void reset(Swarm s) {
+			synchronized(this) {
+				if(swarm == s) swarm = null;
+			}
+			s.raf.close();
+			s.tmp.delete();
+		}
+		
+		/**
+		 * Check the hash of the file once we have all of it, and save it.
+		 * @return False if the file is bad or could not be saved.
+		 */
+		private boolean finish(Swarm s, PeerNode fetchFrom) {
+			synchronized(this) {
+				// Only check it once.
+				if(s.finished || swarm != s) return true;
+				s.finished = true;
+			}
+			s.raf.close();
+			try {
+				if(MainJarDependenciesChecker.validFile(s.tmp, expectedHash, size, executable)) {
+					if(FileUtil.renameTo(s.tmp, saveTo)) {
+						synchronized(this) {
+							swarm = null;
+							if(completed) return true;
+							completed = true;
+						}
+						synchronized(UpdateOverMandatoryManager.this) {
+							dependencyFetchers.remove(expectedHashBuffer);
+						}
+						cb.onSuccess();
+						peerMaybeFreeAllSlots(fetchFrom);
+						return true;
+					} else {
+						System.err.println("Update failing: Saved dependency to "+s.tmp+" for "+saveTo+" but cannot rename it! Permissions problems?");
+						peerMaybeFreeAllSlots(fetchFrom);
+						return false;
+					}
+				} else {
+					// We don't know which of them sent the bad data.
+					System.err.println("Update failing: Downloaded file "+saveTo+" from "+s.senders+" but file does not match expected hash.");
+					synchronized(this) {
+						for(PeerNode pn : s.senders) {
+							if(pn.isConnected())
+								peersFailed.add(pn);
+						}
+					}
+					return false;
+				}
+			} finally {
+				reset(s);
+			}
+		}
 		
 		private synchronized PeerNode chooseRandomPeer(HashSet<PeerNode> uomPeers) {
 			if(completed) return null;
-			if(peersFetching.size() >= MAX_NODES_SENDING_JAR) {
-				if(logMINOR) Logger.minor(this, "Already fetching jar from 2 peers "+peersFetching);
+			if(peersFetching.size() >= MAX_NODES_SENDING_DEPENDENCY) {
+				if(logMINOR) Logger.minor(this, "Already fetching dependency from "+peersFetching);
 				return null;
 			}
 			if(logMINOR) Logger.minor(this, "Trying to choose peer from "+uomPeers.size());
@@ -2063,12 +2174,15 @@ public class UpdateOverMandatoryManager implements RequestClient {
 		}
 
 		public void cancel() {
+			Swarm s;
 			synchronized(this) {
 				completed = true;
+				s = swarm;
 			}
 			synchronized(UpdateOverMandatoryManager.this) {
 				dependencyFetchers.remove(expectedHashBuffer);
 			}
+			if(s != null) reset(s);
 		}
 		
 	}
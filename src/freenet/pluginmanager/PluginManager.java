@@ -240,6 +240,7 @@ public class PluginManager {
 			}
 		}
 
+		node.startupTimeline.begin("plugins");
 		final Semaphore startingPlugins = new Semaphore(0);
 			for(final String name : toStart) {
 			    core.getExecutor().execute(new Runnable() {
@@ -261,6 +262,7 @@ public class PluginManager {
 			started = true;
 			toStart = null;
 		}
+				node.startupTimeline.end("plugins");
 			}
 		});
 	}
@@ -28,7 +28,20 @@ public interface FreenetStore<T extends StorableBlock> {
 	 * @throws IOException If a disk I/O error occurs.
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException;
-	
+
+	/**
+	 * Retrieve many blocks at once, e.g. when checking the store for every key of a splitfile.
+	 * The store may look them up in whatever order is cheapest for it.
+	 * @param routingKeys The routing keys to look up. Null entries are skipped.
+	 * @param fullKeys The full keys, in the same order, or null.
+	 * @param blocks Blocks found are put here, at the same index as their key. Keys which
+	 * already have a block here are skipped, so the same array can be passed to several stores
+	 * in turn.
+	 * @return The number of blocks found.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException;
+
 	/**
 	 * Store a block.
 	 * 
@@ -74,6 +87,15 @@ public interface FreenetStore<T extends StorableBlock> {
 	 * @return <code>false</code> <b>only</b> if the key does not exist in store.
 	 */
 	public boolean probablyInStore(byte[] routingKey);
+	
+	/**
+	 * Whether every key that can currently be fetched from this store has been added to the
+	 * callback's {@link KeyMembershipFilter}, so that a negative from the filter means the 
+	 * store doesn't have the key.
+	 * @return <code>false</code> if the store isn't tracked, or if it may hold keys from before
+	 * tracking started.
+	 */
+	public boolean isMembershipComplete();
 
 	public abstract StoreAccessStats getSessionAccessStats();
 
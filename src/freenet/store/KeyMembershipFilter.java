@@ -0,0 +1,175 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * Node-wide counting Bloom filter over the routing keys held by the datastore tiers (store,
+ * cache and slashdot cache, for CHKs, SSKs and pubkeys alike). Most incoming requests miss
+ * everywhere, so Node.fetch() asks the filter first and skips every tier which reports
+ * isMembershipComplete() when the filter says the key cannot be present.
+ *
+ * The filter is only ever consulted as a negative: it must never lose a key that a complete tier
+ * holds, so a tier only decrements what it previously added itself (the LRU evictions in
+ * RAMFreenetStore and SlashdotStore). Counters are 4 bits wide and stick once saturated, which
+ * costs a false positive now and then but never a false negative.
+ *
+ * The filter is never written to disk, and a salted-hash store only has salted digests of its
+ * keys on disk, so it can't tell us what it holds. Only salted-hash stores created empty since
+ * the node started are complete. They never decrement, so the keys they overwrite stay in the
+ * filter as false positives. On a node whose datastore already existed, the filter saves no
+ * disk lookups at all.
+ *
+ * Keys are reduced to a 32-bit fingerprint with a per-node random seed first, so that the
+ * RAM stores can remember what to take out cheaply and so that nobody can precompute keys
+ * which collide in our filter.
+ *
+ * SECURITY: Do not add the client-cache to this filter! Remote requests consult it too, and
+ * whether a lookup skips the datastore would then tell an attacker what is in our client-cache.
+ */
+public class KeyMembershipFilter {
+
+	/** Number of counters touched per key. */
+	private static final int HASHES = 4;
+	/** Counters per expected key: 6 counters and 4 hashes give roughly 5% false positives when
+	 * the node is full. */
+	private static final int COUNTERS_PER_KEY = 6;
+	private static final int MIN_COUNTERS = 1 << 16;
+	private static final int MAX_COUNTERS = 1 << 30;
+	private static final int COUNTER_MAX = 15;
+
+	/** 16 4-bit counters per long. */
+	private final AtomicLongArray counters;
+	private final int mask;
+	private final long seed;
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong negatives = new AtomicLong();
+	private final AtomicLong probesAvoided = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	/**
+	 * @param expectedKeys The total number of keys the tracked tiers can hold.
+	 * @param random Source for the fingerprint seed.
+	 */
+	public KeyMembershipFilter(long expectedKeys, Random random) {
+		long wanted = Math.max(MIN_COUNTERS, Math.min(MAX_COUNTERS, expectedKeys * COUNTERS_PER_KEY));
+		int size = Integer.highestOneBit((int) wanted);
+		if(size < wanted) size <<= 1;
+		counters = new AtomicLongArray(size >>> 4);
+		mask = size - 1;
+		seed = random.nextLong();
+	}
+
+	/** @return The fingerprint of a routing key. Never 0, so callers can use 0 for "nothing". */
+	public int fingerprint(byte[] routingKey) {
+		long h = seed;
+		int i = 0;
+		for(; i + 8 <= routingKey.length; i += 8)
+			h = mix(h ^ Fields.bytesToLong(routingKey, i));
+		for(; i < routingKey.length; i++)
+			h = mix(h ^ (routingKey[i] & 0xFF));
+		int fp = (int) (h ^ (h >>> 32));
+		return fp == 0 ? 1 : fp;
+	}
+
+	/** @return False only if no complete tier can hold the key. */
+	public boolean mightContain(byte[] routingKey) {
+		return mightContain(fingerprint(routingKey));
+	}
+
+	public boolean mightContain(int fingerprint) {
+		lookups.incrementAndGet();
+		for(int i = 0; i < HASHES; i++) {
+			if(counter(index(fingerprint, i)) == 0) {
+				negatives.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void add(int fingerprint) {
+		for(int i = 0; i < HASHES; i++)
+			adjust(index(fingerprint, i), 1);
+	}
+
+	/** Remove a fingerprint. The caller MUST have added exactly this fingerprint before,
+	 * otherwise we could lose other keys. */
+	public void remove(int fingerprint) {
+		for(int i = 0; i < HASHES; i++)
+			adjust(index(fingerprint, i), -1);
+	}
+
+	/** Record that a negative answer let the caller skip this many store probes. */
+	public void onProbesAvoided(int probes) {
+		probesAvoided.addAndGet(probes);
+	}
+
+	/** Record that the filter said the key might be present but no tier had it. */
+	public void onFalsePositive() {
+		falsePositives.incrementAndGet();
+	}
+
+	public long lookups() {
+		return lookups.get();
+	}
+
+	public long negatives() {
+		return negatives.get();
+	}
+
+	public long probesAvoided() {
+		return probesAvoided.get();
+	}
+
+	public long falsePositives() {
+		return falsePositives.get();
+	}
+
+	/** @return The number of bytes the counters take up. */
+	public long memoryUsage() {
+		return counters.length() * 8L;
+	}
+
+	private int index(int fingerprint, int hash) {
+		return (int) mix(fingerprint + hash * 0x9E3779B97F4A7C15L) & mask;
+	}
+
+	private int counter(int index) {
+		return (int) (counters.get(index >>> 4) >>> ((index & 15) << 2)) & COUNTER_MAX;
+	}
+
+	private void adjust(int index, int delta) {
+		int word = index >>> 4;
+		int shift = (index & 15) << 2;
+		while(true) {
+			long old = counters.get(word);
+			int value = (int) (old >>> shift) & COUNTER_MAX;
+			if(value == COUNTER_MAX) return; // Saturated: we no longer know how many keys share it.
+			if(value == 0 && delta < 0) {
+				Logger.error(this, "Removing a key which was never added", new Exception("error"));
+				return;
+			}
+			if(counters.compareAndSet(word, old, old + ((long) delta << shift))) return;
+		}
+	}
+
+	/** Finalizer from MurmurHash3. */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
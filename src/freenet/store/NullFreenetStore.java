@@ -20,6 +20,13 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		return 0;
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return 0;
@@ -50,6 +57,11 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return false;
 	}
 
+	@Override
+	public boolean isMembershipComplete() {
+		return true;
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header,
 			boolean overwrite, boolean oldBlock) throws IOException,
@@ -0,0 +1,212 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import freenet.support.Logger;
+
+/**
+ * Fixed size slots for block contents (header, data and full key) in direct memory, so that a big
+ * RAM store or client cache doesn't put thousands of 32KiB arrays on the Java heap for the
+ * garbage collector to trace and copy around.
+ *
+ * Memory is reserved from the JVM in chunks as the store fills up and freed slots are reused.
+ * Each chunk is as big as all the chunks before it, up to CHUNK_SIZE, but never takes us past the
+ * store's maximum number of keys, so a small or mostly empty store doesn't reserve much more than
+ * it uses. Chunks are only given back when the slab is completely empty. Direct memory is limited by
+ * -XX:MaxDirectMemorySize (by default the same as the maximum heap size); when we run out,
+ * allocate() returns -1 and the caller must keep the block on the heap instead.
+ *
+ * Callers must make sure nobody reads or writes a slot after it has been freed.
+ */
+public class OffHeapBlockSlab {
+
+	/** Maximum size of each direct buffer: big enough that there are few of them, small enough
+	 * that we don't reserve much more than we need. */
+	static final int CHUNK_SIZE = 16 * 1024 * 1024;
+	/** Minimum number of slots in a chunk, unless the store is smaller than that. */
+	static final int MIN_CHUNK_SLOTS = 16;
+
+	private final int headerLength;
+	private final int dataLength;
+	private final int fullKeyLength;
+	private final int slotSize;
+	/** Maximum slots in a chunk. */
+	private final int slotsPerChunk;
+	private long maxKeys;
+
+	/** The chunks and the first slot in each. Replaced, not changed, so readers don't need to
+	 * lock. */
+	private static class Chunks {
+		final ByteBuffer[] buffers;
+		final int[] firstSlots;
+		/** Total number of slots. */
+		final int capacity;
+
+		Chunks(ByteBuffer[] buffers, int[] firstSlots, int capacity) {
+			this.buffers = buffers;
+			this.firstSlots = firstSlots;
+			this.capacity = capacity;
+		}
+	}
+
+	private static final Chunks EMPTY = new Chunks(new ByteBuffer[0], new int[0], 0);
+
+	private volatile Chunks chunks = EMPTY;
+	/** Freed slots, used before we take new ones from the end. */
+	private int[] freeSlots = new int[16];
+	private int freeCount;
+	/** Slots below this have been handed out at some point. */
+	private int nextUnused;
+	private int used;
+	private boolean loggedOutOfMemory;
+
+	/**
+	 * @param fullKeyLength The length of the full key, or 0 if the store doesn't keep full keys.
+	 * @param maxKeys The maximum number of keys in the store. We don't reserve memory for more
+	 * slots than this, unless the caller allocates them anyway.
+	 */
+	public OffHeapBlockSlab(int headerLength, int dataLength, int fullKeyLength, long maxKeys) {
+		this.headerLength = headerLength;
+		this.dataLength = dataLength;
+		this.fullKeyLength = fullKeyLength;
+		this.slotSize = headerLength + dataLength + fullKeyLength;
+		if(slotSize <= 0) throw new IllegalArgumentException();
+		this.slotsPerChunk = Math.max(1, CHUNK_SIZE / slotSize);
+		this.maxKeys = maxKeys;
+	}
+
+	/** Called when the store is resized. Only affects chunks we reserve from now on. */
+	public synchronized void setMaxKeys(long maxKeys) {
+		this.maxKeys = maxKeys;
+	}
+
+	/** @return True if the block fits in a slot. Blocks of any other size must stay on the heap. */
+	public boolean fits(byte[] header, byte[] data, byte[] fullKey) {
+		return header.length == headerLength && data.length == dataLength &&
+			(fullKey == null ? 0 : fullKey.length) == fullKeyLength;
+	}
+
+	/** @return A free slot, or -1 if we cannot get any more direct memory. */
+	public synchronized int allocate() {
+		if(freeCount > 0) {
+			used++;
+			return freeSlots[--freeCount];
+		}
+		Chunks c = chunks;
+		if(nextUnused == c.capacity) {
+			int slots = nextChunkSlots(c.capacity);
+			ByteBuffer chunk;
+			try {
+				chunk = ByteBuffer.allocateDirect(slots * slotSize);
+			} catch (OutOfMemoryError e) {
+				if(!loggedOutOfMemory) {
+					loggedOutOfMemory = true;
+					Logger.error(this, "Out of direct memory after "+c.buffers.length+" chunks, keeping further blocks on the heap. Increase -XX:MaxDirectMemorySize: "+e);
+				}
+				return -1;
+			}
+			int count = c.buffers.length;
+			ByteBuffer[] buffers = new ByteBuffer[count + 1];
+			System.arraycopy(c.buffers, 0, buffers, 0, count);
+			buffers[count] = chunk;
+			int[] firstSlots = new int[count + 1];
+			System.arraycopy(c.firstSlots, 0, firstSlots, 0, count);
+			firstSlots[count] = c.capacity;
+			chunks = new Chunks(buffers, firstSlots, c.capacity + slots);
+		}
+		used++;
+		return nextUnused++;
+	}
+
+	/** @return The number of slots in the next chunk, given the number we have already. */
+	private int nextChunkSlots(int capacity) {
+		int slots = Math.min(slotsPerChunk, Math.max(MIN_CHUNK_SLOTS, capacity));
+		if(maxKeys > capacity)
+			slots = (int) Math.min(slots, maxKeys - capacity);
+		return slots;
+	}
+
+	public synchronized void free(int slot) {
+		if(slot < 0 || slot >= nextUnused) throw new IllegalArgumentException();
+		if(freeCount == freeSlots.length) {
+			int[] grown = new int[freeSlots.length * 2];
+			System.arraycopy(freeSlots, 0, grown, 0, freeCount);
+			freeSlots = grown;
+		}
+		freeSlots[freeCount++] = slot;
+		if(--used == 0) {
+			// Give the memory back.
+			chunks = EMPTY;
+			freeSlots = new int[16];
+			freeCount = 0;
+			nextUnused = 0;
+		}
+	}
+
+	/** Write a block which fits() into a slot we have allocated. */
+	public void write(int slot, byte[] header, byte[] data, byte[] fullKey) {
+		ByteBuffer buf = buffer(slot);
+		buf.put(header);
+		buf.put(data);
+		if(fullKeyLength > 0)
+			buf.put(fullKey);
+	}
+
+	public byte[] readHeader(int slot) {
+		byte[] header = new byte[headerLength];
+		buffer(slot).get(header);
+		return header;
+	}
+
+	public byte[] readData(int slot) {
+		byte[] data = new byte[dataLength];
+		ByteBuffer buf = buffer(slot);
+		buf.position(buf.position() + headerLength);
+		buf.get(data);
+		return data;
+	}
+
+	/** @return The full key, or null if the store doesn't keep them. */
+	public byte[] readFullKey(int slot) {
+		if(fullKeyLength == 0) return null;
+		byte[] fullKey = new byte[fullKeyLength];
+		ByteBuffer buf = buffer(slot);
+		buf.position(buf.position() + headerLength + dataLength);
+		buf.get(fullKey);
+		return fullKey;
+	}
+
+	/** @return A buffer positioned at the start of the slot. */
+	private ByteBuffer buffer(int slot) {
+		Chunks c = chunks;
+		int i = Arrays.binarySearch(c.firstSlots, slot);
+		// Not the first slot in a chunk, so it's in the chunk before the insertion point.
+		if(i < 0) i = -i - 2;
+		ByteBuffer buf = c.buffers[i].duplicate();
+		buf.position((slot - c.firstSlots[i]) * slotSize);
+		return buf;
+	}
+
+	public int slotSize() {
+		return slotSize;
+	}
+
+	public synchronized int usedSlots() {
+		return used;
+	}
+
+	/** @return The number of bytes of direct memory in use for blocks. */
+	public synchronized long usedBytes() {
+		return (long) used * slotSize;
+	}
+
+	/** @return The number of bytes of direct memory we have reserved, used or not. */
+	public long reservedBytes() {
+		return (long) chunks.capacity * slotSize;
+	}
+
+}
@@ -77,6 +77,13 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks) throws IOException {
+		return backDatastore.fetchBatch(routingKeys, fullKeys, blocks, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite,
 			boolean oldBlock) throws IOException, KeyCollisionException {
@@ -88,6 +95,11 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 		return backDatastore.probablyInStore(routingKey);
 	}
 
+	@Override
+	public boolean isMembershipComplete() {
+		return backDatastore.isMembershipComplete();
+	}
+
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		return backDatastore.start(ticker, longStart);
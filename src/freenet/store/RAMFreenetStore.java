@@ -2,156 +2,276 @@ package freenet.store;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
+import freenet.node.NodeStarter;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
-import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.Ticker;
+import freenet.support.TinyLFUCache;
 
 /**
- * LRU in memory store.
+ * LRU in memory store, with TinyLFU admission so that a big fetch doesn't flush it.
  * 
- * For debugging / simulation only
+ * Block contents can be kept off the Java heap in an {@link OffHeapBlockSlab}, so that a big
+ * client cache doesn't slow down garbage collection. Only the index stays on the heap.
+ * 
+ * For debugging / simulation only, and for the client-cache.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** Block.slot when the contents are in the byte arrays. */
+	private static final int ON_HEAP = -1;
+	/** Block.slot once the block has been evicted or removed. */
+	private static final int RELEASED = -2;
+	/** Rough heap cost of one entry in the index, excluding the contents. */
+	private static final int INDEX_ENTRY_BYTES = 200;
+
+	/** All fields are guarded by the Block itself. */
 	private final static class Block {
+		/** Null unless slot == ON_HEAP. */
 		byte[] header;
 		byte[] data;
 		byte[] fullKey;
+		/** The slab slot holding the contents, ON_HEAP or RELEASED. */
+		int slot = ON_HEAP;
 		boolean oldBlock;
 	}
 	
-	private final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey;
+	private final TinyLFUCache<Block> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
+	/** Null if not tracked. Every key in blocksByRoutingKey has been added exactly once. */
+	private final KeyMembershipFilter membershipFilter;
+	
+	/** Null if we keep everything on the heap. */
+	private final OffHeapBlockSlab slab;
+	/** Bytes of block contents on the heap. */
+	private final AtomicLong heapBytes = new AtomicLong();
 	
-	private long hits;
-	private long misses;
-	private long writes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this(callback, maxKeys, false);
+	}
+	
+	/**
+	 * @param offHeap If true, keep block contents in direct memory rather than on the heap.
+	 */
+	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys, boolean offHeap) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
-		this.maxKeys = maxKeys;
+		this.membershipFilter = callback.getMembershipFilter();
+		this.slab = offHeap ? new OffHeapBlockSlab(callback.headerLength(), callback.dataLength(), 
+				callback.storeFullKeys() ? callback.fullKeyLength() : 0, maxKeys) : null;
+		TinyLFUCache.EvictionListener<Block> listener = new TinyLFUCache.EvictionListener<Block>() {
+			@Override
+			public void onEvicted(byte[] key, Block value) {
+				synchronized(value) {
+					release(value);
+				}
+				removedKey(key);
+			}
+		};
+		this.blocksByRoutingKey = new TinyLFUCache<Block>(maxKeys, 
+				Runtime.getRuntime().availableProcessors(), true, listener, NodeStarter.getGlobalSecureRandom());
 		callback.setStore(this);
 	}
 	
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block block = blocksByRoutingKey.get(key);
+		Block block = dontPromote ? blocksByRoutingKey.peek(routingKey) : blocksByRoutingKey.get(routingKey);
 		if(block == null) {
-			misses++;
+			misses.incrementAndGet();
+			return null;
+		}
+		byte[][] contents;
+		boolean oldBlock;
+		synchronized(block) {
+			contents = contents(block);
+			oldBlock = block.oldBlock;
+		}
+		if(contents == null) {
+			// Evicted while we were looking it up.
+			misses.incrementAndGet();
 			return null;
 		}
-		if(ignoreOldBlocks && block.oldBlock) {
+		if(ignoreOldBlocks && oldBlock) {
 			Logger.normal(this, "Ignoring old block");
 			return null;
 		}
 		try {
 			T ret =
-				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
-			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
-			if(meta != null && block.oldBlock)
+				callback.construct(contents[1], contents[0], routingKey, contents[2], canReadClientCache, canReadSlashdotCache, meta, null);
+			hits.incrementAndGet();
+			if(meta != null && oldBlock)
 				meta.setOldBlock();
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			if(blocksByRoutingKey.remove(routingKey, block)) {
+				synchronized(block) {
+					release(block);
+				}
+				removedKey(routingKey);
+			}
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
 	@Override
-	public synchronized long getMaxKeys() {
-		return maxKeys;
+	public long getMaxKeys() {
+		return blocksByRoutingKey.getMaxEntries();
 	}
 
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
+	public long keyCount() {
 		return blocksByRoutingKey.size();
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
 	@Override
-	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
-		byte[] fullKey = block.getFullKey();
+		byte[] fullKey = callback.storeFullKeys() ? block.getFullKey() : null;
 		
-		writes++;
-		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
-		boolean storeFullKeys = callback.storeFullKeys();
-		if(oldBlock != null) {
-			if(callback.collisionPossible()) {
-				boolean equals = Arrays.equals(oldBlock.data, data) &&
-					Arrays.equals(oldBlock.header, header) &&
-					(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
-				if(equals) {
-					if(!isOldBlock)
-						oldBlock.oldBlock = false;
-					return;
-				}
-				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
-				} else {
-					throw new KeyCollisionException();
+		writes.incrementAndGet();
+		while(true) {
+			Block oldBlock = blocksByRoutingKey.peek(routingkey);
+			if(oldBlock != null) {
+				synchronized(oldBlock) {
+					byte[][] contents = contents(oldBlock);
+					if(contents == null) continue; // Evicted, try again.
+					if(callback.collisionPossible()) {
+						boolean equals = Arrays.equals(contents[1], data) &&
+							Arrays.equals(contents[0], header) &&
+							(fullKey != null ? Arrays.equals(contents[2], fullKey) : true);
+						if(equals) {
+							if(!isOldBlock)
+								oldBlock.oldBlock = false;
+							return;
+						}
+						if(overwrite) {
+							release(oldBlock);
+							setContents(oldBlock, header, data, fullKey);
+							oldBlock.oldBlock = isOldBlock;
+						} else {
+							throw new KeyCollisionException();
+						}
+						return;
+					} else {
+						if(!isOldBlock)
+							oldBlock.oldBlock = false;
+						return;
+					}
 				}
+			}
+			Block storeBlock = new Block();
+			synchronized(storeBlock) {
+				setContents(storeBlock, header, data, fullKey);
+				storeBlock.oldBlock = isOldBlock;
+			}
+			// Count it before it becomes visible, so the filter never misses a key we have.
+			if(membershipFilter != null)
+				membershipFilter.add(membershipFilter.fingerprint(routingkey));
+			if(blocksByRoutingKey.offer(routingkey, storeBlock))
 				return;
-			} else {
-				if(!isOldBlock)
-					oldBlock.oldBlock = false;
+			synchronized(storeBlock) {
+				release(storeBlock);
+			}
+			removedKey(routingkey);
+			// Either the admission policy turned it away, or another thread added it first.
+			if(!blocksByRoutingKey.containsKey(routingkey))
+				return;
+		}
+	}
+
+	/** Caller must hold the block's lock. The block must not hold anything yet. */
+	private void setContents(Block block, byte[] header, byte[] data, byte[] fullKey) {
+		if(slab != null && slab.fits(header, data, fullKey)) {
+			int slot = slab.allocate();
+			if(slot >= 0) {
+				slab.write(slot, header, data, fullKey);
+				block.slot = slot;
 				return;
 			}
 		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
+		block.slot = ON_HEAP;
+		block.header = header;
+		block.data = data;
+		block.fullKey = fullKey;
+		heapBytes.addAndGet(contentLength(block));
+	}
+
+	/** Free whatever the block holds. Caller must hold the block's lock. */
+	private void release(Block block) {
+		if(block.slot >= 0) {
+			slab.free(block.slot);
+		} else if(block.slot == ON_HEAP) {
+			heapBytes.addAndGet(-contentLength(block));
+			block.header = null;
+			block.data = null;
+			block.fullKey = null;
 		}
+		block.slot = RELEASED;
+	}
+
+	/** @return { header, data, fullKey }, or null if the block has been released. Caller must hold
+	 * the block's lock. */
+	private byte[][] contents(Block block) {
+		if(block.slot == RELEASED) return null;
+		if(block.slot == ON_HEAP)
+			return new byte[][] { block.header, block.data, block.fullKey };
+		return new byte[][] { slab.readHeader(block.slot), slab.readData(block.slot), slab.readFullKey(block.slot) };
+	}
+
+	private static long contentLength(Block block) {
+		return block.header.length + block.data.length + (block.fullKey == null ? 0 : block.fullKey.length);
 	}
 
 	@Override
-	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws IOException {
-		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		if(slab != null)
+			slab.setMaxKeys(maxStoreKeys);
+		blocksByRoutingKey.setMaxEntries((int)Math.min(Integer.MAX_VALUE, maxStoreKeys));
+	}
+	
+	private void removedKey(byte[] key) {
+		if(membershipFilter != null)
+			membershipFilter.remove(membershipFilter.fingerprint(key));
 	}
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
+	}
+
+	/** Nothing to gain from batching in memory, so just look them up one by one. */
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		int found = 0;
+		for(int i = 0; i < routingKeys.length; i++) {
+			if(routingKeys[i] == null || blocks[i] != null) continue;
+			blocks[i] = fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null);
+			if(blocks[i] != null) found++;
+		}
+		return found;
 	}
 
 	@Override
@@ -161,35 +281,60 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.get(key) != null;
+		return blocksByRoutingKey.containsKey(routingKey);
+	}
+
+	@Override
+	public boolean isMembershipComplete() {
+		return membershipFilter != null;
 	}
 
 	public void clear() {
 		blocksByRoutingKey.clear();
 	}
 
+	/** @return Roughly how many bytes of heap the store uses, index included. */
+	public long getHeapBytes() {
+		return heapBytes.get() + keyCount() * INDEX_ENTRY_BYTES;
+	}
+
+	/** @return The number of bytes of direct memory holding blocks. */
+	public long getOffHeapBytes() {
+		return slab == null ? 0 : slab.usedBytes();
+	}
+
+	/** @return The number of bytes of direct memory reserved, including free slots. */
+	public long getOffHeapReservedBytes() {
+		return slab == null ? 0 : slab.reservedBytes();
+	}
+
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
-			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
+		for(byte[] routingKey : blocksByRoutingKey.keys()) {
+			Block block = blocksByRoutingKey.peek(routingKey);
+			if(block == null) continue;
+			byte[][] contents;
+			boolean oldBlock;
+			synchronized(block) {
+				contents = contents(block);
+				oldBlock = block.oldBlock;
+			}
+			if(contents == null) continue;
 			
 			T ret;
 			try {
-				ret = callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, false, null, null);
+				ret = callback.construct(contents[1], contents[0], routingKey, contents[2], canReadClientCache, false, null, null);
 			} catch (KeyVerifyException e) {
 				Logger.error(this, "Caught while migrating: "+e, e);
 				continue;
 			}
 			try {
-				target.getStore().put(ret, block.data, block.header, false, block.oldBlock);
+				target.getStore().put(ret, contents[1], contents[0], false, oldBlock);
 			} catch (KeyCollisionException e) {
 				// Ignore
 			}
 		}
 	}
+
 	
 	@Override
 	public StoreAccessStats getSessionAccessStats() {
@@ -197,12 +342,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -212,7 +357,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
 			}
 			
 		};
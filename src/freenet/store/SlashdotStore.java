@@ -61,6 +61,9 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	private final StoreCallback<T> callback;
 	
+	/** Null if not tracked. Every key in blocksByRoutingKey has been added exactly once. */
+	private final KeyMembershipFilter membershipFilter;
+	
 	private int maxKeys;
 	
 	private long hits;
@@ -79,6 +82,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		this.ticker = ticker;
 		this.maxLifetime = maxLifetime;
 		this.purgePeriod = purgePeriod;
+		this.membershipFilter = callback.getMembershipFilter();
 		callback.setStore(this);
 		this.headerSize = callback.headerLength();
 		this.dataSize = callback.dataLength();
@@ -141,13 +145,26 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		} catch (KeyVerifyException e) {
 			block.data.free();
 			synchronized(this) {
-				blocksByRoutingKey.removeKey(key);
+				if(blocksByRoutingKey.removeKey(key))
+					removedKey(key);
 				misses++;
 			}
 			return null;
 		}
 	}
 
+	/** The blocks are in temp files, not in slots, so just look them up one by one. */
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		int found = 0;
+		for(int i = 0; i < routingKeys.length; i++) {
+			if(routingKeys[i] == null || blocks[i] != null) continue;
+			blocks[i] = fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null);
+			if(blocks[i] != null) found++;
+		}
+		return found;
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
@@ -179,6 +196,11 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		return blocksByRoutingKey.containsKey(key);
 	}
 
+	@Override
+	public boolean isMembershipComplete() {
+		return membershipFilter != null;
+	}
+
 	/**
 	 * @param isOldBlock Ignored, we don't distinguish between stuff that should be cached and
 	 * stuff that shouldn't be cached; really it's all in the latter category anyway here!
@@ -238,10 +260,14 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 			long now = System.currentTimeMillis();
 			if(addFirst != null) {
 				addFirst.lastAccessed = now;
+				// Add to the filter before the block becomes visible.
+				if(membershipFilter != null)
+					membershipFilter.add(membershipFilter.fingerprint(key.get()));
 				oldBlock = blocksByRoutingKey.push(key, addFirst);
 				if(oldBlock != null) {
 	                if(blocks == null) blocks = new ArrayList<DiskBlock>();
 	                blocks.add(oldBlock);
+	                removedKey(key); // Replaced, still only counted once.
 				}
 				writes++;
 			}
@@ -251,7 +277,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 				if(now - block.lastAccessed < maxLifetime && blocksByRoutingKey.size() < maxKeys) break;
 				if(blocks == null) blocks = new ArrayList<DiskBlock>();
 				blocks.add(block);
-				blocksByRoutingKey.popValue();
+				removedKey(blocksByRoutingKey.popKey());
 			}
 		}
 		if(blocks == null) return;
@@ -260,6 +286,11 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		}
 	}
 
+	private void removedKey(ByteArrayWrapper key) {
+		if(membershipFilter != null)
+			membershipFilter.remove(membershipFilter.fingerprint(key.get()));
+	}
+
 	public synchronized Long getLifetime() {
 		return maxLifetime;
 	}
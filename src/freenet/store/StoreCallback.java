@@ -37,7 +37,7 @@ public abstract class StoreCallback<T extends StorableBlock> {
 	
 	protected FreenetStore<T> store;
 
-
+	private KeyMembershipFilter membershipFilter;
 	
 	/** Called when first connecting to a FreenetStore. If the FreenetStore is a wrapper, it can be
 	 * called more than once, but the last call will determine which store we use. */
@@ -49,6 +49,22 @@ public abstract class StoreCallback<T extends StorableBlock> {
 		return store;
 	}
 	
+	/** Share the node-wide membership filter with the store. Must be called before the 
+	 * FreenetStore is created, as stores only track keys from the beginning. */
+	public void setMembershipFilter(KeyMembershipFilter filter) {
+		this.membershipFilter = filter;
+	}
+	
+	public KeyMembershipFilter getMembershipFilter() {
+		return membershipFilter;
+	}
+	
+	/** @return True if every key in the store has been added to the membership filter, so a
+	 * negative from the filter means we don't need to look in the store at all. */
+	public boolean isMembershipComplete() {
+		return membershipFilter != null && store.isMembershipComplete();
+	}
+	
 	// Reconstruction
 	
 	/** Construct a StorableBlock from the data, headers, and optionally routing key or full key.
@@ -1,21 +1,23 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import freenet.keys.KeyVerifyException;
+import freenet.node.NodeStarter;
 import freenet.node.SemiOrderedShutdownHook;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
+import freenet.store.KeyMembershipFilter;
 import freenet.store.ProxyFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
-import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.Ticker;
+import freenet.support.TinyLFUCache;
 import freenet.support.io.NativeThread;
 
 /**
@@ -28,12 +30,16 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
     private static volatile boolean logMINOR;
  
 	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
-	private final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	/** Unbounded, the tracker limits the total size. Reads don't need configLock. */
+	private final TinyLFUCache<Block<T>> blocksByRoutingKey;
 	private final StoreCallback<T> callback;
 	private final boolean collisionPossible;
 	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
 	private final CachingFreenetStoreTracker tracker;
 	private final int sizeBlock;
+	/** Null if not tracked. Blocks waiting in blocksByRoutingKey are counted once each on top of
+	 * whatever the underlying store counts. */
+	private final KeyMembershipFilter membershipFilter;
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
@@ -49,11 +55,14 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		super(backDatastore);
 		this.callback = callback;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		// No admission policy: this is a write-back buffer, everything in it must reach the disk.
+		this.blocksByRoutingKey = new TinyLFUCache<Block<T>>(Integer.MAX_VALUE, 
+				Runtime.getRuntime().availableProcessors(), false, null, NodeStarter.getGlobalSecureRandom());
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		this.tracker = tracker;
 		this.sizeBlock = callback.getTotalBlockSize();
+		this.membershipFilter = callback.getMembershipFilter();
 		
 		callback.setStore(this);
 		shutdownHook.addEarlyJob(new NativeThread("Close CachingFreenetStore", NativeThread.HIGH_PRIORITY, true) {
@@ -69,16 +78,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			boolean dontPromote, boolean canReadClientCache,
 			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) 
 			throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
+		Block<T> block = blocksByRoutingKey.peek(routingKey);
 		
 		if(block != null) {
 			try {
@@ -92,25 +92,35 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	}
 
 	@Override
-	public boolean probablyInStore(byte[] routingKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks)
+			throws IOException {
+		int found = 0;
+		for(int i = 0; i < routingKeys.length; i++) {
+			if(routingKeys[i] == null || blocks[i] != null) continue;
+			Block<T> block = blocksByRoutingKey.peek(routingKeys[i]);
+			if(block == null) continue;
+			try {
+				blocks[i] = this.callback.construct(block.data, block.header, routingKeys[i], block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, null, null);
+				found++;
+			} catch (KeyVerifyException e) {
+				Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
+			}
 		}
-		
-		return block != null || backDatastore.probablyInStore(routingKey);
+		// The rest aren't waiting to be written, so look on disk.
+		return found + backDatastore.fetchBatch(routingKeys, fullKeys, blocks, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		return blocksByRoutingKey.containsKey(routingKey) || backDatastore.probablyInStore(routingKey);
 	}
 	
 	@Override
 	public void put(T block, byte[] data, byte[] header,
 			boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
-		final ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		
 		Block<T> storeBlock = new Block<T>();
 		storeBlock.block = block;
@@ -126,7 +136,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		
 		try {
 			if(!shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
+				Block<T> previousBlock = blocksByRoutingKey.peek(routingKey);
 			
 				if(!collisionPossible || overwrite) {
 					if(previousBlock == null) {
@@ -134,7 +144,8 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 					}
 					
 					if(cacheIt) {
-						blocksByRoutingKey.push(key, storeBlock);
+						if(previousBlock == null) addedKey(routingKey);
+						blocksByRoutingKey.put(routingKey, storeBlock);
 					}
 				} else {
 					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
@@ -151,7 +162,8 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 						cacheIt = tracker.add(sizeBlock);
 						
 						if(cacheIt) {
-							blocksByRoutingKey.push(key, storeBlock);
+							addedKey(routingKey);
+							blocksByRoutingKey.put(routingKey, storeBlock);
 						}
 					}
 				}
@@ -176,13 +188,14 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	 */
 	long pushLeastRecentlyBlock() {
 		Block<T> block = null;
-		ByteArrayWrapper key = null;
+		byte[] key = null;
 		
 		configLock.writeLock().lock();
 		try {
-			block = blocksByRoutingKey.peekValue();
-			if(block == null) return -1;
-			key = blocksByRoutingKey.peekKey();
+			Map.Entry<byte[], Block<T>> eldest = blocksByRoutingKey.peekEldest();
+			if(eldest == null) return -1;
+			block = eldest.getValue();
+			key = eldest.getKey();
 		} finally {
 			configLock.writeLock().unlock();
 		}
@@ -197,13 +210,17 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		
 		configLock.writeLock().lock();
 		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
+			Block<T> currentVersionOfBlock = blocksByRoutingKey.peek(key);
 			
 			/** it might have changed if there was a put() with overwrite=true. 
 			 *  If it has changed, return 0 , i.e. don't remove it*/
 			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
+				if(blocksByRoutingKey.remove(key) != null) {
+					// The underlying store has counted it by now, if it kept it.
+					if(membershipFilter != null)
+						membershipFilter.remove(membershipFilter.fingerprint(key));
 					return sizeBlock;
+				}
 			}
 		} finally {
 			configLock.writeLock().unlock();
@@ -211,6 +228,16 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		return 0;
 	}
 
+	private void addedKey(byte[] routingKey) {
+		if(membershipFilter != null)
+			membershipFilter.add(membershipFilter.fingerprint(routingKey));
+	}
+
+	@Override
+	public boolean isMembershipComplete() {
+		return membershipFilter != null && backDatastore.isMembershipComplete();
+	}
+
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		tracker.registerCachingFS(this);
@@ -236,13 +263,6 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	
 	/** Only for unit tests */
 	boolean isEmpty() {
-		boolean isEmpty;
-		configLock.readLock().lock();
-		try {
-			isEmpty = this.blocksByRoutingKey.isEmpty();
-		} finally {
-			configLock.readLock().unlock();
-		}
-		return isEmpty;
+		return this.blocksByRoutingKey.isEmpty();
 	}
 }
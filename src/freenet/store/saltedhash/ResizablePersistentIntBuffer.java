@@ -4,8 +4,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -20,6 +22,11 @@ import freenet.support.Ticker;
  * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
  * is no way to unmap, and it is likely there will never be, so resizing would be very
  * messy and expensive.
+ * 
+ * Instead we keep track of which pages have changed, and only write those. A big store 
+ * only changes a small part of its slot filter between writes, so this is much less I/O 
+ * than writing the whole thing. Similarly, we don't read the whole file on startup: pages
+ * are read when they are first used, and the rest in the background after start().
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
@@ -32,6 +39,11 @@ public class ResizablePersistentIntBuffer {
 	/** The buffer. When we resize we write-lock and replace this. */
 	private int[] buffer;
 	private final ReadWriteLock lock;
+	/** Ints per page. Pages are the unit of lazy loading and of writing changes. */
+	static final int PAGE_INTS = 1024;
+	private static final int PAGE_BYTES = PAGE_INTS * 4;
+	/** Most pages to read or write in one go. */
+	private static final int CHUNK_PAGES = 64;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
 	// But it does not damage the store: We recover from it transparently.
@@ -42,14 +54,25 @@ public class ResizablePersistentIntBuffer {
 	/** -1 = write immediately, 0 = write only on shutdown, +ve = write period in millis */
 	private static int globalPersistenceTime = DEFAULT_PERSISTENCE_TIME;
 	private Ticker ticker;
-	/** Is the buffer dirty? Protected by (this). */
-	private boolean dirty;
+	/** Pages changed since they were last written. The buffer is dirty if this isn't empty. 
+	 * Protected by (this). */
+	private BitSet dirtyPages = new BitSet();
+	/** Pages read from disk so far. Null once they all have been. Protected by loadLock. */
+	private BitSet loadedPages;
+	private final Object loadLock = new Object();
+	/** True once every page has been read from disk. */
+	private volatile boolean loaded;
 	/** Is the writer job scheduled? Protected by (this). */
 	private boolean scheduled;
 	/** Is the writer job running? So we can wait for it to complete on shutdown e.g. 
 	 * Protected by (this). */
 	private boolean writing;
 	private boolean closed;
+	/** Statistics. Protected by (this). */
+	private long bytesWritten;
+	private long writeTime;
+	private int writes;
+	private long pagesLoadedOnDemand;
 	
 	public static synchronized void setPersistenceTime(int val) {
 		globalPersistenceTime = val;
@@ -59,8 +82,8 @@ public class ResizablePersistentIntBuffer {
 		return globalPersistenceTime;
 	}
 	
-	/** Create the buffer. Open the file, creating if necessary, read in the data, and set
-	 * its size.
+	/** Create the buffer. Open the file, creating if necessary, and set its size. The data is
+	 * read in as it is needed.
 	 * @param f The filename.
 	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
 	 * @throws IOException 
@@ -76,48 +99,136 @@ public class ResizablePersistentIntBuffer {
 		long realLength = raf.length();
 		if(realLength > expectedLength)
 			raf.setLength(expectedLength);
-		readBuffer((int)Math.min(size, realLength/4));
 		if(realLength < expectedLength)
 			raf.setLength(expectedLength);
 		channel = raf.getChannel();
+		// Anything beyond what was on disk is zero, as is the buffer.
+		if(realLength == 0)
+			loaded = true;
+		else
+			loadedPages = new BitSet(pages(size));
+	}
+	
+	private static int pages(int size) {
+		return (size + PAGE_INTS - 1) / PAGE_INTS;
 	}
 	
 	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
 	 * is completely new. */
 	public void fill(int value) {
+		synchronized(loadLock) {
+			loaded = true;
+			loadedPages = null;
+		}
 		for(int i=0;i<buffer.length;i++)
 			buffer[i] = value;
+		synchronized(this) {
+			dirtyPages.set(0, pages(size));
+		}
+	}
+
+	/** Read in a page if we haven't already. Caller must hold the read lock. */
+	private void ensureLoaded(int page) {
+		synchronized(loadLock) {
+			if(loaded || loadedPages.get(page)) return;
+			loadPages(page, 1);
+		}
+		synchronized(this) {
+			pagesLoadedOnDemand++;
+		}
 	}
 
-	private void readBuffer(int size) throws IOException {
-		raf.seek(0);
-		byte[] buf = new byte[32768];
-		int read = 0;
-		while(read < size) {
-			int toRead = Math.min(buf.length, (size - read) * 4);
-			raf.readFully(buf, 0, toRead);
-			int[] data = Fields.bytesToInts(buf, 0, toRead);
-			System.arraycopy(data, 0, buffer, read, data.length);
-			read += data.length;
+	/** Read in the pages in a range which haven't been read in yet. Caller must hold the read
+	 * lock and loadLock. */
+	private void loadPages(int firstPage, int count) {
+		int totalPages = pages(size);
+		int endPage = Math.min(totalPages, firstPage + count);
+		if(firstPage >= endPage) return;
+		int from = firstPage * PAGE_INTS;
+		int to = Math.min(size, endPage * PAGE_INTS);
+		ByteBuffer buf = ByteBuffer.allocate((to - from) * 4);
+		try {
+			long pos = ((long)from) * 4;
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, pos + buf.position()) == -1) break;
+			}
+		} catch (IOException e) {
+			// Leave them as zeros, i.e. not checked, so the store will read the slots.
+			Logger.error(this, "Failed to read slot cache "+filename+" at page "+firstPage+": "+e, e);
+			buf.clear();
+			buf.put(new byte[buf.capacity()]);
+		}
+		buf.flip();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		for(int page = firstPage; page < endPage; page++) {
+			if(loadedPages.get(page)) continue; // May have changed since.
+			int start = page * PAGE_INTS;
+			int length = Math.min(size, start + PAGE_INTS) - start;
+			buf.position((start - from) * 4);
+			buf.asIntBuffer().get(buffer, start, Math.min(length, buf.remaining() / 4));
+			loadedPages.set(page);
+		}
+		if(loadedPages.cardinality() == totalPages) {
+			loadedPages = null;
+			loaded = true;
+			Logger.normal(this, "Loaded slot cache "+this);
+		}
+	}
+
+	/** Read in everything we haven't already. Caller must hold the read or write lock. */
+	private void loadAll() {
+		for(int page = 0; !loaded; page += CHUNK_PAGES) {
+			synchronized(loadLock) {
+				if(loaded) return;
+				loadPages(page, CHUNK_PAGES);
+			}
 		}
 	}
 	
 	public void start(Ticker ticker) {
 		synchronized(this) {
 			this.ticker = ticker;
-			if(dirty) {
+			if(ticker == null) return; // Tests only: loaded as used, written on shutdown.
+			if(!dirtyPages.isEmpty()) {
 				int persistenceTime = getPersistenceTime();
-				Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
-				ticker.queueTimedJob(writer, persistenceTime);
-				scheduled = true;
+				if(persistenceTime > 0) {
+					Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
+					ticker.queueTimedJob(writer, persistenceTime);
+					scheduled = true;
+				}
 			}
 		}
+		if(!loaded)
+			ticker.queueTimedJob(loader, 0);
 	}
+	
+	/** Reads in the rest of the pages, a chunk at a time, so we can serve requests meanwhile. */
+	private final Runnable loader = new Runnable() {
+
+		@Override
+		public void run() {
+			Logger.normal(this, "Loading slot cache "+ResizablePersistentIntBuffer.this);
+			for(int page = 0; !loaded; page += CHUNK_PAGES) {
+				lock.readLock().lock();
+				try {
+					if(closed) return;
+					synchronized(loadLock) {
+						if(loaded) return;
+						loadPages(page, CHUNK_PAGES);
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+		}
+		
+	};
 
 	public int get(int offset) {
 		lock.readLock().lock();
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
+			if(!loaded) ensureLoaded(offset / PAGE_INTS);
 			return buffer[offset];
 		} finally {
 			lock.readLock().unlock();
@@ -132,13 +243,17 @@ public class ResizablePersistentIntBuffer {
 		lock.readLock().lock(); // Only resize needs write lock because it creates a new buffer.
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
+			if(!loaded) ensureLoaded(offset / PAGE_INTS);
 			int persistenceTime = getPersistenceTime();
 			buffer[offset] = value;
 			if(persistenceTime == -1 && !noWrite) {
 				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
+				synchronized(this) {
+					bytesWritten += 4;
+				}
 			} else if(persistenceTime > 0) {
 				synchronized(this) {
-					dirty = true;
+					dirtyPages.set(offset / PAGE_INTS);
 					if(ticker != null) {
 						if(!scheduled) {
 							Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
@@ -151,7 +266,7 @@ public class ResizablePersistentIntBuffer {
 				}
 			} else {
 				synchronized(this) {
-					dirty = true;
+					dirtyPages.set(offset / PAGE_INTS);
 				}
 			}
 		} finally {
@@ -166,16 +281,15 @@ public class ResizablePersistentIntBuffer {
 			lock.readLock().lock(); // Protect buffer.
 			try {
 				synchronized(ResizablePersistentIntBuffer.this) {
-					if(writing || !dirty || closed) {
+					if(writing || dirtyPages.isEmpty() || closed) {
 						scheduled = false;
 						return;
 					}
 					scheduled = false;
-					dirty = false;
 					writing = true;
 				}
 				try {
-					writeBuffer();
+					writeDirtyPages();
 				} catch (IOException e) {
 					Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 				}
@@ -206,13 +320,12 @@ public class ResizablePersistentIntBuffer {
 							// Ignore.
 						}
 					}
-					if(!dirty) return;
 				}
 				writing = true;
 			}
 			try {
 				Logger.normal(this, "Writing slot cache on shutdown: "+this);
-				writeBuffer();
+				writeDirtyPages();
 			} catch (IOException e) {
 				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 			}
@@ -247,28 +360,80 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
-	private void writeBuffer() throws IOException {
-		// FIXME do we need to do partial writes?
-		raf.seek(0);
-		int written = 0;
-		while(written < size) {
-			int toWrite = Math.min(32768, size - written);
-			byte[] buf = Fields.intsToBytes(buffer, written, toWrite);
-			raf.write(buf);
-			written += toWrite;
+	/** Write the pages which have changed since they were last written. Caller must hold the
+	 * read or write lock, and have set writing. */
+	private void writeDirtyPages() throws IOException {
+		BitSet pages;
+		synchronized(this) {
+			if(dirtyPages.isEmpty()) return;
+			pages = dirtyPages;
+			dirtyPages = new BitSet();
+		}
+		long startTime = System.currentTimeMillis();
+		long written = 0;
+		int totalPages = pages(size);
+		try {
+			int first = pages.nextSetBit(0);
+			while(first >= 0 && first < totalPages) {
+				// Adjacent pages in one write.
+				int end = first + 1;
+				while(end < totalPages && end - first < CHUNK_PAGES && pages.get(end))
+					end++;
+				written += write(first * PAGE_INTS, Math.min(size, end * PAGE_INTS));
+				first = pages.nextSetBit(end);
+			}
+		} catch (IOException e) {
+			synchronized(this) {
+				dirtyPages.or(pages);
+			}
+			throw e;
+		} finally {
+			synchronized(this) {
+				bytesWritten += written;
+				writeTime += System.currentTimeMillis() - startTime;
+				writes++;
+			}
 		}
 	}
+
+	/** Write everything. Caller must hold the write lock. */
+	private void writeAll() throws IOException {
+		synchronized(this) {
+			dirtyPages.clear();
+		}
+		long startTime = System.currentTimeMillis();
+		long written = 0;
+		for(int from = 0; from < size; from += CHUNK_PAGES * PAGE_INTS)
+			written += write(from, Math.min(size, from + CHUNK_PAGES * PAGE_INTS));
+		synchronized(this) {
+			bytesWritten += written;
+			writeTime += System.currentTimeMillis() - startTime;
+			writes++;
+		}
+	}
+
+	/** Write part of the buffer.
+	 * @return The number of bytes written. */
+	private int write(int from, int to) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((to - from) * 4).order(ByteOrder.LITTLE_ENDIAN);
+		buf.asIntBuffer().put(buffer, from, to - from);
+		long pos = ((long)from) * 4;
+		while(buf.hasRemaining())
+			channel.write(buf, pos + buf.position());
+		return (to - from) * 4;
+	}
 	
 	public void resize(int size) {
 		lock.writeLock().lock();
 		try {
 			if(this.size == size) return;
 			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			loadAll();
 			this.size = size;
 			buffer = Arrays.copyOf(buffer, size);
 			try {
-				raf.setLength(size * 4);
-				writeBuffer();
+				raf.setLength(((long)size) * 4);
+				writeAll();
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
 			}
@@ -283,7 +448,6 @@ public class ResizablePersistentIntBuffer {
 		try {
 			synchronized(this) {
 				if(closed) return;
-				dirty = false;
 				if(writing) {
 					// Wait for write to finish.
 					while(writing) {
@@ -293,12 +457,11 @@ public class ResizablePersistentIntBuffer {
 							// Ignore.
 						}
 					}
-					if(!dirty) return;
 				}
 				writing = true;
 			}
 			try {
-				writeBuffer();
+				writeDirtyPages();
 			} catch (IOException e) {
 				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 			}
@@ -320,12 +483,42 @@ public class ResizablePersistentIntBuffer {
 
 	// Testing only! Hence no lock.
 	public void replaceAllEntries(int key, int value) {
+		loadAll();
 		for(int i=0;i<buffer.length;i++)
 			if(buffer[i] == key) buffer[i] = value;
+		synchronized(this) {
+			dirtyPages.set(0, pages(size));
+		}
 	}
 	
 	public int size() {
 		return size;
 	}
+
+	/** @return True once the whole buffer has been read from disk. */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/** @return Pages we had to read in because they were used before the background loader got
+	 * to them. */
+	public synchronized long getPagesLoadedOnDemand() {
+		return pagesLoadedOnDemand;
+	}
+
+	/** @return Bytes written to disk since startup. */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/** @return Time spent writing changed pages to disk since startup, in milliseconds. */
+	public synchronized long getWriteTime() {
+		return writeTime;
+	}
+
+	/** @return The number of times we have written changed pages to disk. */
+	public synchronized int getWrites() {
+		return writes;
+	}
 	
 }
@@ -12,15 +12,19 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
@@ -47,6 +51,7 @@ import freenet.node.useralerts.UserAlertManager;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
+import freenet.store.KeyMembershipFilter;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
 import freenet.support.Fields;
@@ -55,6 +60,8 @@ import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.Ticker;
+import freenet.support.TimeUtil;
+import freenet.support.TokenBucket;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
@@ -90,6 +97,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * bit 0...23 - The first 3 bytes of the salted key.
 	 */
 	private final ResizablePersistentIntBuffer slotFilter;
+	/** The node-wide KeyMembershipFilter, if every key we hold has been added to it, which is 
+	 * only the case if the store was created empty since the node started: only salted digests 
+	 * of the routing keys are on disk, so we can't add the keys in an existing store. Null 
+	 * otherwise, and then requests always probe this store. */
+	private final KeyMembershipFilter membershipFilter;
 	/** If true, don't create a slot filter, don't keep it up to date, don't
 	 * do anything with it. */
 	private boolean slotFilterDisabled;
@@ -101,7 +113,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * conversion from an old store. We normally also check slotFilterDisabled 
 	 * to see whether there *is* a slot filter. */
 	private static final boolean USE_SLOT_FILTER = true;
-	
+
+	/** Slots closer together than this have their metadata read in one go by fetchBatch(). 32
+	 * slots is 4KiB of metadata, so it costs no more than reading one slot's. */
+	private static final int BATCH_COALESCE_SLOTS = 32;
+
 	private static final int SLOT_CHECKED = 1 << 31;
 	private static final int SLOT_OCCUPIED = 1 << 30;
 	private static final int SLOT_NEW_BLOCK = 1 << 29;
@@ -228,12 +244,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cleanerStatusUserAlert = new CleanerStatusUserAlert(cleanerThread);
 
 		// finish all resizing before continue
-		if (resizeOnStart && prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
+		if (resizeOnStart && prevStoreSize != 0 && cleanerPermits.tryAcquire()) {
 			System.out.println("Resizing datastore (" + name + ")");
 			try {
 				cleanerThread.resizeStore(prevStoreSize, false);
 			} finally {
-				cleanerGlobalLock.unlock();
+				cleanerPermits.release();
 			}
 			writeConfigFile();
 		}
@@ -243,6 +259,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.out.println("Rebuilding slot filter because new");
 		} else if((flags & FLAG_REBUILD_BLOOM) != 0)
 			System.out.println("Slot filter still needs rebuilding");
+		
+		// We add keys when we write them but never take them out again, since we don't know 
+		// which key a slot held when we overwrite it. Overwritten keys stay in the filter as 
+		// false positives; they never cause false negatives.
+		membershipFilter = newStore ? callback.getMembershipFilter() : null;
 	}
 
 	private boolean started = false;
@@ -406,6 +427,148 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return null;
 	}
 
+	/**
+	 * Look up many keys at once. The slot filter rules out most of the slots each key could be
+	 * in without any I/O; the rest are visited in slot order rather than key order, so the disk
+	 * reads go in one direction across the store instead of seeking at random, and the metadata
+	 * for slots close together is read in one go. Only slots whose metadata matches the key are
+	 * locked and read in full.
+	 */
+	@Override
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return 0;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		try {
+			int count = routingKeys.length;
+			byte[][] digestedKeys = new byte[count][];
+			boolean[] done = new boolean[count];
+			// Slot number in the top half, key index in the bottom half, so sorting them sorts
+			// by slot.
+			long[] probes = new long[count * OPTION_MAX_PROBE * (prevStoreSize == 0 ? 1 : 2)];
+			int probeCount = 0;
+			int wanted = 0;
+			for(int i = 0; i < count; i++) {
+				if(routingKeys[i] == null || blocks[i] != null) continue;
+				wanted++;
+				digestedKeys[i] = cipherManager.getDigestedKey(routingKeys[i]);
+				probeCount = addProbes(probes, probeCount, i, digestedKeys[i], storeSize);
+				if(prevStoreSize != 0)
+					probeCount = addProbes(probes, probeCount, i, digestedKeys[i], prevStoreSize);
+			}
+			Arrays.sort(probes, 0, probeCount);
+			int found = 0;
+			int start = 0;
+			while(start < probeCount) {
+				long firstSlot = probes[start] >>> 32;
+				int end = start + 1;
+				boolean any = !done[(int)probes[start]];
+				while(end < probeCount && (probes[end] >>> 32) - firstSlot < BATCH_COALESCE_SLOTS) {
+					any |= !done[(int)probes[end]];
+					end++;
+				}
+				if(!any) {
+					start = end;
+					continue;
+				}
+				ByteBuffer meta;
+				try {
+					meta = readMetadata(firstSlot, (int)((probes[end-1] >>> 32) - firstSlot + 1));
+				} catch (EOFException e) {
+					// Shrinking. Check each slot separately; readEntry() will cope.
+					meta = null;
+				}
+				for(int j = start; j < end; j++) {
+					int i = (int)probes[j];
+					if(done[i]) continue;
+					long offset = probes[j] >>> 32;
+					if(meta != null && !slotMatches(meta, (int)(offset - firstSlot), digestedKeys[i]))
+						continue;
+					// Now look at it properly, with the key locked.
+					Map<Long, Condition> lockMap = lockDigestedKey(digestedKeys[i], true);
+					if (lockMap == null) {
+						if (logDEBUG)
+							Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKeys[i]) + ", shutting down?");
+						return found;
+					}
+					try {
+						Entry entry;
+						try {
+							entry = readEntry(offset, digestedKeys[i], routingKeys[i], true);
+						} catch (EOFException e) {
+							continue;
+						}
+						if(entry == null) continue;
+						done[i] = true;
+						if((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && ignoreOldBlocks) {
+							Logger.normal(this, "Ignoring old block");
+							continue;
+						}
+						T block = entry.getStorableBlock(routingKeys[i], fullKeys == null ? null : fullKeys[i], canReadClientCache, canReadSlashdotCache, null, null);
+						if(block == null) continue;
+						blocks[i] = block;
+						found++;
+					} catch (KeyVerifyException e) {
+						Logger.minor(this, "key verification exception", e);
+					} finally {
+						unlockDigestedKey(digestedKeys[i], true, lockMap);
+					}
+				}
+				start = end;
+			}
+			hits.addAndGet(found);
+			misses.addAndGet(wanted - found);
+			if (logMINOR)
+				Logger.minor(this, "Batch fetch of " + wanted + " keys: " + probeCount + " slots to probe, " + found + " found for " + callback);
+			return found;
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/** Add the slots a key could be in, apart from those the slot filter rules out. */
+	private int addProbes(long[] probes, int probeCount, int index, byte[] digestedKey, long probeStoreSize) {
+		for(long offset : getOffsetFromDigestedKey(digestedKey, probeStoreSize)) {
+			if(storeFileOffsetReady != -1 && offset >= storeFileOffsetReady) continue;
+			if(!slotFilterDisabled && USE_SLOT_FILTER) {
+				int cache = slotFilter.get((int)offset);
+				if((cache & SLOT_CHECKED) != 0 && !slotCacheLikelyMatch(cache, digestedKey)) continue;
+			}
+			probes[probeCount++] = (offset << 32) | index;
+		}
+		return probeCount;
+	}
+
+	/** Read the metadata for a run of slots. Caller must hold the config lock. */
+	private ByteBuffer readMetadata(long offset, int slots) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(Entry.METADATA_LENGTH * slots);
+		long pos = Entry.METADATA_LENGTH * offset;
+		do {
+			int status = metaFC.read(buf, pos + buf.position());
+			if (status == -1)
+				throw new EOFException();
+		} while (buf.hasRemaining());
+		return buf;
+	}
+
+	/** @return True if the slot at the given index in a buffer from readMetadata() is occupied
+	 * and has the digested key. It may have changed since, so check again with the key locked. */
+	private boolean slotMatches(ByteBuffer meta, int index, byte[] digestedKey) {
+		int base = index * Entry.METADATA_LENGTH;
+		if((meta.getLong(base + 0x30) & Entry.ENTRY_FLAG_OCCUPIED) == 0) return false;
+		for(int k = 0; k < digestedKey.length; k++)
+			if(meta.get(base + k) != digestedKey[k]) return false;
+		return true;
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		put(block, data, header, overwrite, isOldBlock, false);
@@ -437,6 +600,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return false;
 			}
+			int fingerprint = 0;
+			// True if we wrote the key to a slot it wasn't in before.
+			boolean newKey = false;
+			if (membershipFilter != null) {
+				// Add it before the block becomes visible. Taken out below if it was already here.
+				fingerprint = membershipFilter.fingerprint(routingKey);
+				membershipFilter.add(fingerprint);
+			}
 			try {
 				/*
 				 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
@@ -499,6 +670,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 							if (logDEBUG)
 								Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
 							writeEntry(entry, digestedKey, offset[i]);
+							newKey = true;
 							keyCount.incrementAndGet();
 							onWrite();
 							return true;
@@ -543,11 +715,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
 				oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
 				writeEntry(entry, digestedKey, offset[indexToOverwrite]);
+				newKey = true;
 				if (oldEntry.generation != generation)
 					keyCount.incrementAndGet();
 				onWrite();
 				return true;
 			} finally {
+				if (membershipFilter != null && !newKey)
+					membershipFilter.remove(fingerprint);
 				unlockDigestedKey(digestedKey, false, lockMap);
 			}
 		} finally {
@@ -935,7 +1110,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
+		return readHD(offset, 1);
+	}
+
+	/**
+	 * Read header + data for several adjacent slots at once
+	 *
+	 * @param offset The first slot.
+	 * @param count The number of slots.
+	 * @throws IOException
+	 */
+	private ByteBuffer readHD(long offset, int count) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((headerBlockLength + dataBlockLength + hdPadding) * count);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 		do {
@@ -1297,7 +1483,30 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private long prevStoreSize = 0;
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
-	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
+	/** How many stores may resize or rebuild at once. They share the I/O budget below. */
+	private static final int MAX_CONCURRENT_CLEANERS = 3;
+	private static final Semaphore cleanerPermits = new Semaphore(MAX_CONCURRENT_CLEANERS); // global across all datastore
+	/** Disk I/O in bytes per second the cleaners may use between them while the node is 
+	 * running, or 0 for no limit. Moving a CHK costs about 66KiB of reads and writes, and we 
+	 * used to move up to 128 entries per 100ms, so this lets three CHK stores resize at once 
+	 * at least as fast as one store used to. On most disks it is no limit at all; it is there
+	 * for users who want maintenance to leave the disk alone. */
+	public static final int DEFAULT_CLEANER_BANDWIDTH = 256 * 1024 * 1024;
+	private static int cleanerBandwidth = DEFAULT_CLEANER_BANDWIDTH;
+	private static final TokenBucket cleanerBudget = 
+		new TokenBucket(DEFAULT_CLEANER_BANDWIDTH, SECONDS.toNanos(1) / DEFAULT_CLEANER_BANDWIDTH, 0);
+
+	public static synchronized void setCleanerBandwidth(int bytesPerSecond) {
+		if(bytesPerSecond < 0) throw new IllegalArgumentException();
+		cleanerBandwidth = bytesPerSecond;
+		if(bytesPerSecond > 0)
+			cleanerBudget.changeNanosAndBucketSize(Math.max(1, SECONDS.toNanos(1) / bytesPerSecond), bytesPerSecond);
+	}
+
+	public static synchronized int getCleanerBandwidth() {
+		return cleanerBandwidth;
+	}
+
 	private Cleaner cleanerThread;
 	private CleanerStatusUserAlert cleanerStatusUserAlert;
 
@@ -1307,7 +1516,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		// initialize
 		void init();
 
-		// call this after reading RESIZE_MEMORY_ENTRIES entries
+		// call this after processing each entry in a batch, before the entries are unlocked
+		void processed();
+
+		// call this after reading a batch of entries
 		// return false to abort
 		boolean batch(long entriesLeft);
 
@@ -1332,11 +1544,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		private volatile boolean isRebuilding;
 		private volatile boolean isResizing;
+		/** Entries per batch. All of them may need moving during a resize, so this is limited
+		 * by RESIZE_MEMORY_BYTES. */
+		private final int batchEntries;
+		/** Bytes read and written in the current batch. Cleaner thread only. */
+		private long batchIOBytes;
 
 		public Cleaner() {
 			super("Store-" + name + "-Cleaner", NativeThread.LOW_PRIORITY, false);
 			setPriority(MIN_PRIORITY);
 			setDaemon(true);
+			int entryLength = headerBlockLength + dataBlockLength + hdPadding;
+			batchEntries = Math.max(RESIZE_MEMORY_ENTRIES, 
+					Integer.highestOneBit(Math.min(MAX_BATCH_ENTRIES, RESIZE_MEMORY_BYTES / entryLength)));
 		}
 
 		@Override
@@ -1362,13 +1582,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						configLock.readLock().unlock();
 					}
 
-					if (_prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
+					if (_prevStoreSize != 0 && cleanerPermits.tryAcquire()) {
 						try {
 							isResizing = true;
 							resizeStore(_prevStoreSize, true);
 						} finally {
 							isResizing = false;
-							cleanerGlobalLock.unlock();
+							cleanerPermits.release();
 						}
 					}
 					
@@ -1379,13 +1599,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					} finally {
 						configLock.readLock().unlock();
 					}
-					if (_rebuildBloom && prevStoreSize == 0 && cleanerGlobalLock.tryLock()) {
+					if (_rebuildBloom && prevStoreSize == 0 && cleanerPermits.tryAcquire()) {
 						try {
 							isRebuilding = true;
 							rebuildBloom(false);
 						} finally {
 							isRebuilding = false;
-							cleanerGlobalLock.unlock();
+							cleanerPermits.release();
 						}
 					}
 
@@ -1402,7 +1622,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 		}
 
-		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
+		private static final int RESIZE_MEMORY_ENTRIES = 128; // minimum batch size (in # of entries)
+		private static final int RESIZE_MEMORY_BYTES = 16 * 1024 * 1024; // temporary memory store size
+		private static final int MAX_BATCH_ENTRIES = 4096; // metadata is only 128 bytes per entry
+
+		/** Orders entries to be moved by where they will go, so we write in offset order. 
+		 * Their storeSize must have been set to the new size. */
+		private final Comparator<Entry> BY_NEW_OFFSET = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				long o1 = e1.getOffset()[0];
+				long o2 = e2.getOffset()[0];
+				return o1 < o2 ? -1 : (o1 > o2 ? 1 : 0);
+			}
+		};
 
 		/**
 		 * Move old entries to new location and resize store
@@ -1413,6 +1646,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
 				Deque<Entry> oldEntryList = new LinkedList<Entry>();
+				/** Entries in this batch which have to move, in offset order. We read their 
+				 * data once the whole batch has been looked at. */
+				List<Entry> toRead = new ArrayList<Entry>();
 
 				@Override
 				public void init() {
@@ -1427,7 +1663,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						configLock.writeLock().unlock();
 					}
 
-					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
+					WrapperManager.signalStarting((int) (batchEntries * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 				}
 
 				@Override
@@ -1455,21 +1691,43 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						                + HexUtil.bytesToHex(entry.getDigestedRoutingKey()) //
 						                + ", Offset=" + entry.curOffset);
 					}
-					try {
-						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.poll();
-					} catch (IOException e) {
-						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
-					}
+					toRead.add(entry);
 					return null;
 				}
 
+				@Override
+				public void processed() {
+					// Read the data for runs of adjacent entries at once.
+					int entryLength = headerBlockLength + dataBlockLength + hdPadding;
+					int start = 0;
+					while (start < toRead.size()) {
+						int end = start + 1;
+						while (end < toRead.size() && toRead.get(end).curOffset == toRead.get(end - 1).curOffset + 1)
+							end++;
+						long firstOffset = toRead.get(start).curOffset;
+						try {
+							ByteBuffer buf = readHD(firstOffset, end - start);
+							batchIOBytes += buf.remaining();
+							for (int j = start; j < end; j++) {
+								buf.limit((j - start + 1) * entryLength);
+								toRead.get(j).setHD(buf);
+								buf.position((j - start + 1) * entryLength);
+								oldEntryList.add(toRead.get(j));
+								if (oldEntryList.size() > batchEntries)
+									oldEntryList.poll();
+							}
+						} catch (IOException e) {
+							Logger.error(this, "error reading entries (offset=" + firstOffset + ", count=" + (end - start) + ")", e);
+						}
+						start = end;
+					}
+					toRead.clear();
+				}
+
 				int i = 0;
 				@Override
 				public boolean batch(long entriesLeft) {
-					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
+					WrapperManager.signalStarting((int) (batchEntries * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 
 					if (i++ % 16 == 0)
 						writeConfigFile();
@@ -1478,11 +1736,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					if (storeSize < _prevStoreSize)
 						setStoreFileSize(Math.max(storeSize, entriesLeft), false);
 
-					// try to resolve the list
-					Iterator<Entry> it = oldEntryList.iterator();
-					while (it.hasNext())
-						if (resolveOldEntry(it.next()))
-							it.remove();
+					// try to resolve the list, writing in offset order
+					int entryLength = headerBlockLength + dataBlockLength + hdPadding;
+					List<Entry> byNewOffset = new ArrayList<Entry>(oldEntryList);
+					for (Entry entry : byNewOffset)
+						entry.storeSize = storeSize;
+					Collections.sort(byNewOffset, BY_NEW_OFFSET);
+					for (Entry entry : byNewOffset) {
+						if (resolveOldEntry(entry)) {
+							oldEntryList.remove(entry);
+							batchIOBytes += Entry.METADATA_LENGTH + entryLength;
+						}
+					}
 
 					return _prevStoreSize == prevStoreSize;
 				}
@@ -1540,7 +1805,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						configLock.writeLock().unlock();
 					}
 
-					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
+					WrapperManager.signalStarting((int) (batchEntries * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
 				}
 				
 				@Override
@@ -1564,10 +1829,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return NOT_MODIFIED;
 				}
 				
+				@Override
+				public void processed() {
+					// Do nothing
+				}
+				
 				int i = 0;
 				@Override
 				public boolean batch(long entriesLeft) {
-					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
+					WrapperManager.signalStarting((int) (batchEntries * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
 
 					if (i++ % 16 == 0)
 						writeConfigFile();
@@ -1610,18 +1880,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		private volatile long startTime;
+
+		/** @return Roughly how long until the current resize or rebuild finishes, in 
+		 * milliseconds, or -1 if we don't know yet. */
+		private long getETA() {
+			long left = entriesLeft;
+			long processed = entriesTotal - left;
+			if (processed <= 0) return -1;
+			long elapsed = System.currentTimeMillis() - startTime;
+			return (long) (elapsed * ((double) left / processed));
+		}
+
+		/** Use up the I/O budget for the last batch, waiting if necessary. */
+		private void throttle() {
+			long bytes = batchIOBytes;
+			batchIOBytes = 0;
+			if (getCleanerBandwidth() > 0 && bytes > 0)
+				cleanerBudget.blockingGrab(bytes);
+		}
 
 		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
 			
 			entriesLeft = entriesTotal = storeSize;
+			startTime = System.currentTimeMillis();
+			batchIOBytes = 0;
 
 			long startOffset, step;
 			if (!reverse) {
 				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
+				step = batchEntries;
 			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+				startOffset = ((storeSize - 1) / batchEntries) * batchEntries;
+				step = -batchEntries;
 			}
 
 			int i = 0;
@@ -1637,20 +1928,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
 						        + entriesTotal);
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
+					batchProcessEntries(curOffset, batchEntries, processor);
+					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - batchEntries, 0);
 					if (!processor.batch(entriesLeft)) {
 						processor.abort();
 						return;
 					}
 
-					try {
-						if (sleep)
-							Thread.sleep(100);
-					} catch (InterruptedException e) {
-						processor.abort();
-						return;
-					}
+					// Share the disk with normal traffic.
+					if (sleep)
+						throttle();
 				}
 				processor.finish();
 			} catch (Exception e) {
@@ -1701,6 +1988,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					Logger.error(this, "unexpected IOException", ioe);
 				}
 				buf.flip();
+				batchIOBytes += buf.limit();
 
 				try {
 					for (int j = 0; !shutdown && buf.limit() > j * Entry.METADATA_LENGTH; j++) {
@@ -1753,10 +2041,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 							dirty = true;
 						}
 					}
+					processor.processed();
 				} finally {
 					// write back.
 					if (dirty) {
 						buf.flip();
+						batchIOBytes += buf.limit();
 
 						try {
 							while (buf.hasRemaining()) {
@@ -1855,28 +2145,35 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		public String getShortText() {
 			if (cleaner.isResizing)
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortResizeProgress", //
-				        new String[] { "name", "processed", "total" },//
+				        new String[] { "name", "processed", "total", "eta" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal), getETA() });
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortRebuildProgress" + (slotFilter.isNew() ? "New" : ""), 
-				        new String[] { "name", "processed", "total" },//
+				        new String[] { "name", "processed", "total", "eta" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal), getETA() });
 		}
 
 		@Override
 		public String getText() {
 			if (cleaner.isResizing)
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
-				        new String[] { "name", "processed", "total" },//
+				        new String[] { "name", "processed", "total", "eta" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal), getETA() });
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
-				        new String[] { "name", "processed", "total" },
+				        new String[] { "name", "processed", "total", "eta" },
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				                String.valueOf(cleaner.entriesTotal), getETA() });
+		}
+
+		private String getETA() {
+			long eta = cleaner.getETA();
+			if (eta < 0)
+				return NodeL10n.getBase().getString("SaltedHashFreenetStore.etaUnknown");
+			return TimeUtil.formatTime(eta);
 		}
 
 		@Override
@@ -2156,6 +2453,31 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return bloomFalsePos.get();
 	}
 
+	@Override
+	public boolean isMembershipComplete() {
+		return membershipFilter != null;
+	}
+
+	/** @return Bytes of slot filter written to disk since startup. */
+	public long getSlotFilterBytesWritten() {
+		return slotFilter == null ? 0 : slotFilter.getBytesWritten();
+	}
+
+	/** @return Time spent writing the slot filter to disk since startup, in milliseconds. */
+	public long getSlotFilterWriteTime() {
+		return slotFilter == null ? 0 : slotFilter.getWriteTime();
+	}
+
+	/** @return The number of times changed parts of the slot filter have been written. */
+	public int getSlotFilterWrites() {
+		return slotFilter == null ? 0 : slotFilter.getWrites();
+	}
+
+	/** @return True if there is no slot filter or it has been read in completely. */
+	public boolean isSlotFilterLoaded() {
+		return slotFilter == null || slotFilter.isLoaded();
+	}
+
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		configLock.readLock().lock();
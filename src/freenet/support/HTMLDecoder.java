@@ -21,6 +21,10 @@ public class HTMLDecoder {
 		Character ch;
 		int tmpPos, i;
 
+		// Nothing to decode. Very common for the text between tags.
+		if (s.indexOf('&') == -1)
+			return s;
+
 		int maxPos = s.length();
 		StringBuilder sb = new StringBuilder(maxPos);
 		int curPos = 0;
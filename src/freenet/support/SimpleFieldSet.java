@@ -1,21 +1,16 @@
 package freenet.support;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -30,6 +25,7 @@ import freenet.node.FSParseException;
 import freenet.support.io.Closer;
 import freenet.support.io.LineReader;
 import freenet.support.io.Readers;
+import freenet.support.io.TooLongException;
 
 /**
  * @author amphibian
@@ -63,6 +59,9 @@ public class SimpleFieldSet {
     private final boolean shortLived;
     private final boolean alwaysUseBase64;
     protected String[] header;
+    /** Flat index of full key to value, set by buildKeyIndex(). Shared by every subset of the
+     * tree, so that changing any of them invalidates it. Only used for lookups by its root. */
+    private volatile KeyIndex keyIndex;
 
     public static final char MULTI_LEVEL_CHAR = '.';
     public static final char MULTI_VALUE_CHAR = ';';
@@ -125,7 +124,25 @@ public class SimpleFieldSet {
 
     public SimpleFieldSet(LineReader lis, int maxLineLength, int lineBufferSize, boolean utf8OrIso88591, boolean allowMultiple, boolean shortLived, boolean allowBase64) throws IOException {
     	this(shortLived);
-    	read(lis, maxLineLength, lineBufferSize, utf8OrIso88591, allowMultiple, allowBase64);
+    	if(lis instanceof InputStream && ((InputStream)lis).markSupported())
+    		readMarkable((InputStream)lis, maxLineLength, utf8OrIso88591, allowMultiple, allowBase64);
+    	else
+    		read(lis, maxLineLength, lineBufferSize, utf8OrIso88591, allowMultiple, allowBase64);
+    }
+
+    /**
+     * Construct from UTF-8 encoded bytes, e.g. a node reference received from a peer. Lines 
+     * may be terminated by \n, \r\n or \r.
+     * @param shortLived If false, strings will be interned to ensure that they use as
+     * little memory as possible. Only set to true if the SFS will be short-lived or
+     * small.
+     * @throws IOException If the data is empty or invalid.
+     */
+    public SimpleFieldSet(byte[] data, int offset, int length, boolean allowMultiple, boolean shortLived, boolean allowBase64) throws IOException {
+    	this(shortLived);
+    	Parser parser = new Parser(this, true, allowMultiple, allowBase64, true);
+    	parser.parse(data, offset, offset+length, true);
+    	parser.finish();
     }
 
     /**
@@ -238,13 +255,277 @@ public class SimpleFieldSet {
 		}
 	}
 
+	/**
+	 * Read from a stream that supports mark(), a buffer at a time rather than a line at a time, 
+	 * parsing keys and values straight from the bytes. Like reading via LineReader, leaves 
+	 * the stream just after the end marker, so any data following the SimpleFieldSet (e.g. 
+	 * the payload of an FCP message) can be read afterwards.
+	 * @param maxLength The maximum length of a line.
+	 */
+	private void readMarkable(InputStream is, int maxLength, boolean utf, boolean allowMultiple, boolean allowBase64) throws IOException {
+		Parser parser = new Parser(this, utf, allowMultiple, allowBase64, false);
+		// Room for the longest line, plus \r\n. 
+		int limit = maxLength > Integer.MAX_VALUE - 2 ? Integer.MAX_VALUE : maxLength + 2;
+		byte[] buf = new byte[Math.min(limit, 4096)];
+		while(true) {
+			is.mark(limit);
+			int filled = 0;
+			int consumed = 0;
+			boolean eof = false;
+			while(true) {
+				int x = is.read(buf, filled, buf.length - filled);
+				if(x < 0) {
+					eof = true;
+					break;
+				}
+				if(x == 0) {
+					// Same as LineReadingInputStream: don't busy-loop.
+					throw new EOFException();
+				}
+				int scanFrom = filled;
+				filled += x;
+				if(indexOf(buf, scanFrom, filled, (byte)'\n') >= 0) break;
+				if(filled == buf.length) {
+					if(buf.length >= limit)
+						throw new TooLongException("We reached maxLength="+maxLength+" parsing a SimpleFieldSet");
+					buf = Arrays.copyOf(buf, (int)Math.min((long)buf.length * 2, limit));
+				}
+			}
+			consumed = parser.parse(buf, 0, filled, eof);
+			is.reset();
+			skipFully(is, consumed);
+			if(parser.isDone() || eof) break;
+		}
+		parser.finish();
+	}
+
+	/**
+	 * Read from a stream that we will consume completely, a buffer at a time.
+	 * Lines may be terminated by \n, \r\n or \r, as with BufferedReader.
+	 */
+	private void readAll(InputStream is, boolean allowMultiple, boolean allowBase64) throws IOException {
+		Parser parser = new Parser(this, true, allowMultiple, allowBase64, true);
+		byte[] buf = new byte[4096];
+		int filled = 0;
+		while(!parser.isDone()) {
+			if(filled == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			int x = is.read(buf, filled, buf.length - filled);
+			boolean eof = x < 0;
+			if(!eof) filled += x;
+			int consumed = parser.parse(buf, 0, filled, eof);
+			if(eof) break;
+			System.arraycopy(buf, consumed, buf, 0, filled - consumed);
+			filled -= consumed;
+		}
+		parser.finish();
+	}
+
+	private static void skipFully(InputStream is, long length) throws IOException {
+		while(length > 0) {
+			long skipped = is.skip(length);
+			if(skipped <= 0) {
+				if(is.read() < 0) throw new EOFException();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	private static int indexOf(byte[] buf, int start, int end, byte b) {
+		for(int i=start;i<end;i++)
+			if(buf[i] == b) return i;
+		return -1;
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/** Decode a string, skipping the charset decoder if it is pure ASCII, as it usually is. */
+	private static String decode(byte[] buf, int start, int end, boolean utf) {
+		for(int i=start;i<end;i++) {
+			if(buf[i] < 0)
+				return new String(buf, start, end - start, utf ? UTF8 : ISO_8859_1);
+		}
+		return new String(buf, start, end - start, ISO_8859_1);
+	}
+
+	/** Cache of recently parsed key names (the parts between the "."'s), so that we don't 
+	 * create a new String, or intern one, for each key of each message we parse. The same
+	 * few hundred names turn up over and over in FCP messages, noderefs and config files. 
+	 * Racy but safe, since Strings are immutable. */
+	private static final String[] keyCache = new String[4096];
+	/** Longer key names are not cached. */
+	private static final int MAX_CACHED_KEY_LENGTH = 64;
+
+	/** Get a key name from the buffer, using the cache if possible. */
+	private static String keyName(byte[] buf, int start, int end, boolean utf, boolean intern) {
+		int hash = 0;
+		for(int i=start;i<end;i++) {
+			byte b = buf[i];
+			if(b < 0) {
+				String key = decode(buf, start, end, utf);
+				return intern ? key.intern() : key;
+			}
+			hash = 31 * hash + b;
+		}
+		if(end - start > MAX_CACHED_KEY_LENGTH) {
+			String key = new String(buf, start, end - start, ISO_8859_1);
+			return intern ? key.intern() : key;
+		}
+		int slot = (hash ^ (hash >>> 16)) & (keyCache.length - 1);
+		String cached = keyCache[slot];
+		if(cached != null && cached.length() == end - start) {
+			boolean match = true;
+			for(int i=start;i<end;i++) {
+				if(cached.charAt(i - start) != buf[i]) {
+					match = false;
+					break;
+				}
+			}
+			if(match) return cached;
+		}
+		String key = new String(buf, start, end - start, ISO_8859_1).intern();
+		keyCache[slot] = key;
+		return key;
+	}
+
+	/** Parses lines directly from a byte buffer into a SimpleFieldSet. Same format as 
+	 * read(LineReader, ...), but without creating a String for each line or each key. */
+	private static class Parser {
+		private final SimpleFieldSet fs;
+		private final boolean utf;
+		private final boolean allowMultiple;
+		private final boolean allowBase64;
+		/** If true, a \r on its own also ends a line, as with BufferedReader. */
+		private final boolean crIsNewline;
+		private boolean firstLine = true;
+		private boolean headerSection = true;
+		private boolean done;
+		/** The last line ended with \r, so ignore a \n at the start of the next buffer. */
+		private boolean skipLF;
+		private List<String> headers;
+
+		Parser(SimpleFieldSet fs, boolean utf, boolean allowMultiple, boolean allowBase64, boolean crIsNewline) {
+			this.fs = fs;
+			this.utf = utf;
+			this.allowMultiple = allowMultiple;
+			this.allowBase64 = allowBase64;
+			this.crIsNewline = crIsNewline;
+		}
+
+		boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Parse all the complete lines in the buffer.
+		 * @param eof If true, there is no more data, so the last line is complete even if it
+		 * has no terminator.
+		 * @return The offset just after the last line parsed, which will be after the end 
+		 * marker if we have reached it.
+		 */
+		int parse(byte[] buf, int start, int end, boolean eof) throws IOException {
+			int lineStart = start;
+			for(int i=start;i<end && !done;i++) {
+				byte b = buf[i];
+				if(b == '\n') {
+					if(skipLF && i == lineStart) {
+						skipLF = false;
+						lineStart = i+1;
+						continue;
+					}
+					skipLF = false;
+					int lineEnd = i;
+					if(lineEnd > lineStart && buf[lineEnd-1] == '\r') lineEnd--;
+					parseLine(buf, lineStart, lineEnd);
+					lineStart = i+1;
+				} else if(b == '\r' && crIsNewline && (i+1 == end ? eof : buf[i+1] != '\n')) {
+					parseLine(buf, lineStart, i);
+					skipLF = !eof && i+1 == end;
+					lineStart = i+1;
+				} else {
+					skipLF = false;
+				}
+			}
+			if(eof && !done && lineStart < end) {
+				parseLine(buf, lineStart, end);
+				lineStart = end;
+			}
+			return lineStart;
+		}
+
+		void finish() throws IOException {
+			if(done) return;
+			if(firstLine) throw new EOFException();
+			Logger.error(fs, "No end marker");
+		}
+
+		private void parseLine(byte[] buf, int start, int end) throws IOException {
+			if(start == end) return; // ignore
+			firstLine = false;
+			if(buf[start] == '#') {
+				if(headerSection) {
+					if(headers == null) headers = new ArrayList<String>();
+					headers.add(decode(buf, start+1, end, utf).trim());
+				}
+				return;
+			}
+			if(headerSection) {
+				if(headers != null) fs.header = headers.toArray(new String[headers.size()]);
+				headerSection = false;
+			}
+			int index = indexOf(buf, start, end, (byte)KEYVALUE_SEPARATOR_CHAR);
+			if(index < 0) {
+				fs.endMarker = decode(buf, start, end, utf);
+				done = true;
+				return;
+			}
+			// Same as String.trim().
+			int keyStart = start;
+			int keyEnd = index;
+			while(keyStart < keyEnd && (buf[keyStart] & 0xFF) <= ' ') keyStart++;
+			while(keyEnd > keyStart && (buf[keyEnd-1] & 0xFF) <= ' ') keyEnd--;
+			String value;
+			if(allowBase64 && index+1 < end && buf[index+1] == KEYVALUE_SEPARATOR_CHAR) {
+				try {
+					value = decode(buf, index+2, end, utf).replaceAll("\\s", "");
+					value = Base64.decodeUTF8(value);
+				} catch (IllegalBase64Exception e) {
+					throw new IOException("Unable to decode UTF8, = should not be allowed as first character of a value");
+				}
+			} else {
+				value = decode(buf, index+1, end, utf);
+			}
+			if((!fs.alwaysUseBase64) && value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+			boolean intern = !fs.shortLived;
+			if(intern) value = value.intern();
+			SimpleFieldSet target = fs;
+			int nameStart = keyStart;
+			for(int i=keyStart;i<keyEnd;i++) {
+				if(buf[i] == MULTI_LEVEL_CHAR) {
+					target = target.subsetForPut(keyName(buf, nameStart, i, utf, intern));
+					nameStart = i+1;
+				}
+			}
+			target.putDirect(keyName(buf, nameStart, keyEnd, utf, intern), value, allowMultiple, false);
+		}
+	}
+
 	/** Get a value for a key as a String. This may be a top level value, or we will traverse the 
 	 * tree, so can be used for any key=value or subset.subset.key=value etc.
 	 * @param key The key to look up.
 	 * @return The String value corresponding to the given key, or null if there is no such 
 	 * key=value pair.
 	 */
-    public synchronized String get(String key) {
+    public String get(String key) {
+    	KeyIndex index = keyIndex;
+    	if(index != null && index.root == this && index.valid)
+    		return index.values.get(key);
+    	return getSlow(key);
+    }
+
+    private synchronized String getSlow(String key) {
    		int idx = key.indexOf(MULTI_LEVEL_CHAR);
    		if(idx == -1)
    			return values.get(key);
@@ -260,6 +541,53 @@ public class SimpleFieldSet {
    		}
     }
 
+    /** Flat map of full key to value for a whole tree. */
+    private static final class KeyIndex {
+    	final SimpleFieldSet root;
+    	final HashMap<String, String> values;
+    	volatile boolean valid = true;
+    	KeyIndex(SimpleFieldSet root) {
+    		this.root = root;
+    		this.values = new HashMap<String, String>();
+    	}
+    }
+
+    /**
+     * Build a flat index of full key to value, so that get() of a key in a subset, e.g. 
+     * "physical.udp", costs a single hash lookup and no locking or substring()'ing. Useful for
+     * large, read-mostly trees such as node references. The index is dropped (and get() 
+     * falls back to traversing the tree) as soon as anything in the tree is changed.
+     */
+    public synchronized void buildKeyIndex() {
+    	KeyIndex index = new KeyIndex(this);
+    	addToKeyIndex(index, "");
+    	keyIndex = index;
+    }
+
+    private synchronized void addToKeyIndex(KeyIndex index, String prefix) {
+    	KeyIndex old = keyIndex;
+    	if(old != null && old != index)
+    		// A subset shared with another indexed tree. We can only track one index, so 
+    		// invalidate the other one.
+    		old.valid = false;
+    	keyIndex = index;
+    	for(Map.Entry<String, String> entry : values.entrySet())
+    		index.values.put(prefix.isEmpty() ? entry.getKey() : prefix + entry.getKey(), entry.getValue());
+    	if(subsets != null) {
+    		for(Map.Entry<String, SimpleFieldSet> entry : subsets.entrySet())
+    			entry.getValue().addToKeyIndex(index, prefix + entry.getKey() + MULTI_LEVEL_CHAR);
+    	}
+    }
+
+    /** Called before changing anything. */
+    private void invalidateKeyIndex() {
+    	KeyIndex index = keyIndex;
+    	if(index != null) {
+    		index.valid = false;
+    		keyIndex = null;
+    	}
+    }
+
     public String[] getAll(String key) {
     	String k = get(key);
     	if(k == null) return null;
@@ -325,7 +653,8 @@ public class SimpleFieldSet {
     /**
      * Put contents of a fieldset, overwrite old values.
      */
-    public void putAllOverwrite(SimpleFieldSet fs) {
+    public synchronized void putAllOverwrite(SimpleFieldSet fs) {
+    	invalidateKeyIndex();
     	for(Map.Entry<String, String> entry: fs.values.entrySet()) {
     		values.put(entry.getKey(), entry.getValue()); // overwrite old
     	}
@@ -396,39 +725,57 @@ public class SimpleFieldSet {
 	private synchronized boolean put(String key, String value, boolean allowMultiple, boolean overwrite, boolean fromRead) {
 		int idx;
 		if(value == null) return true; // valid no-op
+		checkValue(key, value, allowMultiple, fromRead);
+		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
+			if(!shortLived) key = key.intern();
+			return putDirect(key, value, allowMultiple, overwrite);
+		} else {
+			String before = key.substring(0, idx);
+			String after = key.substring(idx+1);
+			if(!shortLived) before = before.intern();
+			return subsetForPut(before).put(after, value, allowMultiple, overwrite, fromRead);
+		}
+    }
+
+	private void checkValue(String key, String value, boolean allowMultiple, boolean fromRead) {
 		if((!alwaysUseBase64) && value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
 		if(allowMultiple && (!fromRead) && value.indexOf(MULTI_VALUE_CHAR) != -1) {
 			throw new IllegalArgumentException("Appending a string to a SimpleFieldSet value should not contain the multi-value char \""+String.valueOf(MULTI_VALUE_CHAR)+"\" but it does: \"" +value+"\" for \""+key+"\"", new Exception("error"));
 		}
-		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
-			if(!shortLived) key = key.intern();
+	}
 
-			if(overwrite) {
+	/** Set a top level key to a value. The key must not contain a "." and must already have
+	 * been interned if necessary, and the value must have been checked.
+	 * @see #put(String, String, boolean, boolean, boolean) */
+	private synchronized boolean putDirect(String key, String value, boolean allowMultiple, boolean overwrite) {
+		invalidateKeyIndex();
+		if(overwrite) {
+			values.put(key, value);
+		} else {
+			String old = values.get(key);
+			if(old == null) {
 				values.put(key, value);
 			} else {
-				if(values.get(key) == null) {
-					values.put(key, value);
-				} else {
-					if(!allowMultiple) return false;
-					values.put(key, (values.get(key))+ MULTI_VALUE_CHAR +value);
-				}
+				if(!allowMultiple) return false;
+				values.put(key, old + MULTI_VALUE_CHAR + value);
 			}
-		} else {
-			String before = key.substring(0, idx);
-			String after = key.substring(idx+1);
-			SimpleFieldSet fs = null;
-			if(subsets == null)
-				subsets = new HashMap<String, SimpleFieldSet>();
-			fs = subsets.get(before);
-			if(fs == null) {
-				fs = new SimpleFieldSet(shortLived, alwaysUseBase64);
-				if(!shortLived) before = before.intern();
-				subsets.put(before, fs);
-			}
-			fs.put(after, value, allowMultiple, overwrite, fromRead);
 		}
 		return true;
-    }
+	}
+
+	/** Get a direct subset, creating it if necessary. The name must not contain a "." and 
+	 * must already have been interned if necessary. */
+	private synchronized SimpleFieldSet subsetForPut(String name) {
+		if(subsets == null)
+			subsets = new HashMap<String, SimpleFieldSet>();
+		SimpleFieldSet fs = subsets.get(name);
+		if(fs == null) {
+			invalidateKeyIndex();
+			fs = new SimpleFieldSet(shortLived, alwaysUseBase64);
+			subsets.put(name, fs);
+		}
+		return fs;
+	}
 
 	public void put(String key, int value) {
 		// Use putSingle so it does the intern check
@@ -820,6 +1167,7 @@ public class SimpleFieldSet {
 		if(fs == null) return; // legal no-op, because used everywhere
 		if(fs.isEmpty()) // can't just no-op, because caller might add the FS then populate it...
 			throw new IllegalArgumentException("Empty");
+		invalidateKeyIndex();
 		if(subsets == null)
 			subsets = new HashMap<String, SimpleFieldSet>();
 		if(subsets.containsKey(key))
@@ -831,6 +1179,7 @@ public class SimpleFieldSet {
 	/** Remove a name:value pair at any point in the tree. Will automatically traverse the tree and 
 	 * remove empty subsets (which are not written anyway). */
 	public synchronized void removeValue(String key) {
+		invalidateKeyIndex();
 		int idx;
 		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
 			values.remove(key);
@@ -863,6 +1212,7 @@ public class SimpleFieldSet {
 	 */
 	public synchronized void removeSubset(String key) {
 		if(subsets == null) return;
+		invalidateKeyIndex();
 		int idx;
 		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
 			subsets.remove(key);
@@ -940,29 +1290,13 @@ public class SimpleFieldSet {
 	 * characters etc.
 	 */
 	public static SimpleFieldSet readFrom(InputStream is, boolean allowMultiple, boolean shortLived, boolean allowBase64, boolean alwaysBase64) throws IOException {
-		BufferedInputStream bis = null;
-		InputStreamReader isr = null;
-		BufferedReader br = null;
-
 		try {
-			bis = new BufferedInputStream(is);
-			try {
-				isr = new InputStreamReader(bis, "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				Logger.error(SimpleFieldSet.class, "Impossible: "+e, e);
-				is.close();
-				throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
-			}
-			br = new BufferedReader(isr);
-			SimpleFieldSet fs = new SimpleFieldSet(br, allowMultiple, shortLived, allowBase64, alwaysBase64);
-			br.close();
-
+			SimpleFieldSet fs = new SimpleFieldSet(shortLived, alwaysBase64);
+			fs.readAll(is, allowMultiple, allowBase64);
 			return fs;
 		} finally {
-                        Closer.close(br);
-                        Closer.close(isr);
-                        Closer.close(bis);
-                }
+			Closer.close(is);
+		}
 	}
 
 	/** Read a SimpleFieldSet from a File. */
@@ -988,20 +1322,94 @@ public class SimpleFieldSet {
 	
 	/** Write to the given OutputStream and flush it. */
     public void writeTo(OutputStream os, int bufferSize) throws IOException {
-        BufferedOutputStream bos = null;
-        OutputStreamWriter osw = null;
-        BufferedWriter bw = null;
-        
-        bos = new BufferedOutputStream(os, bufferSize);
-        try {
-            osw = new OutputStreamWriter(bos, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Logger.error(SimpleFieldSet.class, "Impossible: " + e, e);
-            throw e;
+        ByteWriter w = new ByteWriter(bufferSize);
+        writeTo(w, "", false, false);
+        os.write(w.buf, 0, w.length);
+        os.flush();
+    }
+
+    /** Get the SimpleFieldSet as UTF-8 bytes, in the same format as writeTo(OutputStream),
+     * without going through a Writer and a String. */
+    public byte[] toByteArray() {
+        ByteWriter w = new ByteWriter(256);
+        writeTo(w, "", false, false);
+        return Arrays.copyOf(w.buf, w.length);
+    }
+
+    /** Write to a byte buffer. Same format as writeTo(Writer, String, boolean, boolean). */
+    private synchronized void writeTo(ByteWriter w, String prefix, boolean noEndMarker, boolean useBase64) {
+        if (header != null) {
+            for (String line: header) {
+                w.write("# ");
+                w.write(line);
+                w.write('\n');
+            }
+        }
+        for (Map.Entry<String, String> entry: values.entrySet()) {
+            w.write(prefix);
+            w.write(entry.getKey());
+            w.write(KEYVALUE_SEPARATOR_CHAR);
+            String value = entry.getValue();
+            if((useBase64 || alwaysUseBase64) && shouldBase64(value)) {
+                w.write(KEYVALUE_SEPARATOR_CHAR);
+                w.write(Base64.encodeUTF8(value));
+            } else {
+                w.write(value);
+            }
+            w.write('\n');
+        }
+        if(subsets != null) {
+            for (Map.Entry<String, SimpleFieldSet> entry: subsets.entrySet()) {
+                SimpleFieldSet subset = entry.getValue();
+                if(subset == null) throw new NullPointerException();
+                subset.writeTo(w, prefix+entry.getKey()+MULTI_LEVEL_CHAR, true, useBase64);
+            }
+        }
+        if(!noEndMarker) {
+            w.write(endMarker == null ? "End" : endMarker);
+            w.write('\n');
+        }
+    }
+
+    /** Growable byte buffer which encodes Strings as UTF-8, with a fast path for ASCII. */
+    private static final class ByteWriter {
+        byte[] buf;
+        int length;
+
+        ByteWriter(int initialSize) {
+            buf = new byte[Math.max(initialSize, 16)];
+        }
+
+        private void ensureCapacity(int extra) {
+            if(length + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+        }
+
+        void write(char c) {
+            if(c >= 0x80) {
+                write(String.valueOf(c));
+                return;
+            }
+            ensureCapacity(1);
+            buf[length++] = (byte) c;
+        }
+
+        void write(String s) {
+            int len = s.length();
+            ensureCapacity(len);
+            for(int i=0;i<len;i++) {
+                char c = s.charAt(i);
+                if(c >= 0x80) {
+                    // Everything before this was ASCII, so we can't be splitting a surrogate pair.
+                    byte[] rest = s.substring(i).getBytes(UTF8);
+                    ensureCapacity(rest.length);
+                    System.arraycopy(rest, 0, buf, length, rest.length);
+                    length += rest.length;
+                    return;
+                }
+                buf[length++] = (byte) c;
+            }
         }
-        bw = new BufferedWriter(osw);
-        writeTo(bw);
-        bw.flush();
     }
 
     /** Get an integer value for the given key. This may be at the top level or lower in the tree,
@@ -0,0 +1,487 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent LRU cache keyed on byte arrays (routing keys), for the in-memory datastore tiers.
+ *
+ * The cache is split into a power of two number of shards, each an insertion ordered map with
+ * its own lock, so that request threads only contend when they hit the same shard. Eviction is
+ * LRU within each shard. Keys are spread over the shards and hash buckets by a hash keyed with a
+ * random per-cache seed, so a peer cannot send us keys which all land in one shard or one bucket.
+ *
+ * Optionally, new keys must pass a TinyLFU admission check: a small count-min sketch estimates
+ * how often each key has been asked for recently, and a new key only displaces the shard's LRU
+ * victim if it has been asked for at least as often. A one-off scan (e.g. a big splitfile fetch)
+ * can then only displace blocks which were themselves used once, rather than flushing the whole
+ * cache. The sketch halves its counters periodically so it follows changes in popularity.
+ *
+ * @param <V> The value type. Values are compared by identity in {@link #remove(byte[], Object)}.
+ */
+public class TinyLFUCache<V> {
+
+	/** Told about every entry which leaves the cache other than by an explicit remove(). */
+	public interface EvictionListener<V> {
+		/** Called with the shard locked: must be quick and must not call back into the cache. */
+		void onEvicted(byte[] key, V value);
+	}
+
+	private static final int MAX_SHARDS = 64;
+	/** Don't shard below this many entries per shard, so small caches stay exactly LRU. */
+	private static final int MIN_SHARD_ENTRIES = 64;
+
+	private final Shard<V>[] shards;
+	private final int shardMask;
+	private final long seed;
+	private final boolean admission;
+	private final EvictionListener<V> listener;
+	private volatile int maxEntries;
+	private volatile FrequencySketch sketch;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong contended = new AtomicLong();
+
+	/**
+	 * @param maxEntries Maximum number of entries. Use Integer.MAX_VALUE if something else limits
+	 * the size of the cache.
+	 * @param concurrency The expected number of threads using the cache at once.
+	 * @param admission If true, new keys must pass the TinyLFU admission check.
+	 * @param listener Told about evictions, may be null.
+	 * @param random Source for the hash seed. Must not be predictable by peers.
+	 */
+	public TinyLFUCache(int maxEntries, int concurrency, boolean admission, EvictionListener<V> listener, Random random) {
+		if(maxEntries < 0) throw new IllegalArgumentException();
+		int count = 1;
+		while(count < concurrency * 4 && count < MAX_SHARDS && (long) count * 2 * MIN_SHARD_ENTRIES <= maxEntries)
+			count <<= 1;
+		@SuppressWarnings("unchecked")
+		Shard<V>[] s = (Shard<V>[]) new Shard<?>[count];
+		for(int i = 0; i < count; i++)
+			s[i] = new Shard<V>(i);
+		shards = s;
+		shardMask = count - 1;
+		this.seed = random.nextLong();
+		this.admission = admission;
+		this.listener = listener;
+		this.maxEntries = maxEntries;
+		if(admission)
+			sketch = new FrequencySketch(maxEntries);
+	}
+
+	/** @return The value for the key, made most recently used, or null. Counts as an access for
+	 * the admission policy, whether it hits or not. */
+	public V get(byte[] key) {
+		Key k = new Key(key, hash(key));
+		FrequencySketch s = sketch;
+		if(s != null) s.increment(k.hash);
+		Shard<V> shard = shard(k);
+		lock(shard);
+		try {
+			Entry<V> e = shard.map.remove(k);
+			if(e == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			e.stamp = System.nanoTime();
+			shard.map.put(k, e);
+			hits.incrementAndGet();
+			return e.value;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/** @return The value for the key, or null. Does not promote it and doesn't count as an
+	 * access. */
+	public V peek(byte[] key) {
+		Key k = new Key(key, hash(key));
+		Shard<V> shard = shard(k);
+		lock(shard);
+		try {
+			Entry<V> e = shard.map.get(k);
+			return e == null ? null : e.value;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	public boolean containsKey(byte[] key) {
+		return peek(key) != null;
+	}
+
+	/**
+	 * Add a key which is not in the cache yet, subject to the admission policy.
+	 * @return True if the value was added, false if the key is already present (the old value is
+	 * kept) or if the admission policy rejected it.
+	 */
+	public boolean offer(byte[] key, V value) {
+		if(value == null) throw new NullPointerException();
+		Key k = new Key(key, hash(key));
+		FrequencySketch s = sketch;
+		if(s != null) s.increment(k.hash);
+		Shard<V> shard = shard(k);
+		lock(shard);
+		try {
+			if(shard.map.containsKey(k)) return false;
+			int capacity = capacity(shard);
+			if(s != null && shard.map.size() >= capacity && !shard.map.isEmpty()) {
+				Map.Entry<Key, Entry<V>> victim = shard.map.entrySet().iterator().next();
+				if(s.frequency(k.hash) <= s.frequency(victim.getKey().hash)) {
+					rejected.incrementAndGet();
+					return false;
+				}
+			}
+			shard.map.put(k, new Entry<V>(value, System.nanoTime()));
+			admitted.incrementAndGet();
+			evict(shard, capacity);
+			return true;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/**
+	 * Add or replace a value, bypassing the admission policy, and make it most recently used.
+	 * @return The previous value, or null.
+	 */
+	public V put(byte[] key, V value) {
+		if(value == null) throw new NullPointerException();
+		Key k = new Key(key, hash(key));
+		Shard<V> shard = shard(k);
+		lock(shard);
+		try {
+			Entry<V> old = shard.map.remove(k);
+			shard.map.put(k, new Entry<V>(value, System.nanoTime()));
+			if(old == null) evict(shard, capacity(shard));
+			return old == null ? null : old.value;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/** @return The removed value, or null. The listener is not told. */
+	public V remove(byte[] key) {
+		Key k = new Key(key, hash(key));
+		Shard<V> shard = shard(k);
+		lock(shard);
+		try {
+			Entry<V> e = shard.map.remove(k);
+			return e == null ? null : e.value;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/** Remove the key only if it still maps to exactly this value. The listener is not told.
+	 * @return True if we removed it. */
+	public boolean remove(byte[] key, V value) {
+		Key k = new Key(key, hash(key));
+		Shard<V> shard = shard(k);
+		lock(shard);
+		try {
+			Entry<V> e = shard.map.get(k);
+			if(e == null || e.value != value) return false;
+			shard.map.remove(k);
+			return true;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/** @return The least recently used entry over all shards, or null if the cache is empty.
+	 * Only approximately right if other threads are changing the cache. */
+	public Map.Entry<byte[], V> peekEldest() {
+		Map.Entry<byte[], V> eldest = null;
+		long eldestStamp = Long.MAX_VALUE;
+		for(Shard<V> shard : shards) {
+			lock(shard);
+			try {
+				if(shard.map.isEmpty()) continue;
+				Map.Entry<Key, Entry<V>> e = shard.map.entrySet().iterator().next();
+				if(eldest == null || e.getValue().stamp - eldestStamp < 0) {
+					eldest = new AbstractMap.SimpleImmutableEntry<byte[], V>(e.getKey().bytes, e.getValue().value);
+					eldestStamp = e.getValue().stamp;
+				}
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		return eldest;
+	}
+
+	public int size() {
+		int size = 0;
+		for(Shard<V> shard : shards) {
+			lock(shard);
+			try {
+				size += shard.map.size();
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** Remove everything, telling the listener about each entry. */
+	public void clear() {
+		for(Shard<V> shard : shards) {
+			lock(shard);
+			try {
+				evict(shard, 0);
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+	}
+
+	/** @return A snapshot of the keys, for migration. */
+	public List<byte[]> keys() {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for(Shard<V> shard : shards) {
+			lock(shard);
+			try {
+				for(Key k : shard.map.keySet())
+					keys.add(k.bytes);
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		return keys;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/** Change the maximum size, evicting least recently used entries immediately if necessary. */
+	public void setMaxEntries(int maxEntries) {
+		if(maxEntries < 0) throw new IllegalArgumentException();
+		int old = this.maxEntries;
+		this.maxEntries = maxEntries;
+		if(admission && (maxEntries > old * 2L || maxEntries < old / 2))
+			sketch = new FrequencySketch(maxEntries);
+		for(Shard<V> shard : shards) {
+			lock(shard);
+			try {
+				evict(shard, capacity(shard));
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+	}
+
+	public int shardCount() {
+		return shards.length;
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	/** @return The number of new keys added by offer(). */
+	public long admitted() {
+		return admitted.get();
+	}
+
+	/** @return The number of new keys turned away by the admission policy. */
+	public long rejected() {
+		return rejected.get();
+	}
+
+	public long evictions() {
+		return evictions.get();
+	}
+
+	/** @return The number of times a thread had to wait for a shard lock. */
+	public long contended() {
+		return contended.get();
+	}
+
+	private int capacity(Shard<V> shard) {
+		int max = maxEntries;
+		int count = shards.length;
+		if(count == 1) return max;
+		return max / count + (shard.index < max % count ? 1 : 0);
+	}
+
+	private void evict(Shard<V> shard, int capacity) {
+		Iterator<Map.Entry<Key, Entry<V>>> it = shard.map.entrySet().iterator();
+		while(shard.map.size() > capacity) {
+			Map.Entry<Key, Entry<V>> e = it.next();
+			it.remove();
+			evictions.incrementAndGet();
+			if(listener != null)
+				listener.onEvicted(e.getKey().bytes, e.getValue().value);
+		}
+	}
+
+	private void lock(Shard<V> shard) {
+		if(!shard.lock.tryLock()) {
+			contended.incrementAndGet();
+			shard.lock.lock();
+		}
+	}
+
+	private Shard<V> shard(Key k) {
+		return shards[(int) (k.hash >>> 40) & shardMask];
+	}
+
+	private long hash(byte[] key) {
+		long h = seed ^ key.length;
+		int i = 0;
+		for(; i + 8 <= key.length; i += 8)
+			h = mix(h ^ Fields.bytesToLong(key, i));
+		for(; i < key.length; i++)
+			h = mix(h ^ (key[i] & 0xFF));
+		return mix(h);
+	}
+
+	/** Finalizer from MurmurHash3. */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Shard<V> {
+		final int index;
+		final ReentrantLock lock = new ReentrantLock();
+		/** Insertion ordered: we re-insert on access, so the first entry is the LRU victim. */
+		final LinkedHashMap<Key, Entry<V>> map = new LinkedHashMap<Key, Entry<V>>();
+
+		Shard(int index) {
+			this.index = index;
+		}
+	}
+
+	private static final class Entry<V> {
+		final V value;
+		/** When it was last used, to find the eldest over all shards. */
+		long stamp;
+
+		Entry(V value, long stamp) {
+			this.value = value;
+			this.stamp = stamp;
+		}
+	}
+
+	private static final class Key {
+		final byte[] bytes;
+		final long hash;
+
+		Key(byte[] bytes, long hash) {
+			this.bytes = bytes;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hash == k.hash && Arrays.equals(bytes, k.bytes);
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters, 16 to a long, updated with CAS so that recording an
+	 * access never takes a lock. After 10 increments per cache entry every counter is halved.
+	 */
+	private static final class FrequencySketch {
+		private static final int HASHES = 4;
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final AtomicLongArray table;
+		private final int mask;
+		private final int sampleSize;
+		private final AtomicInteger samples = new AtomicInteger();
+
+		FrequencySketch(int maxEntries) {
+			int counters = Math.max(64, Math.min(1 << 26, maxEntries) * 16);
+			int size = Integer.highestOneBit(counters);
+			if(size < counters) size <<= 1;
+			table = new AtomicLongArray(size >>> 4);
+			mask = size - 1;
+			sampleSize = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(maxEntries, 16) * 10L);
+		}
+
+		int frequency(long hash) {
+			int min = 15;
+			for(int i = 0; i < HASHES; i++)
+				min = Math.min(min, counter(index(hash, i)));
+			return min;
+		}
+
+		void increment(long hash) {
+			boolean added = false;
+			for(int i = 0; i < HASHES; i++)
+				added |= incrementAt(index(hash, i));
+			if(added && samples.incrementAndGet() >= sampleSize)
+				reset();
+		}
+
+		private int index(long hash, int i) {
+			return (int) mix(hash + (i + 1) * 0x9E3779B97F4A7C15L) & mask;
+		}
+
+		private int counter(int index) {
+			return (int) (table.get(index >>> 4) >>> ((index & 15) << 2)) & 15;
+		}
+
+		private boolean incrementAt(int index) {
+			int word = index >>> 4;
+			int shift = (index & 15) << 2;
+			while(true) {
+				long old = table.get(word);
+				if(((old >>> shift) & 15) == 15) return false;
+				if(table.compareAndSet(word, old, old + (1L << shift))) return true;
+			}
+		}
+
+		private void reset() {
+			// Several threads may get here at once; only one of them does the work.
+			int s = samples.get();
+			if(s < sampleSize || !samples.compareAndSet(s, s / 2)) return;
+			for(int i = 0; i < table.length(); i++) {
+				while(true) {
+					long old = table.get(i);
+					if(table.compareAndSet(i, old, (old >>> 1) & RESET_MASK)) break;
+				}
+			}
+		}
+	}
+
+}
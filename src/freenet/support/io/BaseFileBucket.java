@@ -12,6 +12,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Vector;
 
@@ -25,7 +26,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.RandomAccessBucket;
 
-public abstract class BaseFileBucket implements RandomAccessBucket {
+public abstract class BaseFileBucket implements RandomAccessBucket, ChannelTransferable {
     private static volatile boolean logMINOR;
     private static volatile boolean logDEBUG;
 
@@ -308,6 +309,21 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 	    return new BufferedInputStream(getInputStreamUnbuffered());
 	}
 
+	@Override
+	public boolean transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+		InputStream is = getInputStreamUnbuffered();
+		try {
+			if(!(is instanceof FileInputStream)) {
+				// File does not exist.
+				return false;
+			}
+			FileUtil.transferFully(((FileInputStream)is).getChannel(), offset, length, target);
+			return true;
+		} finally {
+			is.close();
+		}
+	}
+
 	/**
 	 * @return the name of the file.
 	 */
@@ -0,0 +1,25 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/** Storage whose contents may be kept unencrypted in a file, in which case they can be written 
+ * to a channel with FileChannel.transferTo() rather than being copied through the heap. E.g. 
+ * when returning a large download to an FCP client over a local socket. */
+public interface ChannelTransferable {
+
+    /** Write part of the data to a channel directly from the underlying file.
+     * @param offset The offset of the first byte to write.
+     * @param length The number of bytes to write.
+     * @param target The channel to write to. Must be in blocking mode.
+     * @return True if the data was written. False if the data is not currently stored in a 
+     * plain file, in which case nothing has been written and the caller must copy it the usual 
+     * way.
+     * @throws IOException If an error occurred reading the file or writing to the channel. Some
+     * of the data may have been written. */
+    boolean transferTo(long offset, long length, WritableByteChannel target) throws IOException;
+
+}
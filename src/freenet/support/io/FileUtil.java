@@ -18,6 +18,8 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
@@ -637,6 +639,37 @@ final public class FileUtil {
 		}
 	}
 	
+	/**
+	 * Writes <code>length</code> bytes from a file to a channel with 
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which
+	 * on most platforms avoids copying the data through the heap.
+	 *
+	 * @param source
+	 *            The file to read from. Its position is not changed.
+	 * @param offset
+	 *            The offset in the file of the first byte to write
+	 * @param length
+	 *            The number of bytes to write
+	 * @param destination
+	 *            The channel to write to. Must be in blocking mode.
+	 * @throws IOException
+	 *             if an I/O error occurs, or the file is too short
+	 */
+	public static void transferFully(FileChannel source, long offset, long length, WritableByteChannel destination) throws IOException {
+		long end = offset + length;
+		while(offset < end) {
+			long written = source.transferTo(offset, end - offset, destination);
+			if(written <= 0) {
+				if(offset >= source.size())
+					throw new EOFException("file reached eof");
+				// A blocking channel should never return 0, but don't spin if it does.
+				Thread.yield();
+				continue;
+			}
+			offset += written;
+		}
+	}
+
 	public static boolean secureDeleteAll(File wd) throws IOException {
 		if(!wd.isDirectory()) {
 			System.err.println("DELETING FILE "+wd);
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Random;
@@ -20,7 +21,7 @@ import freenet.support.math.MersenneTwister;
  * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ... 
  * 
  * FIXME does this need a shutdown hook? I don't see why it would matter ... ??? */
-public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable {
+public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer, ChannelTransferable, Serializable {
     
     private static volatile boolean logMINOR;
     static {
@@ -148,6 +149,19 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         }
     }
 
+    @Override
+    public boolean transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        if(offset < 0 || offset + length > this.length) throw new IllegalArgumentException();
+        RAFLock lock = lockOpen();
+        try {
+            // Positional transfer, so doesn't interfere with pread/pwrite.
+            FileUtil.transferFully(raf.getChannel(), offset, length, target);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
     @Override
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
@@ -6,6 +6,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 import freenet.client.async.ClientContext;
 import freenet.crypt.MasterSecret;
@@ -13,7 +14,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.RandomAccessBucket;
 
-public class RAFBucket implements Bucket, RandomAccessBucket {
+public class RAFBucket implements Bucket, RandomAccessBucket, ChannelTransferable {
     
     private final LockableRandomAccessBuffer underlying;
     final long size;
@@ -43,6 +44,12 @@ public class RAFBucket implements Bucket, RandomAccessBucket {
         return new RAFInputStream(underlying, 0, underlying.size());
     }
 
+    @Override
+    public boolean transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        if(!(underlying instanceof ChannelTransferable)) return false;
+        return ((ChannelTransferable)underlying).transferTo(offset, length, target);
+    }
+
     @Override
     public String getName() {
         return null;
@@ -0,0 +1,45 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/** Reads from a blocking SocketChannel. Unlike Socket.getInputStream() on a socket created from
+ * a channel, a read blocked waiting for data does not hold the channel's blocking lock, so it 
+ * doesn't stop another thread from writing to the same channel. Closing the stream closes the
+ * channel. */
+public class SocketChannelInputStream extends InputStream {
+    
+    private final SocketChannel channel;
+    
+    public SocketChannelInputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] buf = new byte[1];
+        int read;
+        do {
+            read = read(buf, 0, 1);
+        } while(read == 0);
+        if(read < 0) return -1;
+        return buf[0] & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        if(length == 0) return 0;
+        return channel.read(ByteBuffer.wrap(buf, offset, length));
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,40 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/** Writes to a blocking SocketChannel. Unlike Socket.getOutputStream() on a socket created from 
+ * a channel, a write does not wait for a read blocked on another thread to return. Closing the
+ * stream closes the channel.
+ * @see SocketChannelInputStream */
+public class SocketChannelOutputStream extends OutputStream {
+    
+    private final SocketChannel channel;
+    
+    public SocketChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -98,7 +99,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	};
 	
-	public class TempBucket implements Bucket, Migratable, RandomAccessBucket {
+	public class TempBucket implements Bucket, Migratable, RandomAccessBucket, ChannelTransferable {
 		/** The underlying bucket itself */
 		private RandomAccessBucket currentBucket;
 		/** We have to account the size of the underlying bucket ourself in order to be able to access it fast */
@@ -422,6 +423,19 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			}
 		}
 
+		@Override
+		public boolean transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+			RandomAccessBucket cur;
+			synchronized(this) {
+				if(hasBeenFreed) throw new IOException("Already freed");
+				if(offset + length > currentSize) throw new IllegalArgumentException();
+				cur = currentBucket;
+			}
+			// Only possible once it has been migrated to disk, and only if not encrypted.
+			if(!(cur instanceof ChannelTransferable)) return false;
+			return ((ChannelTransferable)cur).transferTo(offset, length, target);
+		}
+
 		@Override
 		public synchronized String getName() {
 			return currentBucket.getName();
@@ -0,0 +1,30 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A count that only goes up. Lock-free, so it can be bumped on hot paths. */
+public final class Counter {
+
+	private final AtomicLong value = new AtomicLong();
+
+	Counter() {
+		// Created by MetricsRegistry.
+	}
+
+	public void increment() {
+		value.incrementAndGet();
+	}
+
+	public void add(long x) {
+		if(x < 0) throw new IllegalArgumentException("Counters cannot go down: "+x);
+		value.addAndGet(x);
+	}
+
+	public long get() {
+		return value.get();
+	}
+
+}
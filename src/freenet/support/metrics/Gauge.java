@@ -0,0 +1,16 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+/**
+ * A value read from wherever it is already kept, only when the metrics are exported. Used
+ * both for gauges and for counters that some subsystem already maintains, so publishing them
+ * costs nothing on the paths that update them.
+ */
+public interface Gauge {
+
+	/** Called on the exporting thread. Must be quick and must not block for long. */
+	double get();
+
+}
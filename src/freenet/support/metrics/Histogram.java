@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative long values, e.g. latencies in milliseconds. Buckets are
+ * log-linear in the style of HdrHistogram: values below 2^SUB_BUCKET_BITS are counted exactly,
+ * and every power of two above that is split into 2^SUB_BUCKET_BITS equal buckets, so any
+ * percentile is accurate to within 12.5% over the whole range of a long. Recording is a few
+ * atomic increments and takes no lock.
+ */
+public final class Histogram {
+
+	static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Highest magnitude is 62, the top bit of Long.MAX_VALUE. */
+	static final int BUCKETS = (62 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram() {
+		// Created by MetricsRegistry.
+	}
+
+	/** Record a value. Negative values are counted as zero. */
+	public void report(long value) {
+		if(value < 0) value = 0;
+		buckets.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long oldMax;
+		while(value > (oldMax = max.get())) {
+			if(max.compareAndSet(oldMax, value)) break;
+		}
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long sum() {
+		return sum.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @param q A fraction between 0 and 1, e.g. 0.99.
+	 * @return The highest value in the bucket holding the q'th value, capped at the largest value
+	 * recorded, or 0 if nothing has been recorded.
+	 */
+	public long percentile(double q) {
+		long[] counts = snapshot();
+		long total = 0;
+		for(long c : counts) total += c;
+		if(total == 0) return 0;
+		long wanted = Math.max(1, (long)Math.ceil(q * total));
+		long seen = 0;
+		for(int i=0;i<counts.length;i++) {
+			seen += counts[i];
+			if(seen >= wanted)
+				return Math.min(highestValueInBucket(i), max.get());
+		}
+		return max.get();
+	}
+
+	/** @return A copy of the bucket counts. */
+	long[] snapshot() {
+		long[] counts = new long[BUCKETS];
+		for(int i=0;i<BUCKETS;i++)
+			counts[i] = buckets.get(i);
+		return counts;
+	}
+
+	static int bucketIndex(long value) {
+		if(value < SUB_BUCKETS) return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long highestValueInBucket(int index) {
+		if(index < SUB_BUCKETS) return index;
+		int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		long lowest = ((long) (SUB_BUCKETS + sub)) << shift;
+		return lowest + ((1L << shift) - 1);
+	}
+
+}
@@ -0,0 +1,294 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Central registry of counters, gauges and histograms, so that subsystems can publish their
+ * performance data in one place and it can be scraped by monitoring tools.
+ *
+ * Each metric has a name, a help string, and optionally labels, given as alternating names and
+ * values, e.g. <code>counter("freenet_requests_total", "...", "type", "chk")</code>. Metrics
+ * with the same name form a family and must all be of the same kind. Registering is
+ * synchronized but rare; updating a Counter or Histogram never touches the registry, and
+ * gauges are only read when exporting.
+ */
+public class MetricsRegistry {
+
+	private static final Pattern VALID_NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+	private static final Pattern VALID_LABEL = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+	enum Type {
+		COUNTER("counter"),
+		GAUGE("gauge"),
+		HISTOGRAM("histogram");
+
+		final String prometheusName;
+
+		Type(String prometheusName) {
+			this.prometheusName = prometheusName;
+		}
+	}
+
+	private static class Family {
+		final String name;
+		final String help;
+		final Type type;
+		final Map<String, Series> series = new LinkedHashMap<String, Series>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static class Series {
+		final String[] labels;
+		/** Counter, Gauge or Histogram. */
+		final Object metric;
+
+		Series(String[] labels, Object metric) {
+			this.labels = labels;
+			this.metric = metric;
+		}
+	}
+
+	/** Sorted by name so the output is stable. */
+	private final TreeMap<String, Family> families = new TreeMap<String, Family>();
+
+	/** @return The counter with this name and labels, creating it if necessary. */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) getOrCreate(name, help, Type.COUNTER, labels, null);
+	}
+
+	/** Publish a count that is already maintained elsewhere, e.g. a total number of bytes.
+	 * Replaces any previous value with the same name and labels. */
+	public void counter(String name, String help, Gauge value, String... labels) {
+		getOrCreate(name, help, Type.COUNTER, labels, value);
+	}
+
+	/** Publish a value that can go up and down. Replaces any previous gauge with the same name
+	 * and labels. */
+	public void gauge(String name, String help, Gauge value, String... labels) {
+		getOrCreate(name, help, Type.GAUGE, labels, value);
+	}
+
+	/** @return The histogram with this name and labels, creating it if necessary. */
+	public Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) getOrCreate(name, help, Type.HISTOGRAM, labels, null);
+	}
+
+	private synchronized Object getOrCreate(String name, String help, Type type, String[] labels, Gauge gauge) {
+		if(!VALID_NAME.matcher(name).matches())
+			throw new IllegalArgumentException("Invalid metric name "+name);
+		if(labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be name/value pairs: "+name);
+		for(int i=0;i<labels.length;i+=2) {
+			if(!VALID_LABEL.matcher(labels[i]).matches())
+				throw new IllegalArgumentException("Invalid label name "+labels[i]+" on "+name);
+			if(labels[i+1] == null)
+				throw new NullPointerException("Label "+labels[i]+" on "+name);
+		}
+		Family family = families.get(name);
+		if(family == null) {
+			family = new Family(name, help, type);
+			families.put(name, family);
+		} else if(family.type != type) {
+			throw new IllegalArgumentException(name+" is already registered as a "+family.type.prometheusName);
+		}
+		String key = labelString(labels);
+		Series series = family.series.get(key);
+		if(series != null && gauge == null) {
+			if(series.metric instanceof Gauge)
+				throw new IllegalArgumentException(name+key+" is already published from a Gauge");
+			return series.metric;
+		}
+		Object metric;
+		if(gauge != null)
+			metric = gauge;
+		else if(type == Type.HISTOGRAM)
+			metric = new Histogram();
+		else
+			metric = new Counter();
+		family.series.put(key, new Series(labels.clone(), metric));
+		return metric;
+	}
+
+	/** Remove every metric with this name, e.g. when the subsystem publishing it goes away. */
+	public synchronized void remove(String name) {
+		families.remove(name);
+	}
+
+	/** @return A copy of the families, so we can read the values without holding the lock. */
+	private synchronized List<Family> copyFamilies() {
+		List<Family> list = new ArrayList<Family>(families.size());
+		for(Family family : families.values()) {
+			Family copy = new Family(family.name, family.help, family.type);
+			copy.series.putAll(family.series);
+			list.add(copy);
+		}
+		return list;
+	}
+
+	/**
+	 * @return Every metric in the Prometheus text exposition format, version 0.0.4. Histograms
+	 * are exported with one bucket per power of two, up to the largest value recorded.
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		for(Family family : copyFamilies()) {
+			sb.append("# HELP ").append(family.name).append(' ');
+			escapeHelp(family.help, sb);
+			sb.append('\n');
+			sb.append("# TYPE ").append(family.name).append(' ').append(family.type.prometheusName).append('\n');
+			for(Series series : family.series.values()) {
+				if(series.metric instanceof Histogram) {
+					writeHistogram(family.name, series.labels, (Histogram) series.metric, sb);
+				} else {
+					double value;
+					try {
+						value = valueOf(series.metric);
+					} catch (RuntimeException e) {
+						Logger.minor(this, "Unable to read "+family.name+": "+e, e);
+						continue;
+					}
+					sb.append(family.name);
+					writeLabels(series.labels, null, null, sb);
+					sb.append(' ').append(formatValue(value)).append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private void writeHistogram(String name, String[] labels, Histogram histogram, StringBuilder sb) {
+		long[] counts = histogram.snapshot();
+		int highest = -1;
+		for(int i=0;i<counts.length;i++)
+			if(counts[i] != 0) highest = i;
+		// Bucket boundaries at 1, 3, and then 2^n-1, up to the end of the highest power of two
+		// that has been used, so the boundaries don't move around from one scrape to the next.
+		int last = -1;
+		if(highest >= 0)
+			last = highest <= 1 ? 1 : highest <= 3 ? 3 : highest | (Histogram.SUB_BUCKETS - 1);
+		long cumulative = 0;
+		for(int i=0;i<=last;i++) {
+			cumulative += counts[i];
+			if(i == 1 || i == 3 || (i % Histogram.SUB_BUCKETS) == Histogram.SUB_BUCKETS - 1) {
+				sb.append(name).append("_bucket");
+				writeLabels(labels, "le", Long.toString(Histogram.highestValueInBucket(i)), sb);
+				sb.append(' ').append(cumulative).append('\n');
+			}
+		}
+		sb.append(name).append("_bucket");
+		writeLabels(labels, "le", "+Inf", sb);
+		sb.append(' ').append(cumulative).append('\n');
+		sb.append(name).append("_sum");
+		writeLabels(labels, null, null, sb);
+		sb.append(' ').append(histogram.sum()).append('\n');
+		sb.append(name).append("_count");
+		writeLabels(labels, null, null, sb);
+		sb.append(' ').append(cumulative).append('\n');
+	}
+
+	/**
+	 * @return Every metric as a SimpleFieldSet, for FCP. The key is the metric name followed by
+	 * the label values, separated by dots. Histograms are subsets with Count, Sum, Max, and the
+	 * 50th, 90th and 99th percentiles.
+	 */
+	public SimpleFieldSet toFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		for(Family family : copyFamilies()) {
+			for(Series series : family.series.values()) {
+				StringBuilder key = new StringBuilder(family.name);
+				for(int i=1;i<series.labels.length;i+=2)
+					key.append(SimpleFieldSet.MULTI_LEVEL_CHAR).append(series.labels[i]);
+				if(series.metric instanceof Histogram) {
+					Histogram histogram = (Histogram) series.metric;
+					key.append(SimpleFieldSet.MULTI_LEVEL_CHAR);
+					fs.put(key+"Count", histogram.count());
+					fs.put(key+"Sum", histogram.sum());
+					fs.put(key+"Max", histogram.max());
+					fs.put(key+"P50", histogram.percentile(0.5));
+					fs.put(key+"P90", histogram.percentile(0.9));
+					fs.put(key+"P99", histogram.percentile(0.99));
+				} else {
+					try {
+						fs.putSingle(key.toString(), formatValue(valueOf(series.metric)));
+					} catch (RuntimeException e) {
+						Logger.minor(this, "Unable to read "+family.name+": "+e, e);
+					}
+				}
+			}
+		}
+		return fs;
+	}
+
+	private static double valueOf(Object metric) {
+		if(metric instanceof Counter)
+			return ((Counter) metric).get();
+		return ((Gauge) metric).get();
+	}
+
+	static String formatValue(double value) {
+		if(Double.isNaN(value)) return "NaN";
+		if(value == Double.POSITIVE_INFINITY) return "+Inf";
+		if(value == Double.NEGATIVE_INFINITY) return "-Inf";
+		if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	private static String labelString(String[] labels) {
+		StringBuilder sb = new StringBuilder();
+		writeLabels(labels, null, null, sb);
+		return sb.toString();
+	}
+
+	private static void writeLabels(String[] labels, String extraName, String extraValue, StringBuilder sb) {
+		if(labels.length == 0 && extraName == null) return;
+		sb.append('{');
+		for(int i=0;i<labels.length;i+=2) {
+			if(i > 0) sb.append(',');
+			sb.append(labels[i]).append("=\"");
+			escapeLabelValue(labels[i+1], sb);
+			sb.append('"');
+		}
+		if(extraName != null) {
+			if(labels.length > 0) sb.append(',');
+			sb.append(extraName).append("=\"").append(extraValue).append('"');
+		}
+		sb.append('}');
+	}
+
+	private static void escapeLabelValue(String value, StringBuilder sb) {
+		for(int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			if(c == '\\') sb.append("\\\\");
+			else if(c == '"') sb.append("\\\"");
+			else if(c == '\n') sb.append("\\n");
+			else sb.append(c);
+		}
+	}
+
+	private static void escapeHelp(String help, StringBuilder sb) {
+		for(int i=0;i<help.length();i++) {
+			char c = help.charAt(i);
+			if(c == '\\') sb.append("\\\\");
+			else if(c == '\n') sb.append("\\n");
+			else sb.append(c);
+		}
+	}
+
+}
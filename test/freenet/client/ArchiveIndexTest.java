@@ -0,0 +1,192 @@
+package freenet.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+public class ArchiveIndexTest extends TestCase {
+
+	private static final String KEY = "CHK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AAMC--8";
+
+	private File dir;
+
+	@Override
+	protected void setUp() {
+		dir = new File("tmp-archive-index-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	private static byte[] data(int length, int seed) {
+		byte[] buf = new byte[length];
+		for(int i=0;i<length;i++)
+			buf[i] = (byte) (i * 31 + seed);
+		return buf;
+	}
+
+	private static byte[] read(Bucket bucket) throws IOException {
+		return BucketTools.toByteArray(bucket);
+	}
+
+	public void testBuilder() throws Exception {
+		FreenetURI key = new FreenetURI(KEY);
+		ArchiveIndex.Builder builder = new ArchiveIndex.Builder(new ArrayBucketFactory(), 1024);
+		assertTrue(builder.add("a.html", new ByteArrayInputStream(data(100, 1)), 1000));
+		assertTrue(builder.add("empty", new ByteArrayInputStream(new byte[0]), 1000));
+		assertFalse(builder.add("big.bin", new ByteArrayInputStream(data(2000, 2)), 1000));
+		assertTrue(builder.add("images/b.png", new ByteArrayInputStream(data(1000, 3)), 1000));
+		builder.addError("broken", "Broken", false);
+		ArchiveIndex index = builder.build(key);
+		assertEquals(5, index.size());
+
+		assertTrue(Arrays.equals(data(100, 1), read(index.getReaderBucket("a.html"))));
+		assertEquals(0, index.getReaderBucket("empty").size());
+		Bucket b = index.getReaderBucket("images/b.png");
+		assertEquals(1000, b.size());
+		assertNull(index.getReaderBucket("big.bin"));
+		assertNull(index.getReaderBucket("missing"));
+		try {
+			index.getReaderBucket("broken");
+			fail();
+		} catch (ArchiveFailureException e) {
+			// Expected.
+		}
+
+		// Readers keep the data until they are freed.
+		index.close();
+		assertTrue(Arrays.equals(data(1000, 3), read(b)));
+		assertNull(index.getReaderBucket("a.html"));
+		b.free();
+	}
+
+	public void testOnDisk() throws Exception {
+		FreenetURI key = new FreenetURI(KEY);
+		ArchiveIndex.Builder builder = new ArchiveIndex.Builder(new ArrayBucketFactory(), 1024);
+		builder.add("a.html", new ByteArrayInputStream(data(100, 1)), 1000);
+		builder.add("b.html", new ByteArrayInputStream(data(200, 2)), 1000);
+		builder.addError("big.bin", "Too big", true);
+		ArchiveIndex index = builder.build(key);
+		File file = new File(dir, "test.archive");
+		index.writeTo(file);
+		index.close();
+
+		ArchiveIndex read = ArchiveIndex.readFrom(file, key);
+		assertTrue(read.onDisk);
+		assertEquals(3, read.size());
+		assertEquals(300, read.dataSize());
+		assertTrue(Arrays.equals(data(200, 2), read(read.getReaderBucket("b.html"))));
+		assertTrue(Arrays.equals(data(100, 1), read(read.getReaderBucket("a.html"))));
+		assertNull(read.getReaderBucket("big.bin"));
+		read.close();
+		// Closing an index on disk doesn't delete it.
+		assertTrue(file.exists());
+
+		try {
+			ArchiveIndex.readFrom(file, new FreenetURI("KSK@test"));
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	private static Bucket makeZip(String[] names, byte[][] contents) throws IOException {
+		ArrayBucket bucket = new ArrayBucket();
+		OutputStream os = bucket.getOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(os);
+		for(int i=0;i<names.length;i++) {
+			zip.putNextEntry(new ZipEntry(names[i]));
+			zip.write(contents[i]);
+			zip.closeEntry();
+		}
+		zip.close();
+		return bucket;
+	}
+
+	private static class Callback implements ArchiveExtractCallback {
+		private static final long serialVersionUID = 1L;
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			fail();
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			fail();
+		}
+	}
+
+	public void testArchiveManager() throws Exception {
+		FreenetURI key = new FreenetURI(KEY);
+		Bucket zip = makeZip(new String[] { "index.html", "style.css", "big.bin" },
+				new byte[][] { data(500, 1), data(300, 2), data(5000, 3) });
+		File cacheDir = new File(dir, "archive-cache");
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024, 100, new ArrayBucketFactory());
+		manager.setDiskCache(cacheDir, 1024*1024);
+		assertTrue(manager.indexArchives());
+		ArchiveContext actx = new ArchiveContext(1024*1024, 1);
+		ArchiveStoreContext ctx = manager.makeContext(key, ARCHIVE_TYPE.ZIP, null, false);
+		Callback cb = new Callback();
+		manager.extractToCache(key, ARCHIVE_TYPE.ZIP, null, zip, actx, ctx, "style.css", cb, null);
+		assertTrue(Arrays.equals(data(300, 2), read(cb.data)));
+
+		// The rest of the archive is read on demand, including the generated metadata.
+		assertTrue(Arrays.equals(data(500, 1), read(manager.getCached(key, "index.html"))));
+		assertNotNull(manager.getCached(key, ArchiveManager.METADATA_NAME));
+		assertNull(manager.getCached(key, "big.bin"));
+		assertNull(manager.getCached(key, "missing"));
+
+		// The element they asked for is returned even if it is too big to cache.
+		cb = new Callback();
+		manager.extractToCache(key, ARCHIVE_TYPE.ZIP, null, zip, actx, ctx, "big.bin", cb, null);
+		assertTrue(Arrays.equals(data(5000, 3), read(cb.data)));
+		cb = new Callback();
+		manager.extractToCache(key, ARCHIVE_TYPE.ZIP, null, zip, actx, ctx, "missing", cb, null);
+		assertTrue(cb.notInArchive);
+
+		// Used enough, so it is copied to the on-disk cache, and can be used after a restart.
+		for(int i=0;i<ArchiveManager.DISK_CACHE_MIN_HITS;i++)
+			manager.getCached(key, "index.html").free();
+		assertEquals(1, cacheDir.listFiles().length);
+		ArchiveManager restarted = new ArchiveManager(10, 1024*1024, 1024, 100, new ArrayBucketFactory());
+		restarted.setDiskCache(cacheDir, 1024*1024);
+		assertTrue(Arrays.equals(data(300, 2), read(restarted.getCached(key, "style.css"))));
+
+		// Too small for the on-disk cache now.
+		restarted.setDiskCache(cacheDir, 100);
+		assertEquals(0, cacheDir.listFiles().length);
+	}
+
+}
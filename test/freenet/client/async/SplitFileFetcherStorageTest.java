@@ -821,6 +821,81 @@ public class SplitFileFetcherStorageTest extends TestCase {
         cb.checkFailed();
     }
 
+    public void testStreamMultiSegment() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(32768*9-1, 
+                new int[] { 3, 3, 3 }, new int[] { 4, 4, 4 }, 3, 4, 0, 
+                InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        StreamCollector collector = new StreamCollector();
+        storage.setStreamListener(collector, null);
+        long expected = 0;
+        // Fetch one segment at a time. Each must be streamed before the next is fetched.
+        for(int s=0;s<storage.segments.length;s++) {
+            SplitFileFetcherSegmentStorage segment = storage.segments[s];
+            for(int block=0;block<test.dataBlocks.length;block++) {
+                if(test.segmentFor(block) != s) continue;
+                assertTrue(segment.onGotKey(test.getCHK(block), test.encodeBlock(block)));
+                cb.markDownloadedBlock(block);
+            }
+            waitForDecode(segment);
+            expected += segment.dataBlocks * (long)BLOCK_SIZE;
+            expected = Math.min(expected, test.originalData.size());
+            collector.waitForStreamed(expected);
+            cb.checkFailed();
+        }
+        cb.waitForFinished();
+        cb.checkFailed();
+        assertTrue(BucketTools.equalBuckets(test.originalData, collector.getData()));
+        storage.finishedFetcher();
+        for(SplitFileFetcherSegmentStorage segment : storage.segments)
+            waitForFinished(segment);
+        cb.waitForFree(storage);
+        test.free();
+    }
+    
+    /** Collects streamed data, checking that it arrives in order. */
+    static class StreamCollector implements SplitFileStreamListener {
+        
+        private final Bucket data;
+        private final OutputStream os;
+        private long streamed;
+        
+        StreamCollector() throws IOException {
+            data = bf.makeBucket(-1);
+            os = data.getOutputStream();
+        }
+
+        @Override
+        public boolean onStreamedData(long offset, StreamGenerator generator, ClientContext context) 
+                throws IOException {
+            synchronized(this) {
+                assertEquals(streamed, offset);
+                generator.writeTo(os, context);
+                streamed += generator.size();
+                notifyAll();
+            }
+            return true;
+        }
+        
+        synchronized void waitForStreamed(long length) {
+            while(streamed < length) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            assertEquals(length, streamed);
+        }
+        
+        synchronized Bucket getData() throws IOException {
+            os.close();
+            return data;
+        }
+        
+    }
+
     private void printChosenBlocks(boolean[] hits) {
         StringBuilder sb = new StringBuilder();
         sb.append("Blocks: ");
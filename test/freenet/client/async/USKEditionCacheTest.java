@@ -0,0 +1,164 @@
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.node.DatabaseKey;
+import freenet.support.io.FileUtil;
+
+public class USKEditionCacheTest extends TestCase {
+
+	private static final String INDEX = "USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/Ultimate-Freenet-Index/55/";
+	private static final String SEARCH = "USK@5hH~39FtjA7A9~VXWtBKI~prUDTuJZURudDG0xFn3KA,GDgRGt5f6xqbmo-WraQtU54x4H~871Sho9Hz6hC-0RA,AQACAAE/Search/17/";
+	private static final String WOT = "USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/WebOfTrust/5";
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = new File("tmp-usk-edition-cache-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	private static USK usk(String uri) throws IOException {
+		return USK.create(new FreenetURI(uri)).clearCopy();
+	}
+
+	private static Map<USK, Long> map() {
+		return new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
+	}
+
+	/** Physical security level LOW. */
+	private int load(USKEditionCache cache, Map<USK, Long> good, Map<USK, Long> slot) {
+		return cache.setStorage(false, false, null, good, slot);
+	}
+
+	public void testRoundTrip() throws IOException {
+		File file = new File(dir, "usk-editions.dat");
+		USKEditionCache cache = new USKEditionCache(dir, "usk-editions.dat", 100);
+		assertEquals(0, load(cache, map(), map()));
+		// Only the first change queues a write, the rest are batched with it.
+		assertTrue(cache.update(usk(INDEX), 55, 57));
+		assertFalse(cache.update(usk(SEARCH), -1, 17));
+		assertFalse(cache.update(usk(INDEX), 56, 57));
+		cache.write();
+		assertTrue(file.exists());
+		assertTrue(cache.update(usk(WOT), 5, 5));
+		cache.write();
+
+		Map<USK, Long> good = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
+		Map<USK, Long> slot = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
+		USKEditionCache loaded = new USKEditionCache(dir, "usk-editions.dat", 100);
+		assertEquals(3, load(loaded, good, slot));
+		assertEquals(Long.valueOf(56), good.get(usk(INDEX)));
+		assertEquals(Long.valueOf(57), slot.get(usk(INDEX)));
+		assertNull(good.get(usk(SEARCH)));
+		assertEquals(Long.valueOf(17), slot.get(usk(SEARCH)));
+		assertEquals(Long.valueOf(5), slot.get(usk(WOT)));
+
+		// A fetcher from edition 50 doesn't have to look at 51 to 57 again. Only counted once.
+		loaded.onFetcherStarted(usk(INDEX).copy(50));
+		loaded.onFetcherStarted(usk(INDEX).copy(50));
+		loaded.onFetcherStarted(usk(SEARCH).copy(20));
+		assertEquals(7, loaded.pollsSaved());
+	}
+
+	public void testSizeBound() throws IOException {
+		File file = new File(dir, "usk-editions.dat");
+		USKEditionCache cache = new USKEditionCache(dir, "usk-editions.dat", 2);
+		load(cache, map(), map());
+		cache.update(usk(INDEX), 1, 1);
+		cache.update(usk(SEARCH), 1, 1);
+		cache.update(usk(INDEX), 2, 2);
+		// SEARCH is the least recently updated.
+		cache.update(usk(WOT), 1, 1);
+		assertEquals(2, cache.size());
+		cache.write();
+
+		Map<USK, Long> slot = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
+		USKEditionCache loaded = new USKEditionCache(dir, "usk-editions.dat", 2);
+		assertEquals(2, load(loaded, map(), slot));
+		assertTrue(slot.containsKey(usk(INDEX)));
+		assertTrue(slot.containsKey(usk(WOT)));
+		assertFalse(slot.containsKey(usk(SEARCH)));
+
+		// Disabling it deletes the file.
+		loaded.setMaxEntries(0);
+		assertEquals(0, loaded.size());
+		assertFalse(file.exists());
+		assertFalse(loaded.update(usk(SEARCH), 1, 1));
+		loaded.write();
+		assertFalse(file.exists());
+	}
+
+	public void testTruncated() throws IOException {
+		File file = new File(dir, "usk-editions.dat");
+		USKEditionCache cache = new USKEditionCache(dir, "usk-editions.dat", 100);
+		load(cache, map(), map());
+		cache.update(usk(INDEX), 1, 1);
+		cache.update(usk(SEARCH), 2, 2);
+		cache.write();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 4);
+		raf.close();
+
+		Map<USK, Long> slot = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
+		USKEditionCache loaded = new USKEditionCache(dir, "usk-editions.dat", 100);
+		assertEquals(1, load(loaded, map(), slot));
+		assertEquals(Long.valueOf(1), slot.get(usk(INDEX)));
+	}
+
+	/** Above LOW the list is only written encrypted, and at MAXIMUM it is deleted. */
+	public void testSecurityLevels() throws IOException {
+		File plain = new File(dir, "usk-editions.dat");
+		File crypt = new File(dir, "usk-editions.dat.crypt");
+		DatabaseKey key = DatabaseKey.createRandom(new DummyRandomSource(1234));
+		USKEditionCache cache = new USKEditionCache(dir, "usk-editions.dat", 100);
+		load(cache, map(), map());
+		cache.update(usk(INDEX), 55, 57);
+		cache.write();
+		assertTrue(plain.exists());
+
+		// Waiting for the password: don't write anything.
+		cache.setStorage(true, false, null, map(), map());
+		cache.update(usk(SEARCH), 17, 17);
+		cache.write();
+		assertFalse(crypt.exists());
+		// Got the key: encrypt, and delete the unencrypted copy.
+		cache.setStorage(true, false, key, map(), map());
+		cache.write();
+		assertTrue(crypt.exists());
+		assertFalse(plain.exists());
+
+		Map<USK, Long> slot = map();
+		USKEditionCache loaded = new USKEditionCache(dir, "usk-editions.dat", 100);
+		assertEquals(0, loaded.setStorage(true, false, null, map(), slot));
+		assertEquals(2, loaded.setStorage(true, false, key, map(), slot));
+		assertEquals(Long.valueOf(57), slot.get(usk(INDEX)));
+		assertEquals(Long.valueOf(17), slot.get(usk(SEARCH)));
+		// Not readable without the right key.
+		loaded = new USKEditionCache(dir, "usk-editions.dat", 100);
+		assertEquals(0, loaded.setStorage(true, false, DatabaseKey.createRandom(new DummyRandomSource(5678)), map(), map()));
+
+		// MAXIMUM: Delete it and never write it.
+		cache.setStorage(true, true, key, map(), map());
+		assertFalse(crypt.exists());
+		cache.update(usk(WOT), 5, 5);
+		cache.write();
+		assertEquals(0, dir.list().length);
+	}
+
+}
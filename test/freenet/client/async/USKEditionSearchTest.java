@@ -0,0 +1,149 @@
+package freenet.client.async;
+
+import junit.framework.TestCase;
+
+/**
+ * Simulates catching up with a USK that is a long way ahead of what we know, in rounds the way
+ * USKFetcher does it: each round fetches the next few editions after the latest known, plus
+ * one search probe.
+ */
+public class USKEditionSearchTest extends TestCase {
+
+	private static final int WINDOW = 3;
+
+	private static class Result {
+		int rounds;
+		int fetches;
+		int probes;
+		long found;
+	}
+
+	/**
+	 * @param known The latest edition we know about.
+	 * @param latest The latest edition that exists. Every edition up to it exists.
+	 * @param search Whether to run the edition search alongside the normal probes.
+	 * @param falseNegative A probe of this edition fails even if it exists, or -1.
+	 */
+	private Result simulate(long known, long latest, boolean search, long falseNegative) {
+		Result result = new Result();
+		USKEditionSearch s = new USKEditionSearch(known, WINDOW);
+		long lowest = known;
+		while(true) {
+			s.onFound(lowest);
+			long probe = search ? s.nextProbe() : -1;
+			result.rounds++;
+			long newLowest = lowest;
+			for(int i=1;i<=WINDOW;i++) {
+				result.fetches++;
+				if(lowest + i <= latest) newLowest = lowest + i;
+			}
+			// The normal probes usually come back before the search probe.
+			s.onFound(newLowest);
+			if(probe >= 0) {
+				result.fetches++;
+				if(probe <= latest && probe != falseNegative) {
+					s.onFound(probe);
+					newLowest = Math.max(newLowest, probe);
+				} else {
+					assertTrue(s.onNotFound(probe));
+				}
+			}
+			if(newLowest == lowest && probe < 0)
+				break;
+			lowest = newLowest;
+			assertTrue("Too many rounds", result.rounds < 1000000);
+		}
+		result.probes = s.probes();
+		result.found = lowest;
+		return result;
+	}
+
+	public void testCatchUp() {
+		for(long gap : new long[] { 0, 1, 5, 10, 50, 100, 500, 1000, 10000, 100000 }) {
+			Result linear = simulate(100, 100 + gap, false, -1);
+			Result searched = simulate(100, 100 + gap, true, -1);
+			assertEquals(100 + gap, linear.found);
+			assertEquals(100 + gap, searched.found);
+			// Exponential phase then binary phase, each about log2(gap) probes.
+			int log = 64 - Long.numberOfLeadingZeros(gap + 1);
+			assertTrue("Gap "+gap+" took "+searched.probes+" probes", searched.probes <= 2 * log + 2);
+			assertTrue("Gap "+gap+" took "+searched.rounds+" rounds", searched.rounds <= 2 * log + 4);
+			if(gap >= 100)
+				assertTrue("Gap "+gap+": "+searched.fetches+" fetches vs "+linear.fetches, searched.fetches * 2 < linear.fetches);
+			if(gap >= 10000)
+				assertTrue("Gap "+gap+": "+searched.fetches+" fetches vs "+linear.fetches, searched.fetches * 50 < linear.fetches);
+		}
+	}
+
+	public void testNothingKnown() {
+		Result searched = simulate(-1, 1000, true, -1);
+		assertEquals(1000, searched.found);
+		assertTrue(searched.probes <= 22);
+	}
+
+	public void testFalseNegative() {
+		// A probe wrongly fails, so the search stops early, but we still get there.
+		Result searched = simulate(0, 10000, true, 96);
+		assertEquals(10000, searched.found);
+	}
+
+	public void testFoundBeyondFailure() {
+		USKEditionSearch s = new USKEditionSearch(10, WINDOW);
+		assertEquals(-1, s.nextProbe());
+		// The normal probes found the whole window, so we are probably behind.
+		s.onFound(13);
+		assertTrue(s.isActive());
+		long probe = s.nextProbe();
+		assertEquals(19, probe);
+		assertTrue(s.onNotFound(probe));
+		assertEquals(19, s.highest());
+		// Only our own probes count.
+		assertFalse(s.onNotFound(15));
+		assertEquals(19, s.highest());
+		// Something else found a later edition, so the failure was wrong.
+		s.onFound(23);
+		assertEquals(-1, s.highest());
+		assertEquals(29, s.nextProbe());
+		// A probe overtaken by another find is no longer waited for.
+		s.onFound(33);
+		assertFalse(s.isProbing());
+	}
+
+	/** Polling a site which publishes a new edition now and then doesn't probe far ahead. */
+	public void testSteadyState() {
+		USKEditionSearch s = new USKEditionSearch(100, WINDOW);
+		long latest = 100;
+		for(int round=0;round<100;round++) {
+			s.restart(latest);
+			s.onFound(latest);
+			assertEquals(-1, s.nextProbe());
+			if(round % 3 == 0) {
+				// A new edition, found by the normal probes.
+				latest++;
+				s.onFound(latest);
+				assertEquals(-1, s.nextProbe());
+			}
+			// Other subscribers found editions while we weren't polling.
+			if(round % 10 == 0)
+				latest += 2 * WINDOW;
+		}
+		assertEquals(0, s.probes());
+		assertFalse(s.isActive());
+	}
+
+	/** A hint a long way ahead of the normal probes starts the search from the hint. */
+	public void testHint() {
+		USKEditionSearch s = new USKEditionSearch(100, WINDOW);
+		s.onFound(101);
+		assertEquals(-1, s.nextProbe());
+		s.onFound(500);
+		assertTrue(s.isActive());
+		assertEquals(506, s.nextProbe());
+		// The next polling round starts linear again.
+		assertTrue(s.onNotFound(506));
+		s.restart(500);
+		assertFalse(s.isActive());
+		assertEquals(-1, s.nextProbe());
+	}
+
+}
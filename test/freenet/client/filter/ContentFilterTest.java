@@ -9,6 +9,7 @@ import java.io.UnsupportedEncodingException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 
 import junit.framework.TestCase;
@@ -23,6 +24,7 @@ import freenet.l10n.NodeL10n;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
 
 import freenet.support.TestProperty;
 
@@ -528,4 +530,40 @@ public class ContentFilterTest extends TestCase {
 					assertEquals(s, s.toLowerCase());
 		}
 	}
+
+	/** Text and tags longer than the parser's read buffer. */
+	public void testLongText() throws Exception {
+		StringBuilder in = new StringBuilder();
+		StringBuilder out = new StringBuilder();
+		for(int i=0;i<2000;i++) {
+			in.append("Some text &amp; more\u0000 text\u0001 ").append(i).append("<!-- c --><b>x</b>\n");
+			out.append("Some text &amp; more text ").append(i).append("<!--  c  --><b>x</b>\n");
+		}
+		assertTrue(in.length() > 4 * HTMLFilter.HTMLParseContext.READ_BUFFER_SIZE);
+		assertEquals(out.toString(), HTMLFilter(in.toString()));
+	}
+
+	/** Whole pages in html/, whose expected output was produced by the filter before it read in blocks. */
+	public void testHTMLFilterFixtures() throws Exception {
+		for(String name : new String[] { "freesite-index", "filter-edge-cases" }) {
+			ArrayBucket output = new ArrayBucket();
+			InputStream inputStream = resourceToBucket("html/"+name+".html").getInputStream();
+			OutputStream outputStream = output.getOutputStream();
+			ContentFilter.filter(inputStream, outputStream, "text/html", new URI(BASE_URI), null, null, null);
+			inputStream.close();
+			outputStream.close();
+			byte[] expected = resourceToBucket("html/"+name+".expected.html").toByteArray();
+			assertTrue(name+" filtered differently", Arrays.equals(expected, output.toByteArray()));
+		}
+	}
+
+	private ArrayBucket resourceToBucket(String filename) throws IOException {
+		InputStream is = getClass().getResourceAsStream(filename);
+		if (is == null) throw new java.io.FileNotFoundException(filename);
+		ArrayBucket ab = new ArrayBucket();
+		BucketTools.copyFrom(ab, is, Long.MAX_VALUE);
+		is.close();
+		return ab;
+	}
+
 }
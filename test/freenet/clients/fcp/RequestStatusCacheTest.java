@@ -0,0 +1,82 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+
+public class RequestStatusCacheTest extends TestCase {
+	
+	private DownloadRequestStatus makeDownload(String identifier) throws MalformedURLException {
+		return new DownloadRequestStatus(identifier, Persistence.REBOOT, true, false, false, 
+				0, 0, 0, null, 0, 0, null, false, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, 
+				null, null, -1, null, null, null, new FreenetURI("KSK@"+identifier), null, null, 
+				false, null, false, false);
+	}
+	
+	public void testChangesSince() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		long start = RequestStatusCache.currentSequence();
+		cache.addDownload(makeDownload("a"));
+		cache.addDownload(makeDownload("b"));
+		List<RequestStatus> changed = new ArrayList<RequestStatus>();
+		List<String> removed = new ArrayList<String>();
+		assertTrue(cache.getChangesSince(start, changed, removed));
+		assertEquals(2, changed.size());
+		assertTrue(removed.isEmpty());
+		
+		long seen = RequestStatusCache.currentSequence();
+		changed.clear();
+		assertTrue(cache.getChangesSince(seen, changed, removed));
+		assertTrue(changed.isEmpty());
+		
+		cache.setPriority("a", RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+		cache.removeByIdentifier("b");
+		assertTrue(cache.getChangesSince(seen, changed, removed));
+		assertEquals(1, changed.size());
+		assertEquals("a", changed.get(0).getIdentifier());
+		assertEquals(RequestStarter.INTERACTIVE_PRIORITY_CLASS, changed.get(0).getPriority());
+		assertEquals(1, removed.size());
+		assertEquals("b", removed.get(0));
+	}
+	
+	public void testResetWhenUnknown() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.addDownload(makeDownload("a"));
+		List<RequestStatus> changed = new ArrayList<RequestStatus>();
+		List<String> removed = new ArrayList<String>();
+		// Never issued.
+		assertFalse(cache.getChangesSince(RequestStatusCache.currentSequence()+1000, changed, removed));
+		assertEquals(1, changed.size());
+		// Issued before the cache was created.
+		changed.clear();
+		assertFalse(cache.getChangesSince(0, changed, removed));
+		assertEquals(1, changed.size());
+	}
+	
+	public void testForgetOldRemovals() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		long start = RequestStatusCache.currentSequence();
+		for(int i=0;i<=RequestStatusCache.MAX_REMEMBERED_REMOVALS;i++) {
+			cache.addDownload(makeDownload("r"+i));
+			cache.removeByIdentifier("r"+i);
+		}
+		List<RequestStatus> changed = new ArrayList<RequestStatus>();
+		List<String> removed = new ArrayList<String>();
+		assertFalse(cache.getChangesSince(start, changed, removed));
+		assertTrue(changed.isEmpty());
+		long seen = RequestStatusCache.currentSequence();
+		cache.addDownload(makeDownload("c"));
+		cache.removeByIdentifier("c");
+		assertTrue(cache.getChangesSince(seen, changed, removed));
+		assertEquals(1, removed.size());
+	}
+
+}
@@ -0,0 +1,117 @@
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private static final String CHK = "CHK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AAMC--8/index.html";
+	private static final String USK = "USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/site/5/index.html";
+
+	private static FetchContext filtering() {
+		return new FetchContext(0, 0, 0, 0, 0, 0, false, 0, 0, 0, true, true, false, true, 0, 0, null, null, false, false, null, null);
+	}
+
+	private static byte[] data(int length, int seed) {
+		byte[] buf = new byte[length];
+		for(int i=0;i<length;i++)
+			buf[i] = (byte) (i * 31 + seed);
+		return buf;
+	}
+
+	/** A bucket which records whether it has been freed. */
+	private static class FreeCheckBucket extends ArrayBucket {
+		boolean freed;
+
+		FreeCheckBucket(byte[] data) {
+			super(data);
+		}
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+	}
+
+	public void testMakeKey() throws Exception {
+		FetchContext fctx = filtering();
+		assertNotNull(FilteredContentCache.makeKey(new FreenetURI(CHK), fctx));
+		// A USK edition is the same content as the SSK for it.
+		FreenetURI usk = new FreenetURI(USK);
+		assertEquals(FilteredContentCache.makeKey(usk, fctx), FilteredContentCache.makeKey(usk.sskForUSK(), fctx));
+		assertNull(FilteredContentCache.makeKey(usk.setSuggestedEdition(-1), fctx));
+		assertNull(FilteredContentCache.makeKey(new FreenetURI("KSK@test"), fctx));
+		String key = FilteredContentCache.makeKey(new FreenetURI(CHK), fctx);
+		fctx.charset = "UTF-8";
+		assertFalse(key.equals(FilteredContentCache.makeKey(new FreenetURI(CHK), fctx)));
+		fctx.filterData = false;
+		assertNull(FilteredContentCache.makeKey(new FreenetURI(CHK), fctx));
+	}
+
+	public void testGetPut() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(4000, 10);
+		assertNull(cache.get("a", 1000));
+		FreeCheckBucket data = new FreeCheckBucket(data(500, 1));
+		Bucket ours = cache.put("a", "text/html", data);
+		assertEquals(1, cache.entries());
+		assertEquals(500, cache.size());
+
+		FetchResult result = cache.get("a", 1000);
+		assertEquals("text/html", result.getMimeType());
+		assertTrue(Arrays.equals(data(500, 1), BucketTools.toByteArray(result.asBucket())));
+		// Too big for the request.
+		assertNull(cache.get("a", 100));
+		assertEquals(1, cache.hits());
+		assertEquals(2, cache.misses());
+		assertEquals(500, cache.bytesSaved());
+
+		// Freed only when the cache and every user has finished with it.
+		ours.free();
+		result.asBucket().free();
+		assertFalse(data.freed);
+		cache.clear();
+		assertTrue(data.freed);
+		assertEquals(0, cache.size());
+		assertNull(cache.get("a", 1000));
+	}
+
+	public void testBounds() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(4000, 3);
+		// Too big to cache.
+		FreeCheckBucket big = new FreeCheckBucket(data(2000, 1));
+		assertSame(big, cache.put("big", "image/png", big));
+		assertEquals(0, cache.entries());
+
+		FreeCheckBucket[] buckets = new FreeCheckBucket[4];
+		for(int i=0;i<buckets.length;i++) {
+			buckets[i] = new FreeCheckBucket(data(900, i));
+			cache.put("key"+i, "text/html", buckets[i]).free();
+		}
+		// Limited by the number of entries.
+		assertEquals(3, cache.entries());
+		assertTrue(buckets[0].freed);
+		assertNull(cache.get("key0", 1000));
+		cache.get("key1", 1000).asBucket().free();
+
+		// Limited by size. key2 is the least recently used.
+		cache.setMaxSize(2000);
+		assertEquals(2, cache.entries());
+		assertTrue(buckets[2].freed);
+		assertFalse(buckets[1].freed);
+		assertFalse(buckets[3].freed);
+		cache.setMaxSize(0);
+		assertEquals(0, cache.entries());
+		assertTrue(buckets[1].freed);
+	}
+
+}
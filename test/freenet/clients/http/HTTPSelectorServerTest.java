@@ -0,0 +1,348 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import freenet.clients.http.ToadletContextImpl.RequestOutcome;
+import freenet.support.PooledExecutor;
+import freenet.support.io.LineReadingInputStream;
+
+/** Test request framing, pipelining, request bodies and suspending requests in the
+ * non-blocking web interface front end, with a trivial request handler. */
+public class HTTPSelectorServerTest extends TestCase {
+
+	private PooledExecutor executor;
+	private ServerSocketChannel serverChannel;
+	private HTTPSelectorServer server;
+	private final TestHandler handler = new TestHandler();
+
+	/** Answers each request with its method, path and the length and checksum of its body.
+	 * GET /big/N sends N bytes instead, and GET /block waits for {@link #unblock} first. */
+	private static class TestHandler implements HTTPSelectorServer.RequestHandler {
+
+		/** If true, the next request for /suspend is suspended. */
+		final AtomicBoolean suspendNext = new AtomicBoolean();
+		volatile SuspendedRequest suspended;
+		final CountDownLatch unblock = new CountDownLatch(1);
+
+		@Override
+		public RequestOutcome handle(LineReadingInputStream is, OutputStream out, InetAddress remoteAddr, ToadletContextImpl.Suspender suspender) {
+			try {
+				String line;
+				do {
+					// Empty lines before the request line are ignored, as in ToadletContextImpl.
+					line = is.readLine(32768, 128, false);
+					if(line == null) return RequestOutcome.CLOSE;
+				} while(line.length() == 0);
+				int length = 0;
+				boolean close = false;
+				String header;
+				while((header = is.readLine(32768, 128, false)) != null && header.length() > 0) {
+					if(header.toLowerCase().startsWith("content-length:"))
+						length = Integer.parseInt(header.substring("content-length:".length()).trim());
+					else if(header.equalsIgnoreCase("Connection: close"))
+						close = true;
+				}
+				byte[] body = new byte[length];
+				for(int read = 0; read < length;) {
+					int r = is.read(body, read, length - read);
+					if(r < 0) return RequestOutcome.CLOSE;
+					read += r;
+				}
+				String[] split = line.split(" ");
+				String path = split[1];
+				if(path.equals("/suspend") && suspendNext.getAndSet(false)) {
+					SuspendedRequest sr = suspender.suspend();
+					assertNotNull(sr);
+					suspended = sr;
+					return RequestOutcome.SUSPENDED;
+				}
+				if(path.equals("/block")) {
+					try {
+						unblock.await();
+					} catch (InterruptedException e) {
+						return RequestOutcome.CLOSE;
+					}
+				}
+				byte[] reply;
+				if(path.startsWith("/big/"))
+					reply = new byte[Integer.parseInt(path.substring("/big/".length()))];
+				else
+					reply = (split[0]+" "+path+" "+length+" "+checksum(body)).getBytes("UTF-8");
+				out.write(("HTTP/1.1 200 OK\r\nContent-Length: "+reply.length+"\r\n\r\n").getBytes("UTF-8"));
+				out.write(reply);
+				return close ? RequestOutcome.CLOSE : RequestOutcome.KEEP_ALIVE;
+			} catch (IOException e) {
+				return RequestOutcome.CLOSE;
+			}
+		}
+
+		@Override
+		public void connectionHandlerStarted() {
+			// Ignore.
+		}
+
+		@Override
+		public void connectionHandlerFinished() {
+			// Ignore.
+		}
+
+	}
+
+	private static long checksum(byte[] data) {
+		long sum = 0;
+		for(byte b : data)
+			sum = sum * 31 + b;
+		return sum;
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		executor = new PooledExecutor();
+		executor.start();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		server = new HTTPSelectorServer(handler, executor, 2);
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		server.close();
+		serverChannel.close();
+	}
+
+	private Socket connect() throws IOException {
+		Socket sock = new Socket(InetAddress.getByName("127.0.0.1"), serverChannel.socket().getLocalPort());
+		sock.setSoTimeout(10000);
+		SocketChannel channel = serverChannel.accept();
+		server.register(channel.socket());
+		return sock;
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while((b = is.read()) != '\n') {
+			if(b < 0) return null;
+			if(b != '\r') sb.append((char)b);
+		}
+		return sb.toString();
+	}
+
+	/** @return The body of the next response. */
+	private static byte[] readResponse(InputStream is) throws IOException {
+		assertEquals("HTTP/1.1 200 OK", readLine(is));
+		int length = -1;
+		String header;
+		while((header = readLine(is)).length() > 0) {
+			if(header.startsWith("Content-Length: "))
+				length = Integer.parseInt(header.substring("Content-Length: ".length()));
+		}
+		assertTrue(length >= 0);
+		byte[] body = new byte[length];
+		for(int read = 0; read < length;) {
+			int r = is.read(body, read, length - read);
+			assertTrue(r > 0);
+			read += r;
+		}
+		return body;
+	}
+
+	private static String readResponseString(InputStream is) throws IOException {
+		return new String(readResponse(is), "UTF-8");
+	}
+
+	private static void send(Socket sock, String s) throws IOException {
+		OutputStream os = sock.getOutputStream();
+		os.write(s.getBytes("UTF-8"));
+		os.flush();
+	}
+
+	/** A request which arrives a bit at a time is only handled once it is complete. */
+	public void testFraming() throws IOException, InterruptedException {
+		Socket sock = connect();
+		try {
+			send(sock, "\r\nGET /a HT");
+			Thread.sleep(100);
+			send(sock, "TP/1.1\r\nHost: x\r");
+			Thread.sleep(100);
+			assertEquals(0, sock.getInputStream().available());
+			send(sock, "\n\r\n");
+			assertEquals("GET /a 0 0", readResponseString(sock.getInputStream()));
+			// Keep-alive.
+			send(sock, "GET /b HTTP/1.1\nConnection: close\n\n");
+			assertEquals("GET /b 0 0", readResponseString(sock.getInputStream()));
+			assertEquals(-1, sock.getInputStream().read());
+		} finally {
+			sock.close();
+		}
+	}
+
+	/** Several requests sent at once are answered in order. */
+	public void testPipelined() throws IOException {
+		Socket sock = connect();
+		try {
+			send(sock, "GET /a HTTP/1.1\r\n\r\nPOST /b HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /c HTTP/1.1\r\n\r\n");
+			InputStream is = sock.getInputStream();
+			assertEquals("GET /a 0 0", readResponseString(is));
+			assertEquals("POST /b 5 "+checksum("hello".getBytes("UTF-8")), readResponseString(is));
+			assertEquals("GET /c 0 0", readResponseString(is));
+		} finally {
+			sock.close();
+		}
+	}
+
+	/** The body is part of the request, whether it is buffered or too big to buffer. */
+	public void testContentLength() throws IOException, InterruptedException {
+		Socket sock = connect();
+		try {
+			InputStream is = sock.getInputStream();
+			send(sock, "POST /small HTTP/1.1\r\ncontent-length:  11\r\n\r\nhello");
+			Thread.sleep(100);
+			assertEquals(0, is.available());
+			send(sock, " worldGET /next HTTP/1.1\r\n\r\n");
+			assertEquals("POST /small 11 "+checksum("hello world".getBytes("UTF-8")), readResponseString(is));
+			assertEquals("GET /next 0 0", readResponseString(is));
+
+			byte[] big = new byte[HTTPSelectorServer.MAX_BUFFERED_REQUEST * 3 + 5];
+			for(int i=0;i<big.length;i++)
+				big[i] = (byte)i;
+			send(sock, "POST /big HTTP/1.1\r\nContent-Length: "+big.length+"\r\n\r\n");
+			OutputStream os = sock.getOutputStream();
+			os.write(big);
+			// Another request straight after it.
+			os.write("GET /after HTTP/1.1\r\n\r\n".getBytes("UTF-8"));
+			os.flush();
+			assertEquals("POST /big "+big.length+" "+checksum(big), readResponseString(is));
+			assertEquals("GET /after 0 0", readResponseString(is));
+		} finally {
+			sock.close();
+		}
+	}
+
+	/** A suspended request doesn't use a thread, and is answered when it is resumed, after
+	 * which the connection can be used again. */
+	public void testSuspendResume() throws IOException, InterruptedException {
+		Socket sock = connect();
+		try {
+			InputStream is = sock.getInputStream();
+			handler.suspendNext.set(true);
+			send(sock, "GET /suspend HTTP/1.1\r\n\r\n");
+			for(int i=0;i<100 && server.getSuspendedConnections() == 0;i++)
+				Thread.sleep(50);
+			assertEquals(1, server.getSuspendedConnections());
+			assertEquals(0, server.getBusyConnections());
+			assertEquals(1, server.getOpenConnections());
+			// A pipelined request waits for the suspended one.
+			send(sock, "GET /second HTTP/1.1\r\n\r\n");
+			Thread.sleep(100);
+			assertEquals(0, is.available());
+
+			handler.suspended.resume();
+			assertEquals("GET /suspend 0 0", readResponseString(is));
+			assertEquals("GET /second 0 0", readResponseString(is));
+			assertEquals(0, server.getSuspendedConnections());
+			// Resuming again does nothing.
+			handler.suspended.resume();
+			send(sock, "GET /third HTTP/1.1\r\n\r\n");
+			assertEquals("GET /third 0 0", readResponseString(is));
+		} finally {
+			sock.close();
+		}
+	}
+
+	/** A suspended connection which the client closes is cleaned up, and resuming it does
+	 * nothing. */
+	public void testSuspendThenClose() throws IOException, InterruptedException {
+		Socket sock = connect();
+		handler.suspendNext.set(true);
+		send(sock, "GET /suspend HTTP/1.1\r\n\r\n");
+		for(int i=0;i<100 && server.getSuspendedConnections() == 0;i++)
+			Thread.sleep(50);
+		assertEquals(1, server.getSuspendedConnections());
+		sock.close();
+		for(int i=0;i<100 && server.getOpenConnections() > 0;i++)
+			Thread.sleep(50);
+		assertEquals(0, server.getOpenConnections());
+		assertEquals(0, server.getSuspendedConnections());
+		handler.suspended.resume();
+		Thread.sleep(100);
+		assertEquals(0, server.getBusyConnections());
+	}
+
+	/** Closing the server closes connections which are being handled or suspended, and tells
+	 * the toadlet that the suspended request won't be resumed. */
+	public void testCloseWhileHandlingAndSuspended() throws IOException, InterruptedException {
+		Socket handling = connect();
+		Socket suspended = connect();
+		try {
+			send(handling, "GET /block HTTP/1.1\r\n\r\n");
+			handler.suspendNext.set(true);
+			send(suspended, "GET /suspend HTTP/1.1\r\n\r\n");
+			for(int i=0;i<100 && (server.getSuspendedConnections() == 0 || server.getBusyConnections() == 0);i++)
+				Thread.sleep(50);
+			assertEquals(1, server.getSuspendedConnections());
+			assertEquals(1, server.getBusyConnections());
+			final CountDownLatch closed = new CountDownLatch(1);
+			handler.suspended.whenClosed(new Runnable() {
+
+				@Override
+				public void run() {
+					closed.countDown();
+				}
+
+			});
+
+			server.close();
+			assertTrue(closed.await(10, TimeUnit.SECONDS));
+			assertEquals(-1, handling.getInputStream().read());
+			assertEquals(-1, suspended.getInputStream().read());
+			assertEquals(0, server.getOpenConnections());
+			assertEquals(0, server.getSuspendedConnections());
+			handler.unblock.countDown();
+			for(int i=0;i<100 && server.getBusyConnections() > 0;i++)
+				Thread.sleep(50);
+			assertEquals(0, server.getBusyConnections());
+		} finally {
+			handler.unblock.countDown();
+			handling.close();
+			suspended.close();
+		}
+	}
+
+	/** Writing a big reply to a slow client waits on a selector, which is closed with the
+	 * server. */
+	public void testSlowClient() throws IOException, InterruptedException {
+		Socket sock = connect();
+		try {
+			int size = 32*1024*1024;
+			send(sock, "GET /big/"+size+" HTTP/1.1\r\n\r\n");
+			Thread.sleep(200);
+			assertEquals(size, readResponse(sock.getInputStream()).length);
+			send(sock, "GET /a HTTP/1.1\r\n\r\n");
+			assertEquals("GET /a 0 0", readResponseString(sock.getInputStream()));
+		} finally {
+			sock.close();
+		}
+		server.close();
+		for(int i=0;i<100 && server.getOpenWaitSelectors() > 0;i++)
+			Thread.sleep(50);
+		assertEquals(0, server.getOpenWaitSelectors());
+	}
+
+}
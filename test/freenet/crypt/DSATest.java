@@ -195,6 +195,46 @@ public class DSATest extends TestCase{
         assertTrue(DSA.verify(aDSAPubKey,aSignature,aDSAPrivKey.getX(),false));
     }
     
+    /** Test verifyEitherForm() with and without precomputed tables, on signatures over
+     * the clipped hash and over the whole hash, as old SSKs may have. */
+    public void testVerifyEitherForm() {
+        DSAGroup aDSAgroup = Global.DSAgroupBigA;
+        DSAPrivateKey aDSAPrivKey=new DSAPrivateKey(aDSAgroup,randomSource);
+        DSAPublicKey aDSAPubKey=new DSAPublicKey(aDSAgroup,aDSAPrivKey);
+        FixedBaseModPow gPow = new FixedBaseModPow(aDSAgroup.getG(), aDSAgroup.getP(), 256);
+        FixedBaseModPow yPow = new FixedBaseModPow(aDSAPubKey.getY(), aDSAgroup.getP(), 256);
+        // Top bit set, so the two forms differ.
+        BigInteger m = BigInteger.ONE.shiftLeft(255).add(BigInteger.valueOf(12345));
+
+        DSASignature clipped = DSA.sign(aDSAgroup,aDSAPrivKey,m,randomSource);
+        BigInteger k = new BigInteger(250, randomSource);
+        BigInteger r = aDSAgroup.getG().modPow(k, aDSAgroup.getP()).mod(aDSAgroup.getQ());
+        DSASignature whole = DSA.sign(aDSAgroup,aDSAPrivKey,r,k.modInverse(aDSAgroup.getQ()),m,randomSource);
+        assertTrue(DSA.verify(aDSAPubKey,whole,m,true));
+        assertFalse(DSA.verify(aDSAPubKey,whole,m,false));
+
+        for(DSASignature sig : new DSASignature[] { clipped, whole }) {
+            assertTrue(DSA.verifyEitherForm(aDSAPubKey,sig,m,null,null));
+            assertTrue(DSA.verifyEitherForm(aDSAPubKey,sig,m,gPow,yPow));
+            assertFalse(DSA.verifyEitherForm(aDSAPubKey,sig,m.add(BigInteger.ONE),gPow,yPow));
+        }
+        assertFalse(DSA.verifyEitherForm(aDSAPubKey,new DSASignature(aDSAgroup.getQ(),clipped.getS()),m,null,null));
+    }
+
+    public void testFixedBaseModPow() {
+        BigInteger p = Global.DSAgroupBigA.getP();
+        BigInteger base = Global.DSAgroupBigA.getG();
+        FixedBaseModPow pow = new FixedBaseModPow(base, p, 256);
+        assertEquals(BigInteger.ONE, pow.pow(BigInteger.ZERO));
+        for(int i=0; i<20; i++) {
+            BigInteger e = new BigInteger(256, randomSource);
+            assertEquals(base.modPow(e, p), pow.pow(e));
+        }
+        // Too big for the table.
+        BigInteger e = new BigInteger(300, randomSource).setBit(299);
+        assertEquals(base.modPow(e, p), pow.pow(e));
+    }
+    
     /* The following tests still generates problem,
      * they are commented so they could be useful to
      * check for bugs
@@ -0,0 +1,126 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class PerThreadRandomSourceTest extends TestCase {
+
+	/** Counts what the per-thread source asks of its master. */
+	private static class CountingRandomSource extends DummyRandomSource {
+		private static final long serialVersionUID = -1;
+		int bytesRequested;
+		int batches;
+		int timerEvents;
+
+		CountingRandomSource() {
+			super(1234);
+		}
+
+		@Override
+		public synchronized void nextBytes(byte[] bytes) {
+			bytesRequested += bytes.length;
+			super.nextBytes(bytes);
+		}
+
+		@Override
+		public synchronized int acceptTimerEntropy(EntropySource timer, long[] times, int count, double bias) {
+			batches++;
+			timerEvents += count;
+			return count;
+		}
+	}
+
+	public void testDouble() {
+		PerThreadRandomSource r = new PerThreadRandomSource(new DummyRandomSource(1234));
+		double sum = 0, sumSquares = 0;
+		for(int i = 0; i < 10000; ++i) {
+			double d = r.nextDouble();
+			sum += d;
+			sumSquares += d * d;
+		}
+		double mean = sum / 10000;
+		assertEquals(0.5, mean, 0.02);
+		assertEquals(1.0 / (2.0 * Math.sqrt(3.0)), Math.sqrt(sumSquares / 10000 - mean * mean), 0.01);
+	}
+
+	public void testNextIntRange() {
+		PerThreadRandomSource r = new PerThreadRandomSource(new DummyRandomSource(1234));
+		int[] counts = new int[10];
+		for(int i = 0; i < 100000; i++)
+			counts[r.nextInt(10)]++;
+		for(int count : counts)
+			assertTrue("Count "+count, count > 9000 && count < 11000);
+		for(int i = 0; i < 1000; i++)
+			assertTrue(r.next(1) < 2);
+	}
+
+	public void testThreadsGetDifferentStreams() throws InterruptedException {
+		final PerThreadRandomSource r = new PerThreadRandomSource(new DummyRandomSource(1234));
+		final byte[][] outputs = new byte[8][];
+		Thread[] threads = new Thread[outputs.length];
+		for(int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[10000];
+					r.nextBytes(buf);
+					outputs[index] = buf;
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		Set<String> seen = new HashSet<String>();
+		for(byte[] output : outputs)
+			assertTrue(seen.add(Arrays.toString(Arrays.copyOf(output, 32))));
+	}
+
+	public void testReseedsFromMaster() {
+		CountingRandomSource master = new CountingRandomSource();
+		PerThreadRandomSource r = new PerThreadRandomSource(master);
+		r.nextInt();
+		int initial = master.bytesRequested;
+		assertTrue(initial > 0);
+		byte[] buf = new byte[1000];
+		for(int i = 0; i < PerThreadRandomSource.RESEED_BYTES / buf.length; i++)
+			r.nextBytes(buf);
+		assertEquals(initial, master.bytesRequested);
+		for(int i = 0; i < 10; i++)
+			r.nextBytes(buf);
+		assertTrue(master.bytesRequested > initial);
+	}
+
+	public void testTimerEntropyIsBatched() {
+		CountingRandomSource master = new CountingRandomSource();
+		PerThreadRandomSource r = new PerThreadRandomSource(master);
+		EntropySource timer = new EntropySource();
+		for(int i = 0; i < PerThreadRandomSource.ENTROPY_BATCH * 10; i++)
+			r.acceptTimerEntropy(timer, 0.25);
+		assertEquals(PerThreadRandomSource.ENTROPY_BATCH * 10, master.timerEvents);
+		assertEquals(10, master.batches);
+		// A different source flushes what we have.
+		r.acceptTimerEntropy(timer, 0.25);
+		r.acceptTimerEntropy(new EntropySource(), 0.25);
+		assertEquals(11, master.batches);
+	}
+
+	public void testYarrowBatch() {
+		Yarrow y = new Yarrow(new File("/dev/urandom"), "SHA1", "Rijndael", false, false);
+		EntropySource timer = new EntropySource();
+		long now = System.currentTimeMillis();
+		long[] times = new long[100];
+		for(int i = 0; i < times.length; i++)
+			times[i] = now + i * 7 + (i * i) % 13;
+		assertTrue(y.acceptTimerEntropy(timer, times, times.length, 1.0) > 0);
+	}
+
+}
@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import junit.framework.TestCase;
+
+import freenet.io.xfer.BulkRangeScheduler.Range;
+import freenet.support.io.ByteArrayRandomAccessBuffer;
+
+public class BulkRangeSchedulerTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 4;
+
+	private static PartiallyReceivedBulk prb(int blocks) {
+		return new PartiallyReceivedBulk(null, blocks * BLOCK_SIZE, BLOCK_SIZE,
+				new ByteArrayRandomAccessBuffer(blocks * BLOCK_SIZE), false);
+	}
+
+	private static void receive(PartiallyReceivedBulk prb, int first, int count) {
+		for(int i=first;i<first+count;i++)
+			prb.received(i, new byte[BLOCK_SIZE], 0, BLOCK_SIZE);
+	}
+
+	private static void assertRange(int first, int count, Range r) {
+		assertNotNull(r);
+		assertEquals(first, r.firstBlock);
+		assertEquals(count, r.blockCount);
+	}
+
+	public void testRanges() {
+		PartiallyReceivedBulk prb = prb(10);
+		receive(prb, 3, 3);
+		BulkRangeScheduler<String> scheduler = new BulkRangeScheduler<String>(prb, 3);
+		// Each peer gets a different range. Blocks we already have are skipped.
+		Range a = scheduler.next("a");
+		assertRange(0, 3, a);
+		Range b = scheduler.next("b");
+		assertRange(6, 3, b);
+		assertTrue(scheduler.hasPending());
+
+		// Whoever finishes first gets the next range.
+		receive(prb, 0, 3);
+		scheduler.succeeded(a, "a", 100);
+		assertEquals(30.0, scheduler.throughput("a"), 0.001);
+		a = scheduler.next("a");
+		assertRange(9, 1, a);
+		assertFalse(scheduler.hasPending());
+
+		// If a peer fails, the blocks still missing go to somebody else.
+		receive(prb, 6, 1);
+		scheduler.failed(b, "b");
+		assertEquals(1, scheduler.failures("b"));
+		assertTrue(scheduler.hasPending());
+		assertRange(7, 2, scheduler.next("c"));
+		assertNull(scheduler.next("b"));
+	}
+
+	/** Range receivers check blocks with this, so a bad peer can't abort the shared transfer. */
+	public void testValidBlock() {
+		PartiallyReceivedBulk prb = new PartiallyReceivedBulk(null, 3 * BLOCK_SIZE + 1, BLOCK_SIZE,
+				new ByteArrayRandomAccessBuffer(3 * BLOCK_SIZE + 1), false);
+		assertTrue(prb.isValidBlock(0, BLOCK_SIZE));
+		assertFalse(prb.isValidBlock(0, BLOCK_SIZE - 1));
+		assertTrue(prb.isValidBlock(3, 1));
+		assertFalse(prb.isValidBlock(4, BLOCK_SIZE));
+		assertFalse(prb.isValidBlock(-1, BLOCK_SIZE));
+		assertFalse(prb.isAborted());
+	}
+
+	public void testEndgame() {
+		PartiallyReceivedBulk prb = prb(8);
+		BulkRangeScheduler<String> scheduler = new BulkRangeScheduler<String>(prb, 4);
+		Range fast = scheduler.next("fast");
+		Range slow = scheduler.next("slow");
+		receive(prb, 0, 4);
+		scheduler.succeeded(fast, "fast", 10);
+		receive(prb, 4, 1);
+
+		// Nothing left to start, and we don't know the new peer is any faster.
+		assertNull(scheduler.next("new"));
+		// The fast peer helps with the rest of the slow peer's range.
+		Range dup = scheduler.next("fast");
+		assertRange(5, 3, dup);
+		// Only once.
+		assertNull(scheduler.next("fast"));
+
+		// The slow peer giving up doesn't put it back, because the fast peer is working on it.
+		scheduler.failed(slow, "slow");
+		assertFalse(scheduler.hasPending());
+		receive(prb, 5, 3);
+		scheduler.succeeded(dup, "fast", 10);
+		assertTrue(prb.hasWholeFile());
+		assertNull(scheduler.next("fast"));
+	}
+
+}
@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+import freenet.crypt.DSAGroup;
+import freenet.crypt.DSAPrivateKey;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.Global;
+import freenet.crypt.RandomSource;
+import freenet.crypt.SHA256;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.compress.Compressor;
+import freenet.support.compress.InvalidCompressionCodecException;
+
+public class SSKVerifierTest extends TestCase {
+
+	private final RandomSource random = new DummyRandomSource(12345);
+	private InsertableClientSSK ik;
+
+	@Override
+	public void setUp() throws Exception {
+		byte[] ckey = new byte[32];
+		random.nextBytes(ckey);
+		DSAGroup g = Global.DSAgroupBigA;
+		DSAPrivateKey privKey = new DSAPrivateKey(g, random);
+		DSAPublicKey pubKey = new DSAPublicKey(g, privKey);
+		byte[] pkHash = SHA256.digest(pubKey.asBytes());
+		ik = new InsertableClientSSK("myDOC", pkHash, pubKey, privKey, ckey, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	private SSKBlock encode(String content) throws IOException, SSKEncodeException, InvalidCompressionCodecException {
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(content.getBytes("UTF-8"));
+		ClientSSKBlock block = ik.encode(bucket, false, false, (short)-1, bucket.size(), random, Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false);
+		return (SSKBlock) block.getBlock();
+	}
+
+	public void testCachesVerifiedBlocks() throws Exception {
+		SSKBlock block = encode("test");
+		long misses = SSKVerifier.get().cacheMisses();
+		long hits = SSKVerifier.get().cacheHits();
+		// Verifies it again, as when we fetch it from the store or a peer.
+		new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+		new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+		assertTrue(SSKVerifier.get().cacheHits() >= hits + 1);
+		assertTrue(SSKVerifier.get().cacheMisses() <= misses + 1);
+	}
+
+	public void testRejectsBadSignature() throws Exception {
+		SSKBlock block = encode("test");
+		// Verified, and so cached.
+		new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+		byte[] headers = block.getRawHeaders().clone();
+		headers[headers.length - 1] ^= 1;
+		try {
+			new SSKBlock(block.getRawData(), headers, block.getKey(), false);
+			fail("Accepted a bad signature");
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+		byte[] data = block.getRawData().clone();
+		data[0] ^= 1;
+		try {
+			new SSKBlock(data, block.getRawHeaders(), block.getKey(), false);
+			fail("Accepted changed data");
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+	}
+
+	public void testKeyTable() throws Exception {
+		SSKVerifier verifier = new SSKVerifier();
+		SSKBlock[] blocks = new SSKBlock[SSKVerifier.KEY_TABLE_THRESHOLD + 5];
+		for(int i = 0; i < blocks.length; i++)
+			blocks[i] = encode("edition " + i);
+		// Different blocks with the same key, as a USK's editions are. Once we have verified
+		// enough of them we build a table for the key, and must still get the right answer.
+		for(SSKBlock block : blocks) {
+			NodeSSK key = block.getKey();
+			assertTrue(verify(verifier, block, key, false));
+			assertFalse(verify(verifier, block, key, true));
+		}
+	}
+
+	private boolean verify(SSKVerifier verifier, SSKBlock block, NodeSSK key, boolean corrupt) {
+		byte[] headers = block.getRawHeaders();
+		int sigOffset = block.headersOffset + SSKBlock.ENCRYPTED_HEADERS_LENGTH;
+		byte[] r = new byte[SSKBlock.SIG_R_LENGTH];
+		byte[] s = new byte[SSKBlock.SIG_S_LENGTH];
+		System.arraycopy(headers, sigOffset, r, 0, r.length);
+		System.arraycopy(headers, sigOffset + r.length, s, 0, s.length);
+		MessageDigest md = SHA256.getMessageDigest();
+		md.update(block.getRawData());
+		byte[] dataHash = md.digest();
+		md.update(headers, 0, sigOffset);
+		md.update(dataHash);
+		byte[] overallHash = md.digest();
+		SHA256.returnMessageDigest(md);
+		if(corrupt)
+			overallHash[0] ^= 1;
+		return verifier.verify(key.getPubKey(), key.getPubKeyHash(), overallHash, r, s);
+	}
+
+}
@@ -0,0 +1,91 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.crypt.ECDH;
+import freenet.crypt.ECDHLightContext;
+import freenet.support.PooledExecutor;
+import freenet.support.WaitableExecutor;
+
+public class ECDHContextPoolTest extends TestCase {
+
+	private WaitableExecutor executor;
+	private ECDHContextPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		executor = new WaitableExecutor(new PooledExecutor());
+		pool = new ECDHContextPool(new ECDHContextPool.Generator() {
+			@Override
+			public ECDHLightContext generate() {
+				return new ECDHLightContext(ECDH.Curves.P256);
+			}
+		}, executor);
+	}
+
+	public void testEmpty() {
+		assertNull(pool.get(System.currentTimeMillis()));
+		assertEquals(1, pool.empty());
+		executor.waitForIdle();
+		// Started generating.
+		assertTrue(pool.size() > 0);
+		assertNotNull(pool.get(System.currentTimeMillis()));
+	}
+
+	public void testFillAndFind() {
+		pool.fill();
+		assertEquals(ECDHContextPool.MIN_SIZE, pool.size());
+		ECDHLightContext ctx = pool.get(System.currentTimeMillis());
+		assertSame(ctx, pool.find(ctx.getPublicKey()));
+		// The key we get back from the network is a different object.
+		assertSame(ctx, pool.find(ECDH.getPublicKey(ctx.getPublicKeyNetworkFormat(), ECDH.Curves.P256)));
+		assertNull(pool.find(new ECDHLightContext(ECDH.Curves.P256).getPublicKey()));
+		executor.waitForIdle();
+	}
+
+	public void testUsesLimited() {
+		pool.fill();
+		long now = System.currentTimeMillis();
+		Set<ECDHLightContext> seen = new HashSet<ECDHLightContext>();
+		int handshakes = ECDHContextPool.MIN_SIZE * ECDHContextPool.MAX_USES_PER_CONTEXT;
+		ECDHLightContext first = null;
+		for(int i = 0; i < handshakes; i++) {
+			ECDHLightContext ctx = pool.get(now);
+			if(first == null) first = ctx;
+			seen.add(ctx);
+			executor.waitForIdle();
+		}
+		// We generated more rather than using any context too often.
+		assertEquals(handshakes, pool.hits());
+		assertEquals(0, pool.misses());
+		assertTrue(seen.size() > ECDHContextPool.MIN_SIZE);
+		// The first one has been used up, but a JFK(3) could still need it.
+		assertSame(first, pool.find(first.getPublicKey()));
+		assertTrue(pool.retiredSize() > 0);
+	}
+
+	public void testGrowsWithRate() {
+		pool.fill();
+		long now = System.currentTimeMillis();
+		// 100 handshakes a second for 30 seconds, with time to generate between them.
+		for(int i = 0; i < 3000; i++) {
+			pool.get(now + i * 10);
+			executor.waitForIdle();
+		}
+		executor.waitForIdle();
+		assertTrue(pool.handshakeRate() > 50);
+		assertTrue(pool.targetSize() > ECDHContextPool.MIN_SIZE);
+		assertTrue(pool.targetSize() <= ECDHContextPool.MAX_SIZE);
+		assertTrue(pool.size() > ECDHContextPool.MIN_SIZE);
+		// Quiet for a while: shrinks back.
+		pool.get(now + 3000 * 10 + 60 * 1000);
+		executor.waitForIdle();
+		assertEquals(ECDHContextPool.MIN_SIZE, pool.targetSize());
+	}
+
+}
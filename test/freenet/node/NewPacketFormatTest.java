@@ -373,6 +373,17 @@ public class NewPacketFormatTest extends TestCase {
 
 	public void testEncryption()
 			throws BlockedTooLongException, UnknownHostException, InterruptedException {
+		checkEncryption(10);
+	}
+
+	public void testEncryptionAesCtr()
+			throws BlockedTooLongException, UnknownHostException, InterruptedException {
+		if(!PacketCipher.aesCtrAvailable()) return;
+		checkEncryption(PacketCipher.FIRST_AES_CTR_NEG_TYPE);
+	}
+
+	private void checkEncryption(int negType)
+			throws BlockedTooLongException, UnknownHostException, InterruptedException {
 		Random random = new Random(120116);
 		NullBasePeerNode senderNode = new NullBasePeerNode();
 		NullBasePeerNode receiverNode = new NullBasePeerNode();
@@ -403,12 +414,12 @@ public class NewPacketFormatTest extends TestCase {
 
 		SessionKey senderSessionKey = new SessionKey(null, outgoingCipher, outgoingKey,
 							     incomingCipher, incomingKey, ivCipher,
-							     ivNonce, hmacKey, senderContext, 0);
+							     ivNonce, hmacKey, senderContext, 0, negType);
 
 		SessionKey receiverSessionKey = new SessionKey(null, incomingCipher, incomingKey,
 							       outgoingCipher, outgoingKey,
 							       ivCipher, ivNonce, hmacKey,
-							       receiverContext, 0);
+							       receiverContext, 0, negType);
 
 		senderNode.currentKey = senderSessionKey;
 		receiverNode.currentKey = receiverSessionKey;
@@ -0,0 +1,132 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+public class PacketCipherTest extends TestCase {
+
+	private final Random random = new Random(1234);
+	private byte[] outgoingKey;
+	private byte[] incomingKey;
+	private byte[] ivKey;
+	private byte[] ivNonce;
+	private byte[] hmacKey;
+
+	@Override
+	public void setUp() {
+		outgoingKey = randomBytes(32);
+		incomingKey = randomBytes(32);
+		ivKey = randomBytes(32);
+		ivNonce = randomBytes(32);
+		hmacKey = randomBytes(32);
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	private BlockCipher cipher(byte[] key) throws UnsupportedCipherException {
+		BlockCipher c = new Rijndael(256, 256);
+		c.initialize(key);
+		return c;
+	}
+
+	private PacketCipher packetCipher(int negType, byte[] outKey, byte[] inKey) throws UnsupportedCipherException {
+		return new PacketCipher(negType, cipher(outKey), outKey, cipher(inKey), inKey,
+				cipher(ivKey), ivNonce, hmacKey);
+	}
+
+	private byte[] packet(int sequenceNumber, int length) {
+		byte[] packet = randomBytes(length);
+		packet[0] = (byte) (sequenceNumber >>> 24);
+		packet[1] = (byte) (sequenceNumber >>> 16);
+		packet[2] = (byte) (sequenceNumber >>> 8);
+		packet[3] = (byte) sequenceNumber;
+		return packet;
+	}
+
+	private byte[] encryptedIV(int sequenceNumber) throws UnsupportedCipherException {
+		byte[] IV = Arrays.copyOf(ivNonce, 32);
+		System.arraycopy(packet(sequenceNumber, 4), 0, IV, 28, 4);
+		cipher(ivKey).encipher(IV, IV);
+		return IV;
+	}
+
+	/** negType 10 and earlier must produce exactly what the old code did. */
+	public void testRijndaelPCFBWireFormat() throws UnsupportedCipherException {
+		PacketCipher packetCipher = packetCipher(10, outgoingKey, incomingKey);
+		assertFalse(packetCipher.isAesCtr());
+		byte[] plaintext = packet(12345, 1000);
+		byte[] encrypted = plaintext.clone();
+		packetCipher.encipherOutgoing(encrypted, 0, encrypted.length);
+
+		byte[] expected = plaintext.clone();
+		PCFBMode.create(cipher(outgoingKey), encryptedIV(12345)).blockEncipher(expected, 0, expected.length);
+		assertTrue(Arrays.equals(expected, encrypted));
+		assertTrue(Arrays.equals(HMAC.macWithSHA256(hmacKey, encrypted),
+				packetCipher.macOutgoing(encrypted, 0, encrypted.length)));
+
+		// And the other side can read it.
+		PacketCipher other = packetCipher(10, incomingKey, outgoingKey);
+		assertTrue(Arrays.equals(Arrays.copyOf(encrypted, 4), other.encipherIncomingSequenceNumber(12345)));
+		other.decipherIncoming(12345, encrypted, 0, encrypted.length);
+		assertTrue(Arrays.equals(plaintext, encrypted));
+	}
+
+	public void testAesCtr() throws Exception {
+		if(!PacketCipher.aesCtrAvailable()) return;
+		PacketCipher packetCipher = packetCipher(PacketCipher.FIRST_AES_CTR_NEG_TYPE, outgoingKey, incomingKey);
+		assertTrue(packetCipher.isAesCtr());
+		PacketCipher other = packetCipher(PacketCipher.FIRST_AES_CTR_NEG_TYPE, incomingKey, outgoingKey);
+		for(int seqNum = 0; seqNum < 100; seqNum++) {
+			byte[] plaintext = packet(seqNum, 64 + random.nextInt(1300));
+			byte[] encrypted = plaintext.clone();
+			packetCipher.encipherOutgoing(encrypted, 0, encrypted.length);
+			assertFalse(Arrays.equals(plaintext, encrypted));
+
+			Cipher jca = Cipher.getInstance("AES/CTR/NOPADDING");
+			jca.init(Cipher.DECRYPT_MODE, new SecretKeySpec(outgoingKey, "AES"),
+					new IvParameterSpec(encryptedIV(seqNum), 0, 16));
+			assertTrue(Arrays.equals(plaintext, jca.doFinal(encrypted)));
+
+			assertTrue(Arrays.equals(Arrays.copyOf(encrypted, 4), other.encipherIncomingSequenceNumber(seqNum)));
+			assertTrue(Arrays.equals(packetCipher.macOutgoing(encrypted, 0, encrypted.length),
+					other.macIncoming(encrypted, 0, encrypted.length)));
+			other.decipherIncoming(seqNum, encrypted, 0, encrypted.length);
+			assertTrue(Arrays.equals(plaintext, encrypted));
+		}
+	}
+
+	/** Consecutive sequence numbers must not share keystream, as plain nonce||counter IVs would. */
+	public void testAesCtrKeystreamsDontOverlap() throws UnsupportedCipherException {
+		if(!PacketCipher.aesCtrAvailable()) return;
+		PacketCipher packetCipher = packetCipher(PacketCipher.FIRST_AES_CTR_NEG_TYPE, outgoingKey, incomingKey);
+		byte[] first = new byte[64];
+		byte[] second = new byte[64];
+		first[3] = 1;
+		second[3] = 2;
+		packetCipher.encipherOutgoing(first, 0, first.length);
+		packetCipher.encipherOutgoing(second, 0, second.length);
+		// Leave just the keystream.
+		first[3] ^= 1;
+		second[3] ^= 2;
+		assertFalse(Arrays.equals(Arrays.copyOfRange(first, 16, 32), Arrays.copyOfRange(second, 0, 16)));
+	}
+
+}
@@ -0,0 +1,41 @@
+package freenet.node;
+
+import junit.framework.TestCase;
+
+public class StartupTimelineTest extends TestCase {
+
+	public void testPhases() {
+		StartupTimeline timeline = new StartupTimeline();
+		assertEquals("", timeline.toString());
+		timeline.begin("datastore");
+		timeline.begin("plugins");
+		timeline.end("datastore");
+		String s = timeline.toString();
+		assertTrue(s, s.startsWith("datastore at "));
+		assertTrue(s, s.indexOf(" took ") < s.indexOf(", plugins at "));
+		assertTrue(s, s.endsWith("(running)"));
+		timeline.end("plugins");
+		assertFalse(timeline.toString().contains("(running)"));
+	}
+
+	public void testEndUnknownPhase() {
+		StartupTimeline timeline = new StartupTimeline();
+		timeline.end("nothing");
+		assertEquals("", timeline.toString());
+		timeline.begin("resume requests");
+		timeline.end("resume requests");
+		timeline.end("resume requests");
+		assertFalse(timeline.toString().contains("(running)"));
+	}
+
+	public void testRepeatedPhase() {
+		StartupTimeline timeline = new StartupTimeline();
+		timeline.begin("resume requests");
+		timeline.end("resume requests");
+		timeline.begin("resume requests");
+		assertTrue(timeline.toString().endsWith("(running)"));
+		timeline.end("resume requests");
+		assertFalse(timeline.toString().contains("(running)"));
+	}
+
+}
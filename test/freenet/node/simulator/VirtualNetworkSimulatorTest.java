@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.io.comm.IncomingPacketFilter;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerContext;
+import freenet.node.simulator.VirtualNetworkSimulator.Settings;
+import freenet.node.simulator.VirtualNetworkSimulator.Stats;
+
+public class VirtualNetworkSimulatorTest extends TestCase {
+
+	public void testTickerOrder() {
+		final VirtualTimeTicker ticker = new VirtualTimeTicker(1000);
+		final ArrayList<String> ran = new ArrayList<String>();
+		ticker.queueTimedJob(new Record(ran, "c"), 50);
+		ticker.queueTimedJob(new Record(ran, "a"), 10);
+		ticker.queueTimedJob(new Record(ran, "b"), 10);
+		Runnable cancelled = new Record(ran, "x");
+		ticker.queueTimedJob(cancelled, 20);
+		ticker.removeQueuedJob(cancelled);
+		ticker.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				assertEquals(1030, ticker.now());
+				ticker.execute(new Record(ran, "d"));
+			}
+		}, 30);
+		assertEquals(2, ticker.run(1010));
+		assertEquals(1010, ticker.now());
+		ticker.runAll();
+		assertEquals(1050, ticker.now());
+		assertEquals("[a, b, d, c]", ran.toString());
+	}
+
+	private static class Record implements Runnable {
+		final ArrayList<String> ran;
+		final String name;
+
+		Record(ArrayList<String> ran, String name) {
+			this.ran = ran;
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			ran.add(name);
+		}
+	}
+
+	public void testTransport() {
+		final VirtualTimeTicker ticker = new VirtualTimeTicker(0);
+		InMemoryTransport transport = new InMemoryTransport(ticker, new Random(1), 10, 100, 0.0);
+		InMemoryPacketSocketHandler a = transport.createEndpoint(1280);
+		InMemoryPacketSocketHandler b = transport.createEndpoint(1280);
+		final long[] arrived = new long[1];
+		final Peer[] from = new Peer[1];
+		b.setLowLevelFilter(new IncomingPacketFilter() {
+			@Override
+			public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+				arrived[0] = now;
+				from[0] = peer;
+				assertEquals(3, length);
+				return DECODED.DECODED;
+			}
+
+			@Override
+			public boolean isDisconnected(PeerContext context) {
+				return false;
+			}
+		});
+		int latency = transport.latency(a.getAddress(), b.getAddress());
+		assertEquals(latency, transport.latency(b.getAddress(), a.getAddress()));
+		assertTrue(latency >= 10 && latency <= 100);
+		byte[] packet = new byte[] { 1, 2, 3 };
+		a.sendPacket(packet, b.getAddress(), true);
+		packet[0] = 9;
+		ticker.runAll();
+		assertEquals(latency, arrived[0]);
+		assertEquals(a.getAddress(), from[0]);
+		assertEquals(1, b.packetsReceived());
+	}
+
+	public void testDeterministic() {
+		Stats first = simulate(3142);
+		Stats second = simulate(3142);
+		assertTrue(first.successRate() > 0.9);
+		assertTrue(first.averageHops() > 1);
+		assertEquals(first.succeeded, second.succeeded);
+		assertEquals(first.totalHops, second.totalHops);
+		assertEquals(first.duration, second.duration);
+		assertEquals(first.latencyPercentile(95), second.latencyPercentile(95));
+	}
+
+	public void testPacketLoss() {
+		Settings settings = new Settings();
+		settings.nodes = 200;
+		settings.dropProbability = 0.01;
+		settings.hopTimeout = 500;
+		VirtualNetworkSimulator sim = new VirtualNetworkSimulator(settings);
+		sim.runInserts(100);
+		Stats requests = sim.runRequests(100);
+		// Everything finishes, even if some fail.
+		assertEquals(requests.started, requests.succeeded + requests.failed);
+		assertTrue(sim.getTransport().packetsDropped() > 0);
+	}
+
+	private Stats simulate(long seed) {
+		Settings settings = new Settings();
+		settings.nodes = 300;
+		settings.seed = seed;
+		VirtualNetworkSimulator sim = new VirtualNetworkSimulator(settings);
+		sim.build();
+		Stats inserts = sim.runInserts(200);
+		assertEquals(inserts.started, inserts.succeeded + inserts.failed);
+		return sim.runRequests(200);
+	}
+
+}
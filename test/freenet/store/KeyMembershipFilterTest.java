@@ -0,0 +1,107 @@
+package freenet.store;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.compress.Compressor;
+
+public class KeyMembershipFilterTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private byte[] randomKey() {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		return key;
+	}
+
+	public void testAddRemove() {
+		KeyMembershipFilter filter = new KeyMembershipFilter(1000, random);
+		byte[][] keys = new byte[1000][];
+		for(int i=0;i<keys.length;i++) {
+			keys[i] = randomKey();
+			filter.add(filter.fingerprint(keys[i]));
+		}
+		for(byte[] key : keys)
+			assertTrue(filter.mightContain(key));
+		// Remove half of them, the rest must still be there.
+		for(int i=0;i<keys.length;i+=2)
+			filter.remove(filter.fingerprint(keys[i]));
+		for(int i=1;i<keys.length;i+=2)
+			assertTrue(filter.mightContain(keys[i]));
+		for(int i=1;i<keys.length;i+=2)
+			filter.remove(filter.fingerprint(keys[i]));
+		for(byte[] key : keys)
+			assertFalse(filter.mightContain(key));
+	}
+
+	public void testFalsePositiveRate() {
+		KeyMembershipFilter filter = new KeyMembershipFilter(10000, random);
+		for(int i=0;i<10000;i++)
+			filter.add(filter.fingerprint(randomKey()));
+		int falsePositives = 0;
+		for(int i=0;i<10000;i++)
+			if(filter.mightContain(randomKey())) falsePositives++;
+		assertTrue("False positives: "+falsePositives, falsePositives < 1000);
+		assertEquals(10000, filter.lookups());
+		assertEquals(10000 - falsePositives, filter.negatives());
+	}
+
+	public void testSaturatedCountersStick() {
+		KeyMembershipFilter filter = new KeyMembershipFilter(10, random);
+		byte[] key = randomKey();
+		int fp = filter.fingerprint(key);
+		for(int i=0;i<20;i++)
+			filter.add(fp);
+		for(int i=0;i<20;i++)
+			filter.remove(fp);
+		// We lost count, so we must keep saying yes.
+		assertTrue(filter.mightContain(key));
+	}
+
+	public void testFingerprintNeverZero() {
+		KeyMembershipFilter filter = new KeyMembershipFilter(10, random);
+		for(int i=0;i<10000;i++)
+			assertTrue(filter.fingerprint(randomKey()) != 0);
+	}
+
+	public void testRAMStoreEvictions() throws IOException, CHKEncodeException {
+		KeyMembershipFilter filter = new KeyMembershipFilter(100, random);
+		CHKStore store = new CHKStore();
+		store.setMembershipFilter(filter);
+		new RAMFreenetStore<CHKBlock>(store, 5);
+		assertTrue(store.isMembershipComplete());
+		CHKBlock[] blocks = new CHKBlock[10];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test"+i).getBlock();
+			store.put(blocks[i], false);
+			// Putting it twice must not count it twice.
+			store.put(blocks[i], false);
+		}
+		for(int i=0;i<5;i++)
+			assertFalse(filter.mightContain(blocks[i].getRoutingKey()));
+		for(int i=5;i<10;i++)
+			assertTrue(filter.mightContain(blocks[i].getRoutingKey()));
+	}
+
+	public void testUntrackedStore() {
+		CHKStore store = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(store, 5);
+		assertFalse(store.isMembershipComplete());
+		// Setting the filter after the store was created doesn't make it complete either.
+		store.setMembershipFilter(new KeyMembershipFilter(100, random));
+		assertFalse(store.isMembershipComplete());
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
@@ -0,0 +1,137 @@
+package freenet.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class OffHeapBlockSlabTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	public void testReadWrite() {
+		OffHeapBlockSlab slab = new OffHeapBlockSlab(36, 32768, 32, Long.MAX_VALUE);
+		byte[][] headers = new byte[1000][];
+		byte[][] datas = new byte[1000][];
+		byte[][] keys = new byte[1000][];
+		int[] slots = new int[1000];
+		for(int i=0;i<slots.length;i++) {
+			headers[i] = randomBytes(36);
+			datas[i] = randomBytes(32768);
+			keys[i] = randomBytes(32);
+			assertTrue(slab.fits(headers[i], datas[i], keys[i]));
+			slots[i] = slab.allocate();
+			assertTrue(slots[i] >= 0);
+			slab.write(slots[i], headers[i], datas[i], keys[i]);
+		}
+		// More than one chunk.
+		assertTrue(slab.reservedBytes() > OffHeapBlockSlab.CHUNK_SIZE);
+		assertEquals(1000L * slab.slotSize(), slab.usedBytes());
+		for(int i=0;i<slots.length;i++) {
+			assertTrue(Arrays.equals(headers[i], slab.readHeader(slots[i])));
+			assertTrue(Arrays.equals(datas[i], slab.readData(slots[i])));
+			assertTrue(Arrays.equals(keys[i], slab.readFullKey(slots[i])));
+		}
+	}
+
+	public void testFreeAndReuse() {
+		OffHeapBlockSlab slab = new OffHeapBlockSlab(0, 1024, 0, Long.MAX_VALUE);
+		assertFalse(slab.fits(new byte[0], new byte[1000], null));
+		assertFalse(slab.fits(new byte[0], new byte[1024], new byte[32]));
+		int a = slab.allocate();
+		int b = slab.allocate();
+		long reserved = slab.reservedBytes();
+		slab.free(a);
+		assertEquals(a, slab.allocate());
+		assertEquals(reserved, slab.reservedBytes());
+		assertNull(slab.readFullKey(b));
+		slab.free(a);
+		slab.free(b);
+		// Empty, so the memory has been given back.
+		assertEquals(0, slab.usedSlots());
+		assertEquals(0, slab.reservedBytes());
+	}
+
+	/** A small store doesn't reserve a whole chunk, and a big one grows a bit at a time. */
+	public void testChunkSizes() {
+		OffHeapBlockSlab slab = new OffHeapBlockSlab(36, 32768, 32, 5);
+		int slotSize = slab.slotSize();
+		byte[] header = randomBytes(36);
+		slab.allocate();
+		assertEquals(5L * slotSize, slab.reservedBytes());
+		for(int i=1;i<5;i++)
+			slab.allocate();
+		assertEquals(5L * slotSize, slab.reservedBytes());
+		// The store was made bigger.
+		slab.setMaxKeys(1000);
+		int slot = slab.allocate();
+		slab.write(slot, header, new byte[32768], new byte[32]);
+		assertTrue(Arrays.equals(header, slab.readHeader(slot)));
+		assertEquals((5L + OffHeapBlockSlab.MIN_CHUNK_SLOTS) * slotSize, slab.reservedBytes());
+
+		slab = new OffHeapBlockSlab(36, 32768, 32, Long.MAX_VALUE);
+		for(int i=0;i<100;i++)
+			slab.allocate();
+		// Never more than twice what we need.
+		assertTrue(slab.reservedBytes() < 200L * slotSize);
+		assertTrue(slab.reservedBytes() < OffHeapBlockSlab.CHUNK_SIZE);
+	}
+
+	public void testOffHeapStore() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 5, true);
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test"+i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		assertEquals(5, ramStore.keyCount());
+		assertEquals(5L * (store.headerLength() + store.dataLength() + store.fullKeyLength()), ramStore.getOffHeapBytes());
+		// Only the index is on the heap.
+		assertTrue(ramStore.getHeapBytes() < store.dataLength());
+		int found = 0;
+		for(int i=0;i<10;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock block = store.fetch(key.getNodeCHK(), false, false, null);
+			if(block == null) continue;
+			found++;
+			assertEquals("test"+i, decodeBlockCHK(block, key));
+		}
+		assertEquals(5, found);
+		ramStore.clear();
+		assertEquals(0, ramStore.getOffHeapReservedBytes());
+		assertNull(store.fetch(blocks[0].getClientKey().getNodeCHK(), false, false, null));
+	}
+
+	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
@@ -0,0 +1,136 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.io.FileUtil;
+
+/** Test that the slot filter buffer only writes what changed, and reads in lazily. */
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+	private File tempDir;
+	private static final int PAGE = ResizablePersistentIntBuffer.PAGE_INTS;
+	private static final int SIZE = PAGE * 100 + 17; // Last page is partial.
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+		exec.start();
+	}
+
+	@Override
+	protected void tearDown() {
+		ResizablePersistentIntBuffer.setPersistenceTime(ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME);
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testWritesOnlyChangedPages() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "slots");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.fill(1);
+		buf.forceWrite();
+		assertEquals(SIZE * 4L, buf.getBytesWritten());
+		buf.put(5, 2);
+		buf.put(6, 3);
+		buf.put(PAGE * 50, 4);
+		buf.put(SIZE - 1, 5);
+		buf.forceWrite();
+		// Two whole pages and the partial one.
+		assertEquals(SIZE * 4L + PAGE * 2 * 4 + 17 * 4, buf.getBytesWritten());
+		assertEquals(2, buf.getWrites());
+		buf.forceWrite();
+		assertEquals(SIZE * 4L + PAGE * 2 * 4 + 17 * 4, buf.getBytesWritten());
+		buf.shutdown();
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		assertFalse(buf.isNew());
+		checkContents(buf);
+		buf.shutdown();
+		assertEquals(0, buf.getBytesWritten());
+	}
+
+	public void testImmediateWrites() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		File f = new File(tempDir, "slots");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.fill(1);
+		buf.shutdown();
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.put(5, 2);
+		buf.put(6, 3);
+		buf.put(PAGE * 50, 4);
+		buf.put(SIZE - 1, 5);
+		assertEquals(16, buf.getBytesWritten());
+		buf.abort();
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		checkContents(buf);
+		buf.shutdown();
+	}
+
+	public void testLazyLoad() throws IOException, InterruptedException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "slots");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.fill(1);
+		buf.put(5, 2);
+		buf.put(6, 3);
+		buf.put(PAGE * 50, 4);
+		buf.put(SIZE - 1, 5);
+		buf.shutdown();
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		assertFalse(buf.isLoaded());
+		assertEquals(4, buf.get(PAGE * 50));
+		assertEquals(1, buf.getPagesLoadedOnDemand());
+		buf.start(ticker);
+		for(int i=0;i<100 && !buf.isLoaded();i++)
+			Thread.sleep(50);
+		assertTrue(buf.isLoaded());
+		checkContents(buf);
+		assertEquals(1, buf.getPagesLoadedOnDemand());
+		buf.shutdown();
+	}
+
+	public void testResize() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "slots");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.fill(1);
+		buf.put(5, 2);
+		buf.put(6, 3);
+		buf.put(PAGE * 50, 4);
+		buf.put(SIZE - 1, 5);
+		buf.shutdown();
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.resize(SIZE * 2);
+		assertTrue(buf.isLoaded());
+		assertEquals(0, buf.get(SIZE * 2 - 1));
+		buf.shutdown();
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		checkContents(buf);
+		buf.shutdown();
+	}
+
+	private void checkContents(ResizablePersistentIntBuffer buf) {
+		for(int i=0;i<SIZE;i++) {
+			int expected;
+			if(i == 5) expected = 2;
+			else if(i == 6) expected = 3;
+			else if(i == PAGE * 50) expected = 4;
+			else if(i == SIZE - 1) expected = 5;
+			else expected = 1;
+			assertEquals("Slot "+i, expected, buf.get(i));
+		}
+	}
+
+}
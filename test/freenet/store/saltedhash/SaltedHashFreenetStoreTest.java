@@ -31,6 +31,7 @@ import freenet.node.SemiOrderedShutdownHook;
 import freenet.store.CHKStore;
 import freenet.store.GetPubkey;
 import freenet.store.KeyCollisionException;
+import freenet.store.KeyMembershipFilter;
 import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
@@ -125,6 +126,137 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 
+	/* The membership filter covers a new store, but never one which already existed, because
+	 * only salted digests of the keys are on disk. */
+	public void testMembershipFilter() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		KeyMembershipFilter filter = new KeyMembershipFilter(100, weakPRNG);
+		CHKStore store = new CHKStore();
+		store.setMembershipFilter(filter);
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testMembershipFilter", store, weakPRNG, 5, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		assertTrue(store.isMembershipComplete());
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[20];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+			store.put(blocks[i].getBlock(), false);
+			assertTrue(filter.mightContain(blocks[i].getBlock().getRoutingKey()));
+		}
+		// More keys than slots, so some have been overwritten. They stay in the filter.
+		for(int i=0;i<blocks.length;i++)
+			assertTrue(filter.mightContain(blocks[i].getBlock().getRoutingKey()));
+		assertTrue(store.isMembershipComplete());
+		saltStore.close();
+
+		// Reopen: we don't know what is in there any more.
+		filter = new KeyMembershipFilter(100, weakPRNG);
+		store = new CHKStore();
+		store.setMembershipFilter(filter);
+		saltStore = SaltedHashFreenetStore.construct(f, "testMembershipFilter", store, weakPRNG, 5, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		assertFalse(store.isMembershipComplete());
+		int found = 0;
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			if(store.fetch(key.getNodeCHK(), false, false, null) != null) found++;
+		}
+		assertTrue(found > 0);
+		assertFalse(store.isMembershipComplete());
+		saltStore.close();
+	}
+
+	public void testFetchBatchCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		checkFetchBatchCHK(false);
+		checkFetchBatchCHK(true);
+	}
+
+	private void checkFetchBatchCHK(boolean useSlotFilter) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testFetchBatchCHK", store, weakPRNG, 200, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final int stored = 50;
+		final int missing = 20;
+		ClientCHKBlock[] blocks = new ClientCHKBlock[stored + missing];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			if(i < stored)
+				store.put(blocks[i].getBlock(), false);
+		}
+		// Most of the keys, in a random order, plus one we already have and a gap.
+		int count = blocks.length + 1;
+		byte[][] routingKeys = new byte[count][];
+		byte[][] fullKeys = new byte[count][];
+		int[] which = new int[count];
+		CHKBlock[] found = new CHKBlock[count];
+		for(int i=0;i<blocks.length;i++) {
+			int j = weakPRNG.nextInt(i + 1);
+			which[i] = which[j];
+			which[j] = i;
+		}
+		for(int i=0;i<blocks.length;i++) {
+			routingKeys[i] = blocks[which[i]].getClientKey().getRoutingKey();
+			fullKeys[i] = blocks[which[i]].getClientKey().getNodeCHK().getFullKey();
+		}
+		CHKBlock already = blocks[0].getBlock();
+		found[0] = already;
+		long hits = saltStore.hits();
+		long misses = saltStore.misses();
+
+		assertEquals(stored - (which[0] < stored ? 1 : 0), saltStore.fetchBatch(routingKeys, fullKeys, found, false, false, false, false));
+		assertSame(already, found[0]);
+		assertNull(found[count-1]);
+		for(int i=1;i<blocks.length;i++) {
+			ClientCHKBlock block = blocks[which[i]];
+			if(which[i] < stored)
+				assertEquals("test" + which[i], decodeBlockCHK(found[i], block.getClientKey()));
+			else
+				assertNull(found[i]);
+		}
+		assertEquals(hits + stored - (which[0] < stored ? 1 : 0), saltStore.hits());
+		assertEquals(misses + missing - (which[0] < stored ? 0 : 1), saltStore.misses());
+		saltStore.close();
+	}
+
+	/* Grow and then shrink the store on startup, and check that no keys are lost */
+	public void testResizeCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final int keys = 30;
+		ClientCHKBlock[] blocks = new ClientCHKBlock[keys];
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testResizeCHK", store, weakPRNG, 100, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<keys;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		saltStore.close();
+
+		for(int size : new int[] { 300, 150 }) {
+			store = new CHKStore();
+			saltStore = SaltedHashFreenetStore.construct(f, "testResizeCHK", store, weakPRNG, size, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(null, true);
+			assertEquals(size, saltStore.getMaxKeys());
+			assertEquals(keys, saltStore.keyCount());
+			for(int i=0;i<keys;i++) {
+				ClientCHK key = blocks[i].getClientKey();
+				CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+				assertNotNull("Lost key "+i+" resizing to "+size, verify);
+				assertEquals("test" + i, decodeBlockCHK(verify, key));
+			}
+			saltStore.close();
+		}
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
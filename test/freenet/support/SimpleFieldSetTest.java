@@ -16,7 +16,11 @@
 
 package freenet.support;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -26,6 +30,7 @@ import java.util.NoSuchElementException;
 
 import freenet.node.FSParseException;
 import freenet.support.io.LineReader;
+import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.Readers;
 import junit.framework.TestCase;
 
@@ -800,4 +805,111 @@ public class SimpleFieldSetTest extends TestCase {
         assertTrue(Arrays.equals(SimpleFieldSet.split(";;blah;1;2;;"), new String[] { "", "", "blah", "1", "2", "", "" }));
         assertTrue(Arrays.equals(SimpleFieldSet.split(";;;"), new String[] { "", "", "" }));
 	}
+
+	private static final String SAMPLE_MESSAGE = 
+		"# A header\n" +
+		"Identifier=test\n" +
+		"URI=CHK@blah,blah,AAMC--8/file.txt\n" +
+		"Files.0.Name=\u00e9t\u00e9.txt\n" +
+		"Files.0.DataLength=100\n" +
+		" Files.1.Name =second\r\n" +
+		"Verbosity=1\n" +
+		"Data\n";
+	
+	private void checkSampleMessage(SimpleFieldSet fs) {
+		assertEquals("test", fs.get("Identifier"));
+		assertEquals("CHK@blah,blah,AAMC--8/file.txt", fs.get("URI"));
+		assertEquals("\u00e9t\u00e9.txt", fs.get("Files.0.Name"));
+		assertEquals(100, fs.getInt("Files.0.DataLength", 0));
+		assertEquals("second", fs.get("Files.1.Name"));
+		assertEquals("1", fs.get("Verbosity"));
+		assertEquals("Data", fs.getEndMarker());
+		assertEquals("A header", fs.getHeader()[0]);
+	}
+	
+	public void testReadFromMarkableStreamLeavesTrailingData() throws IOException {
+		byte[] trailer = new byte[] { 1, 2, 3, '\n', 'x', '=' };
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(SAMPLE_MESSAGE.getBytes("UTF-8"));
+		baos.write(trailer);
+		// Small buffer so lines are split across reads.
+		LineReadingInputStream lis = new LineReadingInputStream(
+				new BufferedInputStream(new ByteArrayInputStream(baos.toByteArray()), 16));
+		SimpleFieldSet fs = new SimpleFieldSet(lis, 1024, 128, true, false, true);
+		checkSampleMessage(fs);
+		for(byte b : trailer)
+			assertEquals(b, (byte)lis.read());
+		assertEquals(-1, lis.read());
+	}
+	
+	public void testReadFromMarkableStreamTooLong() throws IOException {
+		String message = "Key="+new String(new char[200]).replace('\0', 'a')+"\nEnd\n";
+		LineReadingInputStream lis = new LineReadingInputStream(
+				new BufferedInputStream(new ByteArrayInputStream(message.getBytes("UTF-8"))));
+		try {
+			new SimpleFieldSet(lis, 100, 128, true, false, true);
+			fail("Should have thrown");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+	
+	public void testReadFromBytes() throws IOException {
+		byte[] data = SAMPLE_MESSAGE.replace("\r\n", "\r").getBytes("UTF-8");
+		checkSampleMessage(new SimpleFieldSet(data, 0, data.length, false, false, false));
+		checkSampleMessage(SimpleFieldSet.readFrom(new ByteArrayInputStream(data), false, true));
+		try {
+			new SimpleFieldSet(new byte[0], 0, 0, false, true, false);
+			fail("Should have thrown");
+		} catch (EOFException e) {
+			// Expected.
+		}
+	}
+	
+	public void testReadMatchesLineReader() throws IOException {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		for(int i=0;i<SAMPLE_STRING_PAIRS.length;i++)
+			fs.putSingle("Sub"+(i%3)+"."+SAMPLE_STRING_PAIRS[i][0], SAMPLE_STRING_PAIRS[i][1]);
+		fs.putAppend("Multi", "a");
+		fs.putAppend("Multi", "b");
+		String written = fs.toString();
+		byte[] data = written.getBytes("UTF-8");
+		SimpleFieldSet fromBytes = new SimpleFieldSet(data, 0, data.length, true, false, false);
+		SimpleFieldSet fromString = new SimpleFieldSet(written, true, false, false);
+		assertEquals(fromString.toOrderedString(), fromBytes.toOrderedString());
+		assertEquals(fs.toOrderedString(), fromBytes.toOrderedString());
+	}
+	
+	public void testToByteArray() throws IOException {
+		byte[] data = SAMPLE_MESSAGE.getBytes("UTF-8");
+		SimpleFieldSet fs = new SimpleFieldSet(data, 0, data.length, false, true, false);
+		assertTrue(Arrays.equals(fs.toString().getBytes("UTF-8"), fs.toByteArray()));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		fs.writeTo(baos);
+		assertTrue(Arrays.equals(fs.toByteArray(), baos.toByteArray()));
+	}
+	
+	public void testKeyIndex() throws IOException {
+		byte[] data = SAMPLE_MESSAGE.getBytes("UTF-8");
+		SimpleFieldSet fs = new SimpleFieldSet(data, 0, data.length, false, true, false);
+		fs.buildKeyIndex();
+		checkSampleMessage(fs);
+		assertNull(fs.get("Files.2.Name"));
+		// Changing a subset must invalidate the index of the whole tree.
+		fs.subset("Files.0").putOverwrite("Name", "changed");
+		assertEquals("changed", fs.get("Files.0.Name"));
+		fs.buildKeyIndex();
+		fs.removeValue("Identifier");
+		assertNull(fs.get("Identifier"));
+		fs.buildKeyIndex();
+		fs.putSingle("Files.2.Name", "third");
+		assertEquals("third", fs.get("Files.2.Name"));
+		// A copy shares subsets, so indexing the copy must invalidate the original's index.
+		fs.buildKeyIndex();
+		SimpleFieldSet copy = new SimpleFieldSet(fs);
+		copy.buildKeyIndex();
+		copy.subset("Files.1").putOverwrite("Name", "shared");
+		assertEquals("shared", fs.get("Files.1.Name"));
+		assertEquals("shared", copy.get("Files.1.Name"));
+	}
 }
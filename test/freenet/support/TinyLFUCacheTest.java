@@ -0,0 +1,177 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.TinyLFUCache} class.
+ */
+public class TinyLFUCacheTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private static byte[] key(int i) {
+		byte[] key = new byte[32];
+		System.arraycopy(Fields.intToBytes(i), 0, key, 0, 4);
+		return key;
+	}
+
+	public void testLRUOrder() {
+		TinyLFUCache<Integer> cache = new TinyLFUCache<Integer>(10, 1, false, null, random);
+		for(int i=0;i<10;i++)
+			assertTrue(cache.offer(key(i), i));
+		// Touch 0 so 1 is the eldest.
+		assertEquals(Integer.valueOf(0), cache.get(key(0)));
+		assertEquals(Integer.valueOf(1), cache.peekEldest().getValue());
+		assertTrue(cache.offer(key(10), 10));
+		assertNull(cache.peek(key(1)));
+		assertNotNull(cache.peek(key(0)));
+		assertEquals(10, cache.size());
+		assertEquals(1, cache.evictions());
+		// Already there.
+		assertFalse(cache.offer(key(10), 11));
+		assertEquals(Integer.valueOf(10), cache.peek(key(10)));
+	}
+
+	public void testPutReplaces() {
+		TinyLFUCache<Integer> cache = new TinyLFUCache<Integer>(10, 1, true, null, random);
+		assertNull(cache.put(key(1), 1));
+		assertEquals(Integer.valueOf(1), cache.put(key(1), 2));
+		assertEquals(Integer.valueOf(2), cache.get(key(1)));
+		assertEquals(1, cache.size());
+	}
+
+	public void testRemoveIfSame() {
+		TinyLFUCache<Object> cache = new TinyLFUCache<Object>(10, 1, false, null, random);
+		Object a = new Object();
+		cache.put(key(1), a);
+		assertFalse(cache.remove(key(1), new Object()));
+		assertTrue(cache.remove(key(1), a));
+		assertTrue(cache.isEmpty());
+		assertNull(cache.remove(key(1)));
+	}
+
+	public void testScanResistance() {
+		TinyLFUCache<Integer> lru = new TinyLFUCache<Integer>(100, 1, false, null, random);
+		TinyLFUCache<Integer> tinyLFU = new TinyLFUCache<Integer>(100, 1, true, null, random);
+		int keptLRU = scan(lru);
+		int keptTinyLFU = scan(tinyLFU);
+		assertTrue("Only kept "+keptTinyLFU, keptTinyLFU >= 45);
+		assertTrue(keptTinyLFU > keptLRU);
+		assertTrue(tinyLFU.hits() > lru.hits());
+		assertTrue(tinyLFU.rejected() > 0);
+		assertEquals(0, lru.rejected());
+	}
+
+	/** Run a long scan over a cache holding a popular working set of 50 keys.
+	 * @return The number of popular keys still cached afterwards. */
+	private int scan(TinyLFUCache<Integer> cache) {
+		for(int round=0;round<5;round++) {
+			for(int i=0;i<50;i++) {
+				if(cache.get(key(i)) == null)
+					cache.offer(key(i), i);
+			}
+		}
+		// Keys which are only asked for once, while the working set stays popular.
+		Random r = new Random(5678);
+		for(int i=1000;i<10000;i++) {
+			if(cache.get(key(i)) == null)
+				cache.offer(key(i), i);
+			int k = r.nextInt(50);
+			if(cache.get(key(k)) == null)
+				cache.offer(key(k), k);
+		}
+		int kept = 0;
+		for(int i=0;i<50;i++)
+			if(cache.peek(key(i)) != null) kept++;
+		return kept;
+	}
+
+	public void testEvictionListener() {
+		final List<Integer> evicted = new ArrayList<Integer>();
+		TinyLFUCache<Integer> cache = new TinyLFUCache<Integer>(5, 1, false, new TinyLFUCache.EvictionListener<Integer>() {
+			@Override
+			public void onEvicted(byte[] key, Integer value) {
+				evicted.add(value);
+			}
+		}, random);
+		for(int i=0;i<10;i++)
+			cache.offer(key(i), i);
+		assertEquals(5, evicted.size());
+		for(int i=0;i<5;i++)
+			assertEquals(Integer.valueOf(i), evicted.get(i));
+		cache.remove(key(9));
+		assertEquals(5, evicted.size());
+		cache.setMaxEntries(2);
+		assertEquals(7, evicted.size());
+		cache.clear();
+		assertEquals(9, evicted.size());
+		assertTrue(cache.isEmpty());
+	}
+
+	public void testSharding() {
+		TinyLFUCache<Integer> small = new TinyLFUCache<Integer>(100, 16, false, null, random);
+		assertEquals(1, small.shardCount());
+		TinyLFUCache<Integer> cache = new TinyLFUCache<Integer>(100000, 16, false, null, random);
+		assertTrue(cache.shardCount() > 1);
+		for(int i=0;i<200000;i++)
+			cache.offer(key(i), i);
+		assertEquals(100000, cache.size());
+		assertEquals(100000, cache.keys().size());
+		// The most recent keys should mostly still be there.
+		int kept = 0;
+		for(int i=190000;i<200000;i++)
+			if(cache.peek(key(i)) != null) kept++;
+		assertTrue("Only kept "+kept, kept > 9900);
+	}
+
+	public void testPeekEldest() {
+		TinyLFUCache<Integer> cache = new TinyLFUCache<Integer>(Integer.MAX_VALUE, 16, false, null, random);
+		assertTrue(cache.shardCount() > 1);
+		assertNull(cache.peekEldest());
+		for(int i=0;i<100;i++) {
+			cache.put(key(i), i);
+			// Make sure the timestamps differ.
+			long start = System.nanoTime();
+			while(System.nanoTime() == start);
+		}
+		for(int i=0;i<100;i++) {
+			Map.Entry<byte[], Integer> e = cache.peekEldest();
+			assertEquals(Integer.valueOf(i), e.getValue());
+			assertTrue(cache.remove(e.getKey(), e.getValue()));
+		}
+		assertTrue(cache.isEmpty());
+	}
+
+	public void testConcurrentAccess() throws InterruptedException {
+		final TinyLFUCache<Integer> cache = new TinyLFUCache<Integer>(1000, 8, true, null, random);
+		Thread[] threads = new Thread[8];
+		for(int t=0;t<threads.length;t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for(int i=0;i<20000;i++) {
+						int k = r.nextInt(5000);
+						Integer v = cache.get(key(k));
+						if(v == null)
+							cache.offer(key(k), k);
+						else
+							assertEquals(k, v.intValue());
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertTrue(cache.size() <= 1000);
+		assertEquals(8*20000, cache.hits() + cache.misses());
+	}
+
+}
@@ -3,8 +3,15 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support.io;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Random;
 
 import freenet.support.api.Bucket;
@@ -30,4 +37,44 @@ public class TempFileBucketTest extends BucketTestBase {
 		bucket.free();
 		assertFalse("TempFile not deleted", file.exists());
 	}
+
+	public void testTransferToLoopback() throws IOException {
+		Bucket bucket = makeBucket(-1);
+		byte[] data = new byte[1024*1024+17];
+		weakPRNG.nextBytes(data);
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+		final SocketChannel accepted = server.accept();
+		final byte[] received = new byte[data.length - 100];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					new DataInputStream(new SocketChannelInputStream(accepted)).readFully(received);
+				} catch (IOException e) {
+					// Checked below.
+				}
+			}
+		};
+		reader.start();
+		try {
+			// Part of the data, to check the offset too.
+			assertTrue(((ChannelTransferable)bucket).transferTo(100, received.length, client));
+			reader.join();
+		} catch (InterruptedException e) {
+			fail();
+		} finally {
+			client.close();
+			accepted.close();
+			server.close();
+		}
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, data.length), received));
+
+		freeBucket(bucket);
+	}
 }
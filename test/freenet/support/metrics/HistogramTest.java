@@ -0,0 +1,46 @@
+package freenet.support.metrics;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+	public void testBuckets() {
+		for(long v=0;v<100000;v++) {
+			int index = Histogram.bucketIndex(v);
+			assertTrue(index < Histogram.BUCKETS);
+			assertTrue("Value "+v, v <= Histogram.highestValueInBucket(index));
+			if(index > 0)
+				assertTrue("Value "+v, v > Histogram.highestValueInBucket(index - 1));
+		}
+		int last = Histogram.bucketIndex(Long.MAX_VALUE);
+		assertEquals(Histogram.BUCKETS - 1, last);
+		assertEquals(Long.MAX_VALUE, Histogram.highestValueInBucket(last));
+	}
+
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.percentile(0.5));
+		for(int i=1;i<=1000;i++)
+			histogram.report(i);
+		assertEquals(1000, histogram.count());
+		assertEquals(500500, histogram.sum());
+		assertEquals(1000, histogram.max());
+		assertWithin(500, histogram.percentile(0.5));
+		assertWithin(900, histogram.percentile(0.9));
+		assertWithin(990, histogram.percentile(0.99));
+		assertEquals(1000, histogram.percentile(1.0));
+	}
+
+	public void testNegative() {
+		Histogram histogram = new Histogram();
+		histogram.report(-5);
+		assertEquals(1, histogram.count());
+		assertEquals(0, histogram.max());
+		assertEquals(0, histogram.percentile(0.5));
+	}
+
+	private void assertWithin(long expected, long actual) {
+		assertTrue("Expected "+expected+" got "+actual, actual >= expected && actual <= expected * 1.125);
+	}
+
+}
@@ -0,0 +1,98 @@
+package freenet.support.metrics;
+
+import junit.framework.TestCase;
+import freenet.support.SimpleFieldSet;
+
+public class MetricsRegistryTest extends TestCase {
+
+	public void testPrometheus() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter chk = registry.counter("test_requests_total", "Requests", "type", "chk");
+		Counter ssk = registry.counter("test_requests_total", "Requests", "type", "ssk");
+		assertSame(chk, registry.counter("test_requests_total", "Requests", "type", "chk"));
+		chk.increment();
+		chk.add(2);
+		ssk.increment();
+		registry.gauge("test_temperature", "Say \"hello\"\nback\\slash", new Gauge() {
+			@Override
+			public double get() {
+				return 1.5;
+			}
+		}, "where", "a\"b");
+		Histogram histogram = registry.histogram("test_time_milliseconds", "Time");
+		histogram.report(0);
+		histogram.report(5);
+		histogram.report(20);
+
+		String text = registry.toPrometheus();
+		String expected =
+			"# HELP test_requests_total Requests\n" +
+			"# TYPE test_requests_total counter\n" +
+			"test_requests_total{type=\"chk\"} 3\n" +
+			"test_requests_total{type=\"ssk\"} 1\n" +
+			"# HELP test_temperature Say \"hello\"\\nback\\\\slash\n" +
+			"# TYPE test_temperature gauge\n" +
+			"test_temperature{where=\"a\\\"b\"} 1.5\n" +
+			"# HELP test_time_milliseconds Time\n" +
+			"# TYPE test_time_milliseconds histogram\n" +
+			"test_time_milliseconds_bucket{le=\"1\"} 1\n" +
+			"test_time_milliseconds_bucket{le=\"3\"} 1\n" +
+			"test_time_milliseconds_bucket{le=\"7\"} 2\n" +
+			"test_time_milliseconds_bucket{le=\"15\"} 2\n" +
+			"test_time_milliseconds_bucket{le=\"31\"} 3\n" +
+			"test_time_milliseconds_bucket{le=\"+Inf\"} 3\n" +
+			"test_time_milliseconds_sum 25\n" +
+			"test_time_milliseconds_count 3\n";
+		assertEquals(expected, text);
+	}
+
+	public void testFieldSet() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("test_requests_total", "Requests", "type", "chk", "origin", "local").add(7);
+		registry.gauge("test_peers", "Peers", new Gauge() {
+			@Override
+			public double get() {
+				return 12;
+			}
+		});
+		registry.gauge("test_broken", "Throws", new Gauge() {
+			@Override
+			public double get() {
+				throw new NullPointerException();
+			}
+		});
+		registry.histogram("test_time", "Time", "type", "ssk").report(100);
+		SimpleFieldSet fs = registry.toFieldSet();
+		assertEquals("7", fs.get("test_requests_total.chk.local"));
+		assertEquals("12", fs.get("test_peers"));
+		assertNull(fs.get("test_broken"));
+		assertEquals("1", fs.get("test_time.ssk.Count"));
+		assertEquals("100", fs.get("test_time.ssk.Max"));
+		assertEquals("100", fs.get("test_time.ssk.P99"));
+		assertFalse(registry.toPrometheus().contains("\ntest_broken "));
+	}
+
+	public void testInvalid() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("test_total", "Test");
+		try {
+			registry.histogram("test_total", "Test");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.counter("test-total", "Test");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.counter("test_other", "Test", "type");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+}